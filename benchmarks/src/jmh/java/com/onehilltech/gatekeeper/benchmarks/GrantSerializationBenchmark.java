@@ -0,0 +1,78 @@
+package com.onehilltech.gatekeeper.benchmarks;
+
+import com.google.gson.Gson;
+import com.onehilltech.gatekeeper.android.http.JsonClientCredentials;
+import com.onehilltech.gatekeeper.android.http.JsonGrant;
+import com.onehilltech.gatekeeper.android.http.JsonPassword;
+import com.onehilltech.gatekeeper.android.http.JsonRefreshToken;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing the grants sent to POST /oauth2/token.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+public class GrantSerializationBenchmark
+{
+  private Gson gson_;
+
+  private JsonPassword password_;
+
+  private JsonRefreshToken refreshToken_;
+
+  private JsonClientCredentials clientCredentials_;
+
+  @Setup
+  public void setup ()
+  {
+    this.gson_ = GatekeeperProtocol.newGsonBuilder ().create ();
+
+    this.password_ = new JsonPassword ();
+    initGrant (this.password_);
+    this.password_.username = "tester1";
+    this.password_.password = "tester1";
+
+    this.refreshToken_ = new JsonRefreshToken ();
+    initGrant (this.refreshToken_);
+    this.refreshToken_.refreshToken = "3F1C0B3E6D2A4F5B9C8E7D6A5B4C3D2E1F0A9B8C7D6E5F4A";
+
+    this.clientCredentials_ = new JsonClientCredentials ();
+    initGrant (this.clientCredentials_);
+  }
+
+  @Benchmark
+  public String passwordGrant ()
+  {
+    return this.gson_.toJson (this.password_, JsonGrant.class);
+  }
+
+  @Benchmark
+  public String refreshTokenGrant ()
+  {
+    return this.gson_.toJson (this.refreshToken_, JsonGrant.class);
+  }
+
+  @Benchmark
+  public String clientCredentialsGrant ()
+  {
+    return this.gson_.toJson (this.clientCredentials_, JsonGrant.class);
+  }
+
+  private static void initGrant (JsonGrant grant)
+  {
+    grant.clientId = "58ed90e1105aee3a5b1ab8e9";
+    grant.clientSecret = "android-client-secret";
+    grant.packageName = "com.onehilltech.gatekeeper.android.examples.standard";
+  }
+}
@@ -0,0 +1,155 @@
+package com.onehilltech.gatekeeper.benchmarks;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.model.RoutePolicy;
+import com.onehilltech.gatekeeper.android.model.RouteTable;
+import com.onehilltech.gatekeeper.core.ClientMetadata;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+import com.onehilltech.gatekeeper.core.InMemoryTokenStore;
+import com.onehilltech.gatekeeper.core.SessionEngine;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.gatekeeper.mockserver.NoDelayServerSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Measures a request through the interceptor chain of the user client of the session
+ * engine against an in-process server. The route policy is applied, the bearer token
+ * and user agent are added to the request, and the status code of the response is
+ * checked for a 401. The plain client is the baseline without any interceptors.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.SECONDS)
+public class InterceptorChainBenchmark
+{
+  private static final String ACCOUNT =
+      "{\"account\": {\"_id\": \"58ed90e1105aee3a5b1ab8e9\", \"username\": \"tester1\", \"email\": \"tester1@gatekeeper.com\"}}";
+
+  private MockWebServer server_;
+
+  private HttpUrl url_;
+
+  private OkHttpClient plainClient_;
+
+  private OkHttpClient userClient_;
+
+  @Setup (Level.Trial)
+  public void setup () throws IOException
+  {
+    // MockWebServer logs each request, which would dominate the measurement.
+    Logger.getLogger (MockWebServer.class.getName ()).setLevel (java.util.logging.Level.WARNING);
+
+    this.server_ = new MockWebServer ();
+    this.server_.setServerSocketFactory (new NoDelayServerSocketFactory ());
+    this.server_.setDispatcher (new Dispatcher ()
+    {
+      @Override
+      public MockResponse dispatch (RecordedRequest request)
+      {
+        return new MockResponse ().setResponseCode (200).setBody (ACCOUNT);
+      }
+    });
+
+    this.server_.start ();
+
+    this.url_ = this.server_.url ("/v1/accounts/me");
+
+    RouteTable routeTable =
+        new RouteTable.Builder ()
+            .add ("GET", "accounts/me", new RoutePolicy.Builder ().setTimeToLive (0, TimeUnit.SECONDS).build ())
+            .build ();
+
+    Interceptor routePolicy = chain -> chain.proceed (routeTable.apply (chain.request ()));
+
+    this.plainClient_ = new OkHttpClient ();
+
+    ClientMetadata metadata =
+        new ClientMetadata.Builder ()
+            .setClientId ("58ed90e1105aee3a5b1ab8e9")
+            .setClientSecret ("android-client-secret")
+            .setBaseUrl (this.server_.url ("/").toString ())
+            .build ();
+
+    GatekeeperProtocol protocol =
+        new GatekeeperProtocol.Builder ()
+            .setMetadata (metadata)
+            .setHttpClient (this.plainClient_)
+            .build ();
+
+    // The session starts with a signed in user.
+    final SessionToken token = SessionToken.fromJson ("tester1", JsonBearerToken.generateRandomToken ());
+
+    SessionEngine engine =
+        new SessionEngine.Builder ()
+            .setProtocol (protocol)
+            .setTokenStore (new InMemoryTokenStore (token))
+            .build ();
+
+    engine.setUserAgent ("Gatekeeper-Benchmarks");
+
+    this.userClient_ =
+        engine.getUserClient ()
+              .newBuilder ()
+              .addInterceptor (routePolicy)
+              .build ();
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDown () throws IOException
+  {
+    this.server_.shutdown ();
+  }
+
+  @Benchmark
+  public String plainClient () throws IOException
+  {
+    return this.execute (this.plainClient_);
+  }
+
+  @Benchmark
+  public String userClient () throws IOException
+  {
+    return this.execute (this.userClient_);
+  }
+
+  @Benchmark
+  @Threads (8)
+  public String userClientContended () throws IOException
+  {
+    return this.execute (this.userClient_);
+  }
+
+  private String execute (OkHttpClient client) throws IOException
+  {
+    Request request = new Request.Builder ().url (this.url_).build ();
+
+    try (Response response = client.newCall (request).execute ())
+    {
+      return response.body ().string ();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.onehilltech.gatekeeper.benchmarks;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.model.UserToken;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+import com.onehilltech.gatekeeper.core.SessionToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures equals and hashCode for the token classes, which are used each time the
+ * session checks if its token has changed.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class TokenEqualityBenchmark
+{
+  private JsonBearerToken bearerToken_;
+
+  private JsonBearerToken sameBearerToken_;
+
+  private JsonBearerToken otherBearerToken_;
+
+  private UserToken userToken_;
+
+  private UserToken sameUserToken_;
+
+  private UserToken otherUserToken_;
+
+  @Setup
+  public void setup ()
+  {
+    this.bearerToken_ = JsonBearerToken.generateRandomToken ();
+    this.sameBearerToken_ = GatekeeperProtocol.newGsonBuilder ().create ().fromJson (this.bearerToken_.toString (), JsonBearerToken.class);
+    this.otherBearerToken_ = JsonBearerToken.generateRandomToken ();
+
+    this.userToken_ = UserToken.fromToken (SessionToken.fromJson ("tester1", this.bearerToken_));
+    this.sameUserToken_ = UserToken.fromToken (SessionToken.fromJson ("tester1", this.sameBearerToken_));
+    this.otherUserToken_ = UserToken.fromToken (SessionToken.fromJson ("tester1", this.otherBearerToken_));
+  }
+
+  @Benchmark
+  public boolean bearerTokenEqual ()
+  {
+    return this.bearerToken_.equals (this.sameBearerToken_);
+  }
+
+  @Benchmark
+  public boolean bearerTokenNotEqual ()
+  {
+    return this.bearerToken_.equals (this.otherBearerToken_);
+  }
+
+  @Benchmark
+  public int bearerTokenHashCode ()
+  {
+    return this.bearerToken_.hashCode ();
+  }
+
+  @Benchmark
+  public boolean userTokenEqual ()
+  {
+    return this.userToken_.equals (this.sameUserToken_);
+  }
+
+  @Benchmark
+  public boolean userTokenNotEqual ()
+  {
+    return this.userToken_.equals (this.otherUserToken_);
+  }
+
+  @Benchmark
+  public int userTokenHashCode ()
+  {
+    return this.userToken_.hashCode ();
+  }
+}
@@ -0,0 +1,57 @@
+package com.onehilltech.gatekeeper.benchmarks;
+
+import com.google.gson.Gson;
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the token returned from POST /oauth2/token.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.Throughput)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+public class TokenParsingBenchmark
+{
+  private Gson gson_;
+
+  private String json_;
+
+  private byte [] bytes_;
+
+  @Setup
+  public void setup ()
+  {
+    this.gson_ = GatekeeperProtocol.newGsonBuilder ().create ();
+    this.json_ = this.gson_.toJson (JsonBearerToken.generateRandomToken ());
+    this.bytes_ = this.json_.getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public JsonBearerToken fromString ()
+  {
+    return this.gson_.fromJson (this.json_, JsonBearerToken.class);
+  }
+
+  /**
+   * Parse the token from a stream, which is how the converter reads the response body.
+   */
+  @Benchmark
+  public JsonBearerToken fromStream ()
+  {
+    InputStreamReader reader = new InputStreamReader (new ByteArrayInputStream (this.bytes_), StandardCharsets.UTF_8);
+    return this.gson_.fromJson (reader, JsonBearerToken.class);
+  }
+}
@@ -0,0 +1,136 @@
+package com.onehilltech.gatekeeper.benchmarks;
+
+import com.onehilltech.gatekeeper.core.FileTokenStore;
+import com.onehilltech.gatekeeper.core.InMemoryTokenStore;
+import com.onehilltech.gatekeeper.core.SessionSnapshot;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.gatekeeper.core.SnapshotTokenStore;
+import com.onehilltech.gatekeeper.core.TokenStore;
+import com.onehilltech.gatekeeper.core.WriteBehindTokenStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of loading the token when the application starts, and of
+ * saving a refreshed token, for each TokenStore that runs on the JVM. The in-memory
+ * store is the baseline without any I/O. The file store is measured with and without
+ * syncing each write to the storage device. The snapshot store keeps a session
+ * snapshot next to the in-memory store, and loads the token from the snapshot. The
+ * write-behind store saves to a synced file store on a background thread.
+ *
+ * The DBFlow store needs the Android framework, so it is not measured here.
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class TokenStoreBenchmark
+{
+  @Param ({"memory", "file", "file-sync", "snapshot", "write-behind"})
+  public String store;
+
+  private final SessionToken [] tokens_ = {
+      new SessionToken ("tester1", "access-1", "refresh-1"),
+      new SessionToken ("tester1", "access-2", "refresh-2")
+  };
+
+  private File file_;
+
+  private File snapshotFile_;
+
+  private TokenStore store_;
+
+  /// The file store under test, which may be wrapped by the store under test.
+  private FileTokenStore fileStore_;
+
+  private int next_;
+
+  @Setup
+  public void setup () throws IOException
+  {
+    this.file_ = File.createTempFile ("gatekeeper-token", ".log");
+    this.file_.delete ();
+
+    this.snapshotFile_ = new File (this.file_.getPath () + ".snapshot");
+
+    this.store_ = this.newStore ();
+    this.store_.save (this.tokens_[0]);
+  }
+
+  @TearDown
+  public void teardown () throws InterruptedException
+  {
+    if (this.store_ instanceof WriteBehindTokenStore)
+      ((WriteBehindTokenStore) this.store_).flush ();
+
+    if (this.fileStore_ != null)
+      this.fileStore_.close ();
+
+    this.file_.delete ();
+    this.snapshotFile_.delete ();
+    new File (this.file_.getPath () + ".tmp").delete ();
+  }
+
+  /**
+   * Open a new store, and load the token, as the application does when it starts.
+   */
+  @Benchmark
+  public SessionToken coldLoad ()
+  {
+    if (this.store_ instanceof SnapshotTokenStore)
+      return SessionSnapshot.read (this.snapshotFile_).getToken ();
+
+    if (this.store.equals ("memory"))
+      return new InMemoryTokenStore (this.tokens_[0]).load ();
+
+    FileTokenStore store = new FileTokenStore (this.file_, false);
+    SessionToken token = store.load ();
+    store.close ();
+
+    return token;
+  }
+
+  /**
+   * Save a refreshed token.
+   */
+  @Benchmark
+  public void save ()
+  {
+    this.store_.save (this.tokens_[this.next_ ++ & 1]);
+  }
+
+  private TokenStore newStore ()
+  {
+    switch (this.store)
+    {
+      case "file":
+        this.fileStore_ = new FileTokenStore (this.file_, false);
+        return this.fileStore_;
+
+      case "file-sync":
+        this.fileStore_ = new FileTokenStore (this.file_, true);
+        return this.fileStore_;
+
+      case "snapshot":
+        return new SnapshotTokenStore (new InMemoryTokenStore (), this.snapshotFile_);
+
+      case "write-behind":
+        this.fileStore_ = new FileTokenStore (this.file_, true);
+        return new WriteBehindTokenStore (this.fileStore_);
+
+      default:
+        return new InMemoryTokenStore ();
+    }
+  }
+}
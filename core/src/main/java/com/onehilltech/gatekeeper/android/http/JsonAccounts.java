@@ -0,0 +1,8 @@
+package com.onehilltech.gatekeeper.android.http;
+
+import java.util.List;
+
+public class JsonAccounts
+{
+  public List <JsonAccount> accounts;
+}
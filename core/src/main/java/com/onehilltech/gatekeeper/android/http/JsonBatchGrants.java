@@ -0,0 +1,8 @@
+package com.onehilltech.gatekeeper.android.http;
+
+import java.util.List;
+
+public class JsonBatchGrants
+{
+  public List <JsonGrant> grants;
+}
@@ -0,0 +1,23 @@
+package com.onehilltech.gatekeeper.android.http;
+
+import com.google.gson.JsonElement;
+
+import java.util.List;
+
+public class JsonBatchTokens
+{
+  /**
+   * The result of one grant in the batch. It has either the token, or the status
+   * code and the errors of the grant.
+   */
+  public static class Result
+  {
+    public JsonBearerToken token;
+
+    public Integer status;
+
+    public JsonElement errors;
+  }
+
+  public List <Result> results;
+}
@@ -16,6 +16,14 @@ public class JsonBearerToken
   @SerializedName ("refresh_token")
   public String refreshToken;
 
+  /// Lifetime of the access token in seconds, if the server sends it.
+  @SerializedName ("expires_in")
+  public Long expiresIn;
+
+  /// Scope granted to the access token, if the server sends it.
+  @SerializedName ("scope")
+  public String scope;
+
   static char [] VALID_CHARS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '0', 'A', 'B', 'C', 'D', 'E', 'F'};
 
   public static JsonBearerToken generateRandomToken ()
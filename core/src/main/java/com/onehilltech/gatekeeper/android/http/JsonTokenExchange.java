@@ -0,0 +1,23 @@
+package com.onehilltech.gatekeeper.android.http;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Token exchange grant (RFC 8693) that trades the access token of a user for an
+ * access token with a narrower scope.
+ */
+public class JsonTokenExchange extends JsonGrant
+{
+  public static final String GRANT_TYPE = "urn:ietf:params:oauth:grant-type:token-exchange";
+
+  public static final String ACCESS_TOKEN_TYPE = "urn:ietf:params:oauth:token-type:access_token";
+
+  @SerializedName ("subject_token")
+  public String subjectToken;
+
+  @SerializedName ("subject_token_type")
+  public String subjectTokenType = ACCESS_TOKEN_TYPE;
+
+  @SerializedName ("scope")
+  public String scope;
+}
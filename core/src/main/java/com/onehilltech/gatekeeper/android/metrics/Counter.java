@@ -0,0 +1,61 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * Counters recorded by the Gatekeeper clients.
+ */
+public enum Counter
+{
+  SIGN_IN,
+  SIGN_IN_FAILED,
+
+  REFRESH_TOKEN,
+  REFRESH_TOKEN_FAILED,
+
+  /// A request received a 401, but the token had already been refreshed by another
+  /// request so the request was replayed without refreshing the token again.
+  REFRESH_TOKEN_COALESCED,
+
+  /// The token was refreshed before a request was sent with it, because its JWT
+  /// claims said it had expired.
+  REFRESH_TOKEN_BEFORE_SEND,
+
+  GET_CLIENT_TOKEN,
+  GET_CLIENT_TOKEN_FAILED,
+
+  /// A downscoped token was minted with the token exchange grant.
+  EXCHANGE_TOKEN,
+  EXCHANGE_TOKEN_FAILED,
+
+  CREATE_ACCOUNT,
+  CREATE_ACCOUNT_FAILED,
+
+  /// A returning user of a KioskSessionPool was switched to their pooled session.
+  SESSION_POOL_HIT,
+
+  /// A user of a KioskSessionPool was signed in with Gatekeeper.
+  SESSION_POOL_MISS,
+
+  /// A session was evicted from a KioskSessionPool, and its token was deleted.
+  SESSION_POOL_EVICTED,
+
+  /// A message in the Outbox was accepted by Gatekeeper.
+  OUTBOX_DELIVERED,
+
+  /// A message in the Outbox failed to send, and will be sent again after a backoff.
+  OUTBOX_RETRIED,
+
+  /// A message in the Outbox was rejected by Gatekeeper, and was removed.
+  OUTBOX_REJECTED,
+
+  /// Gatekeeper pushed the revocation of the token over the RevocationChannel.
+  TOKEN_REVOKED_PUSHED,
+
+  /// Gatekeeper asked over the RevocationChannel for the token to be refreshed.
+  REFRESH_TOKEN_PUSHED,
+
+  /// Responses with status 401 seen by the response interceptor.
+  UNAUTHORIZED,
+
+  /// Responses with status 403 seen by the response interceptor.
+  FORBIDDEN
+}
@@ -0,0 +1,19 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * Gatekeeper endpoints that are timed by the GatekeeperEventListener.
+ */
+public enum Endpoint
+{
+  /// oauth2/token for all grant types
+  TOKEN,
+
+  /// oauth2/logout
+  LOGOUT,
+
+  /// accounts and its children (e.g., accounts/me)
+  ACCOUNTS,
+
+  /// All other requests to Gatekeeper
+  OTHER
+}
@@ -0,0 +1,111 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class Histogram
+ *
+ * Histogram of latencies with power-of-two buckets, which bounds the error of a
+ * percentile to a factor of two. All storage is preallocated so recording a latency
+ * does not allocate.
+ */
+public final class Histogram
+{
+  private static final int BUCKET_COUNT = 64;
+
+  private final AtomicLongArray buckets_ = new AtomicLongArray (BUCKET_COUNT);
+
+  private final AtomicLong count_ = new AtomicLong ();
+
+  private final AtomicLong total_ = new AtomicLong ();
+
+  private final AtomicLong max_ = new AtomicLong ();
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos         Latency in nanoseconds
+   */
+  public void record (long nanos)
+  {
+    int bucket = nanos <= 0 ? 0 : BUCKET_COUNT - Long.numberOfLeadingZeros (nanos);
+
+    this.buckets_.incrementAndGet (Math.min (bucket, BUCKET_COUNT - 1));
+    this.count_.incrementAndGet ();
+    this.total_.addAndGet (nanos);
+
+    long max;
+
+    while ((max = this.max_.get ()) < nanos)
+    {
+      if (this.max_.compareAndSet (max, nanos))
+        break;
+    }
+  }
+
+  /**
+   * Get the number of latencies recorded.
+   */
+  public long getCount ()
+  {
+    return this.count_.get ();
+  }
+
+  /**
+   * Get the mean latency in nanoseconds.
+   */
+  public long getMean ()
+  {
+    long count = this.count_.get ();
+    return count != 0 ? this.total_.get () / count : 0;
+  }
+
+  /**
+   * Get the maximum latency in nanoseconds.
+   */
+  public long getMax ()
+  {
+    return this.max_.get ();
+  }
+
+  /**
+   * Get an upper bound on a percentile of the latencies.
+   *
+   * @param percentile      Percentile between 0 and 100
+   * @return                Latency in nanoseconds
+   */
+  public long getPercentile (double percentile)
+  {
+    long count = this.count_.get ();
+
+    if (count == 0)
+      return 0;
+
+    long rank = (long)Math.ceil (count * percentile / 100.0);
+    long seen = 0;
+
+    for (int bucket = 0; bucket < BUCKET_COUNT; ++ bucket)
+    {
+      seen += this.buckets_.get (bucket);
+
+      if (seen >= rank)
+        return bucket == 0 ? 0 : Math.min ((1L << bucket) - 1, this.getMax ());
+    }
+
+    return this.getMax ();
+  }
+
+  /**
+   * Remove all recorded latencies.
+   */
+  public void reset ()
+  {
+    for (int i = 0; i < BUCKET_COUNT; ++ i)
+      this.buckets_.set (i, 0);
+
+    this.count_.set (0);
+    this.total_.set (0);
+    this.max_.set (0);
+  }
+}
@@ -0,0 +1,121 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @class InMemoryMetricsSink
+ *
+ * MetricsSink that aggregates the metrics in memory. The latencies for each timer,
+ * and for each phase of each endpoint, are kept in a Histogram. All storage is
+ * preallocated so recording a metric does not allocate.
+ */
+public class InMemoryMetricsSink implements MetricsSink
+{
+  private static final int PHASE_COUNT = Phase.values ().length;
+
+  private final AtomicLongArray counters_ = new AtomicLongArray (Counter.values ().length);
+
+  private final Histogram [] timers_ = newHistograms (Timer.values ().length);
+
+  /// The histograms for the phases, stored one endpoint after another.
+  private final Histogram [] phases_ = newHistograms (Endpoint.values ().length * PHASE_COUNT);
+
+  @Override
+  public void increment (Counter counter)
+  {
+    this.counters_.incrementAndGet (counter.ordinal ());
+  }
+
+  @Override
+  public void recordLatency (Timer timer, long nanos)
+  {
+    this.timers_[timer.ordinal ()].record (nanos);
+  }
+
+  @Override
+  public void recordPhase (Endpoint endpoint, Phase phase, long nanos)
+  {
+    this.phases_[endpoint.ordinal () * PHASE_COUNT + phase.ordinal ()].record (nanos);
+  }
+
+  /**
+   * Get the value of a counter.
+   */
+  public long getCount (Counter counter)
+  {
+    return this.counters_.get (counter.ordinal ());
+  }
+
+  /**
+   * Get the number of latencies recorded for a timer.
+   */
+  public long getCount (Timer timer)
+  {
+    return this.timers_[timer.ordinal ()].getCount ();
+  }
+
+  /**
+   * Get the mean latency for a timer in nanoseconds.
+   */
+  public long getMean (Timer timer)
+  {
+    return this.timers_[timer.ordinal ()].getMean ();
+  }
+
+  /**
+   * Get the maximum latency for a timer in nanoseconds.
+   */
+  public long getMax (Timer timer)
+  {
+    return this.timers_[timer.ordinal ()].getMax ();
+  }
+
+  /**
+   * Get an upper bound on a percentile of the latencies for a timer.
+   *
+   * @param timer           Target timer
+   * @param percentile      Percentile between 0 and 100
+   * @return                Latency in nanoseconds
+   */
+  public long getPercentile (Timer timer, double percentile)
+  {
+    return this.timers_[timer.ordinal ()].getPercentile (percentile);
+  }
+
+  /**
+   * Get the histogram for a phase of the calls to an endpoint.
+   *
+   * @param endpoint        Target endpoint
+   * @param phase           Phase of the call
+   * @return                Histogram object
+   */
+  public Histogram getHistogram (Endpoint endpoint, Phase phase)
+  {
+    return this.phases_[endpoint.ordinal () * PHASE_COUNT + phase.ordinal ()];
+  }
+
+  /**
+   * Reset all metrics.
+   */
+  public void reset ()
+  {
+    for (int i = 0; i < this.counters_.length (); ++ i)
+      this.counters_.set (i, 0);
+
+    for (Histogram histogram: this.timers_)
+      histogram.reset ();
+
+    for (Histogram histogram: this.phases_)
+      histogram.reset ();
+  }
+
+  private static Histogram [] newHistograms (int count)
+  {
+    Histogram [] histograms = new Histogram[count];
+
+    for (int i = 0; i < count; ++ i)
+      histograms[i] = new Histogram ();
+
+    return histograms;
+  }
+}
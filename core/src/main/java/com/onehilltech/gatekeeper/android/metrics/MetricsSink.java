@@ -0,0 +1,35 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * @interface MetricsSink
+ *
+ * Receives the metrics recorded by the Gatekeeper clients. The metrics are recorded
+ * on the request path, including inside the interceptors, so implementations must be
+ * thread-safe and should not block or allocate.
+ */
+public interface MetricsSink
+{
+  /**
+   * Increment a counter.
+   *
+   * @param counter       Target counter
+   */
+  void increment (Counter counter);
+
+  /**
+   * Record the latency of an operation.
+   *
+   * @param timer         Target timer
+   * @param nanos         Latency in nanoseconds
+   */
+  void recordLatency (Timer timer, long nanos);
+
+  /**
+   * Record the time spent in a phase of a call to a Gatekeeper endpoint.
+   *
+   * @param endpoint      Target endpoint
+   * @param phase         Phase of the call
+   * @param nanos         Time in nanoseconds
+   */
+  void recordPhase (Endpoint endpoint, Phase phase, long nanos);
+}
@@ -0,0 +1,34 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * @class NoOpMetricsSink
+ *
+ * MetricsSink that discards all metrics. This is the default sink.
+ */
+public final class NoOpMetricsSink implements MetricsSink
+{
+  public static final NoOpMetricsSink INSTANCE = new NoOpMetricsSink ();
+
+  private NoOpMetricsSink ()
+  {
+
+  }
+
+  @Override
+  public void increment (Counter counter)
+  {
+
+  }
+
+  @Override
+  public void recordLatency (Timer timer, long nanos)
+  {
+
+  }
+
+  @Override
+  public void recordPhase (Endpoint endpoint, Phase phase, long nanos)
+  {
+
+  }
+}
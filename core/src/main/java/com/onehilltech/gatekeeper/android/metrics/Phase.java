@@ -0,0 +1,28 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * Phases of a call to Gatekeeper.
+ */
+public enum Phase
+{
+  /// Resolving the host
+  DNS,
+
+  /// Opening the TCP connection
+  CONNECT,
+
+  /// TLS handshake
+  TLS,
+
+  /// Writing the request headers and body
+  REQUEST_WRITE,
+
+  /// Waiting on the server after the request was written
+  TIME_TO_FIRST_BYTE,
+
+  /// Reading the response body
+  RESPONSE_BODY,
+
+  /// The complete call, including retries and follow ups
+  CALL
+}
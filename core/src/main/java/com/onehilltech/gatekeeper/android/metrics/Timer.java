@@ -0,0 +1,21 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+/**
+ * Latencies recorded by the Gatekeeper clients.
+ */
+public enum Timer
+{
+  SIGN_IN,
+
+  REFRESH_TOKEN,
+
+  GET_CLIENT_TOKEN,
+
+  EXCHANGE_TOKEN,
+
+  CREATE_ACCOUNT,
+
+  /// Time a request that received a 401 waited for the token to be refreshed
+  /// before it was replayed.
+  AUTH_WAIT
+}
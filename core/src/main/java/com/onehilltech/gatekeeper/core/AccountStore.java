@@ -0,0 +1,43 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.List;
+
+/**
+ * @interface AccountStore
+ *
+ * Storage for the tokens of many signed in accounts, and for which of them is the
+ * active account. The Android library stores the tokens in its database, and other
+ * platforms can provide their own storage.
+ */
+public interface AccountStore
+{
+  /**
+   * Load the tokens of the signed in accounts.
+   *
+   * @return          The tokens, which is empty if no account is signed in
+   */
+  List <SessionToken> loadAll ();
+
+  /**
+   * Get the store for the token of one account. The token is already known, so the
+   * store does not need to load it again.
+   *
+   * @param token     The current token for the account
+   * @return          TokenStore object
+   */
+  TokenStore getTokenStore (SessionToken token);
+
+  /**
+   * Load the username of the active account.
+   *
+   * @return          The username, or null if there is no active account
+   */
+  String loadActive ();
+
+  /**
+   * Save the username of the active account.
+   *
+   * @param username  The username, or null if there is no active account
+   */
+  void saveActive (String username);
+}
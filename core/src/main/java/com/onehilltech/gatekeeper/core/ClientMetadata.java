@@ -0,0 +1,102 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @interface ClientMetadata
+ *
+ * Information about the client registered with Gatekeeper. The Android library
+ * loads the metadata from AndroidManifest.xml.
+ */
+public interface ClientMetadata
+{
+  String getClientId ();
+
+  String getClientSecret ();
+
+  /**
+   * Get the base URL for the Gatekeeper service, without the version.
+   */
+  String getBaseUrl ();
+
+  /**
+   * Get the package name sent with each grant.
+   */
+  String getPackageName ();
+
+  /**
+   * @class Builder
+   *
+   * Builder for ClientMetadata with fixed values.
+   */
+  final class Builder
+  {
+    private String clientId_;
+
+    private String clientSecret_;
+
+    private String baseUrl_;
+
+    private String packageName_;
+
+    public Builder setClientId (String clientId)
+    {
+      this.clientId_ = clientId;
+      return this;
+    }
+
+    public Builder setClientSecret (String clientSecret)
+    {
+      this.clientSecret_ = clientSecret;
+      return this;
+    }
+
+    public Builder setBaseUrl (String baseUrl)
+    {
+      this.baseUrl_ = baseUrl;
+      return this;
+    }
+
+    public Builder setPackageName (String packageName)
+    {
+      this.packageName_ = packageName;
+      return this;
+    }
+
+    public ClientMetadata build ()
+    {
+      if (this.baseUrl_ == null)
+        throw new IllegalStateException ("You must set the base URL");
+
+      final String clientId = this.clientId_;
+      final String clientSecret = this.clientSecret_;
+      final String baseUrl = this.baseUrl_;
+      final String packageName = this.packageName_;
+
+      return new ClientMetadata ()
+      {
+        @Override
+        public String getClientId ()
+        {
+          return clientId;
+        }
+
+        @Override
+        public String getClientSecret ()
+        {
+          return clientSecret;
+        }
+
+        @Override
+        public String getBaseUrl ()
+        {
+          return baseUrl;
+        }
+
+        @Override
+        public String getPackageName ()
+        {
+          return packageName;
+        }
+      };
+    }
+  }
+}
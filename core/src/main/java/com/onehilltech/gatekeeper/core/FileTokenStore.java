@@ -0,0 +1,422 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * @class FileTokenStore
+ *
+ * TokenStore that keeps the token in an append-only file. Each change to the token
+ * is appended to the file as a record with a checksum, so a write never rewrites
+ * the token in place. Loading the token replays the records, and the last record
+ * wins. A record torn by a crash fails its checksum, and is dropped along with the
+ * rest of the file.
+ *
+ * The file is compacted to a single record once it holds too many records. The
+ * store is safe to use from many threads, but not from many processes.
+ *
+ *   file   := magic version record*
+ *   record := length payload crc32(payload)
+ *   payload := SAVE username accessToken hasRefreshToken [refreshToken] | DELETE username
+ */
+public class FileTokenStore implements TokenStore
+{
+  private static final int MAGIC = 0x474B5453;
+
+  private static final byte VERSION = 1;
+
+  private static final int HEADER_LENGTH = 5;
+
+  private static final byte OP_SAVE = 1;
+
+  private static final byte OP_DELETE = 2;
+
+  /// Largest payload accepted when reading a record.
+  private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+  /// Number of records in the file that triggers a compaction.
+  private static final int COMPACT_THRESHOLD = 64;
+
+  /// Marker for a record that passed its checksum, but cannot be read.
+  private static final SessionToken INVALID_TOKEN = new SessionToken ("", "", null);
+
+  private final File file_;
+
+  private final boolean sync_;
+
+  private RandomAccessFile out_;
+
+  private boolean loaded_;
+
+  private SessionToken token_;
+
+  private int recordCount_;
+
+  /**
+   * Initializing constructor. Each write is synced to the storage device before
+   * it returns.
+   *
+   * @param file          File for the token
+   */
+  public FileTokenStore (File file)
+  {
+    this (file, true);
+  }
+
+  /**
+   * Initializing constructor.
+   *
+   * @param file          File for the token
+   * @param sync          Sync each write to the storage device
+   */
+  public FileTokenStore (File file, boolean sync)
+  {
+    this.file_ = file;
+    this.sync_ = sync;
+  }
+
+  public File getFile ()
+  {
+    return this.file_;
+  }
+
+  @Override
+  public synchronized SessionToken load ()
+  {
+    this.ensureLoaded ();
+    return this.token_;
+  }
+
+  @Override
+  public synchronized void save (SessionToken token)
+  {
+    this.ensureLoaded ();
+    this.write (token);
+  }
+
+  @Override
+  public synchronized void delete (SessionToken token)
+  {
+    this.ensureLoaded ();
+
+    if (this.token_ != null && this.token_.getUsername ().equals (token.getUsername ()))
+      this.write (null);
+  }
+
+  @Override
+  public synchronized boolean compareAndSwap (SessionToken expected, SessionToken update)
+  {
+    this.ensureLoaded ();
+
+    if (this.token_ != null ? !this.token_.equals (expected) : expected != null)
+      return false;
+
+    this.write (update);
+    return true;
+  }
+
+  /**
+   * Close the file. The store opens the file again on the next write.
+   */
+  public synchronized void close ()
+  {
+    if (this.out_ == null)
+      return;
+
+    try
+    {
+      this.out_.close ();
+    }
+    catch (IOException e)
+    {
+      // The records have already been written.
+    }
+
+    this.out_ = null;
+  }
+
+  private void ensureLoaded ()
+  {
+    if (this.loaded_)
+      return;
+
+    try
+    {
+      long validLength = this.replay ();
+
+      if (validLength < this.file_.length ())
+      {
+        // Drop the torn tail so the next record is appended after the last good one.
+        try (RandomAccessFile file = new RandomAccessFile (this.file_, "rw"))
+        {
+          file.setLength (validLength);
+        }
+      }
+
+      this.loaded_ = true;
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException ("Failed to load the token from " + this.file_, e);
+    }
+  }
+
+  /**
+   * Replay the records in the file.
+   *
+   * @return        The length of the file up to the last good record
+   */
+  private long replay ()
+      throws IOException
+  {
+    this.token_ = null;
+    this.recordCount_ = 0;
+
+    if (!this.file_.exists ())
+      return 0;
+
+    byte [] contents = readFully (this.file_);
+    DataInputStream in = new DataInputStream (new ByteArrayInputStream (contents));
+
+    if (contents.length < HEADER_LENGTH || in.readInt () != MAGIC || in.readByte () != VERSION)
+      return 0;
+
+    long validLength = HEADER_LENGTH;
+    CRC32 crc = new CRC32 ();
+
+    while (true)
+    {
+      try
+      {
+        int length = in.readInt ();
+
+        if (length <= 0 || length > MAX_PAYLOAD_LENGTH)
+          break;
+
+        byte [] payload = new byte[length];
+        in.readFully (payload);
+
+        crc.reset ();
+        crc.update (payload, 0, length);
+
+        if ((int)crc.getValue () != in.readInt ())
+          break;
+
+        SessionToken token = readPayload (payload);
+
+        if (token == INVALID_TOKEN)
+          break;
+
+        this.token_ = token;
+        ++ this.recordCount_;
+
+        validLength += 8 + length;
+      }
+      catch (EOFException e)
+      {
+        break;
+      }
+    }
+
+    return validLength;
+  }
+
+  private void write (SessionToken token)
+  {
+    try
+    {
+      if (this.recordCount_ >= COMPACT_THRESHOLD)
+        this.compact (token);
+      else
+        this.append (token);
+
+      this.token_ = token;
+    }
+    catch (IOException e)
+    {
+      // The file may now end with a torn record. Replay the file on the next use.
+      this.close ();
+      this.loaded_ = false;
+
+      throw new IllegalStateException ("Failed to write the token to " + this.file_, e);
+    }
+  }
+
+  private void append (SessionToken token)
+      throws IOException
+  {
+    if (this.out_ == null)
+    {
+      this.out_ = new RandomAccessFile (this.file_, "rw");
+
+      if (this.out_.length () < HEADER_LENGTH)
+      {
+        this.out_.setLength (0);
+        this.out_.write (newHeader ());
+      }
+
+      this.out_.seek (this.out_.length ());
+    }
+
+    this.out_.write (newRecord (token, this.token_));
+
+    if (this.sync_)
+      this.out_.getFD ().sync ();
+
+    ++ this.recordCount_;
+  }
+
+  /**
+   * Replace the file with one that only holds the token. The new file is written
+   * next to the old one, and renamed over it.
+   */
+  private void compact (SessionToken token)
+      throws IOException
+  {
+    this.close ();
+
+    File temp = new File (this.file_.getPath () + ".tmp");
+
+    try (RandomAccessFile out = new RandomAccessFile (temp, "rw"))
+    {
+      out.setLength (0);
+      out.write (newHeader ());
+
+      if (token != null)
+        out.write (newRecord (token, null));
+
+      if (this.sync_)
+        out.getFD ().sync ();
+    }
+
+    if (!temp.renameTo (this.file_))
+      throw new IOException ("Failed to rename " + temp + " to " + this.file_);
+
+    this.recordCount_ = token != null ? 1 : 0;
+  }
+
+  private static byte [] newHeader ()
+      throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream (HEADER_LENGTH);
+    DataOutputStream out = new DataOutputStream (bytes);
+
+    out.writeInt (MAGIC);
+    out.writeByte (VERSION);
+
+    return bytes.toByteArray ();
+  }
+
+  /**
+   * Create the record for a change to the token.
+   *
+   * @param token       The new token, or null to delete the token
+   * @param current     The current token, which names the user for a delete
+   */
+  private static byte [] newRecord (SessionToken token, SessionToken current)
+      throws IOException
+  {
+    ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream (128);
+    DataOutputStream payload = new DataOutputStream (payloadBytes);
+
+    if (token != null)
+    {
+      payload.writeByte (OP_SAVE);
+      payload.writeUTF (token.getUsername ());
+      payload.writeUTF (token.getAccessToken ());
+      payload.writeBoolean (token.canRefresh ());
+
+      if (token.canRefresh ())
+        payload.writeUTF (token.getRefreshToken ());
+    }
+    else
+    {
+      payload.writeByte (OP_DELETE);
+      payload.writeUTF (current != null ? current.getUsername () : "");
+    }
+
+    byte [] body = payloadBytes.toByteArray ();
+
+    CRC32 crc = new CRC32 ();
+    crc.update (body, 0, body.length);
+
+    ByteArrayOutputStream recordBytes = new ByteArrayOutputStream (body.length + 8);
+    DataOutputStream record = new DataOutputStream (recordBytes);
+
+    record.writeInt (body.length);
+    record.write (body);
+    record.writeInt ((int)crc.getValue ());
+
+    return recordBytes.toByteArray ();
+  }
+
+  /**
+   * Read the token from the payload of a record.
+   *
+   * @return        The token, null for a delete, or INVALID_TOKEN
+   */
+  private static SessionToken readPayload (byte [] payload)
+  {
+    try
+    {
+      DataInputStream in = new DataInputStream (new ByteArrayInputStream (payload));
+      byte op = in.readByte ();
+
+      if (op == OP_DELETE)
+        return null;
+
+      if (op != OP_SAVE)
+        return INVALID_TOKEN;
+
+      String username = in.readUTF ();
+      String accessToken = in.readUTF ();
+      String refreshToken = in.readBoolean () ? in.readUTF () : null;
+
+      return new SessionToken (username, accessToken, refreshToken);
+    }
+    catch (IOException e)
+    {
+      return INVALID_TOKEN;
+    }
+  }
+
+  private static byte [] readFully (File file)
+      throws IOException
+  {
+    byte [] contents = new byte[(int)file.length ()];
+
+    try (InputStream in = new FileInputStream (file))
+    {
+      int offset = 0;
+
+      while (offset < contents.length)
+      {
+        int n = in.read (contents, offset, contents.length - offset);
+
+        if (n == -1)
+          break;
+
+        offset += n;
+      }
+
+      if (offset < contents.length)
+      {
+        byte [] truncated = new byte[offset];
+        System.arraycopy (contents, 0, truncated, 0, offset);
+
+        return truncated;
+      }
+    }
+
+    return contents;
+  }
+}
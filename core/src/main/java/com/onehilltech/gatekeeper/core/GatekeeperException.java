@@ -0,0 +1,53 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.io.IOException;
+
+/**
+ * @class GatekeeperException
+ *
+ * Error response from the Gatekeeper service.
+ */
+public class GatekeeperException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode_;
+
+  private final String code_;
+
+  private final String responseBody_;
+
+  public GatekeeperException (int statusCode, String code, String message, String responseBody)
+  {
+    super (message);
+
+    this.statusCode_ = statusCode;
+    this.code_ = code;
+    this.responseBody_ = responseBody;
+  }
+
+  /**
+   * Get the HTTP status code of the response.
+   */
+  public int getStatusCode ()
+  {
+    return this.statusCode_;
+  }
+
+  /**
+   * Get the error code from the response (e.g., invalid_token), or null if the
+   * response did not contain an error.
+   */
+  public String getCode ()
+  {
+    return this.code_;
+  }
+
+  /**
+   * Get the raw body of the error response.
+   */
+  public String getResponseBody ()
+  {
+    return this.responseBody_;
+  }
+}
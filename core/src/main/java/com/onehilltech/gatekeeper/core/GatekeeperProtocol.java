@@ -0,0 +1,523 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.typeadapters.RuntimeTypeAdapterFactory;
+import com.onehilltech.gatekeeper.android.http.JsonBatchGrants;
+import com.onehilltech.gatekeeper.android.http.JsonBatchTokens;
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.http.JsonClientCredentials;
+import com.onehilltech.gatekeeper.android.http.JsonGrant;
+import com.onehilltech.gatekeeper.android.http.JsonPassword;
+import com.onehilltech.gatekeeper.android.http.JsonRefreshToken;
+import com.onehilltech.gatekeeper.android.http.JsonTokenExchange;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.Body;
+import retrofit2.http.POST;
+
+/**
+ * @class GatekeeperProtocol
+ *
+ * Client for the Gatekeeper token protocol. The protocol does not depend on any
+ * platform, and is shared by the Android library and JVM clients.
+ *
+ * Many tokens can be refreshed at once with refreshTokens (). The grants are sent
+ * in one request to the batch token endpoint if the service has it. Otherwise, they
+ * are sent as separate requests, with a bounded number in flight at a time.
+ */
+public class GatekeeperProtocol
+{
+  public static final int VERSION = 1;
+
+  private static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 4;
+
+  /**
+   * Create a GsonBuilder that can read and write the Gatekeeper protocol objects.
+   * Clients can register their own type adapters before creating the Gson object.
+   *
+   * @return          GsonBuilder object
+   */
+  public static GsonBuilder newGsonBuilder ()
+  {
+    RuntimeTypeAdapterFactory <JsonGrant> grantTypes =
+        RuntimeTypeAdapterFactory.of (JsonGrant.class, "grant_type")
+                                 .registerSubtype (JsonClientCredentials.class, "client_credentials")
+                                 .registerSubtype (JsonPassword.class, "password")
+                                 .registerSubtype (JsonRefreshToken.class, "refresh_token")
+                                 .registerSubtype (JsonTokenExchange.class, JsonTokenExchange.GRANT_TYPE);
+
+    return new GsonBuilder ().registerTypeAdapterFactory (grantTypes);
+  }
+
+  /**
+   * Get the versioned base URL for a Gatekeeper service.
+   *
+   * @param baseUrl     Base URL without the version
+   * @return            Versioned base URL
+   */
+  public static String getBaseUrlWithVersion (String baseUrl)
+  {
+    return baseUrl + "v" + VERSION + "/";
+  }
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating GatekeeperProtocol objects.
+   */
+  public static final class Builder
+  {
+    private ClientMetadata metadata_;
+
+    private OkHttpClient httpClient_;
+
+    private Gson gson_;
+
+    private int maxConcurrentRefreshes_ = DEFAULT_MAX_CONCURRENT_REFRESHES;
+
+    public Builder setMetadata (ClientMetadata metadata)
+    {
+      this.metadata_ = metadata;
+      return this;
+    }
+
+    public Builder setHttpClient (OkHttpClient httpClient)
+    {
+      this.httpClient_ = httpClient;
+      return this;
+    }
+
+    /**
+     * Set the Gson object for the protocol. The Gson object must be created from
+     * newGsonBuilder () so it can write the grants.
+     *
+     * @param gson        Gson object
+     */
+    public Builder setGson (Gson gson)
+    {
+      this.gson_ = gson;
+      return this;
+    }
+
+    /**
+     * Set the most refresh requests in flight at a time when refreshing many tokens
+     * without the batch token endpoint.
+     *
+     * @param maxConcurrentRefreshes    Most requests in flight
+     */
+    public Builder setMaxConcurrentRefreshes (int maxConcurrentRefreshes)
+    {
+      this.maxConcurrentRefreshes_ = maxConcurrentRefreshes;
+      return this;
+    }
+
+    public GatekeeperProtocol build ()
+    {
+      if (this.metadata_ == null)
+        throw new IllegalStateException ("You must set the client metadata");
+
+      OkHttpClient httpClient = this.httpClient_ != null ? this.httpClient_ : new OkHttpClient ();
+      Gson gson = this.gson_ != null ? this.gson_ : newGsonBuilder ().create ();
+
+      if (this.maxConcurrentRefreshes_ < 1)
+        throw new IllegalStateException ("The most concurrent refreshes must be at least 1");
+
+      return new GatekeeperProtocol (this.metadata_, httpClient, gson, this.maxConcurrentRefreshes_);
+    }
+  }
+
+  private final ClientMetadata metadata_;
+
+  private final OkHttpClient httpClient_;
+
+  private final Gson gson_;
+
+  private final Retrofit retrofit_;
+
+  private final Service service_;
+
+  private final int maxConcurrentRefreshes_;
+
+  /// False once the service has shown it does not have the batch token endpoint.
+  private volatile boolean batchSupported_ = true;
+
+  private GatekeeperProtocol (ClientMetadata metadata, OkHttpClient httpClient, Gson gson, int maxConcurrentRefreshes)
+  {
+    this.metadata_ = metadata;
+    this.httpClient_ = httpClient;
+    this.gson_ = gson;
+    this.maxConcurrentRefreshes_ = maxConcurrentRefreshes;
+
+    this.retrofit_ =
+        new Retrofit.Builder ()
+            .baseUrl (this.getBaseUrlWithVersion ())
+            .addConverterFactory (GsonConverterFactory.create (this.gson_))
+            .client (this.httpClient_)
+            .build ();
+
+    this.service_ = this.retrofit_.create (Service.class);
+  }
+
+  public ClientMetadata getMetadata ()
+  {
+    return this.metadata_;
+  }
+
+  public OkHttpClient getHttpClient ()
+  {
+    return this.httpClient_;
+  }
+
+  public Gson getGson ()
+  {
+    return this.gson_;
+  }
+
+  public Retrofit getRetrofit ()
+  {
+    return this.retrofit_;
+  }
+
+  public String getBaseUrlWithVersion ()
+  {
+    return getBaseUrlWithVersion (this.metadata_.getBaseUrl ());
+  }
+
+  /**
+   * Create the call that requests a token with a grant. The client credentials are
+   * added to the grant.
+   *
+   * @param grant       JsonGrant object
+   * @return            Call object
+   */
+  public Call <JsonBearerToken> newTokenCall (JsonGrant grant)
+  {
+    this.addClientCredentials (grant);
+    return this.service_.getBearerToken (grant);
+  }
+
+  /**
+   * Get an access token for a user.
+   *
+   * @param username      Username
+   * @param password      Password
+   */
+  public JsonBearerToken getUserToken (String username, String password)
+      throws IOException
+  {
+    JsonPassword grant = new JsonPassword ();
+    grant.username = username;
+    grant.password = password;
+
+    return this.execute (grant);
+  }
+
+  /**
+   * Get an access token for the client.
+   */
+  public JsonBearerToken getClientToken ()
+      throws IOException
+  {
+    return this.execute (new JsonClientCredentials ());
+  }
+
+  /**
+   * Refresh an access token.
+   *
+   * @param refreshToken  Refresh token
+   */
+  public JsonBearerToken refreshToken (String refreshToken)
+      throws IOException
+  {
+    JsonRefreshToken grant = new JsonRefreshToken ();
+    grant.refreshToken = refreshToken;
+
+    return this.execute (grant);
+  }
+
+  /**
+   * Exchange the access token of a user for an access token with a narrower scope.
+   *
+   * @param subjectToken  Access token of the user
+   * @param scope         Space-separated list of scopes
+   */
+  public JsonBearerToken exchangeToken (String subjectToken, String scope)
+      throws IOException
+  {
+    JsonTokenExchange grant = new JsonTokenExchange ();
+    grant.subjectToken = subjectToken;
+    grant.scope = scope;
+
+    return this.execute (grant);
+  }
+
+  /**
+   * Refresh many access tokens, such as the tokens of all the accounts on a device.
+   * Each refresh token has its own result, so one rejected token does not fail the
+   * others.
+   *
+   * @param refreshTokens     Refresh tokens
+   * @return                  Results in the same order as the refresh tokens
+   * @throws InterruptedIOException     The thread was interrupted while waiting
+   */
+  public List <RefreshResult> refreshTokens (List <String> refreshTokens)
+      throws InterruptedIOException
+  {
+    if (refreshTokens.isEmpty ())
+      return new ArrayList<> ();
+
+    if (refreshTokens.size () > 1 && this.batchSupported_)
+    {
+      List <RefreshResult> results = this.refreshTokensInBatch (refreshTokens);
+
+      if (results != null)
+        return results;
+    }
+
+    return this.refreshTokensConcurrently (refreshTokens);
+  }
+
+  public boolean isBatchSupported ()
+  {
+    return this.batchSupported_;
+  }
+
+  /**
+   * Send the refresh grants in one request to the batch token endpoint.
+   *
+   * @return        The results, or null if the service does not have the endpoint
+   */
+  private List <RefreshResult> refreshTokensInBatch (List <String> refreshTokens)
+  {
+    JsonBatchGrants batch = new JsonBatchGrants ();
+    batch.grants = new ArrayList<> (refreshTokens.size ());
+
+    for (String refreshToken : refreshTokens)
+    {
+      JsonRefreshToken grant = new JsonRefreshToken ();
+      grant.refreshToken = refreshToken;
+
+      this.addClientCredentials (grant);
+      batch.grants.add (grant);
+    }
+
+    RefreshResult [] results = new RefreshResult[refreshTokens.size ()];
+
+    try
+    {
+      Response <JsonBatchTokens> response = this.service_.getBearerTokens (batch).execute ();
+
+      if (response.code () == 404 || response.code () == 405 || response.code () == 501)
+      {
+        response.errorBody ().close ();
+        this.batchSupported_ = false;
+
+        return null;
+      }
+
+      if (!response.isSuccessful ())
+        throw this.getError (response.code (), response.errorBody ());
+
+      List <JsonBatchTokens.Result> batchResults = response.body ().results;
+
+      if (batchResults == null || batchResults.size () != results.length)
+        throw new IOException ("The batch response does not have a result for each grant");
+
+      for (int i = 0; i < results.length; ++ i)
+      {
+        JsonBatchTokens.Result result = batchResults.get (i);
+        String refreshToken = refreshTokens.get (i);
+
+        results[i] = result.token != null ?
+            RefreshResult.success (refreshToken, result.token) :
+            RefreshResult.failure (refreshToken, this.getError (result.status != null ? result.status : 400, result.errors, null));
+      }
+    }
+    catch (IOException e)
+    {
+      // The batch failed as a whole, so every token failed with it.
+      for (int i = 0; i < results.length; ++ i)
+        results[i] = RefreshResult.failure (refreshTokens.get (i), e);
+    }
+
+    return Arrays.asList (results);
+  }
+
+  /**
+   * Send each refresh grant as its own request, with at most maxConcurrentRefreshes_
+   * requests in flight at a time.
+   */
+  private List <RefreshResult> refreshTokensConcurrently (List <String> refreshTokens)
+      throws InterruptedIOException
+  {
+    RefreshResult [] results = new RefreshResult[refreshTokens.size ()];
+    Semaphore inFlight = new Semaphore (this.maxConcurrentRefreshes_);
+    CountDownLatch done = new CountDownLatch (results.length);
+
+    try
+    {
+      for (int i = 0; i < results.length; ++ i)
+      {
+        final int index = i;
+        final String refreshToken = refreshTokens.get (i);
+
+        JsonRefreshToken grant = new JsonRefreshToken ();
+        grant.refreshToken = refreshToken;
+
+        inFlight.acquire ();
+
+        this.newTokenCall (grant).enqueue (new Callback <JsonBearerToken> ()
+        {
+          @Override
+          public void onResponse (Call <JsonBearerToken> call, Response <JsonBearerToken> response)
+          {
+            try
+            {
+              results[index] = response.isSuccessful () ?
+                  RefreshResult.success (refreshToken, response.body ()) :
+                  RefreshResult.failure (refreshToken, getError (response.code (), response.errorBody ()));
+            }
+            catch (IOException e)
+            {
+              results[index] = RefreshResult.failure (refreshToken, e);
+            }
+
+            inFlight.release ();
+            done.countDown ();
+          }
+
+          @Override
+          public void onFailure (Call <JsonBearerToken> call, Throwable t)
+          {
+            IOException error = t instanceof IOException ? (IOException)t : new IOException (t);
+            results[index] = RefreshResult.failure (refreshToken, error);
+
+            inFlight.release ();
+            done.countDown ();
+          }
+        });
+      }
+
+      // The latch also makes the results written by the callbacks visible here.
+      done.await ();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while refreshing the tokens");
+    }
+
+    return Arrays.asList (results);
+  }
+
+  /**
+   * Get the error from an error response.
+   *
+   * @param statusCode      Status code of the response
+   * @param errorBody       Body of the response
+   * @return                GatekeeperException object
+   */
+  public GatekeeperException getError (int statusCode, ResponseBody errorBody)
+      throws IOException
+  {
+    String body = errorBody != null ? errorBody.string () : null;
+    JsonElement errors = null;
+
+    try
+    {
+      JsonElement json = body != null ? new JsonParser ().parse (body) : null;
+
+      if (json != null && json.isJsonObject ())
+        errors = json.getAsJsonObject ().get ("errors");
+    }
+    catch (JsonParseException | IllegalStateException e)
+    {
+      // The body is not a Gatekeeper error.
+    }
+
+    return this.getError (statusCode, errors, body);
+  }
+
+  /**
+   * Get the error from the errors of a response.
+   *
+   * @param statusCode      Status code of the response
+   * @param errors          The errors object of the response, or null
+   * @param body            Body of the response, or null
+   * @return                GatekeeperException object
+   */
+  private GatekeeperException getError (int statusCode, JsonElement errors, String body)
+  {
+    String code = null;
+    String message = null;
+
+    try
+    {
+      if (errors != null && errors.isJsonObject ())
+      {
+        JsonObject error = errors.getAsJsonObject ();
+
+        if (error.has ("code"))
+          code = error.get ("code").getAsString ();
+
+        if (error.has ("message"))
+          message = error.get ("message").getAsString ();
+      }
+    }
+    catch (IllegalStateException | UnsupportedOperationException e)
+    {
+      // The errors are not a Gatekeeper error.
+    }
+
+    if (message == null)
+      message = "HTTP " + statusCode;
+
+    return new GatekeeperException (statusCode, code, message, body);
+  }
+
+  private JsonBearerToken execute (JsonGrant grant)
+      throws IOException
+  {
+    Response <JsonBearerToken> response = this.newTokenCall (grant).execute ();
+
+    if (!response.isSuccessful ())
+      throw this.getError (response.code (), response.errorBody ());
+
+    return response.body ();
+  }
+
+  private void addClientCredentials (JsonGrant grant)
+  {
+    grant.clientId = this.metadata_.getClientId ();
+    grant.clientSecret = this.metadata_.getClientSecret ();
+    grant.packageName = this.metadata_.getPackageName ();
+  }
+
+  private interface Service
+  {
+    @POST("oauth2/token")
+    Call<JsonBearerToken> getBearerToken (@Body JsonGrant grant);
+
+    @POST("oauth2/token/batch")
+    Call<JsonBatchTokens> getBearerTokens (@Body JsonBatchGrants grants);
+  }
+}
@@ -0,0 +1,63 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @class InMemoryAccountStore
+ *
+ * AccountStore that keeps the tokens in memory. The tokens are lost when the process
+ * ends, which makes the store a good fit for tests.
+ */
+public class InMemoryAccountStore implements AccountStore
+{
+  private final ConcurrentHashMap <String, InMemoryTokenStore> stores_ = new ConcurrentHashMap<> ();
+
+  private volatile String active_;
+
+  @Override
+  public List <SessionToken> loadAll ()
+  {
+    List <SessionToken> tokens = new ArrayList<> ();
+
+    for (InMemoryTokenStore store : this.stores_.values ())
+    {
+      SessionToken token = store.load ();
+
+      if (token != null)
+        tokens.add (token);
+    }
+
+    return tokens;
+  }
+
+  @Override
+  public TokenStore getTokenStore (SessionToken token)
+  {
+    InMemoryTokenStore store = this.stores_.get (token.getUsername ());
+
+    if (store == null)
+    {
+      InMemoryTokenStore created = new InMemoryTokenStore ();
+      store = this.stores_.putIfAbsent (token.getUsername (), created);
+
+      if (store == null)
+        store = created;
+    }
+
+    return store;
+  }
+
+  @Override
+  public String loadActive ()
+  {
+    return this.active_;
+  }
+
+  @Override
+  public void saveActive (String username)
+  {
+    this.active_ = username;
+  }
+}
@@ -0,0 +1,46 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * @class InMemoryOutboxStore
+ *
+ * OutboxStore that keeps the messages in memory. The messages are lost when the
+ * process ends, so the store is only a good fit for tests.
+ */
+public class InMemoryOutboxStore implements OutboxStore
+{
+  private final TreeMap <Long, OutboxMessage> messages_ = new TreeMap<> ();
+
+  private long nextId_ = 1;
+
+  @Override
+  public synchronized OutboxMessage add (OutboxMessage message)
+  {
+    OutboxMessage added = message.newBuilder ().setId (this.nextId_++).build ();
+    this.messages_.put (added.getId (), added);
+
+    return added;
+  }
+
+  @Override
+  public synchronized List <OutboxMessage> loadAll ()
+  {
+    return new ArrayList<> (this.messages_.values ());
+  }
+
+  @Override
+  public synchronized void update (OutboxMessage message)
+  {
+    if (this.messages_.containsKey (message.getId ()))
+      this.messages_.put (message.getId (), message);
+  }
+
+  @Override
+  public synchronized void remove (OutboxMessage message)
+  {
+    this.messages_.remove (message.getId ());
+  }
+}
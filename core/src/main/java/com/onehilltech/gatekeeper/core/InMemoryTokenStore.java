@@ -0,0 +1,72 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @class InMemoryTokenStore
+ *
+ * TokenStore that keeps the token in memory. The token is lost when the process
+ * ends, which makes the store a good fit for tests and for sessions that must not
+ * outlive the process.
+ */
+public class InMemoryTokenStore implements TokenStore
+{
+  private final AtomicReference <SessionToken> token_ = new AtomicReference<> ();
+
+  public InMemoryTokenStore ()
+  {
+
+  }
+
+  /**
+   * Initializing constructor.
+   *
+   * @param token         Token for the signed in user
+   */
+  public InMemoryTokenStore (SessionToken token)
+  {
+    this.token_.set (token);
+  }
+
+  @Override
+  public SessionToken load ()
+  {
+    return this.token_.get ();
+  }
+
+  @Override
+  public void save (SessionToken token)
+  {
+    this.token_.set (token);
+  }
+
+  @Override
+  public void delete (SessionToken token)
+  {
+    SessionToken current;
+
+    do
+    {
+      current = this.token_.get ();
+
+      if (current == null || !current.getUsername ().equals (token.getUsername ()))
+        return;
+    } while (!this.token_.compareAndSet (current, null));
+  }
+
+  @Override
+  public boolean compareAndSwap (SessionToken expected, SessionToken update)
+  {
+    SessionToken current;
+
+    do
+    {
+      current = this.token_.get ();
+
+      if (current != null ? !current.equals (expected) : expected != null)
+        return false;
+    } while (!this.token_.compareAndSet (current, update));
+
+    return true;
+  }
+}
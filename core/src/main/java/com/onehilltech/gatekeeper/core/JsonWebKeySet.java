@@ -0,0 +1,289 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import okio.ByteString;
+
+/**
+ * @class JsonWebKeySet
+ *
+ * The public keys of a JSON Web Key Set (RFC 7517), used to verify the signature of
+ * JWT access tokens. RSA keys verify the RS256, RS384, and RS512 algorithms, and EC
+ * keys on the P-256, P-384, and P-521 curves verify ES256, ES384, and ES512. Keys of
+ * other types, and keys the platform cannot load (such as EC keys on Android before
+ * API 26), are skipped.
+ */
+public final class JsonWebKeySet
+{
+  private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+  /// The Java names of the signature algorithms.
+  private static final Map <String, String> SIGNATURE_ALGORITHMS = new HashMap<> ();
+
+  /// The length in bytes of each half of the signature of an EC algorithm.
+  private static final Map <String, Integer> EC_SIGNATURE_HALF_LENGTHS = new HashMap<> ();
+
+  private static final Map <String, String> EC_CURVES = new HashMap<> ();
+
+  static
+  {
+    SIGNATURE_ALGORITHMS.put ("RS256", "SHA256withRSA");
+    SIGNATURE_ALGORITHMS.put ("RS384", "SHA384withRSA");
+    SIGNATURE_ALGORITHMS.put ("RS512", "SHA512withRSA");
+    SIGNATURE_ALGORITHMS.put ("ES256", "SHA256withECDSA");
+    SIGNATURE_ALGORITHMS.put ("ES384", "SHA384withECDSA");
+    SIGNATURE_ALGORITHMS.put ("ES512", "SHA512withECDSA");
+
+    EC_SIGNATURE_HALF_LENGTHS.put ("ES256", 32);
+    EC_SIGNATURE_HALF_LENGTHS.put ("ES384", 48);
+    EC_SIGNATURE_HALF_LENGTHS.put ("ES512", 66);
+
+    EC_CURVES.put ("P-256", "secp256r1");
+    EC_CURVES.put ("P-384", "secp384r1");
+    EC_CURVES.put ("P-521", "secp521r1");
+  }
+
+  /// The keys by their id. A key without an id is stored with the empty id.
+  private final Map <String, PublicKey> keys_;
+
+  /**
+   * Parse a JSON Web Key Set.
+   *
+   * @param json          The key set
+   * @return              JsonWebKeySet object
+   * @throws IOException  The key set is not valid
+   */
+  public static JsonWebKeySet parse (String json)
+      throws IOException
+  {
+    JsonArray keys;
+
+    try
+    {
+      JsonElement element = new JsonParser ().parse (json);
+      JsonElement keysElement = element.isJsonObject () ? element.getAsJsonObject ().get ("keys") : null;
+
+      if (keysElement == null || !keysElement.isJsonArray ())
+        throw new IOException ("The key set does not have any keys");
+
+      keys = keysElement.getAsJsonArray ();
+    }
+    catch (JsonParseException e)
+    {
+      throw new IOException ("The key set is not valid JSON", e);
+    }
+
+    HashMap <String, PublicKey> publicKeys = new HashMap<> ();
+
+    for (JsonElement key : keys)
+    {
+      if (!key.isJsonObject ())
+        continue;
+
+      JsonObject obj = key.getAsJsonObject ();
+      PublicKey publicKey = toPublicKey (obj);
+
+      if (publicKey != null)
+        publicKeys.put (getString (obj, "kid", ""), publicKey);
+    }
+
+    return new JsonWebKeySet (publicKeys);
+  }
+
+  /**
+   * Parse a JSON Web Key Set.
+   *
+   * @param json          The key set as UTF-8
+   */
+  public static JsonWebKeySet parse (byte [] json)
+      throws IOException
+  {
+    return parse (new String (json, UTF_8));
+  }
+
+  private JsonWebKeySet (Map <String, PublicKey> keys)
+  {
+    this.keys_ = Collections.unmodifiableMap (keys);
+  }
+
+  /**
+   * Test if the key set has a key.
+   *
+   * @param keyId         Id of the key, or null for a key without an id
+   */
+  public boolean hasKey (String keyId)
+  {
+    return this.keys_.containsKey (keyId != null ? keyId : "");
+  }
+
+  public int size ()
+  {
+    return this.keys_.size ();
+  }
+
+  /**
+   * Verify the signature of a token.
+   *
+   * @param claims        The claims of the token
+   * @return              True if a key in the set signed the token
+   */
+  public boolean verify (JwtClaims claims)
+  {
+    String algorithm = claims.getAlgorithm () != null ? SIGNATURE_ALGORITHMS.get (claims.getAlgorithm ()) : null;
+    PublicKey key = this.keys_.get (claims.getKeyId () != null ? claims.getKeyId () : "");
+
+    // The none algorithm, and the HMAC algorithms, are never accepted.
+    if (algorithm == null || key == null)
+      return false;
+
+    if (claims.getAlgorithm ().startsWith ("RS") != "RSA".equals (key.getAlgorithm ()))
+      return false;
+
+    byte [] signature = claims.getSignature ();
+
+    try
+    {
+      if (claims.getAlgorithm ().startsWith ("ES"))
+      {
+        signature = toDer (signature, EC_SIGNATURE_HALF_LENGTHS.get (claims.getAlgorithm ()));
+
+        if (signature == null)
+          return false;
+      }
+
+      Signature verifier = Signature.getInstance (algorithm);
+      verifier.initVerify (key);
+      verifier.update (claims.getSigningInput ().getBytes (UTF_8));
+
+      return verifier.verify (signature);
+    }
+    catch (GeneralSecurityException e)
+    {
+      return false;
+    }
+  }
+
+  private static PublicKey toPublicKey (JsonObject key)
+  {
+    String use = getString (key, "use", "sig");
+
+    if (!"sig".equals (use))
+      return null;
+
+    try
+    {
+      switch (getString (key, "kty", ""))
+      {
+        case "RSA":
+        {
+          BigInteger n = getUnsignedInteger (key, "n");
+          BigInteger e = getUnsignedInteger (key, "e");
+
+          if (n == null || e == null)
+            return null;
+
+          return KeyFactory.getInstance ("RSA").generatePublic (new RSAPublicKeySpec (n, e));
+        }
+
+        case "EC":
+        {
+          String curve = EC_CURVES.get (getString (key, "crv", ""));
+          BigInteger x = getUnsignedInteger (key, "x");
+          BigInteger y = getUnsignedInteger (key, "y");
+
+          if (curve == null || x == null || y == null)
+            return null;
+
+          AlgorithmParameters parameters = AlgorithmParameters.getInstance ("EC");
+          parameters.init (new ECGenParameterSpec (curve));
+
+          ECParameterSpec spec = parameters.getParameterSpec (ECParameterSpec.class);
+          return KeyFactory.getInstance ("EC").generatePublic (new ECPublicKeySpec (new ECPoint (x, y), spec));
+        }
+
+        default:
+          return null;
+      }
+    }
+    catch (GeneralSecurityException e)
+    {
+      // The key is not supported by the platform, or is not valid.
+      return null;
+    }
+  }
+
+  /**
+   * Convert the signature of an EC algorithm from the JWS format (r and s, each
+   * padded to a fixed length) to the DER format used by Java.
+   */
+  private static byte [] toDer (byte [] signature, int halfLength)
+  {
+    if (signature.length != halfLength * 2)
+      return null;
+
+    byte [] r = new BigInteger (1, Arrays.copyOfRange (signature, 0, halfLength)).toByteArray ();
+    byte [] s = new BigInteger (1, Arrays.copyOfRange (signature, halfLength, signature.length)).toByteArray ();
+
+    ByteArrayOutputStream der = new ByteArrayOutputStream ();
+    int length = 2 + r.length + 2 + s.length;
+
+    der.write (0x30);
+    writeLength (der, length);
+
+    der.write (0x02);
+    writeLength (der, r.length);
+    der.write (r, 0, r.length);
+
+    der.write (0x02);
+    writeLength (der, s.length);
+    der.write (s, 0, s.length);
+
+    return der.toByteArray ();
+  }
+
+  private static void writeLength (ByteArrayOutputStream out, int length)
+  {
+    // The halves are at most 67 bytes, so the length needs at most one extra byte.
+    if (length >= 0x80)
+      out.write (0x81);
+
+    out.write (length);
+  }
+
+  private static BigInteger getUnsignedInteger (JsonObject obj, String name)
+  {
+    String value = getString (obj, name, null);
+    ByteString bytes = value != null ? ByteString.decodeBase64 (value) : null;
+
+    return bytes != null ? new BigInteger (1, bytes.toByteArray ()) : null;
+  }
+
+  private static String getString (JsonObject obj, String name, String defaultValue)
+  {
+    JsonElement element = obj.get (name);
+    return element != null && element.isJsonPrimitive () ? element.getAsString () : defaultValue;
+  }
+}
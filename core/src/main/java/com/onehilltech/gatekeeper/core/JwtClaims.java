@@ -0,0 +1,221 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.Charset;
+
+import okio.ByteString;
+
+/**
+ * @class JwtClaims
+ *
+ * Decoded view of an access token that is a JSON Web Token. Only the claims the
+ * client needs are read: the times the token is valid between, the subject, and
+ * the scope. The claims say if the signature of the token was verified; claims that
+ * were not verified must only be used as a hint, such as to refresh a token before
+ * it expires.
+ */
+public final class JwtClaims
+{
+  private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+  private final String algorithm_;
+
+  private final String keyId_;
+
+  private final String subject_;
+
+  private final String scope_;
+
+  /// The claims are times in seconds since the epoch, or null if the token does not
+  /// have them.
+  private final Long expiresAt_;
+
+  private final Long notBefore_;
+
+  private final Long issuedAt_;
+
+  /// The part of the token the signature is computed over.
+  private final String signingInput_;
+
+  private final byte [] signature_;
+
+  private final boolean verified_;
+
+  /**
+   * Decode a token. The signature is not verified.
+   *
+   * @param token         The access token
+   * @return              The claims, or null if the token is not a JWT
+   */
+  public static JwtClaims parse (String token)
+  {
+    int first = token.indexOf ('.');
+    int second = first != -1 ? token.indexOf ('.', first + 1) : -1;
+
+    if (first <= 0 || second == -1 || token.indexOf ('.', second + 1) != -1)
+      return null;
+
+    JsonObject header = decodeObject (token.substring (0, first));
+    JsonObject payload = decodeObject (token.substring (first + 1, second));
+    ByteString signature = ByteString.decodeBase64 (token.substring (second + 1));
+
+    if (header == null || payload == null || signature == null)
+      return null;
+
+    return new JwtClaims (
+        getString (header, "alg"),
+        getString (header, "kid"),
+        getString (payload, "sub"),
+        getString (payload, "scope"),
+        getLong (payload, "exp"),
+        getLong (payload, "nbf"),
+        getLong (payload, "iat"),
+        token.substring (0, second),
+        signature.toByteArray (),
+        false);
+  }
+
+  private JwtClaims (String algorithm,
+                     String keyId,
+                     String subject,
+                     String scope,
+                     Long expiresAt,
+                     Long notBefore,
+                     Long issuedAt,
+                     String signingInput,
+                     byte [] signature,
+                     boolean verified)
+  {
+    this.algorithm_ = algorithm;
+    this.keyId_ = keyId;
+    this.subject_ = subject;
+    this.scope_ = scope;
+    this.expiresAt_ = expiresAt;
+    this.notBefore_ = notBefore;
+    this.issuedAt_ = issuedAt;
+    this.signingInput_ = signingInput;
+    this.signature_ = signature;
+    this.verified_ = verified;
+  }
+
+  /**
+   * Get the same claims, marked as verified.
+   */
+  JwtClaims verified ()
+  {
+    return new JwtClaims (this.algorithm_, this.keyId_, this.subject_, this.scope_,
+                          this.expiresAt_, this.notBefore_, this.issuedAt_,
+                          this.signingInput_, this.signature_, true);
+  }
+
+  public String getAlgorithm ()
+  {
+    return this.algorithm_;
+  }
+
+  public String getKeyId ()
+  {
+    return this.keyId_;
+  }
+
+  public String getSubject ()
+  {
+    return this.subject_;
+  }
+
+  public String getScope ()
+  {
+    return this.scope_;
+  }
+
+  /**
+   * Get the expiration time (exp) in seconds since the epoch, or null.
+   */
+  public Long getExpiresAt ()
+  {
+    return this.expiresAt_;
+  }
+
+  /**
+   * Get the time the token is valid from (nbf) in seconds since the epoch, or null.
+   */
+  public Long getNotBefore ()
+  {
+    return this.notBefore_;
+  }
+
+  public Long getIssuedAt ()
+  {
+    return this.issuedAt_;
+  }
+
+  /**
+   * Test if the signature of the token was verified against a JSON Web Key Set.
+   */
+  public boolean isVerified ()
+  {
+    return this.verified_;
+  }
+
+  /**
+   * Test if the token is valid at a time.
+   *
+   * @param nowMillis         The time in milliseconds since the epoch
+   * @param skewMillis        Margin for the clocks of the client and the server
+   */
+  public boolean isValidAt (long nowMillis, long skewMillis)
+  {
+    if (this.expiresAt_ != null && this.expiresAt_ * 1000 - skewMillis <= nowMillis)
+      return false;
+
+    return this.notBefore_ == null || this.notBefore_ * 1000 - skewMillis <= nowMillis;
+  }
+
+  String getSigningInput ()
+  {
+    return this.signingInput_;
+  }
+
+  byte [] getSignature ()
+  {
+    return this.signature_;
+  }
+
+  private static JsonObject decodeObject (String part)
+  {
+    ByteString bytes = ByteString.decodeBase64 (part);
+
+    if (bytes == null)
+      return null;
+
+    try
+    {
+      JsonElement json = new JsonParser ().parse (bytes.string (UTF_8));
+      return json.isJsonObject () ? json.getAsJsonObject () : null;
+    }
+    catch (JsonParseException e)
+    {
+      return null;
+    }
+  }
+
+  private static String getString (JsonObject obj, String name)
+  {
+    JsonElement element = obj.get (name);
+    return element != null && element.isJsonPrimitive () ? element.getAsString () : null;
+  }
+
+  private static Long getLong (JsonObject obj, String name)
+  {
+    JsonElement element = obj.get (name);
+
+    if (element == null || !element.isJsonPrimitive () || !element.getAsJsonPrimitive ().isNumber ())
+      return null;
+
+    return element.getAsLong ();
+  }
+}
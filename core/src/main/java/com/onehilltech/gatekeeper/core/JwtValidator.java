@@ -0,0 +1,501 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * @class JwtValidator
+ *
+ * Checks JWT access tokens on the client, so a token that has expired is refreshed
+ * before a request is sent with it, instead of after the server rejects it. The
+ * decoded claims of each token are cached, so a token is decoded once, not once for
+ * each request. Tokens that are not JWTs are left to the server.
+ *
+ * The signature of the tokens can also be verified against a JSON Web Key Set that
+ * is loaded from a file, or from an endpoint. The key set is cached, and is loaded
+ * again when it expires, or when a token is signed with a key it does not have. If
+ * a key set is set, the claims of a token whose signature is not verified are not
+ * used, and are not cached unless the key that signed the token was available.
+ *
+ * The key set is first loaded in the background when a session is created with the
+ * validator. An expired key set is used while the next one is loaded in the
+ * background, so only a token signed with a new key waits on the key set.
+ *
+ * The times in the claims are set by the clock of the server. The validator learns
+ * how far the clock of the device is from the clock of the server from the issue
+ * time of each token when it arrives, so a device whose clock is wrong does not
+ * refresh every token it is given.
+ */
+public class JwtValidator
+{
+  private static final long DEFAULT_CLOCK_SKEW_SECONDS = 30;
+
+  private static final long DEFAULT_KEY_SET_TIME_TO_LIVE_MINUTES = 60;
+
+  /// The key set is not loaded again sooner than this, even for an unknown key.
+  private static final long MIN_KEY_SET_RELOAD_NANOS = TimeUnit.MINUTES.toNanos (1);
+
+  private static final int DEFAULT_CLAIMS_CACHE_SIZE = 32;
+
+  /// Cached for the tokens that are not JWTs, so they are not decoded again.
+  private static final Object NOT_JWT = new Object ();
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating JwtValidator objects.
+   */
+  public static final class Builder
+  {
+    private File keySetFile_;
+
+    private String keySetUrl_;
+
+    private OkHttpClient httpClient_;
+
+    private GatekeeperProtocol protocol_;
+
+    private long keySetTimeToLive_ = TimeUnit.MINUTES.toNanos (DEFAULT_KEY_SET_TIME_TO_LIVE_MINUTES);
+
+    private long clockSkew_ = TimeUnit.SECONDS.toMillis (DEFAULT_CLOCK_SKEW_SECONDS);
+
+    private int claimsCacheSize_ = DEFAULT_CLAIMS_CACHE_SIZE;
+
+    /**
+     * Verify the signatures with a key set in a file.
+     */
+    public Builder setKeySetFile (File keySetFile)
+    {
+      this.keySetFile_ = keySetFile;
+      return this;
+    }
+
+    /**
+     * Verify the signatures with a key set loaded from an endpoint, such as the
+     * jwks_uri of the service.
+     */
+    public Builder setKeySetUrl (String keySetUrl)
+    {
+      this.keySetUrl_ = keySetUrl;
+      return this;
+    }
+
+    /**
+     * Set the http client that loads the key set from its endpoint.
+     */
+    public Builder setHttpClient (OkHttpClient httpClient)
+    {
+      this.httpClient_ = httpClient;
+      return this;
+    }
+
+    /**
+     * Load the key set with the http client of the protocol, if the http client is
+     * not set.
+     */
+    public Builder setProtocol (GatekeeperProtocol protocol)
+    {
+      this.protocol_ = protocol;
+      return this;
+    }
+
+    public Builder setKeySetTimeToLive (long timeToLive, TimeUnit unit)
+    {
+      this.keySetTimeToLive_ = unit.toNanos (timeToLive);
+      return this;
+    }
+
+    /**
+     * Set the margin for the clocks of the client and the server. A token is
+     * refreshed this long before it expires.
+     */
+    public Builder setClockSkew (long clockSkew, TimeUnit unit)
+    {
+      this.clockSkew_ = unit.toMillis (clockSkew);
+      return this;
+    }
+
+    public Builder setClaimsCacheSize (int claimsCacheSize)
+    {
+      this.claimsCacheSize_ = claimsCacheSize;
+      return this;
+    }
+
+    public JwtValidator build ()
+    {
+      if (this.keySetFile_ != null && this.keySetUrl_ != null)
+        throw new IllegalStateException ("You can only set the key set file or the key set url");
+
+      if (this.claimsCacheSize_ < 1)
+        throw new IllegalStateException ("The claims cache size must be at least 1");
+
+      if (this.httpClient_ == null && this.protocol_ != null)
+        this.httpClient_ = this.protocol_.getHttpClient ();
+
+      if (this.keySetUrl_ != null && this.httpClient_ == null)
+        throw new IllegalStateException ("You must set the protocol or the http client");
+
+      return new JwtValidator (this);
+    }
+  }
+
+  private final Logger logger_ = LoggerFactory.getLogger (JwtValidator.class);
+
+  private final File keySetFile_;
+
+  private final String keySetUrl_;
+
+  private final OkHttpClient httpClient_;
+
+  /// Loads the key set in the background.
+  private final Executor executor_;
+
+  private final long keySetTimeToLive_;
+
+  private final long clockSkew_;
+
+  /// Time on the server minus the time on the device, in milliseconds, from the
+  /// issue time of the last token that arrived.
+  private volatile long clockOffset_;
+
+  /// The claims of the recent tokens, from the least to the most recently used.
+  private final LinkedHashMap <String, Object> claims_;
+
+  /// Lock for the key set.
+  private final Object keySetLock_ = new Object ();
+
+  private JsonWebKeySet keySet_;
+
+  private long keySetLoadedAt_;
+
+  private boolean keySetLoadAttempted_;
+
+  /// The key set is being loaded in the background.
+  private boolean keySetLoading_;
+
+  private JwtValidator (Builder builder)
+  {
+    this.keySetFile_ = builder.keySetFile_;
+    this.keySetUrl_ = builder.keySetUrl_;
+    this.httpClient_ = builder.httpClient_;
+
+    // A key set in a file is read on the calling thread when there is no http client
+    // whose threads can be used.
+    this.executor_ = this.httpClient_ != null ? this.httpClient_.dispatcher ().executorService () : Runnable::run;
+    this.keySetTimeToLive_ = builder.keySetTimeToLive_;
+    this.clockSkew_ = builder.clockSkew_;
+
+    final int claimsCacheSize = builder.claimsCacheSize_;
+
+    this.claims_ = new LinkedHashMap <String, Object> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (Map.Entry <String, Object> eldest)
+      {
+        return this.size () > claimsCacheSize;
+      }
+    };
+  }
+
+  /**
+   * Test if the signatures are verified.
+   */
+  public boolean hasKeySet ()
+  {
+    return this.keySetFile_ != null || this.keySetUrl_ != null;
+  }
+
+  /**
+   * Load the key set in the background if it has not been loaded, so the first
+   * token that is checked does not wait on it. Sessions created with the validator
+   * call this.
+   */
+  public void prefetchKeySet ()
+  {
+    if (!this.hasKeySet ())
+      return;
+
+    synchronized (this.keySetLock_)
+    {
+      if (this.keySetLoadAttempted_ || this.keySetLoading_)
+        return;
+
+      this.keySetLoadAttempted_ = true;
+      this.keySetLoadedAt_ = System.nanoTime ();
+      this.keySetLoading_ = true;
+    }
+
+    this.reloadInBackground ();
+  }
+
+  /**
+   * Get the decoded claims of an access token.
+   *
+   * @param accessToken       The access token
+   * @return                  The claims, or null if the token is not a JWT
+   */
+  public JwtClaims getClaims (String accessToken)
+  {
+    Object claims;
+
+    synchronized (this.claims_)
+    {
+      claims = this.claims_.get (accessToken);
+    }
+
+    if (claims == null)
+    {
+      JwtClaims parsed = JwtClaims.parse (accessToken);
+
+      if (parsed == null)
+      {
+        claims = NOT_JWT;
+      }
+      else
+      {
+        claims = this.verify (parsed);
+
+        // The key that signed the token is not available, such as when the key set
+        // failed to load. The claims are checked again the next time.
+        if (claims == null)
+          return parsed;
+      }
+
+      synchronized (this.claims_)
+      {
+        this.claims_.put (accessToken, claims);
+      }
+    }
+
+    return claims != NOT_JWT ? (JwtClaims)claims : null;
+  }
+
+  /**
+   * Get the claims of an access token that can be trusted. If there is no key set,
+   * all claims are trusted since they are only used to refresh the token early.
+   *
+   * @param accessToken       The access token
+   * @return                  The claims, or null
+   */
+  public JwtClaims getTrustedClaims (String accessToken)
+  {
+    JwtClaims claims = this.getClaims (accessToken);
+    return claims != null && (claims.isVerified () || !this.hasKeySet ()) ? claims : null;
+  }
+
+  /**
+   * Test if an access token must be refreshed before it is sent, because its claims
+   * say it has expired or is not valid yet.
+   *
+   * @param accessToken       The access token
+   */
+  public boolean needsRefresh (String accessToken)
+  {
+    JwtClaims claims = this.getTrustedClaims (accessToken);
+    return claims != null && !claims.isValidAt (this.getServerTime (), this.clockSkew_);
+  }
+
+  /**
+   * Learn the clock of the server from a token that just arrived from Gatekeeper.
+   * The issue time (iat) of the token is the time on the server when the token was
+   * issued, so its difference with the time on the device is the offset between
+   * the clocks, give or take the latency of the response.
+   *
+   * @param accessToken       The access token
+   */
+  public void onTokenIssued (String accessToken)
+  {
+    JwtClaims claims = this.getTrustedClaims (accessToken);
+
+    if (claims != null && claims.getIssuedAt () != null)
+      this.clockOffset_ = claims.getIssuedAt () * 1000 - System.currentTimeMillis ();
+  }
+
+  /**
+   * Get the time on the server, from the clock of the device and the offset between
+   * the clocks.
+   */
+  private long getServerTime ()
+  {
+    return System.currentTimeMillis () + this.clockOffset_;
+  }
+
+  /**
+   * Get the time an access token expires.
+   *
+   * @param accessToken       The access token
+   * @return                  The time on the clock of the device in milliseconds since
+   *                          the epoch, or null if it is not known
+   */
+  public Long getExpiresAt (String accessToken)
+  {
+    JwtClaims claims = this.getTrustedClaims (accessToken);
+    return claims != null && claims.getExpiresAt () != null ? claims.getExpiresAt () * 1000 - this.clockOffset_ : null;
+  }
+
+  /**
+   * Verify the signature of a token.
+   *
+   * @param claims        Claims of the token
+   * @return              The claims, marked as verified if the signature is, or null
+   *                      if the key that signed the token is not available
+   */
+  private JwtClaims verify (JwtClaims claims)
+  {
+    if (!this.hasKeySet ())
+      return claims;
+
+    JsonWebKeySet keySet = this.getKeySet (claims.getKeyId ());
+
+    if (keySet == null || !keySet.hasKey (claims.getKeyId ()))
+      return null;
+
+    return keySet.verify (claims) ? claims.verified () : claims;
+  }
+
+  /**
+   * Get the key set. The key set is loaded if there is none, or if it does not have
+   * the key that signed a token. A key set that expired is used while the next one is
+   * loaded in the background.
+   *
+   * @param keyId         Id of the key that signed the token
+   * @return              The key set, or null if it cannot be loaded
+   */
+  private JsonWebKeySet getKeySet (String keyId)
+  {
+    boolean reload = false;
+    JsonWebKeySet keySet;
+
+    synchronized (this.keySetLock_)
+    {
+      // Wait for the key set loaded in the background, instead of loading it again.
+      while (this.keySetLoading_ && this.keySet_ == null)
+      {
+        try
+        {
+          this.keySetLock_.wait ();
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread ().interrupt ();
+          break;
+        }
+      }
+
+      long now = System.nanoTime ();
+      boolean expired = this.keySet_ == null || now - this.keySetLoadedAt_ >= this.keySetTimeToLive_;
+      boolean missingKey = this.keySet_ != null && !this.keySet_.hasKey (keyId);
+      boolean canReload = !this.keySetLoadAttempted_ || now - this.keySetLoadedAt_ >= MIN_KEY_SET_RELOAD_NANOS;
+
+      if ((expired || missingKey) && canReload && !this.keySetLoading_)
+      {
+        this.keySetLoadAttempted_ = true;
+        this.keySetLoadedAt_ = now;
+
+        if (this.keySet_ != null && !missingKey)
+        {
+          this.keySetLoading_ = true;
+          reload = true;
+        }
+        else
+        {
+          try
+          {
+            this.keySet_ = this.loadKeySet ();
+          }
+          catch (IOException e)
+          {
+            // Keep the keys we have. The tokens they cannot verify are left to the
+            // server.
+            this.logger_.warn ("Failed to load the JSON Web Key Set", e);
+          }
+        }
+      }
+
+      keySet = this.keySet_;
+    }
+
+    if (reload)
+      this.reloadInBackground ();
+
+    return keySet;
+  }
+
+  private void reloadInBackground ()
+  {
+    try
+    {
+      this.executor_.execute (this::reloadKeySet);
+    }
+    catch (RejectedExecutionException e)
+    {
+      // The http client was shut down.
+      this.reloadKeySet ();
+    }
+  }
+
+  /**
+   * Load the key set in the background. The keys we have are kept if it fails.
+   */
+  private void reloadKeySet ()
+  {
+    JsonWebKeySet keySet = null;
+
+    try
+    {
+      keySet = this.loadKeySet ();
+    }
+    catch (IOException e)
+    {
+      this.logger_.warn ("Failed to load the JSON Web Key Set", e);
+    }
+    finally
+    {
+      synchronized (this.keySetLock_)
+      {
+        if (keySet != null)
+          this.keySet_ = keySet;
+
+        this.keySetLoading_ = false;
+        this.keySetLock_.notifyAll ();
+      }
+    }
+  }
+
+  private JsonWebKeySet loadKeySet ()
+      throws IOException
+  {
+    if (this.keySetFile_ != null)
+    {
+      try (InputStream in = new FileInputStream (this.keySetFile_))
+      {
+        return JsonWebKeySet.parse (new Buffer ().readFrom (in).readByteArray ());
+      }
+    }
+
+    Request request = new Request.Builder ().url (this.keySetUrl_).build ();
+
+    try (Response response = this.httpClient_.newCall (request).execute ())
+    {
+      if (!response.isSuccessful ())
+        throw new IOException ("Failed to load the key set: HTTP " + response.code ());
+
+      return JsonWebKeySet.parse (response.body ().bytes ());
+    }
+  }
+}
@@ -0,0 +1,639 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * @class KioskSessionPool
+ *
+ * Pool of recently used sessions for devices shared by users that sign in and out
+ * every few minutes, such as kiosk tablets. When a user releases the device, their
+ * session stays signed in. If the same user signs in again while the session is in
+ * the pool, the password is checked against a salted hash kept in memory, and the
+ * device switches to the session without calling Gatekeeper.
+ *
+ * The pool holds at most a fixed number of sessions. When it is full, the least
+ * recently used session is evicted. Sessions that have been idle for too long are
+ * also evicted, and the other sessions have their token refreshed in the background
+ * so they are still valid when their user returns. If the sessions check their
+ * tokens with a JwtValidator, a token that expires before the next maintenance is
+ * refreshed early. Evicting a session erases its password hash, queues the logout
+ * of its token in the outbox so Gatekeeper revokes it, and deletes the token from
+ * the account store.
+ *
+ * The pool only checks passwords for the sessions it signed in. Accounts that were
+ * signed in before the pool was created are signed out.
+ */
+public class KioskSessionPool implements Closeable
+{
+  private static final int DEFAULT_CAPACITY = 8;
+
+  private static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 30;
+
+  private static final long DEFAULT_REFRESH_INTERVAL_MINUTES = 10;
+
+  private static final long DEFAULT_MAINTENANCE_INTERVAL_SECONDS = 60;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating KioskSessionPool objects.
+   */
+  public static final class Builder
+  {
+    private SessionManager manager_;
+
+    private Outbox outbox_;
+
+    private int capacity_ = DEFAULT_CAPACITY;
+
+    private long idleTimeout_ = TimeUnit.MINUTES.toNanos (DEFAULT_IDLE_TIMEOUT_MINUTES);
+
+    private long refreshInterval_ = TimeUnit.MINUTES.toNanos (DEFAULT_REFRESH_INTERVAL_MINUTES);
+
+    private long maintenanceInterval_ = TimeUnit.SECONDS.toNanos (DEFAULT_MAINTENANCE_INTERVAL_SECONDS);
+
+    private MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+    public Builder setSessionManager (SessionManager manager)
+    {
+      this.manager_ = manager;
+      return this;
+    }
+
+    /**
+     * Set the outbox that sends the logout of the evicted sessions.
+     */
+    public Builder setOutbox (Outbox outbox)
+    {
+      this.outbox_ = outbox;
+      return this;
+    }
+
+    /**
+     * Set the most sessions kept in the pool.
+     */
+    public Builder setCapacity (int capacity)
+    {
+      this.capacity_ = capacity;
+      return this;
+    }
+
+    /**
+     * Set how long a released session is kept before it is evicted.
+     */
+    public Builder setIdleTimeout (long idleTimeout, TimeUnit unit)
+    {
+      this.idleTimeout_ = unit.toNanos (idleTimeout);
+      return this;
+    }
+
+    /**
+     * Set how often the token of a released session is refreshed.
+     */
+    public Builder setRefreshInterval (long refreshInterval, TimeUnit unit)
+    {
+      this.refreshInterval_ = unit.toNanos (refreshInterval);
+      return this;
+    }
+
+    /**
+     * Set how often the background thread evicts idle sessions, and refreshes the
+     * tokens of the other sessions.
+     */
+    public Builder setMaintenanceInterval (long maintenanceInterval, TimeUnit unit)
+    {
+      this.maintenanceInterval_ = unit.toNanos (maintenanceInterval);
+      return this;
+    }
+
+    public Builder setMetricsSink (MetricsSink metricsSink)
+    {
+      this.metricsSink_ = metricsSink;
+      return this;
+    }
+
+    public KioskSessionPool build ()
+    {
+      if (this.manager_ == null)
+        throw new IllegalStateException ("You must set the session manager");
+
+      if (this.outbox_ == null)
+        throw new IllegalStateException ("You must set the outbox");
+
+      if (this.capacity_ < 1)
+        throw new IllegalStateException ("The capacity must be at least 1");
+
+      return new KioskSessionPool (this);
+    }
+  }
+
+  /**
+   * @class Credential
+   *
+   * Salted hash of the password for a pooled session.
+   */
+  private static final class Credential
+  {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    private static final int ITERATIONS = 10000;
+
+    private static final int KEY_LENGTH = 256;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom ();
+
+    private final byte [] salt_ = new byte[SALT_LENGTH];
+
+    private final byte [] hash_;
+
+    Credential (String password)
+    {
+      RANDOM.nextBytes (this.salt_);
+      this.hash_ = derive (password, this.salt_);
+    }
+
+    boolean matches (String password)
+    {
+      return MessageDigest.isEqual (this.hash_, derive (password, this.salt_));
+    }
+
+    void erase ()
+    {
+      Arrays.fill (this.salt_, (byte)0);
+      Arrays.fill (this.hash_, (byte)0);
+    }
+
+    private static byte [] derive (String password, byte [] salt)
+    {
+      char [] chars = password.toCharArray ();
+      PBEKeySpec spec = new PBEKeySpec (chars, salt, ITERATIONS, KEY_LENGTH);
+
+      try
+      {
+        return SecretKeyFactory.getInstance (ALGORITHM).generateSecret (spec).getEncoded ();
+      }
+      catch (GeneralSecurityException e)
+      {
+        throw new IllegalStateException ("Failed to hash the password", e);
+      }
+      finally
+      {
+        spec.clearPassword ();
+        Arrays.fill (chars, '\0');
+      }
+    }
+  }
+
+  /**
+   * @class Entry
+   *
+   * A session in the pool.
+   */
+  private static final class Entry
+  {
+    final String username;
+
+    final Credential credential;
+
+    /// Time the session was last signed in to, or released, in nanoseconds.
+    long lastUsed;
+
+    /// Time the token was last received from Gatekeeper, in nanoseconds.
+    long lastRefreshed;
+
+    Entry (String username, Credential credential, long now)
+    {
+      this.username = username;
+      this.credential = credential;
+      this.lastUsed = now;
+      this.lastRefreshed = now;
+    }
+  }
+
+  private final Logger logger_ = LoggerFactory.getLogger (KioskSessionPool.class);
+
+  private final SessionManager manager_;
+
+  private final Outbox outbox_;
+
+  private final int capacity_;
+
+  private final long idleTimeout_;
+
+  private final long refreshInterval_;
+
+  private final long maintenanceInterval_;
+
+  private final MetricsSink metrics_;
+
+  /// The pooled sessions, from the least to the most recently signed in to. A
+  /// session is moved to the end when its user signs in again.
+  private final LinkedHashMap <String, Entry> entries_ = new LinkedHashMap<> ();
+
+  /// Lock for the pooled sessions.
+  private final Object lock_ = new Object ();
+
+  private ScheduledExecutorService maintenance_;
+
+  private KioskSessionPool (Builder builder)
+  {
+    this.manager_ = builder.manager_;
+    this.outbox_ = builder.outbox_;
+    this.capacity_ = builder.capacity_;
+    this.idleTimeout_ = builder.idleTimeout_;
+    this.refreshInterval_ = builder.refreshInterval_;
+    this.maintenanceInterval_ = builder.maintenanceInterval_;
+    this.metrics_ = builder.metricsSink_;
+
+    // The pool cannot check the password for these accounts, so their users would
+    // have to sign in with Gatekeeper anyway.
+    for (String username : new ArrayList<> (this.manager_.getAccounts ()))
+      this.signOut (username);
+  }
+
+  public SessionManager getSessionManager ()
+  {
+    return this.manager_;
+  }
+
+  /**
+   * Get the number of sessions in the pool.
+   */
+  public int size ()
+  {
+    synchronized (this.lock_)
+    {
+      return this.entries_.size ();
+    }
+  }
+
+  /**
+   * Test if the session for an account is in the pool.
+   *
+   * @param username        Username for the account
+   */
+  public boolean contains (String username)
+  {
+    synchronized (this.lock_)
+    {
+      return this.entries_.containsKey (username);
+    }
+  }
+
+  /**
+   * Start evicting idle sessions, and refreshing the tokens of the other sessions,
+   * on a background thread.
+   */
+  public synchronized void start ()
+  {
+    if (this.maintenance_ != null)
+      return;
+
+    this.maintenance_ = Executors.newSingleThreadScheduledExecutor (runnable -> {
+      Thread thread = new Thread (runnable, "gatekeeper-session-pool");
+      thread.setDaemon (true);
+
+      return thread;
+    });
+
+    this.maintenance_.scheduleWithFixedDelay (this::runMaintenance,
+                                              this.maintenanceInterval_,
+                                              this.maintenanceInterval_,
+                                              TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stop the background thread. The sessions stay in the pool.
+   */
+  @Override
+  public synchronized void close ()
+  {
+    if (this.maintenance_ == null)
+      return;
+
+    this.maintenance_.shutdownNow ();
+    this.maintenance_ = null;
+  }
+
+  /**
+   * Sign in a user, and make their account the active account. If the session for
+   * the user is in the pool and the password matches, the device switches to the
+   * session without calling Gatekeeper. Otherwise, the user is signed in with
+   * Gatekeeper, and the session is added to the pool.
+   *
+   * @param username        Username
+   * @param password        Password
+   * @return                Session for the user
+   */
+  public SessionEngine signIn (String username, String password)
+      throws IOException
+  {
+    long startTime = System.nanoTime ();
+    Credential credential = null;
+
+    synchronized (this.lock_)
+    {
+      Entry entry = this.entries_.get (username);
+
+      if (entry != null && this.manager_.getSession (username) != null)
+        credential = entry.credential;
+    }
+
+    // Hashing the password is slow, so it is done outside the lock. The entry is
+    // checked again after, since it may have been evicted in the meantime.
+    if (credential != null && credential.matches (password))
+    {
+      synchronized (this.lock_)
+      {
+        Entry entry = this.entries_.get (username);
+        SessionEngine engine = this.manager_.getSession (username);
+
+        if (entry != null && entry.credential == credential && engine != null)
+        {
+          entry.lastUsed = System.nanoTime ();
+          this.entries_.remove (username);
+          this.entries_.put (username, entry);
+
+          this.manager_.switchTo (username);
+
+          this.metrics_.increment (Counter.SESSION_POOL_HIT);
+          this.metrics_.recordLatency (Timer.SIGN_IN, System.nanoTime () - startTime);
+
+          return engine;
+        }
+      }
+    }
+
+    // The password did not match, so it may have been changed. Gatekeeper decides,
+    // and the pooled session is kept if it rejects the password.
+    this.metrics_.increment (Counter.SESSION_POOL_MISS);
+
+    SessionEngine engine;
+
+    if (this.manager_.getSession (username) == null)
+    {
+      engine = this.manager_.signIn (username, password);
+    }
+    else
+    {
+      SessionToken token = SessionToken.fromJson (username, this.manager_.getProtocol ().getUserToken (username, password));
+      engine = this.manager_.addSession (token);
+    }
+
+    this.manager_.switchTo (username);
+    credential = new Credential (password);
+
+    synchronized (this.lock_)
+    {
+      Entry previous = this.entries_.remove (username);
+      this.entries_.put (username, new Entry (username, credential, System.nanoTime ()));
+
+      if (previous != null)
+        previous.credential.erase ();
+
+      this.evictOverCapacity ();
+    }
+
+    return engine;
+  }
+
+  /**
+   * Release the device from the active account. The session stays in the pool for
+   * when the user returns, and is evicted once it has been idle for the timeout.
+   */
+  public void release ()
+  {
+    synchronized (this.lock_)
+    {
+      SessionEngine active = this.manager_.getActive ();
+
+      if (active == null)
+        return;
+
+      SessionToken token = active.getToken ();
+      Entry entry = token != null ? this.entries_.get (token.getUsername ()) : null;
+
+      if (entry != null)
+        entry.lastUsed = System.nanoTime ();
+
+      this.manager_.clearActive ();
+    }
+  }
+
+  /**
+   * Remove the session for an account from the pool, without signing it out.
+   *
+   * @param username        Username for the account
+   */
+  public void remove (String username)
+  {
+    synchronized (this.lock_)
+    {
+      Entry entry = this.entries_.remove (username);
+
+      if (entry != null)
+        entry.credential.erase ();
+    }
+  }
+
+  /**
+   * Evict all the sessions in the pool, such as at the end of the day.
+   */
+  public void clear ()
+  {
+    synchronized (this.lock_)
+    {
+      for (Entry entry : new ArrayList<> (this.entries_.values ()))
+        this.evict (entry);
+    }
+  }
+
+  /**
+   * Evict the idle sessions, and refresh the tokens of the other released sessions
+   * that are due. The background thread calls this periodically.
+   */
+  public void maintain ()
+  {
+    this.maintain (System.nanoTime ());
+  }
+
+  void maintain (long now)
+  {
+    List <Entry> refresh = new ArrayList<> ();
+
+    synchronized (this.lock_)
+    {
+      SessionEngine active = this.manager_.getActive ();
+      Iterator <Entry> iterator = this.entries_.values ().iterator ();
+
+      while (iterator.hasNext ())
+      {
+        Entry entry = iterator.next ();
+        SessionEngine engine = this.manager_.getSession (entry.username);
+
+        if (engine == null)
+        {
+          // The account was signed out without going through the pool.
+          iterator.remove ();
+          entry.credential.erase ();
+        }
+        else if (engine != active)
+        {
+          if (now - entry.lastUsed >= this.idleTimeout_)
+          {
+            iterator.remove ();
+            this.erase (entry);
+          }
+          else if (now - entry.lastRefreshed >= this.refreshInterval_ || this.expiresSoon (engine))
+          {
+            refresh.add (entry);
+          }
+        }
+      }
+    }
+
+    // Refresh outside the lock so users can sign in while the tokens are refreshed.
+    for (Entry entry : refresh)
+      this.refresh (entry, now);
+  }
+
+  /**
+   * Test if the token of a session expires before the maintenance after the next
+   * one, from the claims of the token. The token is then refreshed early, even if
+   * the refresh interval has not passed.
+   */
+  private boolean expiresSoon (SessionEngine engine)
+  {
+    Long expiresAt = engine.getTokenExpiresAt ();
+    long margin = TimeUnit.NANOSECONDS.toMillis (this.maintenanceInterval_ * 2);
+
+    return expiresAt != null && expiresAt - System.currentTimeMillis () < margin;
+  }
+
+  private void refresh (Entry entry, long now)
+  {
+    SessionEngine engine = this.manager_.getSession (entry.username);
+
+    if (engine == null || !engine.isSignedIn ())
+      return;
+
+    try
+    {
+      engine.refreshToken ();
+
+      synchronized (this.lock_)
+      {
+        entry.lastRefreshed = now;
+      }
+    }
+    catch (GatekeeperException e)
+    {
+      // Gatekeeper no longer accepts the session, so the user must sign in again.
+      this.logger_.warn ("Evicting the session for " + entry.username + ": " + e.getMessage ());
+
+      synchronized (this.lock_)
+      {
+        if (this.entries_.get (entry.username) == entry)
+          this.evict (entry);
+      }
+    }
+    catch (IOException e)
+    {
+      // Try again at the next maintenance.
+      this.logger_.warn ("Failed to refresh the session for " + entry.username, e);
+    }
+  }
+
+  private void runMaintenance ()
+  {
+    try
+    {
+      this.maintain ();
+    }
+    catch (RuntimeException e)
+    {
+      // An exception would cancel the next runs.
+      this.logger_.error ("Failed to maintain the session pool", e);
+    }
+  }
+
+  /**
+   * Evict the least recently used sessions until the pool is within its capacity.
+   * The active session is never evicted.
+   */
+  private void evictOverCapacity ()
+  {
+    SessionEngine active = this.manager_.getActive ();
+    Iterator <Entry> iterator = this.entries_.values ().iterator ();
+
+    while (this.entries_.size () > this.capacity_ && iterator.hasNext ())
+    {
+      Entry entry = iterator.next ();
+
+      if (this.manager_.getSession (entry.username) == active)
+        continue;
+
+      iterator.remove ();
+      this.erase (entry);
+    }
+  }
+
+  private void evict (Entry entry)
+  {
+    this.entries_.remove (entry.username);
+    this.erase (entry);
+  }
+
+  /**
+   * Erase the password hash of an entry that was removed from the pool, and sign out
+   * its account.
+   */
+  private void erase (Entry entry)
+  {
+    entry.credential.erase ();
+    this.signOut (entry.username);
+
+    this.metrics_.increment (Counter.SESSION_POOL_EVICTED);
+  }
+
+  /**
+   * Queue the logout of the token of an account, so Gatekeeper revokes it even if
+   * the device is offline, then sign out the account so the token is deleted from
+   * the account store.
+   */
+  private void signOut (String username)
+  {
+    SessionEngine engine = this.manager_.getSession (username);
+    SessionToken token = engine != null ? engine.getToken () : null;
+
+    if (token != null)
+      this.outbox_.enqueue (this.outbox_.newLogout (token));
+
+    this.manager_.signOut (username);
+  }
+}
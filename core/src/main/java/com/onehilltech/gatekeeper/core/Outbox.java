@@ -0,0 +1,616 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.google.gson.JsonObject;
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.http.JsonChangePassword;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * @class Outbox
+ *
+ * Durable, ordered queue of the requests that change the account of a user, such as
+ * logging out and changing the password. A request is added to the OutboxStore
+ * before it is sent, so it is not lost if the device is offline or the process
+ * ends, and the caller does not wait for the network.
+ *
+ * The messages are sent one at a time, in the order they were added, on a
+ * background thread. A message that fails because of the network, or because the
+ * server is unavailable, is sent again after an exponential backoff, and the
+ * messages behind it wait so the order is kept. A message the server rejects is
+ * removed, and the listeners are told. Each message has an idempotency key, which
+ * is sent in the Idempotency-Key header with each attempt, so the server applies it
+ * once even if a response is lost.
+ *
+ * A message for the signed in user is sent with the user client of the session, so
+ * its token is refreshed as needed. A logout carries the token of the user, since
+ * the session has already forgotten it, and the messages queued before it for the
+ * same user are sent with that token.
+ */
+public class Outbox implements Closeable
+{
+  public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+  public static final String LOGOUT_PATH = "oauth2/logout";
+
+  public static final String PASSWORD_PATH = "accounts/me/password";
+
+  public static final String ME_PATH = "accounts/me";
+
+  private static final MediaType JSON = MediaType.parse ("application/json; charset=utf-8");
+
+  private static final long DEFAULT_MIN_BACKOFF_SECONDS = 1;
+
+  private static final long DEFAULT_MAX_BACKOFF_MINUTES = 5;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating Outbox objects.
+   */
+  public static final class Builder
+  {
+    private GatekeeperProtocol protocol_;
+
+    private OutboxStore store_;
+
+    private SessionEngine engine_;
+
+    private Scheduler scheduler_ = Scheduler.IMMEDIATE;
+
+    private MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+    private long minBackoff_ = TimeUnit.SECONDS.toMillis (DEFAULT_MIN_BACKOFF_SECONDS);
+
+    private long maxBackoff_ = TimeUnit.MINUTES.toMillis (DEFAULT_MAX_BACKOFF_MINUTES);
+
+    public Builder setProtocol (GatekeeperProtocol protocol)
+    {
+      this.protocol_ = protocol;
+      return this;
+    }
+
+    public Builder setStore (OutboxStore store)
+    {
+      this.store_ = store;
+      return this;
+    }
+
+    /**
+     * Set the session whose user client sends the messages for the signed in user.
+     */
+    public Builder setSessionEngine (SessionEngine engine)
+    {
+      this.engine_ = engine;
+      return this;
+    }
+
+    public Builder setScheduler (Scheduler scheduler)
+    {
+      this.scheduler_ = scheduler;
+      return this;
+    }
+
+    public Builder setMetricsSink (MetricsSink metricsSink)
+    {
+      this.metricsSink_ = metricsSink;
+      return this;
+    }
+
+    /**
+     * Set the delay before the first retry of a message, and the longest delay
+     * between two retries. The delay doubles after each failed attempt.
+     */
+    public Builder setBackoff (long minBackoff, long maxBackoff, TimeUnit unit)
+    {
+      this.minBackoff_ = unit.toMillis (minBackoff);
+      this.maxBackoff_ = unit.toMillis (maxBackoff);
+      return this;
+    }
+
+    public Outbox build ()
+    {
+      if (this.protocol_ == null)
+        throw new IllegalStateException ("You must set the protocol");
+
+      if (this.store_ == null)
+        throw new IllegalStateException ("You must set the store");
+
+      if (this.minBackoff_ <= 0 || this.maxBackoff_ < this.minBackoff_)
+        throw new IllegalStateException ("The backoff is not valid");
+
+      return new Outbox (this);
+    }
+  }
+
+  private final Logger logger_ = LoggerFactory.getLogger (Outbox.class);
+
+  private final GatekeeperProtocol protocol_;
+
+  private final OutboxStore store_;
+
+  private final SessionEngine engine_;
+
+  private final Scheduler scheduler_;
+
+  private final MetricsSink metrics_;
+
+  private final long minBackoff_;
+
+  private final long maxBackoff_;
+
+  private final CopyOnWriteArrayList <OutboxListener> listeners_ = new CopyOnWriteArrayList<> ();
+
+  private final Random random_ = new Random ();
+
+  /// Lock that keeps a single drain sending messages at a time.
+  private final Object drainLock_ = new Object ();
+
+  private ScheduledExecutorService executor_;
+
+  private ScheduledFuture <?> scheduled_;
+
+  /// Time the scheduled drain runs, in milliseconds since the epoch.
+  private long scheduledAt_;
+
+  private Outbox (Builder builder)
+  {
+    this.protocol_ = builder.protocol_;
+    this.store_ = builder.store_;
+    this.engine_ = builder.engine_;
+    this.scheduler_ = builder.scheduler_;
+    this.metrics_ = builder.metricsSink_;
+    this.minBackoff_ = builder.minBackoff_;
+    this.maxBackoff_ = builder.maxBackoff_;
+  }
+
+  public void addListener (OutboxListener listener)
+  {
+    this.listeners_.add (listener);
+  }
+
+  public void removeListener (OutboxListener listener)
+  {
+    this.listeners_.remove (listener);
+  }
+
+  /**
+   * Get the messages waiting to be sent, in the order they are sent.
+   */
+  public List <OutboxMessage> getMessages ()
+  {
+    return this.store_.loadAll ();
+  }
+
+  public int size ()
+  {
+    return this.store_.loadAll ().size ();
+  }
+
+  /**
+   * Queue the logout of a user. The message carries the token of the user, so the
+   * session can forget the token right away.
+   *
+   * @param token         Token for the user
+   * @return              The queued message
+   */
+  public OutboxMessage logout (SessionToken token)
+  {
+    return this.enqueue (this.newLogout (token));
+  }
+
+  /**
+   * Queue a change to the password of a user. The passwords are kept in the store
+   * until the message is sent.
+   *
+   * @param username          Username for the user
+   * @param currentPassword   The current password
+   * @param newPassword       The new password
+   * @return                  The queued message
+   */
+  public OutboxMessage changePassword (String username, String currentPassword, String newPassword)
+  {
+    return this.enqueue (this.newChangePassword (username, currentPassword, newPassword));
+  }
+
+  /**
+   * Queue an update to the account of a user. Only the fields that are set are
+   * changed.
+   *
+   * @param username          Username for the user
+   * @param account           The fields to change
+   * @return                  The queued message
+   */
+  public OutboxMessage updateAccount (String username, JsonAccount account)
+  {
+    return this.enqueue (this.newUpdateAccount (username, account));
+  }
+
+  /**
+   * Add a message to the end of the outbox. The message is stored before this
+   * method returns, and is sent in the background.
+   *
+   * @param message           The message
+   * @return                  The message with the id the store gave it
+   */
+  public OutboxMessage enqueue (OutboxMessage message)
+  {
+    OutboxMessage added = this.store_.add (message);
+    this.drain ();
+
+    return added;
+  }
+
+  /**
+   * Create the logout of a user, without queuing it. Use this, and the other
+   * methods that create a message, to know the idempotency key of the message
+   * before it can be sent.
+   */
+  public OutboxMessage newLogout (SessionToken token)
+  {
+    return newMessageBuilder (token.getUsername (), "POST", LOGOUT_PATH, null)
+        .setToken (token.getAccessToken (), token.getRefreshToken ())
+        .build ();
+  }
+
+  public OutboxMessage newChangePassword (String username, String currentPassword, String newPassword)
+  {
+    JsonChangePassword change = new JsonChangePassword ();
+    change.currentPassword = currentPassword;
+    change.newPassword = newPassword;
+
+    return this.newMessage (username, "POST", PASSWORD_PATH, this.toResource ("change-password", change));
+  }
+
+  public OutboxMessage newUpdateAccount (String username, JsonAccount account)
+  {
+    return this.newMessage (username, "PUT", ME_PATH, this.toResource ("account", account));
+  }
+
+  /**
+   * Create a request made by a user, without queuing it.
+   *
+   * @param username          Username for the user
+   * @param method            Http method
+   * @param path              Path relative to the versioned base url
+   * @param body              JSON body, or null
+   * @return                  The message
+   */
+  public OutboxMessage newMessage (String username, String method, String path, String body)
+  {
+    return newMessageBuilder (username, method, path, body).build ();
+  }
+
+  private static OutboxMessage.Builder newMessageBuilder (String username, String method, String path, String body)
+  {
+    return new OutboxMessage.Builder ()
+        .setUsername (username)
+        .setRequest (method, path)
+        .setBody (body)
+        .setIdempotencyKey (UUID.randomUUID ().toString ());
+  }
+
+  private String toResource (String name, Object value)
+  {
+    JsonObject resource = new JsonObject ();
+    resource.add (name, this.protocol_.getGson ().toJsonTree (value));
+
+    return resource.toString ();
+  }
+
+  /**
+   * Start sending the messages on a background thread, beginning with the messages
+   * left in the store by an earlier process.
+   */
+  public synchronized void start ()
+  {
+    if (this.executor_ != null)
+      return;
+
+    this.executor_ = Executors.newSingleThreadScheduledExecutor (runnable -> {
+      Thread thread = new Thread (runnable, "gatekeeper-outbox");
+      thread.setDaemon (true);
+
+      return thread;
+    });
+
+    this.schedule (0);
+  }
+
+  /**
+   * Stop the background thread. The messages stay in the store.
+   */
+  @Override
+  public synchronized void close ()
+  {
+    if (this.executor_ == null)
+      return;
+
+    this.executor_.shutdownNow ();
+    this.executor_ = null;
+    this.scheduled_ = null;
+  }
+
+  /**
+   * Send the messages that are due on the background thread.
+   */
+  public void drain ()
+  {
+    this.schedule (0);
+  }
+
+  /**
+   * Send the messages now, even the ones waiting for their backoff to end, such as
+   * when the device is back online.
+   */
+  public void retryNow ()
+  {
+    synchronized (this.drainLock_)
+    {
+      for (OutboxMessage message : this.store_.loadAll ())
+      {
+        if (message.getNextAttemptAt () != 0)
+          this.store_.update (message.newBuilder ().setNextAttemptAt (0).build ());
+      }
+    }
+
+    this.drain ();
+  }
+
+  private synchronized void schedule (long delay)
+  {
+    if (this.executor_ == null)
+      return;
+
+    long runAt = System.currentTimeMillis () + delay;
+
+    if (this.scheduled_ != null && !this.scheduled_.isDone ())
+    {
+      // A drain that runs sooner sends the messages anyway.
+      if (this.scheduledAt_ <= runAt)
+        return;
+
+      this.scheduled_.cancel (false);
+    }
+
+    this.scheduled_ = this.executor_.schedule (this::runDrain, delay, TimeUnit.MILLISECONDS);
+    this.scheduledAt_ = runAt;
+  }
+
+  private void runDrain ()
+  {
+    synchronized (this)
+    {
+      // This drain is running, so a drain requested from now on must be scheduled.
+      this.scheduled_ = null;
+    }
+
+    try
+    {
+      long delay = this.drainNow (System.currentTimeMillis ());
+
+      if (delay >= 0)
+        this.schedule (delay);
+    }
+    catch (RuntimeException e)
+    {
+      // The store failed. Try again later instead of stopping for good.
+      this.logger_.error ("Failed to drain the outbox", e);
+      this.schedule (this.maxBackoff_);
+    }
+  }
+
+  /**
+   * Send the messages that are due, in order, on the calling thread. The drain
+   * stops at the first message that must wait.
+   *
+   * @param now           The time in milliseconds since the epoch
+   * @return              Milliseconds until the next message is due, or -1 if the
+   *                      outbox is empty
+   */
+  long drainNow (long now)
+  {
+    synchronized (this.drainLock_)
+    {
+      // The messages are loaded again for each message, since sending one can
+      // refresh the token carried by another.
+      List <OutboxMessage> messages;
+
+      while (!(messages = this.store_.loadAll ()).isEmpty ())
+      {
+        OutboxMessage message = messages.get (0);
+
+        if (message.getNextAttemptAt () > now)
+          return message.getNextAttemptAt () - now;
+
+        try
+        {
+          this.send (message, messages.subList (1, messages.size ()));
+          this.store_.remove (message);
+
+          this.metrics_.increment (Counter.OUTBOX_DELIVERED);
+          this.notifyDelivered (message);
+        }
+        catch (GatekeeperException e)
+        {
+          if (isRetryable (e.getStatusCode ()))
+            return this.retry (message, e, now);
+
+          this.logger_.warn ("Gatekeeper rejected " + message + ": " + e.getMessage ());
+          this.store_.remove (message);
+
+          this.metrics_.increment (Counter.OUTBOX_REJECTED);
+          this.notifyRejected (message, e);
+        }
+        catch (IOException e)
+        {
+          return this.retry (message, e, now);
+        }
+      }
+
+      return -1;
+    }
+  }
+
+  private long retry (OutboxMessage message, IOException reason, long now)
+  {
+    long delay = this.getBackoff (message.getAttempts ());
+
+    // The attempt may have stored a refreshed token with the message.
+    for (OutboxMessage stored : this.store_.loadAll ())
+    {
+      if (stored.getId () == message.getId ())
+      {
+        message = stored;
+        break;
+      }
+    }
+
+    OutboxMessage retry =
+        message.newBuilder ()
+            .setAttempts (message.getAttempts () + 1)
+            .setNextAttemptAt (now + delay)
+            .build ();
+
+    this.store_.update (retry);
+    this.metrics_.increment (Counter.OUTBOX_RETRIED);
+
+    for (OutboxListener listener : this.listeners_)
+      this.scheduler_.post (() -> listener.onRetryScheduled (this, retry, reason));
+
+    return delay;
+  }
+
+  /**
+   * Get the delay before a message is sent again. The delay doubles with each
+   * attempt, up to the longest delay, and a random half of it is cut so the devices
+   * that went offline together do not retry together.
+   *
+   * @param attempts      Failed attempts before this one
+   */
+  long getBackoff (int attempts)
+  {
+    long delay = this.minBackoff_ << Math.min (attempts, 30);
+
+    if (delay <= 0 || delay > this.maxBackoff_)
+      delay = this.maxBackoff_;
+
+    return delay - (long)(this.random_.nextDouble () * (delay / 2));
+  }
+
+  private static boolean isRetryable (int statusCode)
+  {
+    return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+  }
+
+  /**
+   * Send a message.
+   *
+   * @param message       The message
+   * @param later         The messages after it, one of which may carry the token
+   *                      for the user
+   */
+  private void send (OutboxMessage message, List <OutboxMessage> later)
+      throws IOException
+  {
+    OutboxMessage holder = message.hasToken () ? message : null;
+    SessionToken token = this.engine_ != null ? this.engine_.getToken () : null;
+
+    if (holder == null && token != null && token.getUsername ().equals (message.getUsername ()))
+    {
+      this.execute (this.engine_.getUserClient (), message, null);
+      return;
+    }
+
+    if (holder == null)
+    {
+      for (OutboxMessage next : later)
+      {
+        if (next.hasToken () && next.getUsername ().equals (message.getUsername ()))
+        {
+          holder = next;
+          break;
+        }
+      }
+    }
+
+    if (holder == null)
+      throw new GatekeeperException (401, "not_signed_in", "The user is not signed in", null);
+
+    OkHttpClient client = this.protocol_.getHttpClient ();
+
+    try
+    {
+      this.execute (client, message, holder.getAccessToken ());
+    }
+    catch (GatekeeperException e)
+    {
+      if (e.getStatusCode () != 401 || holder.getRefreshToken () == null)
+        throw e;
+
+      // The token has expired. Refresh it, and keep the new token with the message
+      // that carries it, since the old refresh token cannot be used again.
+      JsonBearerToken refreshed = this.protocol_.refreshToken (holder.getRefreshToken ());
+      this.store_.update (holder.newBuilder ().setToken (refreshed.accessToken, refreshed.refreshToken).build ());
+
+      this.execute (client, message, refreshed.accessToken);
+    }
+  }
+
+  private void execute (OkHttpClient client, OutboxMessage message, String accessToken)
+      throws IOException
+  {
+    RequestBody body = message.getBody () != null ?
+        RequestBody.create (JSON, message.getBody ()) :
+        RequestBody.create (null, new byte[0]);
+
+    Request.Builder builder =
+        new Request.Builder ()
+            .url (this.protocol_.getBaseUrlWithVersion () + message.getPath ())
+            .header (IDEMPOTENCY_KEY_HEADER, message.getIdempotencyKey ())
+            .method (message.getMethod (), body);
+
+    if (accessToken != null)
+      builder.header ("Authorization", "Bearer " + accessToken);
+
+    try (Response response = client.newCall (builder.build ()).execute ())
+    {
+      if (!response.isSuccessful ())
+        throw this.protocol_.getError (response.code (), response.body ());
+    }
+  }
+
+  private void notifyDelivered (OutboxMessage message)
+  {
+    for (OutboxListener listener : this.listeners_)
+      this.scheduler_.post (() -> listener.onDelivered (this, message));
+  }
+
+  private void notifyRejected (OutboxMessage message, GatekeeperException reason)
+  {
+    for (OutboxListener listener : this.listeners_)
+      this.scheduler_.post (() -> listener.onRejected (this, message, reason));
+  }
+}
@@ -0,0 +1,40 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.io.IOException;
+
+/**
+ * @interface OutboxListener
+ *
+ * Listener that receives notifications about the messages in an Outbox. The
+ * notifications are run on the Scheduler of the outbox.
+ */
+public interface OutboxListener
+{
+  /**
+   * Gatekeeper accepted a message, and it was removed from the outbox.
+   *
+   * @param outbox        The outbox
+   * @param message       The message
+   */
+  void onDelivered (Outbox outbox, OutboxMessage message);
+
+  /**
+   * Gatekeeper rejected a message, and it was removed from the outbox. Sending it
+   * again would not change the outcome.
+   *
+   * @param outbox        The outbox
+   * @param message       The message
+   * @param reason        Error from Gatekeeper
+   */
+  void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason);
+
+  /**
+   * A message could not be sent, such as when the device is offline, and it will be
+   * sent again later.
+   *
+   * @param outbox        The outbox
+   * @param message       The message, with the time of the next attempt
+   * @param reason        Reason the attempt failed
+   */
+  void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason);
+}
@@ -0,0 +1,251 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @class OutboxMessage
+ *
+ * A request waiting in the Outbox to be sent to Gatekeeper, such as a logout or a
+ * password change. The message has an idempotency key that is sent with each
+ * attempt, so the server applies the request once even if a response is lost and
+ * the request is sent again.
+ *
+ * A message for a user that has signed out carries the token it is sent with. The
+ * other messages are sent with the token of the session.
+ */
+public final class OutboxMessage
+{
+  /**
+   * @class Builder
+   *
+   * Builder for creating OutboxMessage objects. The stores use it to load the
+   * messages they saved.
+   */
+  public static final class Builder
+  {
+    private long id_;
+
+    private String method_;
+
+    private String path_;
+
+    private String body_;
+
+    private String username_;
+
+    private String idempotencyKey_;
+
+    private int attempts_;
+
+    private long nextAttemptAt_;
+
+    private String accessToken_;
+
+    private String refreshToken_;
+
+    public Builder setId (long id)
+    {
+      this.id_ = id;
+      return this;
+    }
+
+    /**
+     * Set the http method, and the path relative to the versioned base url.
+     */
+    public Builder setRequest (String method, String path)
+    {
+      this.method_ = method;
+      this.path_ = path;
+      return this;
+    }
+
+    /**
+     * Set the JSON body of the request.
+     */
+    public Builder setBody (String body)
+    {
+      this.body_ = body;
+      return this;
+    }
+
+    public Builder setUsername (String username)
+    {
+      this.username_ = username;
+      return this;
+    }
+
+    public Builder setIdempotencyKey (String idempotencyKey)
+    {
+      this.idempotencyKey_ = idempotencyKey;
+      return this;
+    }
+
+    public Builder setAttempts (int attempts)
+    {
+      this.attempts_ = attempts;
+      return this;
+    }
+
+    /**
+     * Set the time the message is sent again, in milliseconds since the epoch.
+     */
+    public Builder setNextAttemptAt (long nextAttemptAt)
+    {
+      this.nextAttemptAt_ = nextAttemptAt;
+      return this;
+    }
+
+    /**
+     * Set the token the message is sent with, for a user that has signed out.
+     */
+    public Builder setToken (String accessToken, String refreshToken)
+    {
+      this.accessToken_ = accessToken;
+      this.refreshToken_ = refreshToken;
+      return this;
+    }
+
+    public OutboxMessage build ()
+    {
+      if (this.method_ == null || this.path_ == null)
+        throw new IllegalStateException ("You must set the request");
+
+      if (this.username_ == null)
+        throw new IllegalStateException ("You must set the username");
+
+      if (this.idempotencyKey_ == null)
+        throw new IllegalStateException ("You must set the idempotency key");
+
+      return new OutboxMessage (this);
+    }
+  }
+
+  private final long id_;
+
+  private final String method_;
+
+  private final String path_;
+
+  private final String body_;
+
+  private final String username_;
+
+  private final String idempotencyKey_;
+
+  private final int attempts_;
+
+  private final long nextAttemptAt_;
+
+  private final String accessToken_;
+
+  private final String refreshToken_;
+
+  private OutboxMessage (Builder builder)
+  {
+    this.id_ = builder.id_;
+    this.method_ = builder.method_;
+    this.path_ = builder.path_;
+    this.body_ = builder.body_;
+    this.username_ = builder.username_;
+    this.idempotencyKey_ = builder.idempotencyKey_;
+    this.attempts_ = builder.attempts_;
+    this.nextAttemptAt_ = builder.nextAttemptAt_;
+    this.accessToken_ = builder.accessToken_;
+    this.refreshToken_ = builder.refreshToken_;
+  }
+
+  /**
+   * Get the id the store gave the message. The messages are sent in the order of
+   * their ids.
+   */
+  public long getId ()
+  {
+    return this.id_;
+  }
+
+  public String getMethod ()
+  {
+    return this.method_;
+  }
+
+  public String getPath ()
+  {
+    return this.path_;
+  }
+
+  public String getBody ()
+  {
+    return this.body_;
+  }
+
+  public String getUsername ()
+  {
+    return this.username_;
+  }
+
+  public String getIdempotencyKey ()
+  {
+    return this.idempotencyKey_;
+  }
+
+  /**
+   * Get the number of failed attempts to send the message.
+   */
+  public int getAttempts ()
+  {
+    return this.attempts_;
+  }
+
+  public long getNextAttemptAt ()
+  {
+    return this.nextAttemptAt_;
+  }
+
+  /**
+   * Get the access token the message is sent with, or null if it is sent with the
+   * token of the session.
+   */
+  public String getAccessToken ()
+  {
+    return this.accessToken_;
+  }
+
+  public String getRefreshToken ()
+  {
+    return this.refreshToken_;
+  }
+
+  public boolean hasToken ()
+  {
+    return this.accessToken_ != null;
+  }
+
+  /**
+   * Test if the body of the message has a secret, such as a password. A store must
+   * not write the body, or the token, of such a message to durable storage.
+   */
+  public boolean isSecret ()
+  {
+    return Outbox.PASSWORD_PATH.equals (this.path_);
+  }
+
+  /**
+   * Get a builder that starts with the fields of this message.
+   */
+  public Builder newBuilder ()
+  {
+    return new Builder ()
+        .setId (this.id_)
+        .setRequest (this.method_, this.path_)
+        .setBody (this.body_)
+        .setUsername (this.username_)
+        .setIdempotencyKey (this.idempotencyKey_)
+        .setAttempts (this.attempts_)
+        .setNextAttemptAt (this.nextAttemptAt_)
+        .setToken (this.accessToken_, this.refreshToken_);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return this.method_ + " " + this.path_ + " (" + this.idempotencyKey_ + ")";
+  }
+}
@@ -0,0 +1,43 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.List;
+
+/**
+ * @interface OutboxStore
+ *
+ * Durable storage for the messages in the Outbox. A message must be stored when
+ * add() returns, so it is not lost if the process ends before it is sent. The
+ * Android library stores the messages in its database.
+ *
+ * A secret message, such as a password change, is the exception. Its body and its
+ * token are kept in memory only, and the message is lost if the process ends.
+ */
+public interface OutboxStore
+{
+  /**
+   * Add a message to the end of the outbox.
+   *
+   * @param message       The message, without an id
+   * @return              The message with the id the store gave it
+   */
+  OutboxMessage add (OutboxMessage message);
+
+  /**
+   * Load the messages in the order they were added.
+   */
+  List <OutboxMessage> loadAll ();
+
+  /**
+   * Replace a message with a new version of it, such as after a failed attempt.
+   *
+   * @param message       The message
+   */
+  void update (OutboxMessage message);
+
+  /**
+   * Remove a message that was sent, or that the server rejected.
+   *
+   * @param message       The message
+   */
+  void remove (OutboxMessage message);
+}
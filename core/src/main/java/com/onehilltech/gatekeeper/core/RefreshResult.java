@@ -0,0 +1,67 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+
+import java.io.IOException;
+
+/**
+ * @class RefreshResult
+ *
+ * The result of refreshing one token in a batch. It has either the new token, or
+ * the error that refreshing the token ended with.
+ */
+public final class RefreshResult
+{
+  private final String refreshToken_;
+
+  private final JsonBearerToken token_;
+
+  private final IOException error_;
+
+  static RefreshResult success (String refreshToken, JsonBearerToken token)
+  {
+    return new RefreshResult (refreshToken, token, null);
+  }
+
+  static RefreshResult failure (String refreshToken, IOException error)
+  {
+    return new RefreshResult (refreshToken, null, error);
+  }
+
+  private RefreshResult (String refreshToken, JsonBearerToken token, IOException error)
+  {
+    this.refreshToken_ = refreshToken;
+    this.token_ = token;
+    this.error_ = error;
+  }
+
+  /**
+   * Get the refresh token that was used.
+   */
+  public String getRefreshToken ()
+  {
+    return this.refreshToken_;
+  }
+
+  public boolean isSuccessful ()
+  {
+    return this.token_ != null;
+  }
+
+  /**
+   * Get the new token, or null if refreshing the token failed.
+   */
+  public JsonBearerToken getToken ()
+  {
+    return this.token_;
+  }
+
+  /**
+   * Get the error, or null if the token was refreshed. The error is a
+   * GatekeeperException if Gatekeeper rejected the refresh token.
+   */
+  public IOException getError ()
+  {
+    return this.error_;
+  }
+}
@@ -0,0 +1,425 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * @class RevocationChannel
+ *
+ * Long-lived WebSocket to Gatekeeper over which the server pushes events about the
+ * token of the signed in user, so a revoked token is known right away instead of
+ * when a request is rejected with it.
+ *
+ * The socket is opened with the user client of the session, so the handshake is
+ * authenticated with the token of the user. The server can push two events:
+ *
+ *   {"type": "revoked", "errors": {"code": ..., "message": ...}}
+ *
+ *     The token was revoked. The listeners of the session are told the user must
+ *     sign in again, just as if a request had been rejected with a 403, and the
+ *     socket is closed until a user signs in.
+ *
+ *   {"type": "refresh"}
+ *
+ *     The token must be refreshed, such as when the scope of the user changed.
+ *
+ * When the token is refreshed, for any reason, the new access token is sent over
+ * the open socket in an authenticate message, so the channel does not reconnect:
+ *
+ *   {"type": "authenticate", "access_token": ...}
+ *
+ * A socket that fails is opened again after an exponential backoff. The channel is
+ * optional: if the server does not have the endpoint, the channel stops trying.
+ */
+public class RevocationChannel implements Closeable
+{
+  public static final String EVENTS_PATH = "oauth2/events";
+
+  public static final String TYPE_REVOKED = "revoked";
+
+  public static final String TYPE_REFRESH = "refresh";
+
+  public static final String TYPE_AUTHENTICATE = "authenticate";
+
+  /// Status code for closing the socket normally.
+  private static final int NORMAL_CLOSURE = 1000;
+
+  private static final long DEFAULT_MIN_BACKOFF_SECONDS = 1;
+
+  private static final long DEFAULT_MAX_BACKOFF_MINUTES = 5;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating RevocationChannel objects.
+   */
+  public static final class Builder
+  {
+    private SessionEngine engine_;
+
+    private MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+    private long minBackoff_ = TimeUnit.SECONDS.toMillis (DEFAULT_MIN_BACKOFF_SECONDS);
+
+    private long maxBackoff_ = TimeUnit.MINUTES.toMillis (DEFAULT_MAX_BACKOFF_MINUTES);
+
+    /**
+     * Set the session whose token the channel watches.
+     */
+    public Builder setSessionEngine (SessionEngine engine)
+    {
+      this.engine_ = engine;
+      return this;
+    }
+
+    public Builder setMetricsSink (MetricsSink metricsSink)
+    {
+      this.metricsSink_ = metricsSink;
+      return this;
+    }
+
+    /**
+     * Set the delay before the socket is opened again after the first failure, and
+     * the longest delay between two attempts. The delay doubles after each failure.
+     */
+    public Builder setBackoff (long minBackoff, long maxBackoff, TimeUnit unit)
+    {
+      this.minBackoff_ = unit.toMillis (minBackoff);
+      this.maxBackoff_ = unit.toMillis (maxBackoff);
+      return this;
+    }
+
+    public RevocationChannel build ()
+    {
+      if (this.engine_ == null)
+        throw new IllegalStateException ("You must set the session engine");
+
+      if (this.minBackoff_ <= 0 || this.maxBackoff_ < this.minBackoff_)
+        throw new IllegalStateException ("The backoff is not valid");
+
+      return new RevocationChannel (this);
+    }
+  }
+
+  private final Logger logger_ = LoggerFactory.getLogger (RevocationChannel.class);
+
+  private final SessionEngine engine_;
+
+  private final MetricsSink metrics_;
+
+  private final long minBackoff_;
+
+  private final long maxBackoff_;
+
+  private final Random random_ = new Random ();
+
+  private ScheduledExecutorService executor_;
+
+  /// The open socket, or the socket being opened.
+  private WebSocket socket_;
+
+  /// Failed attempts to open the socket since it was last open.
+  private int attempts_;
+
+  /// The server does not have the endpoint for the channel.
+  private boolean unsupported_;
+
+  private RevocationChannel (Builder builder)
+  {
+    this.engine_ = builder.engine_;
+    this.metrics_ = builder.metricsSink_;
+    this.minBackoff_ = builder.minBackoff_;
+    this.maxBackoff_ = builder.maxBackoff_;
+  }
+
+  /**
+   * Open the channel, if a user is signed in, and keep it open for as long as the
+   * user stays signed in.
+   */
+  public synchronized void start ()
+  {
+    if (this.executor_ != null)
+      return;
+
+    this.executor_ = Executors.newSingleThreadScheduledExecutor (runnable -> {
+      Thread thread = new Thread (runnable, "gatekeeper-revocation");
+      thread.setDaemon (true);
+
+      return thread;
+    });
+
+    this.engine_.addListener (this.sessionListener_);
+    this.engine_.addTokenRefreshListener (this.refreshListener_);
+
+    this.connect ();
+  }
+
+  /**
+   * Close the channel.
+   */
+  @Override
+  public synchronized void close ()
+  {
+    if (this.executor_ == null)
+      return;
+
+    this.engine_.removeListener (this.sessionListener_);
+    this.engine_.removeTokenRefreshListener (this.refreshListener_);
+
+    this.executor_.shutdownNow ();
+    this.executor_ = null;
+
+    this.disconnect ();
+  }
+
+  /**
+   * Test if the socket is open, or being opened.
+   */
+  public synchronized boolean isConnected ()
+  {
+    return this.socket_ != null;
+  }
+
+  private synchronized void connect ()
+  {
+    if (this.executor_ == null || this.socket_ != null || this.unsupported_ || !this.engine_.isSignedIn ())
+      return;
+
+    Request request =
+        new Request.Builder ()
+            .url (this.engine_.getProtocol ().getBaseUrlWithVersion () + EVENTS_PATH)
+            .build ();
+
+    this.socket_ = this.engine_.getUserClient ().newWebSocket (request, new SocketListener ());
+  }
+
+  private synchronized void disconnect ()
+  {
+    if (this.socket_ == null)
+      return;
+
+    this.socket_.close (NORMAL_CLOSURE, null);
+    this.socket_ = null;
+  }
+
+  /**
+   * Open the socket again after a backoff, since it failed or the server closed it.
+   *
+   * @param socket        The socket that ended
+   */
+  private synchronized void reconnect (WebSocket socket)
+  {
+    // An old socket that ended after it was replaced does not count.
+    if (this.socket_ != socket)
+      return;
+
+    this.socket_ = null;
+
+    if (this.executor_ == null || this.unsupported_)
+      return;
+
+    long delay = this.getBackoff (this.attempts_ ++);
+    this.executor_.schedule (this::connect, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Get the delay before the socket is opened again. The delay doubles with each
+   * attempt, up to the longest delay, and a random half of it is cut so the devices
+   * that lost the server together do not reconnect together.
+   *
+   * @param attempts      Failed attempts before this one
+   */
+  long getBackoff (int attempts)
+  {
+    long delay = this.minBackoff_ << Math.min (attempts, 30);
+
+    if (delay <= 0 || delay > this.maxBackoff_)
+      delay = this.maxBackoff_;
+
+    return delay - (long)(this.random_.nextDouble () * (delay / 2));
+  }
+
+  private void handleEvent (WebSocket socket, String text)
+  {
+    JsonObject event;
+
+    try
+    {
+      event = this.engine_.getProtocol ().getGson ().fromJson (text, JsonObject.class);
+    }
+    catch (JsonParseException e)
+    {
+      this.logger_.warn ("Ignoring an event that is not valid: " + text);
+      return;
+    }
+
+    JsonElement type = event != null ? event.get ("type") : null;
+
+    if (type == null || !type.isJsonPrimitive ())
+      return;
+
+    if (TYPE_REVOKED.equals (type.getAsString ()))
+      this.handleRevoked (socket, event);
+    else if (TYPE_REFRESH.equals (type.getAsString ()))
+      this.handleRefresh ();
+  }
+
+  private void handleRevoked (WebSocket socket, JsonObject event)
+  {
+    this.metrics_.increment (Counter.TOKEN_REVOKED_PUSHED);
+
+    synchronized (this)
+    {
+      // The token is no longer accepted, so the socket stays closed until a user
+      // signs in again.
+      if (this.socket_ == socket)
+        this.disconnect ();
+    }
+
+    JsonElement errors = event.get ("errors");
+    JsonObject error = errors != null && errors.isJsonObject () ? errors.getAsJsonObject () : new JsonObject ();
+    JsonElement code = error.get ("code");
+    JsonElement message = error.get ("message");
+
+    // The response body has the same form as the body of a 403 response.
+    JsonObject responseBody = new JsonObject ();
+    responseBody.add ("errors", error);
+
+    this.engine_.reauthenticate (
+        new GatekeeperException (
+            403,
+            code != null ? code.getAsString () : "token_disabled",
+            message != null ? message.getAsString () : "The token was revoked",
+            responseBody.toString ()));
+  }
+
+  private void handleRefresh ()
+  {
+    this.metrics_.increment (Counter.REFRESH_TOKEN_PUSHED);
+
+    SessionToken token = this.engine_.getToken ();
+
+    if (token == null)
+      return;
+
+    // The refresh is not run on the thread that reads the socket. A refresh that
+    // another request has already done is not done again.
+    synchronized (this)
+    {
+      if (this.executor_ != null)
+        this.executor_.execute (() -> this.engine_.refreshTokenIfStale (token.getAccessToken ()));
+    }
+  }
+
+  /**
+   * Sends the refreshed token over the open socket, so the server keeps pushing the
+   * events for the user without the socket being opened again.
+   */
+  private final TokenRefreshListener refreshListener_ = (engine, token) -> {
+    synchronized (RevocationChannel.this)
+    {
+      if (this.socket_ == null)
+        return;
+
+      JsonObject message = new JsonObject ();
+      message.addProperty ("type", TYPE_AUTHENTICATE);
+      message.addProperty ("access_token", token.getAccessToken ());
+
+      this.socket_.send (message.toString ());
+    }
+  };
+
+  /**
+   * Opens the socket when a user signs in, and closes it when the user signs out or
+   * the token is no longer accepted.
+   */
+  private final SessionListener sessionListener_ = new SessionListener ()
+  {
+    @Override
+    public void onSignedIn (SessionEngine engine, SessionToken token)
+    {
+      synchronized (RevocationChannel.this)
+      {
+        // The socket for the last token is replaced by one for the new token.
+        disconnect ();
+        attempts_ = 0;
+        connect ();
+      }
+    }
+
+    @Override
+    public void onSignedOut (SessionEngine engine)
+    {
+      disconnect ();
+    }
+
+    @Override
+    public void onReauthenticate (SessionEngine engine, GatekeeperException reason)
+    {
+      disconnect ();
+    }
+  };
+
+  private final class SocketListener extends WebSocketListener
+  {
+    @Override
+    public void onOpen (WebSocket webSocket, Response response)
+    {
+      synchronized (RevocationChannel.this)
+      {
+        if (socket_ == webSocket)
+          attempts_ = 0;
+      }
+    }
+
+    @Override
+    public void onMessage (WebSocket webSocket, String text)
+    {
+      handleEvent (webSocket, text);
+    }
+
+    @Override
+    public void onClosing (WebSocket webSocket, int code, String reason)
+    {
+      webSocket.close (NORMAL_CLOSURE, null);
+      reconnect (webSocket);
+    }
+
+    @Override
+    public void onFailure (WebSocket webSocket, Throwable t, Response response)
+    {
+      if (response != null && response.code () == 404)
+      {
+        synchronized (RevocationChannel.this)
+        {
+          logger_.info ("Gatekeeper does not have a revocation channel");
+          unsupported_ = true;
+        }
+      }
+      else
+      {
+        logger_.warn ("The revocation channel failed: " + t.getMessage ());
+      }
+
+      reconnect (webSocket);
+    }
+  }
+}
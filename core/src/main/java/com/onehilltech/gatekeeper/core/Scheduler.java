@@ -0,0 +1,20 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @interface Scheduler
+ *
+ * Runs the notifications sent by the SessionEngine. The Android library posts the
+ * notifications to the main thread.
+ */
+public interface Scheduler
+{
+  /// Scheduler that runs each task on the calling thread.
+  Scheduler IMMEDIATE = Runnable::run;
+
+  /**
+   * Schedule a task to run.
+   *
+   * @param task        Task to run
+   */
+  void post (Runnable task);
+}
@@ -0,0 +1,202 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class ScopedTokenCache
+ *
+ * Cache of the downscoped access tokens of a user, one for each scope. A token is
+ * minted with the token exchange grant the first time its scope is used, and is
+ * reused until it expires, or until the access token of the user changes. The
+ * least recently used scope is evicted when the cache is full.
+ *
+ * Requests for the same scope share a single exchange. Requests for different
+ * scopes exchange their tokens in parallel.
+ */
+public class ScopedTokenCache
+{
+  /// A token is minted again this long before it expires, so it does not expire
+  /// while the request is in flight.
+  private static final long EXPIRY_MARGIN_NANOS = TimeUnit.SECONDS.toNanos (30);
+
+  /**
+   * @class Entry
+   *
+   * The downscoped token for a scope. The fields are guarded by the entry, which is
+   * also held while the token is exchanged.
+   */
+  private static final class Entry
+  {
+    /// The access token of the user the token was exchanged for.
+    String subjectToken;
+
+    String accessToken;
+
+    /// Time the token expires in nanoseconds, or Long.MAX_VALUE if the server did
+    /// not say. A token without an expiration is minted again when it is rejected.
+    long expiresAt;
+
+    boolean isValid (String subjectToken, long now)
+    {
+      return this.accessToken != null &&
+          this.subjectToken.equals (subjectToken) &&
+          (this.expiresAt == Long.MAX_VALUE || this.expiresAt - now > EXPIRY_MARGIN_NANOS);
+    }
+  }
+
+  private final GatekeeperProtocol protocol_;
+
+  private final MetricsSink metrics_;
+
+  private final LinkedHashMap <TokenScope, Entry> entries_;
+
+  /// Lock for the entries in the cache.
+  private final Object lock_ = new Object ();
+
+  /**
+   * Initializing constructor.
+   *
+   * @param protocol          Protocol that exchanges the tokens
+   * @param capacity          Most scopes kept in the cache
+   */
+  public ScopedTokenCache (GatekeeperProtocol protocol, int capacity)
+  {
+    this (protocol, capacity, NoOpMetricsSink.INSTANCE);
+  }
+
+  /**
+   * Initializing constructor.
+   *
+   * @param protocol          Protocol that exchanges the tokens
+   * @param capacity          Most scopes kept in the cache
+   * @param metrics           Sink for the metrics of the exchanges
+   */
+  public ScopedTokenCache (GatekeeperProtocol protocol, final int capacity, MetricsSink metrics)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException ("The capacity must be at least 1");
+
+    this.protocol_ = protocol;
+    this.metrics_ = metrics;
+    this.entries_ = new LinkedHashMap <TokenScope, Entry> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (Map.Entry <TokenScope, Entry> eldest)
+      {
+        return this.size () > capacity;
+      }
+    };
+  }
+
+  /**
+   * Get the number of scopes in the cache.
+   */
+  public int size ()
+  {
+    synchronized (this.lock_)
+    {
+      return this.entries_.size ();
+    }
+  }
+
+  /**
+   * Get the downscoped access token for a scope, exchanging the access token of the
+   * user for it if the cache does not have a valid one.
+   *
+   * @param scope             Scope of the token
+   * @param subjectToken      Access token of the user
+   * @return                  The downscoped access token
+   */
+  public String getAccessToken (TokenScope scope, String subjectToken)
+      throws IOException
+  {
+    Entry entry;
+
+    synchronized (this.lock_)
+    {
+      entry = this.entries_.get (scope);
+
+      if (entry == null)
+      {
+        entry = new Entry ();
+        this.entries_.put (scope, entry);
+      }
+    }
+
+    synchronized (entry)
+    {
+      long now = System.nanoTime ();
+
+      if (entry.isValid (subjectToken, now))
+        return entry.accessToken;
+
+      JsonBearerToken token;
+
+      try
+      {
+        token = this.protocol_.exchangeToken (subjectToken, scope.toString ());
+      }
+      catch (IOException e)
+      {
+        this.metrics_.increment (Counter.EXCHANGE_TOKEN_FAILED);
+        throw e;
+      }
+
+      this.metrics_.increment (Counter.EXCHANGE_TOKEN);
+      this.metrics_.recordLatency (Timer.EXCHANGE_TOKEN, System.nanoTime () - now);
+
+      entry.subjectToken = subjectToken;
+      entry.accessToken = token.accessToken;
+      entry.expiresAt = token.expiresIn != null ? now + TimeUnit.SECONDS.toNanos (token.expiresIn) : Long.MAX_VALUE;
+
+      return entry.accessToken;
+    }
+  }
+
+  /**
+   * Drop a downscoped token that the server rejected, so the next request for its
+   * scope mints a new one.
+   *
+   * @param scope             Scope of the token
+   * @param accessToken       The rejected token
+   */
+  public void invalidate (TokenScope scope, String accessToken)
+  {
+    Entry entry;
+
+    synchronized (this.lock_)
+    {
+      entry = this.entries_.get (scope);
+    }
+
+    if (entry == null)
+      return;
+
+    synchronized (entry)
+    {
+      // A request may have minted a new token since the rejected one was sent.
+      if (accessToken != null && accessToken.equals (entry.accessToken))
+        entry.accessToken = null;
+    }
+  }
+
+  /**
+   * Drop all the downscoped tokens, such as when the user signs out.
+   */
+  public void clear ()
+  {
+    synchronized (this.lock_)
+    {
+      this.entries_.clear ();
+    }
+  }
+}
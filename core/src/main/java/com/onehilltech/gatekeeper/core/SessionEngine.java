@@ -0,0 +1,651 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * @class SessionEngine
+ *
+ * The session for a signed in user. The engine holds the token for the user, adds
+ * it to each request made with the user client, and refreshes the token when the
+ * server rejects it. Concurrent requests that are rejected with the same token share
+ * a single refresh.
+ *
+ * The engine does not depend on any platform. The token is stored using a
+ * TokenStore, and the notifications are run on a Scheduler.
+ *
+ * If the engine has a JwtValidator, a token whose claims say it has expired is
+ * refreshed before the request is sent, instead of after the server rejects it.
+ *
+ * A request that has a TokenScope is sent with a downscoped token for the scope
+ * instead of the token for the user. The downscoped tokens are minted with the
+ * token exchange grant, and cached until they expire or are rejected.
+ */
+public class SessionEngine
+{
+  /// Error codes that require the user to sign in again.
+  private static final Set <String> REAUTHENTICATE_ERROR_CODES = new HashSet<> (Arrays.asList (
+      "unknown_token",
+      "invalid_token",
+      "token_disabled",
+      "unknown_client",
+      "client_disabled",
+      "unknown_account",
+      "account_disabled"));
+
+  private static final String BEARER_PREFIX = "Bearer ";
+
+  /// Largest error body read when checking a 403 response.
+  private static final long MAX_ERROR_BODY = 64 * 1024;
+
+  private static final int DEFAULT_SCOPED_TOKEN_CACHE_SIZE = 8;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating SessionEngine objects.
+   */
+  public static final class Builder
+  {
+    private GatekeeperProtocol protocol_;
+
+    private TokenStore tokenStore_;
+
+    private Scheduler scheduler_ = Scheduler.IMMEDIATE;
+
+    private MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+    private int scopedTokenCacheSize_ = DEFAULT_SCOPED_TOKEN_CACHE_SIZE;
+
+    private JwtValidator tokenValidator_;
+
+    public Builder setProtocol (GatekeeperProtocol protocol)
+    {
+      this.protocol_ = protocol;
+      return this;
+    }
+
+    public Builder setTokenStore (TokenStore tokenStore)
+    {
+      this.tokenStore_ = tokenStore;
+      return this;
+    }
+
+    public Builder setScheduler (Scheduler scheduler)
+    {
+      this.scheduler_ = scheduler;
+      return this;
+    }
+
+    public Builder setMetricsSink (MetricsSink metricsSink)
+    {
+      this.metricsSink_ = metricsSink;
+      return this;
+    }
+
+    /**
+     * Set the most downscoped tokens cached for the user.
+     */
+    public Builder setScopedTokenCacheSize (int scopedTokenCacheSize)
+    {
+      this.scopedTokenCacheSize_ = scopedTokenCacheSize;
+      return this;
+    }
+
+    /**
+     * Set the validator that checks the JWT access tokens before they are sent.
+     */
+    public Builder setTokenValidator (JwtValidator tokenValidator)
+    {
+      this.tokenValidator_ = tokenValidator;
+      return this;
+    }
+
+    public SessionEngine build ()
+    {
+      if (this.protocol_ == null)
+        throw new IllegalStateException ("You must set the protocol");
+
+      if (this.tokenStore_ == null)
+        throw new IllegalStateException ("You must set the token store");
+
+      return new SessionEngine (this);
+    }
+  }
+
+  private final GatekeeperProtocol protocol_;
+
+  private final TokenStore tokenStore_;
+
+  private final Scheduler scheduler_;
+
+  private final MetricsSink metrics_;
+
+  private final CopyOnWriteArrayList <SessionListener> listeners_ = new CopyOnWriteArrayList<> ();
+
+  private final CopyOnWriteArrayList <TokenRefreshListener> refreshListeners_ = new CopyOnWriteArrayList<> ();
+
+  private final OkHttpClient httpClient_;
+
+  private final OkHttpClient userClient_;
+
+  private final ScopedTokenCache scopedTokens_;
+
+  /// Validator for JWT access tokens, or null if the tokens are not checked.
+  private final JwtValidator tokenValidator_;
+
+  /// Lock that serializes refreshing the token.
+  private final Object refreshLock_ = new Object ();
+
+  private volatile SessionToken token_;
+
+  private volatile String userAgent_;
+
+  private final Logger logger_ = LoggerFactory.getLogger (SessionEngine.class);
+
+  private SessionEngine (Builder builder)
+  {
+    this.protocol_ = builder.protocol_;
+    this.tokenStore_ = builder.tokenStore_;
+    this.scheduler_ = builder.scheduler_;
+    this.metrics_ = builder.metricsSink_;
+    this.tokenValidator_ = builder.tokenValidator_;
+    this.scopedTokens_ = new ScopedTokenCache (this.protocol_, builder.scopedTokenCacheSize_, this.metrics_);
+
+    if (this.tokenValidator_ != null)
+      this.tokenValidator_.prefetchKeySet ();
+
+    this.token_ = this.tokenStore_.load ();
+
+    // The response interceptor is outside of the authorization interceptor so a
+    // replayed request picks up the refreshed token.
+    this.httpClient_ =
+        this.protocol_.getHttpClient ()
+                      .newBuilder ()
+                      .addInterceptor (this::handleResponse)
+                      .build ();
+
+    this.userClient_ =
+        this.httpClient_.newBuilder ()
+                        .addInterceptor (this::addAuthorizationHeader)
+                        .build ();
+  }
+
+  public GatekeeperProtocol getProtocol ()
+  {
+    return this.protocol_;
+  }
+
+  /**
+   * Get the http client that refreshes the token for rejected requests, but does
+   * not add the token to the requests.
+   */
+  public OkHttpClient getHttpClient ()
+  {
+    return this.httpClient_;
+  }
+
+  /**
+   * Get the http client for the signed in user. The client adds the token for the
+   * user to each request, and refreshes the token when it is rejected.
+   */
+  public OkHttpClient getUserClient ()
+  {
+    return this.userClient_;
+  }
+
+  public JwtValidator getTokenValidator ()
+  {
+    return this.tokenValidator_;
+  }
+
+  /**
+   * Get the time the token for the user expires, from the claims of the token.
+   *
+   * @return          The time in milliseconds since the epoch, or null if it is not
+   *                  known
+   */
+  public Long getTokenExpiresAt ()
+  {
+    SessionToken token = this.token_;
+
+    return token != null && this.tokenValidator_ != null ?
+        this.tokenValidator_.getExpiresAt (token.getAccessToken ()) :
+        null;
+  }
+
+  /**
+   * Get the cache of the downscoped tokens for the user.
+   */
+  public ScopedTokenCache getScopedTokenCache ()
+  {
+    return this.scopedTokens_;
+  }
+
+  public void setUserAgent (String userAgent)
+  {
+    this.userAgent_ = userAgent;
+  }
+
+  public String getUserAgent ()
+  {
+    return this.userAgent_;
+  }
+
+  public void addListener (SessionListener listener)
+  {
+    this.listeners_.add (listener);
+  }
+
+  public void removeListener (SessionListener listener)
+  {
+    this.listeners_.remove (listener);
+  }
+
+  public void addTokenRefreshListener (TokenRefreshListener listener)
+  {
+    this.refreshListeners_.add (listener);
+  }
+
+  public void removeTokenRefreshListener (TokenRefreshListener listener)
+  {
+    this.refreshListeners_.remove (listener);
+  }
+
+  /**
+   * Get the token for the signed in user.
+   *
+   * @return          SessionToken object, or null if no user is signed in
+   */
+  public SessionToken getToken ()
+  {
+    return this.token_;
+  }
+
+  public boolean isSignedIn ()
+  {
+    return this.token_ != null;
+  }
+
+  /**
+   * Sign in a user with the password grant.
+   *
+   * @param username      Username
+   * @param password      Password
+   * @return              Token for the user
+   */
+  public SessionToken signIn (String username, String password)
+      throws IOException
+  {
+    if (this.isSignedIn ())
+      throw new IllegalStateException ("User is already signed in");
+
+    long startTime = System.nanoTime ();
+
+    try
+    {
+      JsonBearerToken token = this.protocol_.getUserToken (username, password);
+      SessionToken sessionToken = SessionToken.fromJson (username, token);
+
+      this.setToken (sessionToken);
+      this.recordMetrics (Timer.SIGN_IN, Counter.SIGN_IN, startTime);
+
+      return sessionToken;
+    }
+    catch (IOException e)
+    {
+      this.metrics_.increment (Counter.SIGN_IN_FAILED);
+      throw e;
+    }
+  }
+
+  /**
+   * Start a session with a token the user received from Gatekeeper. The token is
+   * saved to the token store.
+   *
+   * @param token         Token for the user
+   */
+  public void setToken (final SessionToken token)
+  {
+    this.onTokenIssued (token);
+
+    synchronized (this.refreshLock_)
+    {
+      this.tokenStore_.save (token);
+      this.token_ = token;
+    }
+
+    this.scopedTokens_.clear ();
+
+    for (final SessionListener listener: this.listeners_)
+      this.scheduler_.post (() -> listener.onSignedIn (this, token));
+  }
+
+  /**
+   * Replace the token held in memory with a token that is already in the token
+   * store, such as when another client changed the store. The token is not saved,
+   * and the listeners are not notified.
+   *
+   * @param token         Token for the user, or null if no user is signed in
+   */
+  public void restore (SessionToken token)
+  {
+    synchronized (this.refreshLock_)
+    {
+      this.token_ = token;
+    }
+  }
+
+  /**
+   * End the session for the signed in user. The token is deleted from the token
+   * store. This does not notify Gatekeeper the user has signed out.
+   */
+  public void signOut ()
+  {
+    SessionToken token;
+
+    synchronized (this.refreshLock_)
+    {
+      token = this.token_;
+
+      if (token == null)
+        return;
+
+      this.tokenStore_.delete (token);
+      this.token_ = null;
+    }
+
+    this.scopedTokens_.clear ();
+
+    for (final SessionListener listener: this.listeners_)
+      this.scheduler_.post (() -> listener.onSignedOut (this));
+  }
+
+  /**
+   * Refresh the token for the signed in user from the calling thread.
+   *
+   * @return              The refreshed token, or null if the user was signed out by
+   *                      another client while the token was refreshed
+   */
+  public SessionToken refreshToken ()
+      throws IOException
+  {
+    synchronized (this.refreshLock_)
+    {
+      SessionToken token = this.token_;
+
+      if (token == null)
+        throw new IllegalStateException ("User must be signed in to refresh token");
+
+      return this.refreshTokenLocked (token);
+    }
+  }
+
+  /**
+   * Refresh the token from the calling thread because a request sent with it was
+   * rejected. Only one thread refreshes the token at a time. If the token was
+   * refreshed while the calling thread was waiting its turn, the refresh is skipped
+   * since the request can be replayed with the new token.
+   *
+   * @param staleAccessToken      The access token the rejected request was sent with
+   * @return                      True if the request can be replayed
+   */
+  public boolean refreshTokenIfStale (String staleAccessToken)
+  {
+    synchronized (this.refreshLock_)
+    {
+      SessionToken token = this.token_;
+
+      if (token == null)
+        return false;
+
+      if (staleAccessToken != null && !staleAccessToken.equals (token.getAccessToken ()))
+      {
+        this.metrics_.increment (Counter.REFRESH_TOKEN_COALESCED);
+        return true;
+      }
+
+      try
+      {
+        return this.refreshTokenLocked (token) != null;
+      }
+      catch (IOException e)
+      {
+        this.logger_.error (e.getLocalizedMessage (), e);
+        return false;
+      }
+    }
+  }
+
+  private SessionToken refreshTokenLocked (SessionToken token)
+      throws IOException
+  {
+    long startTime = System.nanoTime ();
+
+    try
+    {
+      SessionToken refreshed = token.refresh (this.protocol_.refreshToken (token.getRefreshToken ()));
+      this.recordMetrics (Timer.REFRESH_TOKEN, Counter.REFRESH_TOKEN, startTime);
+      this.onTokenIssued (refreshed);
+
+      if (!this.tokenStore_.compareAndSwap (token, refreshed))
+      {
+        // Another client changed the token in the store while we were refreshing
+        // it, such as signing out the user. The store wins so a signed out user is
+        // not signed back in by a refresh that was in flight.
+        this.logger_.warn ("Token changed in the store while refreshing it");
+        refreshed = this.tokenStore_.load ();
+      }
+
+      this.token_ = refreshed;
+
+      if (refreshed != null)
+      {
+        final SessionToken current = refreshed;
+
+        for (final TokenRefreshListener listener: this.refreshListeners_)
+          this.scheduler_.post (() -> listener.onTokenRefreshed (this, current));
+      }
+
+      return refreshed;
+    }
+    catch (IOException e)
+    {
+      this.metrics_.increment (Counter.REFRESH_TOKEN_FAILED);
+      throw e;
+    }
+  }
+
+  /**
+   * Tell the listeners Gatekeeper no longer accepts the token of the user, such as
+   * when the token was revoked, and the user must sign in again.
+   *
+   * @param reason        Error from Gatekeeper
+   */
+  public void reauthenticate (final GatekeeperException reason)
+  {
+    for (final SessionListener listener: this.listeners_)
+      this.scheduler_.post (() -> listener.onReauthenticate (this, reason));
+  }
+
+  private void recordMetrics (Timer timer, Counter counter, long startTime)
+  {
+    this.metrics_.increment (counter);
+    this.metrics_.recordLatency (timer, System.nanoTime () - startTime);
+  }
+
+  /**
+   * Let the token validator learn the clock of the server from a token that just
+   * arrived from Gatekeeper.
+   */
+  private void onTokenIssued (SessionToken token)
+  {
+    if (this.tokenValidator_ != null)
+      this.tokenValidator_.onTokenIssued (token.getAccessToken ());
+  }
+
+  /**
+   * Get the access token from the Authorization header of a request.
+   */
+  private static String getAccessToken (Request request)
+  {
+    String authorization = request.header ("Authorization");
+
+    return authorization != null && authorization.startsWith (BEARER_PREFIX) ?
+        authorization.substring (BEARER_PREFIX.length ()) :
+        null;
+  }
+
+  /**
+   * Interceptor that adds the user token as the Authorization header to the request.
+   */
+  private Response addAuthorizationHeader (Interceptor.Chain chain)
+      throws IOException
+  {
+    Request original = chain.request ();
+    Request.Builder builder = original.newBuilder ();
+
+    SessionToken token = this.token_;
+    String userAgent = this.userAgent_;
+    TokenScope scope = TokenScope.fromRequest (original);
+
+    if (token != null && token.canRefresh () && this.tokenValidator_ != null && this.tokenValidator_.needsRefresh (token.getAccessToken ()))
+    {
+      // The server would reject the token, so save the round trip. If the refresh
+      // fails, the request is sent with the token anyway, and the server decides.
+      if (this.refreshTokenIfStale (token.getAccessToken ()))
+      {
+        this.metrics_.increment (Counter.REFRESH_TOKEN_BEFORE_SEND);
+        token = this.token_;
+      }
+    }
+
+    if (scope != null)
+      builder.removeHeader (TokenScope.HEADER);
+
+    if (token != null)
+    {
+      String accessToken = scope != null ? this.getScopedAccessToken (scope, token) : token.getAccessToken ();
+      builder.header ("Authorization", BEARER_PREFIX + accessToken);
+    }
+
+    if (userAgent != null)
+      builder.header ("User-Agent", userAgent);
+
+    return chain.proceed (builder.build ());
+  }
+
+  /**
+   * Get the downscoped token for a scope. If Gatekeeper rejects the token of the
+   * user for the exchange, the token of the user is refreshed, and the exchange is
+   * tried once more.
+   */
+  private String getScopedAccessToken (TokenScope scope, SessionToken token)
+      throws IOException
+  {
+    try
+    {
+      return this.scopedTokens_.getAccessToken (scope, token.getAccessToken ());
+    }
+    catch (GatekeeperException e)
+    {
+      if (e.getStatusCode () != 401 && !"invalid_grant".equals (e.getCode ()))
+        throw e;
+
+      if (!this.refreshTokenIfStale (token.getAccessToken ()))
+        throw e;
+
+      SessionToken refreshed = this.token_;
+
+      if (refreshed == null)
+        throw e;
+
+      return this.scopedTokens_.getAccessToken (scope, refreshed.getAccessToken ());
+    }
+  }
+
+  /**
+   * Interceptor that handles special cases for a response, such a refreshing
+   * the token or for ending a session.
+   */
+  private Response handleResponse (Interceptor.Chain chain)
+      throws IOException
+  {
+    Request origRequest = chain.request ();
+    Response origResponse = chain.proceed (origRequest);
+
+    if (origResponse.isSuccessful ())
+      return origResponse;
+
+    int statusCode = origResponse.code ();
+
+    if (statusCode == 401)
+    {
+      this.metrics_.increment (Counter.UNAUTHORIZED);
+
+      TokenScope scope = TokenScope.fromRequest (origRequest);
+
+      if (scope != null)
+      {
+        // The downscoped token was rejected, such as when it expired early. The
+        // replayed request mints a new one, refreshing the token for the user first
+        // if Gatekeeper no longer accepts it.
+        this.scopedTokens_.invalidate (scope, getAccessToken (origResponse.request ()));
+
+        origResponse.close ();
+        return chain.proceed (origRequest);
+      }
+
+      // Get the token the request was sent with. The token is added after this
+      // interceptor, so it is taken from the request that reached the server. If
+      // the token has changed by the time we need to refresh it, then another
+      // request has already refreshed it.
+      String accessToken = getAccessToken (origResponse.request ());
+
+      // Let's try to update the original token. If the response is not successful,
+      // the return the original response. Otherwise, retry the same request.
+      long waitTime = System.nanoTime ();
+      boolean refreshed = this.refreshTokenIfStale (accessToken);
+      this.metrics_.recordLatency (Timer.AUTH_WAIT, System.nanoTime () - waitTime);
+
+      if (refreshed)
+      {
+        origResponse.close ();
+        return chain.proceed (origRequest);
+      }
+    }
+    else if (statusCode == 403)
+    {
+      this.metrics_.increment (Counter.FORBIDDEN);
+
+      // Let's see what kind of error message we received. Peeking at the body leaves
+      // the original body for the caller.
+      final GatekeeperException error =
+          this.protocol_.getError (statusCode, origResponse.peekBody (MAX_ERROR_BODY));
+
+      // Notify the client to authenticate. This is optional. If the client does not
+      // authenticate, then all calls will continue to fail.
+      if (REAUTHENTICATE_ERROR_CODES.contains (error.getCode ()))
+        this.reauthenticate (error);
+    }
+
+    return origResponse;
+  }
+}
@@ -0,0 +1,33 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @interface SessionListener
+ *
+ * Listener that receives notifications about changes to a session. The notifications
+ * are run on the Scheduler of the SessionEngine.
+ */
+public interface SessionListener
+{
+  /**
+   * A user has signed in.
+   *
+   * @param engine        Session engine
+   * @param token         Token for the user
+   */
+  void onSignedIn (SessionEngine engine, SessionToken token);
+
+  /**
+   * The user has signed out.
+   *
+   * @param engine        Session engine
+   */
+  void onSignedOut (SessionEngine engine);
+
+  /**
+   * Gatekeeper rejected the token of the user, and the user must sign in again.
+   *
+   * @param engine        Session engine
+   * @param reason        Error from Gatekeeper
+   */
+  void onReauthenticate (SessionEngine engine, GatekeeperException reason);
+}
@@ -0,0 +1,335 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @class SessionManager
+ *
+ * The sessions for many signed in accounts on the same device. Each account has its
+ * own SessionEngine, and all the engines are kept loaded, so switching the active
+ * account only changes which engine is active. It does not make a network call, or
+ * read the tokens from storage.
+ *
+ * The user clients of the engines are built from the http client of the protocol,
+ * so the accounts share its connection pool and dispatcher.
+ */
+public class SessionManager
+{
+  /**
+   * @class Builder
+   *
+   * Builder for creating SessionManager objects.
+   */
+  public static final class Builder
+  {
+    private GatekeeperProtocol protocol_;
+
+    private AccountStore accountStore_;
+
+    private Scheduler scheduler_ = Scheduler.IMMEDIATE;
+
+    private MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+    private JwtValidator tokenValidator_;
+
+    public Builder setProtocol (GatekeeperProtocol protocol)
+    {
+      this.protocol_ = protocol;
+      return this;
+    }
+
+    public Builder setAccountStore (AccountStore accountStore)
+    {
+      this.accountStore_ = accountStore;
+      return this;
+    }
+
+    public Builder setScheduler (Scheduler scheduler)
+    {
+      this.scheduler_ = scheduler;
+      return this;
+    }
+
+    public Builder setMetricsSink (MetricsSink metricsSink)
+    {
+      this.metricsSink_ = metricsSink;
+      return this;
+    }
+
+    /**
+     * Set the validator the sessions use to check their JWT access tokens.
+     */
+    public Builder setTokenValidator (JwtValidator tokenValidator)
+    {
+      this.tokenValidator_ = tokenValidator;
+      return this;
+    }
+
+    public SessionManager build ()
+    {
+      if (this.protocol_ == null)
+        throw new IllegalStateException ("You must set the protocol");
+
+      if (this.accountStore_ == null)
+        throw new IllegalStateException ("You must set the account store");
+
+      return new SessionManager (this);
+    }
+  }
+
+  private final GatekeeperProtocol protocol_;
+
+  private final AccountStore accountStore_;
+
+  private final Scheduler scheduler_;
+
+  private final MetricsSink metrics_;
+
+  private final JwtValidator tokenValidator_;
+
+  private final ConcurrentHashMap <String, SessionEngine> sessions_ = new ConcurrentHashMap<> ();
+
+  private final CopyOnWriteArrayList <SessionListener> listeners_ = new CopyOnWriteArrayList<> ();
+
+  /// Lock that serializes adding, removing, and switching the accounts.
+  private final Object lock_ = new Object ();
+
+  private volatile SessionEngine active_;
+
+  private SessionManager (Builder builder)
+  {
+    this.protocol_ = builder.protocol_;
+    this.accountStore_ = builder.accountStore_;
+    this.scheduler_ = builder.scheduler_;
+    this.metrics_ = builder.metricsSink_;
+    this.tokenValidator_ = builder.tokenValidator_;
+
+    // Load all the accounts once. Everything after this is served from memory.
+    for (SessionToken token : this.accountStore_.loadAll ())
+      this.sessions_.put (token.getUsername (), this.newEngine (token));
+
+    String active = this.accountStore_.loadActive ();
+
+    if (active != null)
+      this.active_ = this.sessions_.get (active);
+  }
+
+  public GatekeeperProtocol getProtocol ()
+  {
+    return this.protocol_;
+  }
+
+  /**
+   * Get the usernames of the signed in accounts.
+   */
+  public Set <String> getAccounts ()
+  {
+    return Collections.unmodifiableSet (this.sessions_.keySet ());
+  }
+
+  /**
+   * Get the session for an account.
+   *
+   * @param username        Username for the account
+   * @return                SessionEngine object, or null if the account is not signed in
+   */
+  public SessionEngine getSession (String username)
+  {
+    return this.sessions_.get (username);
+  }
+
+  /**
+   * Get the session for the active account.
+   *
+   * @return                SessionEngine object, or null if there is no active account
+   */
+  public SessionEngine getActive ()
+  {
+    return this.active_;
+  }
+
+  /**
+   * Add a listener to the sessions of all the accounts, including the accounts that
+   * sign in later.
+   *
+   * @param listener        Listener object
+   */
+  public void addListener (SessionListener listener)
+  {
+    synchronized (this.lock_)
+    {
+      this.listeners_.add (listener);
+
+      for (SessionEngine engine : this.sessions_.values ())
+        engine.addListener (listener);
+    }
+  }
+
+  public void removeListener (SessionListener listener)
+  {
+    synchronized (this.lock_)
+    {
+      this.listeners_.remove (listener);
+
+      for (SessionEngine engine : this.sessions_.values ())
+        engine.removeListener (listener);
+    }
+  }
+
+  /**
+   * Sign in an account with the password grant. The account becomes the active
+   * account if there is no active account.
+   *
+   * @param username        Username
+   * @param password        Password
+   * @return                Session for the account
+   */
+  public SessionEngine signIn (String username, String password)
+      throws IOException
+  {
+    if (this.sessions_.containsKey (username))
+      throw new IllegalStateException ("Account is already signed in");
+
+    long startTime = System.nanoTime ();
+
+    try
+    {
+      JsonBearerToken token = this.protocol_.getUserToken (username, password);
+      SessionEngine engine = this.addSession (SessionToken.fromJson (username, token));
+
+      this.metrics_.increment (Counter.SIGN_IN);
+      this.metrics_.recordLatency (Timer.SIGN_IN, System.nanoTime () - startTime);
+
+      return engine;
+    }
+    catch (IOException e)
+    {
+      this.metrics_.increment (Counter.SIGN_IN_FAILED);
+      throw e;
+    }
+  }
+
+  /**
+   * Add the session for an account with a token it received from Gatekeeper. The
+   * token is saved, and replaces the session if the account is already signed in.
+   * The account becomes the active account if there is no active account.
+   *
+   * @param token           Token for the account
+   * @return                Session for the account
+   */
+  public SessionEngine addSession (SessionToken token)
+  {
+    synchronized (this.lock_)
+    {
+      SessionEngine engine = this.sessions_.get (token.getUsername ());
+
+      if (engine == null)
+      {
+        engine = this.newEngine (token);
+        this.sessions_.put (token.getUsername (), engine);
+      }
+
+      engine.setToken (token);
+
+      if (this.active_ == null)
+        this.setActive (engine, token.getUsername ());
+
+      return engine;
+    }
+  }
+
+  /**
+   * Make an account the active account.
+   *
+   * @param username        Username for the account
+   * @return                Session for the account
+   */
+  public SessionEngine switchTo (String username)
+  {
+    synchronized (this.lock_)
+    {
+      SessionEngine engine = this.sessions_.get (username);
+
+      if (engine == null)
+        throw new IllegalArgumentException ("Account is not signed in: " + username);
+
+      if (engine != this.active_)
+        this.setActive (engine, username);
+
+      return engine;
+    }
+  }
+
+  /**
+   * Leave the device without an active account. The accounts stay signed in, and
+   * can be switched to later.
+   */
+  public void clearActive ()
+  {
+    synchronized (this.lock_)
+    {
+      if (this.active_ != null)
+        this.setActive (null, null);
+    }
+  }
+
+  /**
+   * Sign out an account, and remove its session. If it was the active account, then
+   * there is no active account until another account is switched to.
+   *
+   * @param username        Username for the account
+   */
+  public void signOut (String username)
+  {
+    SessionEngine engine;
+
+    synchronized (this.lock_)
+    {
+      engine = this.sessions_.remove (username);
+
+      if (engine == null)
+        return;
+
+      if (engine == this.active_)
+        this.setActive (null, null);
+    }
+
+    engine.signOut ();
+
+    for (SessionListener listener : this.listeners_)
+      engine.removeListener (listener);
+  }
+
+  private void setActive (SessionEngine engine, String username)
+  {
+    this.active_ = engine;
+    this.accountStore_.saveActive (username);
+  }
+
+  private SessionEngine newEngine (SessionToken token)
+  {
+    SessionEngine engine =
+        new SessionEngine.Builder ()
+            .setProtocol (this.protocol_)
+            .setTokenStore (this.accountStore_.getTokenStore (token))
+            .setScheduler (this.scheduler_)
+            .setMetricsSink (this.metrics_)
+            .setTokenValidator (this.tokenValidator_)
+            .build ();
+
+    for (SessionListener listener : this.listeners_)
+      engine.addListener (listener);
+
+    return engine;
+  }
+}
@@ -0,0 +1,285 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * @class SessionSnapshot
+ *
+ * Snapshot of the session for the signed in user, which is the token and the id of
+ * the user. The snapshot is kept in a small file with a checksum so it can be read
+ * with a single read when the application starts, before the database that holds
+ * the session is opened.
+ *
+ * The file is replaced as a whole each time it is written. A file that is missing,
+ * truncated, or fails its checksum reads as no snapshot.
+ *
+ *   file := magic version flags username accessToken [refreshToken] [userId] crc32
+ *   string := length(uint16) utf8
+ */
+public final class SessionSnapshot
+{
+  private static final int MAGIC = 0x474B5353;
+
+  private static final byte VERSION = 1;
+
+  private static final byte FLAG_REFRESH_TOKEN = 0x01;
+
+  private static final byte FLAG_USER_ID = 0x02;
+
+  /// Largest file accepted when reading the snapshot.
+  private static final int MAX_LENGTH = 16 * 1024;
+
+  private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+  private final SessionToken token_;
+
+  private final String userId_;
+
+  /**
+   * Initializing constructor.
+   *
+   * @param token         Token for the signed in user
+   * @param userId        Id of the user, or null if not known
+   */
+  public SessionSnapshot (SessionToken token, String userId)
+  {
+    if (token == null)
+      throw new IllegalArgumentException ("token cannot be null");
+
+    this.token_ = token;
+    this.userId_ = userId;
+  }
+
+  public SessionToken getToken ()
+  {
+    return this.token_;
+  }
+
+  public String getUsername ()
+  {
+    return this.token_.getUsername ();
+  }
+
+  public String getUserId ()
+  {
+    return this.userId_;
+  }
+
+  /**
+   * Create a copy of the snapshot with a different token. The user id is kept when
+   * the token belongs to the same user.
+   *
+   * @param token         The new token
+   */
+  public SessionSnapshot withToken (SessionToken token)
+  {
+    String userId = this.getUsername ().equals (token.getUsername ()) ? this.userId_ : null;
+    return new SessionSnapshot (token, userId);
+  }
+
+  @Override
+  public boolean equals (Object obj)
+  {
+    if (this == obj)
+      return true;
+
+    if (!(obj instanceof SessionSnapshot))
+      return false;
+
+    SessionSnapshot snapshot = (SessionSnapshot) obj;
+
+    return this.token_.equals (snapshot.token_) &&
+        (this.userId_ != null ? this.userId_.equals (snapshot.userId_) : snapshot.userId_ == null);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return 31 * this.token_.hashCode () + (this.userId_ != null ? this.userId_.hashCode () : 0);
+  }
+
+  /**
+   * Read the snapshot from a file. The file is read into memory with a single read
+   * from its channel before it is parsed.
+   *
+   * @param file          File for the snapshot
+   * @return              The snapshot, or null if the file has no valid snapshot
+   */
+  public static SessionSnapshot read (File file)
+  {
+    if (!file.exists ())
+      return null;
+
+    try (FileInputStream in = new FileInputStream (file))
+    {
+      FileChannel channel = in.getChannel ();
+      long size = channel.size ();
+
+      if (size < 10 || size > MAX_LENGTH)
+        return null;
+
+      ByteBuffer buffer = ByteBuffer.allocate ((int)size);
+
+      while (buffer.hasRemaining ())
+      {
+        if (channel.read (buffer) == -1)
+          return null;
+      }
+
+      buffer.flip ();
+      return parse (buffer);
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Write the snapshot to a file. The snapshot is written to a file next to the
+   * target, synced to the storage device, and renamed over the target so a crash
+   * leaves either the old snapshot or the new one.
+   *
+   * @param file          File for the snapshot
+   */
+  public void write (File file)
+      throws IOException
+  {
+    byte [] contents = this.toBytes ();
+    File temp = new File (file.getPath () + ".tmp");
+
+    try (FileOutputStream out = new FileOutputStream (temp))
+    {
+      FileChannel channel = out.getChannel ();
+      ByteBuffer buffer = ByteBuffer.wrap (contents);
+
+      while (buffer.hasRemaining ())
+        channel.write (buffer);
+
+      channel.force (false);
+    }
+
+    if (!temp.renameTo (file))
+      throw new IOException ("Failed to rename " + temp + " to " + file);
+  }
+
+  /**
+   * Delete the snapshot file.
+   *
+   * @param file          File for the snapshot
+   */
+  public static void delete (File file)
+      throws IOException
+  {
+    if (file.exists () && !file.delete ())
+      throw new IOException ("Failed to delete " + file);
+  }
+
+  byte [] toBytes ()
+      throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream (256);
+    DataOutputStream out = new DataOutputStream (bytes);
+
+    byte flags = 0;
+
+    if (this.token_.canRefresh ())
+      flags |= FLAG_REFRESH_TOKEN;
+
+    if (this.userId_ != null)
+      flags |= FLAG_USER_ID;
+
+    out.writeInt (MAGIC);
+    out.writeByte (VERSION);
+    out.writeByte (flags);
+
+    writeString (out, this.token_.getUsername ());
+    writeString (out, this.token_.getAccessToken ());
+
+    if (this.token_.canRefresh ())
+      writeString (out, this.token_.getRefreshToken ());
+
+    if (this.userId_ != null)
+      writeString (out, this.userId_);
+
+    CRC32 crc = new CRC32 ();
+    crc.update (bytes.toByteArray (), 0, bytes.size ());
+    out.writeInt ((int)crc.getValue ());
+
+    return bytes.toByteArray ();
+  }
+
+  static SessionSnapshot parse (ByteBuffer buffer)
+  {
+    int length = buffer.remaining ();
+
+    if (length < 10)
+      return null;
+
+    // The checksum covers everything before it.
+    CRC32 crc = new CRC32 ();
+    crc.update (buffer.array (), buffer.arrayOffset () + buffer.position (), length - 4);
+
+    if ((int)crc.getValue () != buffer.getInt (buffer.position () + length - 4))
+      return null;
+
+    buffer.limit (buffer.position () + length - 4);
+
+    try
+    {
+      if (buffer.getInt () != MAGIC || buffer.get () != VERSION)
+        return null;
+
+      byte flags = buffer.get ();
+
+      String username = readString (buffer);
+      String accessToken = readString (buffer);
+      String refreshToken = (flags & FLAG_REFRESH_TOKEN) != 0 ? readString (buffer) : null;
+      String userId = (flags & FLAG_USER_ID) != 0 ? readString (buffer) : null;
+
+      if (buffer.hasRemaining ())
+        return null;
+
+      return new SessionSnapshot (new SessionToken (username, accessToken, refreshToken), userId);
+    }
+    catch (BufferUnderflowException | IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
+  private static void writeString (DataOutputStream out, String value)
+      throws IOException
+  {
+    byte [] bytes = value.getBytes (UTF8);
+
+    if (bytes.length > 0xFFFF)
+      throw new IOException ("String is too long for the snapshot");
+
+    out.writeShort (bytes.length);
+    out.write (bytes);
+  }
+
+  private static String readString (ByteBuffer buffer)
+  {
+    int length = buffer.getShort () & 0xFFFF;
+
+    if (length > buffer.remaining ())
+      throw new BufferUnderflowException ();
+
+    String value = new String (buffer.array (), buffer.arrayOffset () + buffer.position (), length, UTF8);
+    buffer.position (buffer.position () + length);
+
+    return value;
+  }
+}
@@ -0,0 +1,134 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+
+/**
+ * @class SessionToken
+ *
+ * The token for a signed in user. A SessionToken is immutable. Refreshing the token
+ * creates a new SessionToken for the same user.
+ */
+public final class SessionToken
+{
+  private final String username_;
+
+  private final String accessToken_;
+
+  private final String refreshToken_;
+
+  /// Time the access token expires, in milliseconds since the epoch, or 0 if the
+  /// server did not say.
+  private final long expiresAt_;
+
+  /// Scope granted to the access token, or null if the server did not say.
+  private final String scope_;
+
+  /**
+   * Create a SessionToken from the token returned by Gatekeeper.
+   *
+   * @param username        Username for the user
+   * @param token           Token for the user
+   * @return                SessionToken object
+   */
+  public static SessionToken fromJson (String username, JsonBearerToken token)
+  {
+    return new SessionToken (username, token.accessToken, token.refreshToken, getExpiresAt (token), token.scope);
+  }
+
+  public SessionToken (String username, String accessToken, String refreshToken)
+  {
+    this (username, accessToken, refreshToken, 0, null);
+  }
+
+  public SessionToken (String username, String accessToken, String refreshToken, long expiresAt, String scope)
+  {
+    this.username_ = username;
+    this.accessToken_ = accessToken;
+    this.refreshToken_ = refreshToken;
+    this.expiresAt_ = expiresAt;
+    this.scope_ = scope;
+  }
+
+  public String getUsername ()
+  {
+    return this.username_;
+  }
+
+  public String getAccessToken ()
+  {
+    return this.accessToken_;
+  }
+
+  public String getRefreshToken ()
+  {
+    return this.refreshToken_;
+  }
+
+  /**
+   * Get the time the access token expires, in milliseconds since the epoch, or 0
+   * if the server did not say.
+   */
+  public long getExpiresAt ()
+  {
+    return this.expiresAt_;
+  }
+
+  /**
+   * Get the scope granted to the access token, or null if the server did not say.
+   */
+  public String getScope ()
+  {
+    return this.scope_;
+  }
+
+  public boolean canRefresh ()
+  {
+    return this.refreshToken_ != null;
+  }
+
+  /**
+   * Create a SessionToken for the same user with a refreshed token.
+   *
+   * @param token           Refreshed token
+   * @return                SessionToken object
+   */
+  public SessionToken refresh (JsonBearerToken token)
+  {
+    return new SessionToken (this.username_, token.accessToken, token.refreshToken, getExpiresAt (token), token.scope);
+  }
+
+  /**
+   * Get the time a token returned by Gatekeeper expires, which is relative to when
+   * the token arrived.
+   */
+  private static long getExpiresAt (JsonBearerToken token)
+  {
+    return token.expiresIn != null ? System.currentTimeMillis () + token.expiresIn * 1000 : 0;
+  }
+
+  @Override
+  public boolean equals (Object obj)
+  {
+    if (!(obj instanceof SessionToken))
+      return false;
+
+    SessionToken token = (SessionToken)obj;
+
+    return this.username_.equals (token.username_) &&
+        this.accessToken_.equals (token.accessToken_) &&
+        (this.refreshToken_ != null ? this.refreshToken_.equals (token.refreshToken_) : token.refreshToken_ == null);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return 31 * this.username_.hashCode () + this.accessToken_.hashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    // Do not leak the tokens into the logs.
+    return "SessionToken [username=" + this.username_ + "]";
+  }
+}
@@ -0,0 +1,217 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * @class SnapshotTokenStore
+ *
+ * TokenStore that keeps a SessionSnapshot next to another store. The other store is
+ * the source of truth, and each change to it is mirrored to the snapshot. Loading
+ * the token is served from the snapshot when it exists, so the application can load
+ * the session when it starts without opening the other store.
+ *
+ * A snapshot that cannot be written is deleted instead, so a stale snapshot never
+ * outlives a change to the other store. For the same reason, the snapshot is deleted
+ * before the token of its user is deleted from the other store, or replaced with the
+ * token of another user.
+ */
+public class SnapshotTokenStore implements TokenStore
+{
+  private final Logger logger_ = LoggerFactory.getLogger (SnapshotTokenStore.class);
+
+  private final TokenStore store_;
+
+  private final File file_;
+
+  private boolean loaded_;
+
+  private SessionSnapshot snapshot_;
+
+  /**
+   * Initializing constructor.
+   *
+   * @param store           Store that holds the token
+   * @param file            File for the snapshot
+   */
+  public SnapshotTokenStore (TokenStore store, File file)
+  {
+    this.store_ = store;
+    this.file_ = file;
+  }
+
+  public File getFile ()
+  {
+    return this.file_;
+  }
+
+  /**
+   * Get the snapshot of the session. The snapshot is read from its file the first
+   * time, and the other store is not used.
+   *
+   * @return        The snapshot, or null if there is no snapshot
+   */
+  public synchronized SessionSnapshot getSnapshot ()
+  {
+    if (!this.loaded_)
+    {
+      this.snapshot_ = SessionSnapshot.read (this.file_);
+      this.loaded_ = true;
+    }
+
+    return this.snapshot_;
+  }
+
+  /**
+   * Set the id of the signed in user in the snapshot.
+   *
+   * @param username        Username for the user
+   * @param userId          Id of the user
+   */
+  public synchronized void setUserId (String username, String userId)
+  {
+    SessionSnapshot snapshot = this.getSnapshot ();
+
+    if (snapshot == null || !snapshot.getUsername ().equals (username))
+      return;
+
+    this.writeSnapshot (new SessionSnapshot (snapshot.getToken (), userId));
+  }
+
+  /**
+   * Bring the snapshot up to date with a token that was changed in the other store
+   * without going through this store.
+   *
+   * @param token           Token now in the other store, or null if there is none
+   */
+  public synchronized void sync (SessionToken token)
+  {
+    SessionSnapshot snapshot = this.getSnapshot ();
+
+    if (token == null)
+    {
+      if (snapshot != null)
+        this.writeSnapshot (null);
+    }
+    else if (snapshot == null || !snapshot.getToken ().equals (token))
+    {
+      this.writeToken (token);
+    }
+  }
+
+  @Override
+  public synchronized SessionToken load ()
+  {
+    SessionSnapshot snapshot = this.getSnapshot ();
+
+    if (snapshot != null)
+      return snapshot.getToken ();
+
+    // There is no snapshot yet, such as on the first start after enabling it.
+    SessionToken token = this.store_.load ();
+
+    if (token != null)
+      this.writeSnapshot (new SessionSnapshot (token, null));
+
+    return token;
+  }
+
+  @Override
+  public synchronized void save (SessionToken token)
+  {
+    this.dropSnapshot (null, token);
+    this.store_.save (token);
+    this.writeToken (token);
+  }
+
+  @Override
+  public synchronized void delete (SessionToken token)
+  {
+    this.dropSnapshot (token, null);
+    this.store_.delete (token);
+  }
+
+  @Override
+  public synchronized boolean compareAndSwap (SessionToken expected, SessionToken update)
+  {
+    SessionSnapshot dropped = this.dropSnapshot (expected, update);
+
+    if (!this.store_.compareAndSwap (expected, update))
+    {
+      // The other store did not change, so the snapshot is still up to date.
+      if (dropped != null)
+        this.writeSnapshot (dropped);
+
+      return false;
+    }
+
+    this.writeToken (update);
+    return true;
+  }
+
+  /**
+   * Delete the snapshot before a change to the other store that takes away the token
+   * of its user. If the change fails, the token is loaded from the other store.
+   *
+   * @param previous        Token replaced by the change, or null
+   * @param update          Token stored by the change, or null if it deletes
+   * @return                The deleted snapshot, or null if it was kept
+   */
+  private SessionSnapshot dropSnapshot (SessionToken previous, SessionToken update)
+  {
+    SessionSnapshot snapshot = this.getSnapshot ();
+
+    if (snapshot == null)
+      return null;
+
+    String username = snapshot.getUsername ();
+    boolean takenAway =
+        update != null ?
+            !username.equals (update.getUsername ()) :
+            previous != null && username.equals (previous.getUsername ());
+
+    if (!takenAway)
+      return null;
+
+    this.writeSnapshot (null);
+    return snapshot;
+  }
+
+  private void writeToken (SessionToken token)
+  {
+    if (token == null)
+    {
+      this.writeSnapshot (null);
+      return;
+    }
+
+    SessionSnapshot snapshot = this.getSnapshot ();
+    this.writeSnapshot (snapshot != null ? snapshot.withToken (token) : new SessionSnapshot (token, null));
+  }
+
+  private void writeSnapshot (SessionSnapshot snapshot)
+  {
+    try
+    {
+      if (snapshot != null)
+        snapshot.write (this.file_);
+      else
+        SessionSnapshot.delete (this.file_);
+
+      this.snapshot_ = snapshot;
+    }
+    catch (IOException e)
+    {
+      this.logger_.warn ("Failed to write the session snapshot", e);
+
+      // Fall back to the other store rather than serve a stale snapshot.
+      this.file_.delete ();
+      this.snapshot_ = null;
+    }
+
+    this.loaded_ = true;
+  }
+}
@@ -0,0 +1,18 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @interface TokenRefreshListener
+ *
+ * Listener that is told when the SessionEngine refreshes the token of the user. The
+ * notifications are run on the Scheduler of the engine.
+ */
+public interface TokenRefreshListener
+{
+  /**
+   * The token of the user was refreshed.
+   *
+   * @param engine        Session engine
+   * @param token         The refreshed token
+   */
+  void onTokenRefreshed (SessionEngine engine, SessionToken token);
+}
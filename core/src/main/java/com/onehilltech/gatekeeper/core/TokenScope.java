@@ -0,0 +1,117 @@
+package com.onehilltech.gatekeeper.core;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import okhttp3.Request;
+
+/**
+ * @class TokenScope
+ *
+ * The scope a request made with the user client needs. The user client sends the
+ * request with a downscoped access token for the scope, instead of the access token
+ * of the user. The scopes are kept sorted, so the same set of scopes always has the
+ * same downscoped token.
+ *
+ * The scope is set with the tag of the request:
+ *
+ *   new Request.Builder ().tag (TokenScope.class, TokenScope.of ("read:orders"))
+ *
+ * or with the Gatekeeper-Scope header, such as from a Retrofit @Headers annotation.
+ * The header is removed before the request is sent.
+ */
+public final class TokenScope
+{
+  public static final String HEADER = "Gatekeeper-Scope";
+
+  private final String value_;
+
+  /**
+   * Create the scope for a set of scopes.
+   *
+   * @param scopes        Names of the scopes
+   */
+  public static TokenScope of (String ... scopes)
+  {
+    return new TokenScope (canonicalize (Arrays.asList (scopes)));
+  }
+
+  /**
+   * Parse a space-separated list of scopes.
+   *
+   * @param value         List of scopes
+   */
+  public static TokenScope parse (String value)
+  {
+    return new TokenScope (canonicalize (Arrays.asList (value.trim ().split ("\\s+"))));
+  }
+
+  /**
+   * Get the scope of a request from its tag, or its header.
+   *
+   * @param request       Request object
+   * @return              The scope, or null if the request does not have one
+   */
+  public static TokenScope fromRequest (Request request)
+  {
+    TokenScope scope = request.tag (TokenScope.class);
+
+    if (scope != null)
+      return scope;
+
+    String header = request.header (HEADER);
+    return header != null && !header.trim ().isEmpty () ? parse (header) : null;
+  }
+
+  private static String canonicalize (Iterable <String> scopes)
+  {
+    TreeSet <String> sorted = new TreeSet<> ();
+
+    for (String scope : scopes)
+    {
+      if (scope != null && !scope.isEmpty ())
+        sorted.add (scope);
+    }
+
+    if (sorted.isEmpty ())
+      throw new IllegalArgumentException ("The scope must not be empty");
+
+    StringBuilder builder = new StringBuilder ();
+
+    for (String scope : sorted)
+    {
+      if (builder.length () > 0)
+        builder.append (' ');
+
+      builder.append (scope);
+    }
+
+    return builder.toString ();
+  }
+
+  private TokenScope (String value)
+  {
+    this.value_ = value;
+  }
+
+  @Override
+  public boolean equals (Object obj)
+  {
+    return obj instanceof TokenScope && this.value_.equals (((TokenScope)obj).value_);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return this.value_.hashCode ();
+  }
+
+  /**
+   * Get the space-separated list of scopes.
+   */
+  @Override
+  public String toString ()
+  {
+    return this.value_;
+  }
+}
@@ -0,0 +1,44 @@
+package com.onehilltech.gatekeeper.core;
+
+/**
+ * @interface TokenStore
+ *
+ * Storage for the token of the signed in user. The Android library stores the token
+ * in its database, and other platforms can provide their own storage.
+ */
+public interface TokenStore
+{
+  /**
+   * Load the token for the signed in user.
+   *
+   * @return          SessionToken object, or null if no user is signed in
+   */
+  SessionToken load ();
+
+  /**
+   * Save the token for the signed in user. This replaces any existing token.
+   *
+   * @param token     SessionToken object
+   */
+  void save (SessionToken token);
+
+  /**
+   * Delete the token for a user that has signed out.
+   *
+   * @param token     SessionToken object
+   */
+  void delete (SessionToken token);
+
+  /**
+   * Replace the token for a user only if the store still holds the expected token.
+   * The compare and the replace are atomic with respect to the other operations on
+   * the store. This keeps a refresh from overwriting a token that was changed, or
+   * deleted, by another client while the refresh was in flight.
+   *
+   * @param expected  Token the caller expects in the store, or null if the caller
+   *                  expects no token
+   * @param update    Token to store, or null to delete the expected token
+   * @return          True if the token was replaced
+   */
+  boolean compareAndSwap (SessionToken expected, SessionToken update);
+}
@@ -0,0 +1,343 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class WriteBehindTokenStore
+ *
+ * TokenStore that writes to another store on a background thread. The token is kept
+ * in memory, so a save, a delete, or a compare and swap returns as soon as the token
+ * in memory is changed. The change is then written to the other store by a single
+ * writer thread, in the order the changes were made.
+ *
+ * A change that is still waiting to be written is replaced by a later change for
+ * the same user, so a burst of refreshes costs a single write. Call flush() where
+ * the change must be durable, such as after the user signs out.
+ *
+ * A save or a delete is written as is. A compare and swap, such as a refresh, is
+ * written with a compare and swap against the token it replaced, so a change made to
+ * a token that another client has since changed in the other store is dropped, and
+ * the token in memory is loaded again, unless it was changed again since. Call
+ * reset() when another client is known to have changed the other store.
+ *
+ * The writer thread stops when it has been idle for a while. It is not a daemon
+ * thread, so the waiting changes are written before the JVM exits.
+ */
+public class WriteBehindTokenStore implements TokenStore
+{
+  private static final long WRITER_KEEP_ALIVE_SECONDS = 1;
+
+  private final Logger logger_ = LoggerFactory.getLogger (WriteBehindTokenStore.class);
+
+  private final TokenStore store_;
+
+  private final Executor executor_;
+
+  /// Lock for the token in memory, and the changes waiting to be written.
+  private final Object lock_ = new Object ();
+
+  private final LinkedList <Write> pending_ = new LinkedList<> ();
+
+  private boolean loaded_;
+
+  private SessionToken token_;
+
+  private boolean writing_;
+
+  /// Number of the last change made to the token in memory.
+  private long sequence_;
+
+  private int coalescedCount_;
+
+  /**
+   * @class Write
+   *
+   * A change waiting to be written to the other store.
+   */
+  private static final class Write
+  {
+    /// The token the change replaces, or null if there was no token.
+    final SessionToken expected;
+
+    /// The new token, or null to delete the token.
+    SessionToken update;
+
+    /// The change is written even if the other store no longer has the expected
+    /// token.
+    boolean force;
+
+    /// Number of the last change merged into the write.
+    long sequence;
+
+    Write (SessionToken expected, SessionToken update, boolean force, long sequence)
+    {
+      this.expected = expected;
+      this.update = update;
+      this.force = force;
+      this.sequence = sequence;
+    }
+
+    String getUsername ()
+    {
+      return this.update != null ? this.update.getUsername () : this.expected.getUsername ();
+    }
+  }
+
+  /**
+   * Initializing constructor. The changes are written by a thread owned by the store.
+   *
+   * @param store           Store that holds the token
+   */
+  public WriteBehindTokenStore (TokenStore store)
+  {
+    this (store, newWriterExecutor ());
+  }
+
+  /**
+   * Initializing constructor for a store whose token is already known, so it is not
+   * loaded from the other store again.
+   *
+   * @param store           Store that holds the token
+   * @param token           The token in the other store
+   */
+  public WriteBehindTokenStore (TokenStore store, SessionToken token)
+  {
+    this (store);
+
+    this.token_ = token;
+    this.loaded_ = true;
+  }
+
+  /**
+   * Initializing constructor.
+   *
+   * @param store           Store that holds the token
+   * @param executor        Executor that writes the changes. It must not run more
+   *                        than one task at a time.
+   */
+  public WriteBehindTokenStore (TokenStore store, Executor executor)
+  {
+    this.store_ = store;
+    this.executor_ = executor;
+  }
+
+  /**
+   * Get the number of changes that were replaced by a later change before they
+   * were written.
+   */
+  public int getCoalescedCount ()
+  {
+    synchronized (this.lock_)
+    {
+      return this.coalescedCount_;
+    }
+  }
+
+  @Override
+  public SessionToken load ()
+  {
+    synchronized (this.lock_)
+    {
+      this.ensureLoaded ();
+      return this.token_;
+    }
+  }
+
+  @Override
+  public void save (SessionToken token)
+  {
+    synchronized (this.lock_)
+    {
+      this.ensureLoaded ();
+      this.update (token, true);
+    }
+  }
+
+  @Override
+  public void delete (SessionToken token)
+  {
+    synchronized (this.lock_)
+    {
+      this.ensureLoaded ();
+
+      if (this.token_ != null && this.token_.getUsername ().equals (token.getUsername ()))
+        this.update (null, true);
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap (SessionToken expected, SessionToken update)
+  {
+    synchronized (this.lock_)
+    {
+      this.ensureLoaded ();
+
+      if (this.token_ != null ? !this.token_.equals (expected) : expected != null)
+        return false;
+
+      this.update (update, false);
+      return true;
+    }
+  }
+
+  /**
+   * Replace the token in memory with the token in the other store, after another
+   * client changed the other store. The changes waiting to be written are dropped,
+   * since they were made to the token that was replaced.
+   *
+   * @param token           The token in the other store, or null if there is none
+   */
+  public void reset (SessionToken token)
+  {
+    synchronized (this.lock_)
+    {
+      this.pending_.clear ();
+      this.token_ = token;
+      this.loaded_ = true;
+
+      this.lock_.notifyAll ();
+    }
+  }
+
+  /**
+   * Wait for the changes made before this call to be written to the other store.
+   *
+   * @throws InterruptedException     The thread was interrupted while waiting
+   */
+  public void flush ()
+      throws InterruptedException
+  {
+    synchronized (this.lock_)
+    {
+      while (this.writing_ || !this.pending_.isEmpty ())
+        this.lock_.wait ();
+    }
+  }
+
+  private void ensureLoaded ()
+  {
+    if (this.loaded_)
+      return;
+
+    this.token_ = this.store_.load ();
+    this.loaded_ = true;
+  }
+
+  /**
+   * Change the token in memory, and queue the change for the writer.
+   *
+   * @param token       The new token, or null to delete the current token
+   * @param force       Write the change even if the other store has another token
+   */
+  private void update (SessionToken token, boolean force)
+  {
+    SessionToken current = this.token_;
+    this.token_ = token;
+
+    if (token == null && current == null)
+      return;
+
+    Write write = new Write (current, token, force, ++ this.sequence_);
+    Write last = this.pending_.peekLast ();
+
+    if (last != null && last.getUsername ().equals (write.getUsername ()))
+    {
+      // The writer has not taken the last change yet, so only the newest one for
+      // the user needs to be written. It still replaces the token the last change
+      // replaced.
+      last.update = token;
+      last.force |= force;
+      last.sequence = write.sequence;
+      ++ this.coalescedCount_;
+
+      // A sign in and a sign out that were not written cancel each other.
+      if (last.expected == null && last.update == null)
+        this.pending_.removeLast ();
+
+      return;
+    }
+
+    this.pending_.add (write);
+
+    if (!this.writing_)
+    {
+      this.writing_ = true;
+      this.executor_.execute (this::drain);
+    }
+  }
+
+  /**
+   * Write the queued changes to the other store. Runs on the writer.
+   */
+  private void drain ()
+  {
+    while (true)
+    {
+      Write write;
+
+      synchronized (this.lock_)
+      {
+        write = this.pending_.poll ();
+
+        if (write == null)
+        {
+          this.writing_ = false;
+          this.lock_.notifyAll ();
+
+          return;
+        }
+      }
+
+      try
+      {
+        if (write.force)
+        {
+          if (write.update != null)
+            this.store_.save (write.update);
+          else
+            this.store_.delete (write.expected);
+        }
+        else if (!this.store_.compareAndSwap (write.expected, write.update))
+        {
+          // Another client changed the token in the other store, such as signing out
+          // the user. The other store wins, so a token that was deleted is not
+          // written back.
+          this.logger_.warn ("Token for " + write.getUsername () + " changed in the store before it was written");
+          SessionToken stored = this.store_.load ();
+
+          synchronized (this.lock_)
+          {
+            // A change made since the write, such as a new sign in, is newer than
+            // the token in the other store, and is written next.
+            if (this.sequence_ == write.sequence)
+              this.reset (stored);
+          }
+        }
+      }
+      catch (RuntimeException e)
+      {
+        this.logger_.error ("Failed to write the token for " + write.getUsername (), e);
+      }
+    }
+  }
+
+  private static Executor newWriterExecutor ()
+  {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor (1, 1,
+                                WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<> (),
+                                runnable -> new Thread (runnable, "gatekeeper-token-writer"));
+
+    executor.allowCoreThreadTimeOut (true);
+
+    return executor;
+  }
+}
@@ -1,12 +1,8 @@
 package com.onehilltech.gatekeeper.android.http;
 
-import android.support.test.runner.AndroidJUnit4;
-
 import org.junit.Assert;
 import org.junit.Test;
-import org.junit.runner.RunWith;
 
-@RunWith (AndroidJUnit4.class)
 public class JsonBearerTokenTest
 {
   @Test
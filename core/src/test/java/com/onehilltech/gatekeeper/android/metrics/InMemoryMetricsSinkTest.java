@@ -0,0 +1,42 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InMemoryMetricsSinkTest
+{
+  @Test
+  public void testCounters ()
+  {
+    InMemoryMetricsSink sink = new InMemoryMetricsSink ();
+
+    sink.increment (Counter.UNAUTHORIZED);
+    sink.increment (Counter.UNAUTHORIZED);
+    sink.increment (Counter.REFRESH_TOKEN_COALESCED);
+
+    Assert.assertEquals (2, sink.getCount (Counter.UNAUTHORIZED));
+    Assert.assertEquals (1, sink.getCount (Counter.REFRESH_TOKEN_COALESCED));
+    Assert.assertEquals (0, sink.getCount (Counter.FORBIDDEN));
+  }
+
+  @Test
+  public void testLatencies ()
+  {
+    InMemoryMetricsSink sink = new InMemoryMetricsSink ();
+
+    for (int i = 1; i <= 100; ++ i)
+      sink.recordLatency (Timer.SIGN_IN, i * 1000L);
+
+    Assert.assertEquals (100, sink.getCount (Timer.SIGN_IN));
+    Assert.assertEquals (50500, sink.getMean (Timer.SIGN_IN));
+    Assert.assertEquals (100000, sink.getMax (Timer.SIGN_IN));
+
+    // The percentiles are upper bounds within a factor of two.
+    long p50 = sink.getPercentile (Timer.SIGN_IN, 50);
+    Assert.assertTrue (p50 >= 50000 && p50 < 100000);
+    Assert.assertEquals (100000, sink.getPercentile (Timer.SIGN_IN, 100));
+
+    sink.reset ();
+    Assert.assertEquals (0, sink.getCount (Timer.SIGN_IN));
+  }
+}
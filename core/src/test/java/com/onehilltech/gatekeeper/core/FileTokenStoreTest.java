@@ -0,0 +1,137 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class FileTokenStoreTest
+{
+  private static final SessionToken TOKEN_1 = new SessionToken ("tester1", "access-1", "refresh-1");
+
+  private static final SessionToken TOKEN_2 = new SessionToken ("tester1", "access-2", "refresh-2");
+
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder ();
+
+  private File file_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.file_ = new File (this.folder_.getRoot (), "token.log");
+  }
+
+  @Test
+  public void testLoadEmpty ()
+  {
+    Assert.assertNull (new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testReplay ()
+  {
+    FileTokenStore store = new FileTokenStore (this.file_);
+    store.save (TOKEN_1);
+    store.save (TOKEN_2);
+    store.close ();
+
+    Assert.assertEquals (TOKEN_2, new FileTokenStore (this.file_).load ());
+
+    store.delete (TOKEN_2);
+    store.close ();
+
+    Assert.assertNull (new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testTokenWithoutRefreshToken ()
+  {
+    SessionToken token = new SessionToken ("tester1", "access-1", null);
+
+    FileTokenStore store = new FileTokenStore (this.file_);
+    store.save (token);
+    store.close ();
+
+    Assert.assertEquals (token, new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testTornRecord () throws Exception
+  {
+    FileTokenStore store = new FileTokenStore (this.file_);
+    store.save (TOKEN_1);
+    store.save (TOKEN_2);
+    store.close ();
+
+    // Cut the last record in half, as if the process died while writing it.
+    long length = this.file_.length ();
+
+    try (RandomAccessFile file = new RandomAccessFile (this.file_, "rw"))
+    {
+      file.setLength (length - 10);
+    }
+
+    FileTokenStore recovered = new FileTokenStore (this.file_);
+    Assert.assertEquals (TOKEN_1, recovered.load ());
+
+    // The torn record is dropped so the next record is readable.
+    recovered.save (TOKEN_2);
+    recovered.close ();
+
+    Assert.assertEquals (TOKEN_2, new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testCorruptRecord () throws Exception
+  {
+    FileTokenStore store = new FileTokenStore (this.file_);
+    store.save (TOKEN_1);
+    store.save (TOKEN_2);
+    store.close ();
+
+    try (RandomAccessFile file = new RandomAccessFile (this.file_, "rw"))
+    {
+      file.seek (file.length () - 6);
+      file.write ('X');
+    }
+
+    Assert.assertEquals (TOKEN_1, new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testCompaction ()
+  {
+    FileTokenStore store = new FileTokenStore (this.file_, false);
+    SessionToken token = null;
+
+    for (int i = 0; i < 200; ++ i)
+    {
+      token = new SessionToken ("tester1", "access-" + i, "refresh-" + i);
+      store.save (token);
+    }
+
+    store.close ();
+
+    // The file holds at most one compaction period of records.
+    Assert.assertTrue (this.file_.length () < 64 * 64);
+    Assert.assertEquals (token, new FileTokenStore (this.file_).load ());
+  }
+
+  @Test
+  public void testCompareAndSwap ()
+  {
+    FileTokenStore store = new FileTokenStore (this.file_);
+
+    Assert.assertTrue (store.compareAndSwap (null, TOKEN_1));
+    Assert.assertFalse (store.compareAndSwap (TOKEN_2, null));
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+    store.close ();
+
+    Assert.assertEquals (TOKEN_2, new FileTokenStore (this.file_).load ());
+  }
+}
@@ -0,0 +1,147 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+public class GatekeeperProtocolTest
+{
+  private static final List <String> USERNAMES = Arrays.asList ("tester1", "tester2", "tester3", "tester4", "tester5");
+
+  private GatekeeperServer server_;
+
+  @After
+  public void teardown () throws Exception
+  {
+    if (this.server_ != null)
+      this.server_.close ();
+  }
+
+  private GatekeeperProtocol startServer (boolean batchEnabled, long latencyMillis, OkHttpClient httpClient)
+      throws Exception
+  {
+    GatekeeperDispatcher.Builder builder =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .setBatchTokenEnabled (batchEnabled)
+            .setLatency (latencyMillis, TimeUnit.MILLISECONDS);
+
+    for (String username : USERNAMES)
+      builder.addAccount (username, username, username + "@gatekeeper.com");
+
+    this.server_ = new GatekeeperServer (builder.build ());
+    this.server_.start ();
+
+    return this.server_.newProtocolBuilder ("client-id", "client-secret")
+        .setHttpClient (httpClient)
+        .setMaxConcurrentRefreshes (2)
+        .build ();
+  }
+
+  private static List <String> signInAll (GatekeeperProtocol protocol)
+      throws Exception
+  {
+    List <String> refreshTokens = new ArrayList<> ();
+
+    for (String username : USERNAMES)
+      refreshTokens.add (protocol.getUserToken (username, username).refreshToken);
+
+    // Gatekeeper rejects this one, without failing the others.
+    refreshTokens.add (2, "unknown-refresh-token");
+
+    return refreshTokens;
+  }
+
+  private static void assertResults (List <String> refreshTokens, List <RefreshResult> results)
+  {
+    Assert.assertEquals (refreshTokens.size (), results.size ());
+
+    for (int i = 0; i < results.size (); ++ i)
+    {
+      RefreshResult result = results.get (i);
+      Assert.assertEquals (refreshTokens.get (i), result.getRefreshToken ());
+
+      if (i == 2)
+      {
+        Assert.assertFalse (result.isSuccessful ());
+        Assert.assertEquals ("invalid_grant", ((GatekeeperException)result.getError ()).getCode ());
+      }
+      else
+      {
+        Assert.assertTrue (result.isSuccessful ());
+        Assert.assertNotEquals (refreshTokens.get (i), result.getToken ().refreshToken);
+      }
+    }
+  }
+
+  @Test
+  public void testRefreshTokensInBatch () throws Exception
+  {
+    GatekeeperProtocol protocol = this.startServer (true, 0, new OkHttpClient ());
+    List <String> refreshTokens = signInAll (protocol);
+
+    int requestCount = this.server_.getRequestCount ();
+    List <RefreshResult> results = protocol.refreshTokens (refreshTokens);
+
+    assertResults (refreshTokens, results);
+
+    Assert.assertTrue (protocol.isBatchSupported ());
+    Assert.assertEquals (requestCount + 1, this.server_.getRequestCount ());
+    Assert.assertEquals (1, this.server_.getDispatcher ().getBatchCount ());
+  }
+
+  @Test
+  public void testFallBackToConcurrentRefreshes () throws Exception
+  {
+    AtomicInteger inFlight = new AtomicInteger ();
+    AtomicInteger maxInFlight = new AtomicInteger ();
+
+    OkHttpClient httpClient =
+        new OkHttpClient.Builder ()
+            .addInterceptor (chain -> {
+              int count = inFlight.incrementAndGet ();
+              maxInFlight.accumulateAndGet (count, Math::max);
+
+              try
+              {
+                return chain.proceed (chain.request ());
+              }
+              finally
+              {
+                inFlight.decrementAndGet ();
+              }
+            })
+            .build ();
+
+    GatekeeperProtocol protocol = this.startServer (false, 20, httpClient);
+    List <String> refreshTokens = signInAll (protocol);
+
+    maxInFlight.set (0);
+    assertResults (refreshTokens, protocol.refreshTokens (refreshTokens));
+
+    // The service does not have the batch endpoint, so it is not tried again.
+    Assert.assertFalse (protocol.isBatchSupported ());
+    Assert.assertTrue (maxInFlight.get () <= 2);
+
+    int requestCount = this.server_.getRequestCount ();
+    List <String> again = new ArrayList<> ();
+
+    for (String username : USERNAMES.subList (0, 2))
+      again.add (protocol.getUserToken (username, username).refreshToken);
+
+    Assert.assertTrue (protocol.refreshTokens (again).get (1).isSuccessful ());
+    Assert.assertEquals (requestCount + 4, this.server_.getRequestCount ());
+    Assert.assertEquals (0, this.server_.getDispatcher ().getBatchCount ());
+  }
+}
@@ -0,0 +1,42 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InMemoryTokenStoreTest
+{
+  private static final SessionToken TOKEN_1 = new SessionToken ("tester1", "access-1", "refresh-1");
+
+  private static final SessionToken TOKEN_2 = new SessionToken ("tester1", "access-2", "refresh-2");
+
+  @Test
+  public void testCompareAndSwap ()
+  {
+    InMemoryTokenStore store = new InMemoryTokenStore ();
+
+    Assert.assertFalse (store.compareAndSwap (TOKEN_1, TOKEN_2));
+    Assert.assertTrue (store.compareAndSwap (null, TOKEN_1));
+    Assert.assertFalse (store.compareAndSwap (null, TOKEN_2));
+    Assert.assertEquals (TOKEN_1, store.load ());
+
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+    Assert.assertEquals (TOKEN_2, store.load ());
+
+    Assert.assertTrue (store.compareAndSwap (TOKEN_2, null));
+    Assert.assertNull (store.load ());
+  }
+
+  @Test
+  public void testDelete ()
+  {
+    InMemoryTokenStore store = new InMemoryTokenStore (TOKEN_2);
+
+    // The token is deleted for the user, even if it has been refreshed.
+    store.delete (TOKEN_1);
+    Assert.assertNull (store.load ());
+
+    store.save (TOKEN_1);
+    store.delete (new SessionToken ("tester2", "access-3", "refresh-3"));
+    Assert.assertEquals (TOKEN_1, store.load ());
+  }
+}
@@ -0,0 +1,447 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.InMemoryMetricsSink;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.ByteString;
+import okio.Okio;
+
+public class JwtValidatorTest
+{
+  private static final Charset UTF_8 = Charset.forName ("UTF-8");
+
+  private KeyPair rsaKeys_;
+
+  private KeyPair ecKeys_;
+
+  private File keySetFile_;
+
+  private JwtValidator validator_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    KeyPairGenerator rsa = KeyPairGenerator.getInstance ("RSA");
+    rsa.initialize (2048);
+    this.rsaKeys_ = rsa.generateKeyPair ();
+
+    KeyPairGenerator ec = KeyPairGenerator.getInstance ("EC");
+    ec.initialize (new ECGenParameterSpec ("secp256r1"));
+    this.ecKeys_ = ec.generateKeyPair ();
+
+    RSAPublicKey rsaKey = (RSAPublicKey)this.rsaKeys_.getPublic ();
+    ECPublicKey ecKey = (ECPublicKey)this.ecKeys_.getPublic ();
+
+    String keySet =
+        "{\"keys\": [" +
+            "{\"kty\": \"RSA\", \"kid\": \"rsa\", \"use\": \"sig\", " +
+            "\"n\": \"" + base64Url (rsaKey.getModulus ()) + "\", " +
+            "\"e\": \"" + base64Url (rsaKey.getPublicExponent ()) + "\"}, " +
+            "{\"kty\": \"EC\", \"kid\": \"ec\", \"crv\": \"P-256\", " +
+            "\"x\": \"" + base64Url (ecKey.getW ().getAffineX ()) + "\", " +
+            "\"y\": \"" + base64Url (ecKey.getW ().getAffineY ()) + "\"}, " +
+            "{\"kty\": \"oct\", \"kid\": \"hmac\", \"k\": \"c2VjcmV0\"}" +
+        "]}";
+
+    this.keySetFile_ = File.createTempFile ("jwks", ".json");
+
+    try (FileOutputStream out = new FileOutputStream (this.keySetFile_))
+    {
+      out.write (keySet.getBytes (UTF_8));
+    }
+
+    this.validator_ =
+        new JwtValidator.Builder ()
+            .setKeySetFile (this.keySetFile_)
+            .build ();
+  }
+
+  @After
+  public void teardown ()
+  {
+    this.keySetFile_.delete ();
+  }
+
+  @Test
+  public void testParseKeySet () throws Exception
+  {
+    JsonWebKeySet keySet = JsonWebKeySet.parse (this.readKeySet ());
+
+    // The HMAC key is not a public key, so it is skipped.
+    Assert.assertEquals (2, keySet.size ());
+    Assert.assertTrue (keySet.hasKey ("rsa"));
+    Assert.assertTrue (keySet.hasKey ("ec"));
+    Assert.assertFalse (keySet.hasKey ("hmac"));
+  }
+
+  @Test
+  public void testVerify () throws Exception
+  {
+    long exp = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) + 3600;
+
+    String rsaToken = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"exp\": " + exp + "}");
+    JwtClaims claims = this.validator_.getTrustedClaims (rsaToken);
+
+    Assert.assertNotNull (claims);
+    Assert.assertTrue (claims.isVerified ());
+    Assert.assertEquals ("tester1", claims.getSubject ());
+    Assert.assertEquals (Long.valueOf (exp * 1000), this.validator_.getExpiresAt (rsaToken));
+    Assert.assertFalse (this.validator_.needsRefresh (rsaToken));
+
+    String ecToken = this.signEc ("ec", "{\"sub\": \"tester2\", \"scope\": \"read:a\", \"exp\": " + exp + "}");
+    claims = this.validator_.getTrustedClaims (ecToken);
+
+    Assert.assertNotNull (claims);
+    Assert.assertTrue (claims.isVerified ());
+    Assert.assertEquals ("read:a", claims.getScope ());
+
+    // The claims are cached for the token.
+    Assert.assertSame (claims, this.validator_.getClaims (ecToken));
+  }
+
+  @Test
+  public void testRejectUnverifiedTokens () throws Exception
+  {
+    long exp = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) - 60;
+    String payload = "{\"sub\": \"tester1\", \"exp\": " + exp + "}";
+
+    // Signed with the key of another id.
+    String wrongKey = this.signRsa ("ec", payload);
+
+    // The signature does not match the claims.
+    String signed = this.signRsa ("rsa", payload);
+    String tampered = signed.substring (0, signed.indexOf ('.') + 1) +
+        encode ("{\"sub\": \"admin\", \"exp\": " + exp + "}") +
+        signed.substring (signed.lastIndexOf ('.'));
+
+    // Not signed at all.
+    String none = encode ("{\"alg\": \"none\"}") + "." + encode (payload) + ".";
+
+    for (String token : Arrays.asList (wrongKey, tampered, none))
+    {
+      Assert.assertNotNull (this.validator_.getClaims (token));
+      Assert.assertFalse (this.validator_.getClaims (token).isVerified ());
+
+      // The claims say the token expired, but they cannot be trusted.
+      Assert.assertNull (this.validator_.getTrustedClaims (token));
+      Assert.assertFalse (this.validator_.needsRefresh (token));
+    }
+
+    // Without a key set, the claims are trusted as a hint.
+    JwtValidator unverified = new JwtValidator.Builder ().build ();
+    Assert.assertTrue (unverified.needsRefresh (none));
+  }
+
+  @Test
+  public void testKeySetNotLoaded () throws Exception
+  {
+    try (MockWebServer server = new MockWebServer ())
+    {
+      server.enqueue (new MockResponse ().setResponseCode (503));
+      server.start ();
+
+      JwtValidator validator =
+          new JwtValidator.Builder ()
+              .setKeySetUrl (server.url ("/jwks.json").toString ())
+              .setHttpClient (new OkHttpClient ())
+              .build ();
+
+      long exp = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) - 60;
+      String token = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"exp\": " + exp + "}");
+
+      JwtClaims claims = validator.getClaims (token);
+
+      Assert.assertFalse (claims.isVerified ());
+      Assert.assertNull (validator.getTrustedClaims (token));
+
+      // The claims are not cached, since the key that signed the token was never
+      // seen. The key set is not loaded again right away.
+      Assert.assertNotSame (claims, validator.getClaims (token));
+      Assert.assertEquals (1, server.getRequestCount ());
+    }
+  }
+
+  @Test
+  public void testPrefetchKeySet () throws Exception
+  {
+    try (MockWebServer server = new MockWebServer ())
+    {
+      server.enqueue (new MockResponse ().setBody (new Buffer ().write (this.readKeySet ())));
+      server.start ();
+
+      JwtValidator validator =
+          new JwtValidator.Builder ()
+              .setKeySetUrl (server.url ("/jwks.json").toString ())
+              .setHttpClient (new OkHttpClient ())
+              .build ();
+
+      validator.prefetchKeySet ();
+      validator.prefetchKeySet ();
+
+      Assert.assertNotNull (server.takeRequest (5, TimeUnit.SECONDS));
+
+      // The token waits on the key set loaded in the background, instead of
+      // loading it again.
+      long exp = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) + 3600;
+      String token = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"exp\": " + exp + "}");
+
+      Assert.assertNotNull (validator.getTrustedClaims (token));
+      Assert.assertEquals (1, server.getRequestCount ());
+    }
+  }
+
+  @Test
+  public void testKeySetUrlNeedsHttpClient ()
+  {
+    try
+    {
+      new JwtValidator.Builder ().setKeySetUrl ("https://gatekeeper.example.com/jwks.json").build ();
+      Assert.fail ();
+    }
+    catch (IllegalStateException e)
+    {
+      // There is no http client to load the key set with.
+    }
+  }
+
+  @Test
+  public void testOpaqueToken ()
+  {
+    Assert.assertNull (this.validator_.getClaims ("d4f2b0c1e9a8"));
+    Assert.assertNull (this.validator_.getClaims ("a.b.c.d"));
+    Assert.assertFalse (this.validator_.needsRefresh ("d4f2b0c1e9a8"));
+    Assert.assertNull (this.validator_.getExpiresAt ("d4f2b0c1e9a8"));
+  }
+
+  @Test
+  public void testRefreshBeforeSend () throws Exception
+  {
+    GatekeeperDispatcher dispatcher =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .build ();
+
+    final List <String> sentTokens = Collections.synchronizedList (new ArrayList <String> ());
+
+    try (GatekeeperServer server = new GatekeeperServer (dispatcher))
+    {
+      server.start ();
+
+      OkHttpClient httpClient =
+          new OkHttpClient.Builder ()
+              .addNetworkInterceptor (chain -> {
+                sentTokens.add (chain.request ().header ("Authorization"));
+                return chain.proceed (chain.request ());
+              })
+              .build ();
+
+      InMemoryMetricsSink metrics = new InMemoryMetricsSink ();
+
+      SessionEngine engine =
+          new SessionEngine.Builder ()
+              .setProtocol (server.newProtocolBuilder ("client-id", "client-secret").setHttpClient (httpClient).build ())
+              .setTokenStore (new InMemoryTokenStore ())
+              .setMetricsSink (metrics)
+              .setTokenValidator (this.validator_)
+              .build ();
+
+      engine.signIn ("tester1", "tester1");
+
+      // Replace the access token with a JWT that has expired.
+      long exp = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) - 60;
+      String expired = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"exp\": " + exp + "}");
+      SessionToken token = engine.getToken ();
+
+      engine.setToken (new SessionToken (token.getUsername (), expired, token.getRefreshToken ()));
+      Assert.assertEquals (Long.valueOf (exp * 1000), engine.getTokenExpiresAt ());
+
+      Request request = new Request.Builder ().url (server.url (GatekeeperDispatcher.ME_PATH)).build ();
+      sentTokens.clear ();
+
+      try (Response response = engine.getUserClient ().newCall (request).execute ())
+      {
+        Assert.assertEquals (200, response.code ());
+      }
+
+      // The token was refreshed before the request, so the expired token was never
+      // sent, and the server did not have to reject it.
+      Assert.assertFalse (sentTokens.contains ("Bearer " + expired));
+      Assert.assertEquals (1, metrics.getCount (Counter.REFRESH_TOKEN_BEFORE_SEND));
+      Assert.assertEquals (1, dispatcher.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+      Assert.assertNotEquals (expired, engine.getToken ().getAccessToken ());
+    }
+  }
+
+  @Test
+  public void testSkewedClock () throws Exception
+  {
+    // The clock of the device is an hour ahead of the clock of the server.
+    long serverNow = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) - 3600;
+    String token = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"iat\": " + serverNow + ", \"exp\": " + (serverNow + 600) + "}");
+
+    // On the clock of the device, the token expired 50 minutes ago.
+    Assert.assertTrue (this.validator_.needsRefresh (token));
+
+    // The issue time of the token, when it arrives, sets the clock of the server.
+    this.validator_.onTokenIssued (token);
+
+    Assert.assertFalse (this.validator_.needsRefresh (token));
+
+    long expiresIn = this.validator_.getExpiresAt (token) - System.currentTimeMillis ();
+    Assert.assertTrue (expiresIn > TimeUnit.SECONDS.toMillis (590));
+    Assert.assertTrue (expiresIn <= TimeUnit.SECONDS.toMillis (600));
+
+    // A token that expired on the clock of the server still needs a refresh.
+    String expired = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"exp\": " + (serverNow - 60) + "}");
+    Assert.assertTrue (this.validator_.needsRefresh (expired));
+  }
+
+  @Test
+  public void testSkewedClockDoesNotRefreshBeforeSend () throws Exception
+  {
+    GatekeeperDispatcher dispatcher =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .build ();
+
+    final List <String> sentTokens = Collections.synchronizedList (new ArrayList <String> ());
+
+    try (GatekeeperServer server = new GatekeeperServer (dispatcher))
+    {
+      server.start ();
+
+      OkHttpClient httpClient =
+          new OkHttpClient.Builder ()
+              .addNetworkInterceptor (chain -> {
+                sentTokens.add (chain.request ().header ("Authorization"));
+                return chain.proceed (chain.request ());
+              })
+              .build ();
+
+      InMemoryMetricsSink metrics = new InMemoryMetricsSink ();
+
+      SessionEngine engine =
+          new SessionEngine.Builder ()
+              .setProtocol (server.newProtocolBuilder ("client-id", "client-secret").setHttpClient (httpClient).build ())
+              .setTokenStore (new InMemoryTokenStore ())
+              .setMetricsSink (metrics)
+              .setTokenValidator (this.validator_)
+              .build ();
+
+      // The server issued the token on a clock that is an hour behind the device.
+      long serverNow = TimeUnit.MILLISECONDS.toSeconds (System.currentTimeMillis ()) - 3600;
+      String skewed = this.signRsa ("rsa", "{\"sub\": \"tester1\", \"iat\": " + serverNow + ", \"exp\": " + (serverNow + 600) + "}");
+
+      engine.setToken (new SessionToken ("tester1", skewed, "refresh-1"));
+
+      Request request = new Request.Builder ().url (server.url (GatekeeperDispatcher.ME_PATH)).build ();
+      engine.getUserClient ().newCall (request).execute ().close ();
+
+      // The token was sent as is, without a refresh first.
+      Assert.assertEquals ("Bearer " + skewed, sentTokens.get (0));
+      Assert.assertEquals (0, metrics.getCount (Counter.REFRESH_TOKEN_BEFORE_SEND));
+    }
+  }
+
+  private byte [] readKeySet () throws Exception
+  {
+    return Okio.buffer (Okio.source (this.keySetFile_)).readByteArray ();
+  }
+
+  private String signRsa (String keyId, String payload) throws Exception
+  {
+    String signingInput = encode ("{\"alg\": \"RS256\", \"kid\": \"" + keyId + "\"}") + "." + encode (payload);
+    byte [] signature = sign ("SHA256withRSA", this.rsaKeys_.getPrivate (), signingInput);
+
+    return signingInput + "." + ByteString.of (signature).base64Url ().replace ("=", "");
+  }
+
+  private String signEc (String keyId, String payload) throws Exception
+  {
+    String signingInput = encode ("{\"alg\": \"ES256\", \"kid\": \"" + keyId + "\"}") + "." + encode (payload);
+    byte [] signature = toRaw (sign ("SHA256withECDSA", this.ecKeys_.getPrivate (), signingInput), 32);
+
+    return signingInput + "." + ByteString.of (signature).base64Url ().replace ("=", "");
+  }
+
+  private static byte [] sign (String algorithm, PrivateKey key, String signingInput) throws Exception
+  {
+    Signature signer = Signature.getInstance (algorithm);
+    signer.initSign (key);
+    signer.update (signingInput.getBytes (UTF_8));
+
+    return signer.sign ();
+  }
+
+  /**
+   * Convert a DER signature of a P-256 key to the r and s halves used by JWS.
+   */
+  private static byte [] toRaw (byte [] der, int halfLength)
+  {
+    int rLength = der[3];
+    byte [] r = Arrays.copyOfRange (der, 4, 4 + rLength);
+    byte [] s = Arrays.copyOfRange (der, 6 + rLength, der.length);
+
+    byte [] raw = new byte[halfLength * 2];
+    copyUnsigned (new BigInteger (1, r), raw, 0, halfLength);
+    copyUnsigned (new BigInteger (1, s), raw, halfLength, halfLength);
+
+    return raw;
+  }
+
+  private static void copyUnsigned (BigInteger value, byte [] dest, int offset, int length)
+  {
+    byte [] bytes = value.toByteArray ();
+    int start = bytes.length > length ? bytes.length - length : 0;
+    int count = bytes.length - start;
+
+    System.arraycopy (bytes, start, dest, offset + length - count, count);
+  }
+
+  private static String encode (String json)
+  {
+    return ByteString.encodeUtf8 (json).base64Url ().replace ("=", "");
+  }
+
+  private static String base64Url (BigInteger value)
+  {
+    byte [] bytes = value.toByteArray ();
+
+    if (bytes[0] == 0 && bytes.length > 1)
+      bytes = Arrays.copyOfRange (bytes, 1, bytes.length);
+
+    return ByteString.of (bytes).base64Url ().replace ("=", "");
+  }
+}
@@ -0,0 +1,182 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class KioskSessionPoolTest
+{
+  private GatekeeperServer server_;
+
+  private InMemoryAccountStore accountStore_;
+
+  private SessionManager manager_;
+
+  private Outbox outbox_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    GatekeeperDispatcher dispatcher =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .addAccount ("tester2", "tester2", "tester2@gatekeeper.com")
+            .addAccount ("tester3", "tester3", "tester3@gatekeeper.com")
+            .build ();
+
+    this.server_ = new GatekeeperServer (dispatcher);
+    this.server_.start ();
+
+    this.accountStore_ = new InMemoryAccountStore ();
+
+    GatekeeperProtocol protocol = this.server_.newProtocol ("client-id", "client-secret");
+
+    this.manager_ =
+        new SessionManager.Builder ()
+            .setProtocol (protocol)
+            .setAccountStore (this.accountStore_)
+            .build ();
+
+    // The outbox is not started, so the queued messages stay in the store.
+    this.outbox_ =
+        new Outbox.Builder ()
+            .setProtocol (protocol)
+            .setStore (new InMemoryOutboxStore ())
+            .build ();
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.server_.close ();
+  }
+
+  private KioskSessionPool.Builder newPool ()
+  {
+    return new KioskSessionPool.Builder ()
+        .setSessionManager (this.manager_)
+        .setOutbox (this.outbox_);
+  }
+
+  @Test
+  public void testReturningUserSwitchesLocally () throws Exception
+  {
+    KioskSessionPool pool = this.newPool ().build ();
+
+    SessionEngine tester1 = pool.signIn ("tester1", "tester1");
+    pool.release ();
+
+    Assert.assertNull (this.manager_.getActive ());
+
+    pool.signIn ("tester2", "tester2");
+    pool.release ();
+
+    int requestCount = this.server_.getRequestCount ();
+
+    Assert.assertSame (tester1, pool.signIn ("tester1", "tester1"));
+    Assert.assertSame (tester1, this.manager_.getActive ());
+    Assert.assertEquals (requestCount, this.server_.getRequestCount ());
+  }
+
+  @Test
+  public void testWrongPasswordKeepsSession () throws Exception
+  {
+    KioskSessionPool pool = this.newPool ().build ();
+
+    SessionEngine tester1 = pool.signIn ("tester1", "tester1");
+    SessionToken token = tester1.getToken ();
+    pool.release ();
+
+    try
+    {
+      pool.signIn ("tester1", "wrong-password");
+      Assert.fail ();
+    }
+    catch (GatekeeperException e)
+    {
+      // Gatekeeper rejected the password.
+    }
+
+    Assert.assertNull (this.manager_.getActive ());
+    Assert.assertTrue (pool.contains ("tester1"));
+    Assert.assertEquals (token, tester1.getToken ());
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed () throws Exception
+  {
+    KioskSessionPool pool = this.newPool ().setCapacity (2).build ();
+
+    pool.signIn ("tester1", "tester1");
+    pool.release ();
+    pool.signIn ("tester2", "tester2");
+    pool.release ();
+
+    // Using tester1 again makes tester2 the least recently used.
+    pool.signIn ("tester1", "tester1");
+    pool.release ();
+    SessionToken token = this.manager_.getSession ("tester2").getToken ();
+    pool.signIn ("tester3", "tester3");
+
+    Assert.assertEquals (2, pool.size ());
+    Assert.assertFalse (pool.contains ("tester2"));
+    Assert.assertNull (this.manager_.getSession ("tester2"));
+    Assert.assertNull (this.accountStore_.getTokenStore (new SessionToken ("tester2", "a", "r")).load ());
+
+    // The token of the evicted session is revoked through the outbox.
+    Assert.assertEquals (1, this.outbox_.size ());
+
+    OutboxMessage logout = this.outbox_.getMessages ().get (0);
+
+    Assert.assertEquals (Outbox.LOGOUT_PATH, logout.getPath ());
+    Assert.assertEquals ("tester2", logout.getUsername ());
+    Assert.assertEquals (token.getAccessToken (), logout.getAccessToken ());
+    Assert.assertEquals (token.getRefreshToken (), logout.getRefreshToken ());
+  }
+
+  @Test
+  public void testEvictIdle () throws Exception
+  {
+    KioskSessionPool pool = this.newPool ().setIdleTimeout (1, TimeUnit.MINUTES).build ();
+
+    pool.signIn ("tester1", "tester1");
+    pool.release ();
+    pool.signIn ("tester2", "tester2");
+
+    pool.maintain (System.nanoTime () + TimeUnit.MINUTES.toNanos (2));
+
+    // The active session is not idle.
+    Assert.assertFalse (pool.contains ("tester1"));
+    Assert.assertNull (this.manager_.getSession ("tester1"));
+    Assert.assertTrue (pool.contains ("tester2"));
+  }
+
+  @Test
+  public void testRefreshReleasedSessions () throws Exception
+  {
+    KioskSessionPool pool = this.newPool ().setRefreshInterval (1, TimeUnit.MINUTES).build ();
+
+    SessionEngine tester1 = pool.signIn ("tester1", "tester1");
+    SessionToken token = tester1.getToken ();
+    pool.release ();
+
+    pool.maintain (System.nanoTime () + TimeUnit.MINUTES.toNanos (2));
+
+    Assert.assertNotEquals (token, tester1.getToken ());
+    Assert.assertEquals (1, this.server_.getDispatcher ().getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+
+    // The session is evicted once Gatekeeper no longer accepts it.
+    this.server_.getDispatcher ().disableAccount ("tester1");
+    pool.maintain (System.nanoTime () + TimeUnit.MINUTES.toNanos (4));
+
+    Assert.assertFalse (pool.contains ("tester1"));
+    Assert.assertNull (this.manager_.getSession ("tester1"));
+  }
+}
@@ -0,0 +1,326 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+
+public class OutboxTest
+{
+  private static final long MIN_BACKOFF = 1000;
+
+  private static final long MAX_BACKOFF = 8000;
+
+  private GatekeeperServer server_;
+
+  private GatekeeperDispatcher dispatcher_;
+
+  private GatekeeperProtocol protocol_;
+
+  private SessionEngine engine_;
+
+  private InMemoryOutboxStore store_;
+
+  private Outbox outbox_;
+
+  /// Number of password changes that fail with a 503 before the server handles them.
+  private final AtomicInteger unavailable_ = new AtomicInteger ();
+
+  /// Number of password changes whose response is lost after the server handles them.
+  private final AtomicInteger lostResponses_ = new AtomicInteger ();
+
+  private final List <String> events_ = Collections.synchronizedList (new ArrayList <String> ());
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.dispatcher_ =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .addFault (request -> {
+              if (request.getPath ().equals (GatekeeperDispatcher.PASSWORD_PATH) && this.unavailable_.getAndDecrement () > 0)
+                return new MockResponse ().setResponseCode (503);
+
+              return null;
+            })
+            .build ();
+
+    this.server_ = new GatekeeperServer (this.dispatcher_);
+    this.server_.start ();
+
+    OkHttpClient httpClient =
+        new OkHttpClient.Builder ()
+            .addNetworkInterceptor (chain -> {
+              Response response = chain.proceed (chain.request ());
+
+              if (chain.request ().url ().encodedPath ().equals (GatekeeperDispatcher.PASSWORD_PATH) && this.lostResponses_.getAndDecrement () > 0)
+              {
+                response.close ();
+                throw new IOException ("The connection was reset");
+              }
+
+              return response;
+            })
+            .build ();
+
+    this.protocol_ =
+        this.server_.newProtocolBuilder ("client-id", "client-secret")
+            .setHttpClient (httpClient)
+            .build ();
+
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (this.protocol_)
+            .setTokenStore (new InMemoryTokenStore ())
+            .build ();
+
+    this.engine_.signIn ("tester1", "tester1");
+
+    this.store_ = new InMemoryOutboxStore ();
+
+    this.outbox_ =
+        new Outbox.Builder ()
+            .setProtocol (this.protocol_)
+            .setStore (this.store_)
+            .setSessionEngine (this.engine_)
+            .setBackoff (MIN_BACKOFF, MAX_BACKOFF, TimeUnit.MILLISECONDS)
+            .build ();
+
+    this.outbox_.addListener (new OutboxListener ()
+    {
+      @Override
+      public void onDelivered (Outbox outbox, OutboxMessage message)
+      {
+        events_.add ("delivered " + message.getPath ());
+      }
+
+      @Override
+      public void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason)
+      {
+        events_.add ("rejected " + message.getPath () + " " + reason.getCode ());
+      }
+
+      @Override
+      public void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason)
+      {
+        events_.add ("retry " + message.getPath () + " " + message.getAttempts ());
+      }
+    });
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.outbox_.close ();
+    this.server_.close ();
+  }
+
+  @Test
+  public void testDeliverInOrder () throws Exception
+  {
+    this.outbox_.changePassword ("tester1", "tester1", "tester2");
+    this.outbox_.updateAccount ("tester1", newAccount ("tester1@example.com"));
+
+    Assert.assertEquals (2, this.outbox_.size ());
+    Assert.assertEquals (-1, this.outbox_.drainNow (System.currentTimeMillis ()));
+
+    Assert.assertEquals (0, this.outbox_.size ());
+    Assert.assertEquals ("tester1@example.com", this.dispatcher_.getEmail ("tester1"));
+    Assert.assertNotNull (this.protocol_.getUserToken ("tester1", "tester2"));
+
+    Assert.assertEquals (2, this.events_.size ());
+    Assert.assertEquals ("delivered " + Outbox.PASSWORD_PATH, this.events_.get (0));
+    Assert.assertEquals ("delivered " + Outbox.ME_PATH, this.events_.get (1));
+  }
+
+  @Test
+  public void testRetryWithBackoff () throws Exception
+  {
+    this.unavailable_.set (2);
+
+    this.outbox_.changePassword ("tester1", "tester1", "tester2");
+    this.outbox_.updateAccount ("tester1", newAccount ("tester1@example.com"));
+
+    long now = System.currentTimeMillis ();
+    long delay = this.outbox_.drainNow (now);
+
+    // The first retry waits between half of the minimum backoff and all of it, and
+    // the message behind it waits too.
+    Assert.assertTrue (delay >= MIN_BACKOFF / 2 && delay <= MIN_BACKOFF);
+    Assert.assertEquals (1, this.store_.loadAll ().get (0).getAttempts ());
+    Assert.assertEquals ("tester1@gatekeeper.com", this.dispatcher_.getEmail ("tester1"));
+
+    // The message is not sent again before its backoff ends.
+    Assert.assertEquals (delay, this.outbox_.drainNow (now));
+
+    now += delay;
+    delay = this.outbox_.drainNow (now);
+
+    Assert.assertTrue (delay >= MIN_BACKOFF && delay <= MIN_BACKOFF * 2);
+    Assert.assertEquals (2, this.store_.loadAll ().get (0).getAttempts ());
+
+    // The device is back online, so the messages are sent without waiting.
+    this.outbox_.retryNow ();
+    Assert.assertEquals (-1, this.outbox_.drainNow (now));
+
+    Assert.assertEquals ("tester1@example.com", this.dispatcher_.getEmail ("tester1"));
+    Assert.assertEquals ("retry " + Outbox.PASSWORD_PATH + " 1", this.events_.get (0));
+    Assert.assertEquals ("retry " + Outbox.PASSWORD_PATH + " 2", this.events_.get (1));
+    Assert.assertEquals ("delivered " + Outbox.PASSWORD_PATH, this.events_.get (2));
+  }
+
+  @Test
+  public void testBackoffLimit ()
+  {
+    for (int attempts = 0; attempts < 64; ++ attempts)
+    {
+      long delay = this.outbox_.getBackoff (attempts);
+      Assert.assertTrue (delay > 0 && delay <= MAX_BACKOFF);
+    }
+
+    Assert.assertTrue (this.outbox_.getBackoff (10) >= MAX_BACKOFF / 2);
+  }
+
+  @Test
+  public void testLostResponse () throws Exception
+  {
+    // The server changes the password, but the responses do not reach the client.
+    // OkHttp, and then the outbox, send the request again with the same idempotency
+    // key, so the server does not check the old password against the new one.
+    this.lostResponses_.set (2);
+
+    this.outbox_.changePassword ("tester1", "tester1", "tester2");
+    long now = System.currentTimeMillis ();
+    long delay;
+
+    while ((delay = this.outbox_.drainNow (now)) != -1)
+      now += delay;
+
+    Assert.assertTrue (this.dispatcher_.getReplayCount () >= 1);
+    Assert.assertEquals ("delivered " + Outbox.PASSWORD_PATH, this.events_.get (this.events_.size () - 1));
+    Assert.assertNotNull (this.protocol_.getUserToken ("tester1", "tester2"));
+  }
+
+  @Test
+  public void testRejected () throws Exception
+  {
+    this.outbox_.changePassword ("tester1", "wrong", "tester2");
+    this.outbox_.updateAccount ("tester1", newAccount ("tester1@example.com"));
+
+    Assert.assertEquals (-1, this.outbox_.drainNow (System.currentTimeMillis ()));
+
+    // The rejected message does not hold up the next one.
+    Assert.assertEquals ("rejected " + Outbox.PASSWORD_PATH + " invalid_password", this.events_.get (0));
+    Assert.assertEquals ("delivered " + Outbox.ME_PATH, this.events_.get (1));
+    Assert.assertEquals (0, this.outbox_.size ());
+  }
+
+  @Test
+  public void testLogoutAfterSignOut () throws Exception
+  {
+    SessionToken token = this.engine_.getToken ();
+
+    // The user changes their email, and signs out, while the device is offline.
+    this.outbox_.updateAccount ("tester1", newAccount ("tester1@example.com"));
+    this.outbox_.logout (token);
+    this.engine_.signOut ();
+
+    // The update is sent with the token carried by the logout.
+    this.dispatcher_.expireTokens ();
+    Assert.assertEquals (-1, this.outbox_.drainNow (System.currentTimeMillis ()));
+
+    Assert.assertEquals ("delivered " + Outbox.ME_PATH, this.events_.get (0));
+    Assert.assertEquals ("delivered " + Outbox.LOGOUT_PATH, this.events_.get (1));
+    Assert.assertEquals ("tester1@example.com", this.dispatcher_.getEmail ("tester1"));
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+
+    // The refreshed token was revoked by the logout.
+    try
+    {
+      this.protocol_.refreshToken (token.getRefreshToken ());
+      Assert.fail ();
+    }
+    catch (GatekeeperException e)
+    {
+      Assert.assertEquals (400, e.getStatusCode ());
+    }
+  }
+
+  @Test
+  public void testNotSignedIn () throws Exception
+  {
+    this.engine_.signOut ();
+    this.outbox_.updateAccount ("tester1", newAccount ("tester1@example.com"));
+
+    Assert.assertEquals (-1, this.outbox_.drainNow (System.currentTimeMillis ()));
+    Assert.assertEquals ("rejected " + Outbox.ME_PATH + " not_signed_in", this.events_.get (0));
+  }
+
+  @Test
+  public void testDrainInBackground () throws Exception
+  {
+    CountDownLatch delivered = new CountDownLatch (1);
+
+    this.outbox_.addListener (new OutboxListener ()
+    {
+      @Override
+      public void onDelivered (Outbox outbox, OutboxMessage message)
+      {
+        delivered.countDown ();
+      }
+
+      @Override
+      public void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason)
+      {
+
+      }
+
+      @Override
+      public void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason)
+      {
+
+      }
+    });
+
+    // The message left by an earlier process is sent when the outbox starts.
+    this.unavailable_.set (1);
+    this.outbox_.changePassword ("tester1", "tester1", "tester2");
+    this.outbox_.start ();
+
+    Assert.assertTrue (delivered.await (5, TimeUnit.SECONDS));
+    Assert.assertEquals (0, this.outbox_.size ());
+
+    Request request = new Request.Builder ().url (this.server_.url (GatekeeperDispatcher.ME_PATH)).build ();
+
+    try (Response response = this.engine_.getUserClient ().newCall (request).execute ())
+    {
+      Assert.assertEquals (200, response.code ());
+    }
+  }
+
+  private static JsonAccount newAccount (String email)
+  {
+    JsonAccount account = new JsonAccount ();
+    account.email = email;
+
+    return account;
+  }
+}
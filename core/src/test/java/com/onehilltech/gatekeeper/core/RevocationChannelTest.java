@@ -0,0 +1,224 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+
+public class RevocationChannelTest
+{
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private GatekeeperServer server_;
+
+  private GatekeeperDispatcher dispatcher_;
+
+  private SessionEngine engine_;
+
+  private RevocationChannel channel_;
+
+  /// The server does not have the endpoint for the channel.
+  private volatile boolean unsupported_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.dispatcher_ =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .addFault (request -> {
+              if (this.unsupported_ && request.getPath ().equals (GatekeeperDispatcher.EVENTS_PATH))
+                return new MockResponse ().setResponseCode (404);
+
+              return null;
+            })
+            .build ();
+
+    this.server_ = new GatekeeperServer (this.dispatcher_);
+    this.server_.start ();
+
+    GatekeeperProtocol protocol = this.server_.newProtocol ("client-id", "client-secret");
+
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (protocol)
+            .setTokenStore (new InMemoryTokenStore ())
+            .build ();
+
+    this.engine_.signIn ("tester1", "tester1");
+
+    this.channel_ =
+        new RevocationChannel.Builder ()
+            .setSessionEngine (this.engine_)
+            .setBackoff (100, 1000, TimeUnit.MILLISECONDS)
+            .build ();
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.channel_.close ();
+    this.server_.close ();
+  }
+
+  @Test
+  public void testRevocationIsPushed () throws Exception
+  {
+    CountDownLatch reauthenticate = new CountDownLatch (1);
+    AtomicReference <GatekeeperException> reason = new AtomicReference<> ();
+
+    this.engine_.addListener (new SessionListener ()
+    {
+      @Override
+      public void onSignedIn (SessionEngine engine, SessionToken token)
+      {
+
+      }
+
+      @Override
+      public void onSignedOut (SessionEngine engine)
+      {
+
+      }
+
+      @Override
+      public void onReauthenticate (SessionEngine engine, GatekeeperException e)
+      {
+        reason.set (e);
+        reauthenticate.countDown ();
+      }
+    });
+
+    this.channel_.start ();
+    this.waitForChannels (1);
+
+    // The client learns of the revocation without sending a request.
+    this.dispatcher_.disableTokens ("tester1");
+
+    Assert.assertTrue (reauthenticate.await (TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    Assert.assertEquals (403, reason.get ().getStatusCode ());
+    Assert.assertEquals ("token_disabled", reason.get ().getCode ());
+    Assert.assertNotNull (reason.get ().getResponseBody ());
+
+    // The channel stays closed until a user signs in again.
+    this.waitForChannels (0);
+    Assert.assertFalse (this.channel_.isConnected ());
+    Assert.assertEquals (0, this.dispatcher_.getUnauthorizedCount ());
+
+    this.engine_.signOut ();
+    this.engine_.signIn ("tester1", "tester1");
+
+    this.waitForChannels (1);
+    Assert.assertEquals (2, this.dispatcher_.getChannelOpenCount ());
+  }
+
+  @Test
+  public void testForcedRefresh () throws Exception
+  {
+    CountDownLatch refreshed = new CountDownLatch (1);
+    this.engine_.addTokenRefreshListener ((engine, token) -> refreshed.countDown ());
+
+    String accessToken = this.engine_.getToken ().getAccessToken ();
+
+    this.channel_.start ();
+    this.waitForChannels (1);
+
+    this.dispatcher_.pushRefresh ("tester1");
+
+    Assert.assertTrue (refreshed.await (TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    Assert.assertNotEquals (accessToken, this.engine_.getToken ().getAccessToken ());
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+
+    // The channel is moved to the refreshed token without reconnecting.
+    this.waitForChannelToken (this.engine_.getToken ().getAccessToken ());
+    Assert.assertEquals (1, this.dispatcher_.getChannelOpenCount ());
+  }
+
+  @Test
+  public void testRotateWithoutReconnecting () throws Exception
+  {
+    this.channel_.start ();
+    this.waitForChannels (1);
+
+    // The token is refreshed for a rejected request, not because of the channel.
+    this.dispatcher_.expireTokens ();
+
+    Request request = new Request.Builder ().url (this.server_.url (GatekeeperDispatcher.ME_PATH)).build ();
+
+    try (Response response = this.engine_.getUserClient ().newCall (request).execute ())
+    {
+      Assert.assertEquals (200, response.code ());
+    }
+
+    this.waitForChannelToken (this.engine_.getToken ().getAccessToken ());
+
+    Assert.assertEquals (1, this.dispatcher_.getChannelAuthenticateCount ());
+    Assert.assertEquals (1, this.dispatcher_.getChannelOpenCount ());
+  }
+
+  @Test
+  public void testSignOut () throws Exception
+  {
+    this.channel_.start ();
+    this.waitForChannels (1);
+
+    this.engine_.signOut ();
+    this.waitForChannels (0);
+
+    Assert.assertFalse (this.channel_.isConnected ());
+  }
+
+  @Test
+  public void testUnsupported () throws Exception
+  {
+    this.unsupported_ = true;
+    this.channel_.start ();
+
+    long deadline = System.currentTimeMillis () + TIMEOUT_MILLIS;
+
+    while (this.channel_.isConnected () && System.currentTimeMillis () < deadline)
+      Thread.sleep (10);
+
+    // The channel does not try again after the server says it has no channel.
+    Thread.sleep (500);
+
+    Assert.assertFalse (this.channel_.isConnected ());
+    Assert.assertEquals (0, this.dispatcher_.getChannelOpenCount ());
+    Assert.assertEquals (1, this.dispatcher_.getFaultCount ());
+  }
+
+  private void waitForChannels (int count)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis () + TIMEOUT_MILLIS;
+
+    while (this.dispatcher_.getChannelCount () != count && System.currentTimeMillis () < deadline)
+      Thread.sleep (10);
+
+    Assert.assertEquals (count, this.dispatcher_.getChannelCount ());
+  }
+
+  private void waitForChannelToken (String accessToken)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis () + TIMEOUT_MILLIS;
+
+    while (!this.dispatcher_.getChannelTokens ("tester1").equals (Collections.singletonList (accessToken)) && System.currentTimeMillis () < deadline)
+      Thread.sleep (10);
+
+    Assert.assertEquals (Collections.singletonList (accessToken), this.dispatcher_.getChannelTokens ("tester1"));
+  }
+}
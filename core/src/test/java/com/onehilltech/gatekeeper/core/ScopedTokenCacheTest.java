@@ -0,0 +1,154 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class ScopedTokenCacheTest
+{
+  private GatekeeperServer server_;
+
+  private GatekeeperDispatcher dispatcher_;
+
+  private SessionEngine engine_;
+
+  /// The last request that reached the server.
+  private final AtomicReference <Request> lastRequest_ = new AtomicReference<> ();
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.dispatcher_ =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .build ();
+
+    this.server_ = new GatekeeperServer (this.dispatcher_);
+    this.server_.start ();
+
+    OkHttpClient httpClient =
+        new OkHttpClient.Builder ()
+            .addNetworkInterceptor (chain -> {
+              this.lastRequest_.set (chain.request ());
+              return chain.proceed (chain.request ());
+            })
+            .build ();
+
+    GatekeeperProtocol protocol =
+        this.server_.newProtocolBuilder ("client-id", "client-secret")
+            .setHttpClient (httpClient)
+            .build ();
+
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (protocol)
+            .setTokenStore (new InMemoryTokenStore ())
+            .setScopedTokenCacheSize (2)
+            .build ();
+
+    this.engine_.signIn ("tester1", "tester1");
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.server_.close ();
+  }
+
+  @Test
+  public void testScopedRequest () throws Exception
+  {
+    Assert.assertEquals (200, this.getMe (TokenScope.of ("write:b", "read:a"), null));
+    Assert.assertEquals ("read:a write:b", this.dispatcher_.getTokenScope (this.getSentToken ()));
+
+    // The header picks the same scope, so the token is reused.
+    String scopedToken = this.getSentToken ();
+
+    Assert.assertEquals (200, this.getMe (null, "read:a  write:b"));
+    Assert.assertEquals (scopedToken, this.getSentToken ());
+    Assert.assertNull (this.lastRequest_.get ().header (TokenScope.HEADER));
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_TOKEN_EXCHANGE));
+
+    // A request without a scope is sent with the token of the user.
+    Assert.assertEquals (200, this.getMe (null, null));
+    Assert.assertEquals (this.engine_.getToken ().getAccessToken (), this.getSentToken ());
+  }
+
+  @Test
+  public void testExpiredScopedToken () throws Exception
+  {
+    TokenScope scope = TokenScope.of ("read:a");
+
+    Assert.assertEquals (200, this.getMe (scope, null));
+    String scopedToken = this.getSentToken ();
+
+    // Both the downscoped token and the token of the user have expired, so the
+    // token of the user is refreshed before a new downscoped token is minted.
+    this.dispatcher_.expireTokens ();
+
+    Assert.assertEquals (200, this.getMe (scope, null));
+    Assert.assertNotEquals (scopedToken, this.getSentToken ());
+    Assert.assertEquals ("read:a", this.dispatcher_.getTokenScope (this.getSentToken ()));
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed () throws Exception
+  {
+    this.getMe (TokenScope.of ("a"), null);
+    this.getMe (TokenScope.of ("b"), null);
+    this.getMe (TokenScope.of ("a"), null);
+    this.getMe (TokenScope.of ("c"), null);
+
+    Assert.assertEquals (2, this.engine_.getScopedTokenCache ().size ());
+    Assert.assertEquals (3, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_TOKEN_EXCHANGE));
+
+    // The scope b was evicted, but a was not.
+    this.getMe (TokenScope.of ("a"), null);
+    Assert.assertEquals (3, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_TOKEN_EXCHANGE));
+
+    this.getMe (TokenScope.of ("b"), null);
+    Assert.assertEquals (4, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_TOKEN_EXCHANGE));
+  }
+
+  @Test
+  public void testSignOutClearsCache () throws Exception
+  {
+    this.getMe (TokenScope.of ("a"), null);
+    this.engine_.signOut ();
+
+    Assert.assertEquals (0, this.engine_.getScopedTokenCache ().size ());
+  }
+
+  private int getMe (TokenScope scope, String header) throws Exception
+  {
+    Request.Builder builder = new Request.Builder ().url (this.server_.url (GatekeeperDispatcher.ME_PATH));
+
+    if (scope != null)
+      builder.tag (TokenScope.class, scope);
+
+    if (header != null)
+      builder.header (TokenScope.HEADER, header);
+
+    try (Response response = this.engine_.getUserClient ().newCall (builder.build ()).execute ())
+    {
+      return response.code ();
+    }
+  }
+
+  private String getSentToken ()
+  {
+    return this.lastRequest_.get ().header ("Authorization").substring ("Bearer ".length ());
+  }
+}
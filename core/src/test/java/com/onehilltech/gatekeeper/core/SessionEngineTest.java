@@ -0,0 +1,242 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.InMemoryMetricsSink;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class SessionEngineTest
+{
+  private MockWebServer server_;
+
+  private InMemoryTokenStore tokenStore_;
+
+  private InMemoryMetricsSink metrics_;
+
+  private SessionEngine engine_;
+
+  /// The access token the server accepts.
+  private final AtomicReference <String> validToken_ = new AtomicReference<> ();
+
+  private final AtomicInteger tokenCount_ = new AtomicInteger ();
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.server_ = new MockWebServer ();
+    this.server_.setDispatcher (new Dispatcher ()
+    {
+      @Override
+      public MockResponse dispatch (RecordedRequest request)
+      {
+        String path = request.getPath ();
+
+        if (path.equals ("/v1/oauth2/token"))
+        {
+          int count = tokenCount_.incrementAndGet ();
+          String accessToken = "access-" + count;
+          validToken_.set (accessToken);
+
+          return new MockResponse ().setBody (
+              "{\"token_type\": \"Bearer\", \"access_token\": \"" + accessToken + "\", \"refresh_token\": \"refresh-" + count + "\"}");
+        }
+        else if (path.equals ("/v1/accounts/me"))
+        {
+          if (!("Bearer " + validToken_.get ()).equals (request.getHeader ("Authorization")))
+            return new MockResponse ().setResponseCode (401);
+
+          return new MockResponse ().setBody ("{\"account\": {}}");
+        }
+        else if (path.equals ("/v1/accounts/disabled"))
+        {
+          return new MockResponse ().setResponseCode (403).setBody (
+              "{\"errors\": {\"code\": \"account_disabled\", \"message\": \"The account is disabled\"}}");
+        }
+
+        return new MockResponse ().setResponseCode (404);
+      }
+    });
+
+    this.server_.start ();
+
+    ClientMetadata metadata =
+        new ClientMetadata.Builder ()
+            .setClientId ("client-id")
+            .setClientSecret ("client-secret")
+            .setBaseUrl (this.server_.url ("/").toString ())
+            .setPackageName ("com.onehilltech.gatekeeper.core.test")
+            .build ();
+
+    this.tokenStore_ = new InMemoryTokenStore ();
+    this.metrics_ = new InMemoryMetricsSink ();
+
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (new GatekeeperProtocol.Builder ().setMetadata (metadata).build ())
+            .setTokenStore (this.tokenStore_)
+            .setMetricsSink (this.metrics_)
+            .build ();
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.server_.shutdown ();
+  }
+
+  @Test
+  public void testSignIn () throws Exception
+  {
+    SessionToken token = this.engine_.signIn ("tester1", "tester1");
+
+    Assert.assertEquals ("tester1", token.getUsername ());
+    Assert.assertEquals ("access-1", token.getAccessToken ());
+    Assert.assertEquals (token, this.tokenStore_.load ());
+    Assert.assertEquals (1, this.metrics_.getCount (Counter.SIGN_IN));
+
+    Assert.assertEquals (200, this.getMe ());
+
+    this.engine_.signOut ();
+
+    Assert.assertFalse (this.engine_.isSignedIn ());
+    Assert.assertNull (this.tokenStore_.load ());
+  }
+
+  @Test
+  public void testSignInFailed () throws Exception
+  {
+    this.server_.setDispatcher (new Dispatcher ()
+    {
+      @Override
+      public MockResponse dispatch (RecordedRequest request)
+      {
+        return new MockResponse ().setResponseCode (400).setBody (
+            "{\"errors\": {\"code\": \"invalid_password\", \"message\": \"The password is not valid\"}}");
+      }
+    });
+
+    try
+    {
+      this.engine_.signIn ("tester1", "wrong");
+      Assert.fail ();
+    }
+    catch (GatekeeperException e)
+    {
+      Assert.assertEquals (400, e.getStatusCode ());
+      Assert.assertEquals ("invalid_password", e.getCode ());
+      Assert.assertEquals ("The password is not valid", e.getMessage ());
+    }
+
+    Assert.assertFalse (this.engine_.isSignedIn ());
+    Assert.assertEquals (1, this.metrics_.getCount (Counter.SIGN_IN_FAILED));
+  }
+
+  @Test
+  public void testRefreshIsCoalesced () throws Exception
+  {
+    this.engine_.signIn ("tester1", "tester1");
+
+    // Expire the token on the server.
+    this.validToken_.set ("expired");
+
+    ExecutorService executor = Executors.newFixedThreadPool (8);
+    ArrayList <Future <Integer>> results = new ArrayList<> ();
+
+    for (int i = 0; i < 8; ++ i)
+      results.add (executor.submit (this::getMe));
+
+    for (Future <Integer> result: results)
+      Assert.assertEquals (200, (int)result.get ());
+
+    executor.shutdown ();
+
+    // The sign in, and a single refresh.
+    Assert.assertEquals (2, this.tokenCount_.get ());
+    Assert.assertEquals (1, this.metrics_.getCount (Counter.REFRESH_TOKEN));
+    Assert.assertEquals ("access-2", this.tokenStore_.load ().getAccessToken ());
+  }
+
+  @Test
+  public void testRefreshAfterSignOutInStore () throws Exception
+  {
+    SessionToken token = this.engine_.signIn ("tester1", "tester1");
+
+    // Another client signs out the user without telling the engine.
+    this.tokenStore_.delete (token);
+
+    Assert.assertNull (this.engine_.refreshToken ());
+    Assert.assertFalse (this.engine_.isSignedIn ());
+    Assert.assertNull (this.tokenStore_.load ());
+  }
+
+  @Test
+  public void testReauthenticate () throws Exception
+  {
+    final AtomicReference <GatekeeperException> reason = new AtomicReference<> ();
+
+    this.engine_.addListener (new SessionListener ()
+    {
+      @Override
+      public void onSignedIn (SessionEngine engine, SessionToken token)
+      {
+
+      }
+
+      @Override
+      public void onSignedOut (SessionEngine engine)
+      {
+
+      }
+
+      @Override
+      public void onReauthenticate (SessionEngine engine, GatekeeperException e)
+      {
+        reason.set (e);
+      }
+    });
+
+    this.engine_.signIn ("tester1", "tester1");
+
+    Request request = new Request.Builder ().url (this.server_.url ("/v1/accounts/disabled")).build ();
+
+    try (Response response = this.engine_.getUserClient ().newCall (request).execute ())
+    {
+      Assert.assertEquals (403, response.code ());
+
+      // The body is still available to the caller.
+      Assert.assertTrue (response.body ().string ().contains ("account_disabled"));
+    }
+
+    Assert.assertNotNull (reason.get ());
+    Assert.assertEquals ("account_disabled", reason.get ().getCode ());
+    Assert.assertEquals (1, this.metrics_.getCount (Counter.FORBIDDEN));
+  }
+
+  private int getMe () throws IOException
+  {
+    Request request = new Request.Builder ().url (this.server_.url ("/v1/accounts/me")).build ();
+
+    try (Response response = this.engine_.getUserClient ().newCall (request).execute ())
+    {
+      return response.code ();
+    }
+  }
+}
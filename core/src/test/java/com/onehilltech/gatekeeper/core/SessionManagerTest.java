@@ -0,0 +1,129 @@
+package com.onehilltech.gatekeeper.core;
+
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class SessionManagerTest
+{
+  private GatekeeperServer server_;
+
+  private GatekeeperProtocol protocol_;
+
+  private InMemoryAccountStore accountStore_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    GatekeeperDispatcher dispatcher =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .addAccount ("tester2", "tester2", "tester2@gatekeeper.com")
+            .build ();
+
+    this.server_ = new GatekeeperServer (dispatcher);
+    this.server_.start ();
+
+    this.protocol_ = this.server_.newProtocol ("client-id", "client-secret");
+    this.accountStore_ = new InMemoryAccountStore ();
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.server_.close ();
+  }
+
+  private SessionManager newManager ()
+  {
+    return new SessionManager.Builder ()
+        .setProtocol (this.protocol_)
+        .setAccountStore (this.accountStore_)
+        .build ();
+  }
+
+  @Test
+  public void testSwitchAccounts () throws Exception
+  {
+    SessionManager manager = this.newManager ();
+
+    SessionEngine tester1 = manager.signIn ("tester1", "tester1");
+    SessionEngine tester2 = manager.signIn ("tester2", "tester2");
+
+    // The first account to sign in is the active account.
+    Assert.assertSame (tester1, manager.getActive ());
+    Assert.assertEquals (2, manager.getAccounts ().size ());
+
+    int requestCount = this.server_.getRequestCount ();
+
+    Assert.assertSame (tester2, manager.switchTo ("tester2"));
+    Assert.assertSame (tester2, manager.getActive ());
+    Assert.assertEquals ("tester2", this.accountStore_.loadActive ());
+
+    // Switching does not talk to the server.
+    Assert.assertEquals (requestCount, this.server_.getRequestCount ());
+
+    // Each account sends its own token, over the shared connection pool.
+    Assert.assertEquals (200, this.getMe (tester1));
+    Assert.assertEquals (200, this.getMe (tester2));
+    Assert.assertSame (tester1.getUserClient ().connectionPool (), tester2.getUserClient ().connectionPool ());
+  }
+
+  @Test
+  public void testReload () throws Exception
+  {
+    SessionManager manager = this.newManager ();
+    manager.signIn ("tester1", "tester1");
+    manager.signIn ("tester2", "tester2");
+    manager.switchTo ("tester2");
+
+    SessionManager reloaded = this.newManager ();
+
+    Assert.assertEquals (manager.getAccounts (), reloaded.getAccounts ());
+    Assert.assertEquals ("tester2", reloaded.getActive ().getToken ().getUsername ());
+    Assert.assertEquals (200, this.getMe (reloaded.getSession ("tester1")));
+  }
+
+  @Test
+  public void testSignOut () throws Exception
+  {
+    SessionManager manager = this.newManager ();
+    manager.signIn ("tester1", "tester1");
+    manager.signIn ("tester2", "tester2");
+
+    manager.signOut ("tester1");
+
+    Assert.assertNull (manager.getActive ());
+    Assert.assertNull (manager.getSession ("tester1"));
+    Assert.assertNull (this.accountStore_.loadActive ());
+    Assert.assertEquals (1, this.accountStore_.loadAll ().size ());
+
+    try
+    {
+      manager.switchTo ("tester1");
+      Assert.fail ();
+    }
+    catch (IllegalArgumentException e)
+    {
+      // The account is signed out.
+    }
+  }
+
+  private int getMe (SessionEngine engine) throws Exception
+  {
+    Request request = new Request.Builder ().url (this.server_.url (GatekeeperDispatcher.ME_PATH)).build ();
+
+    try (Response response = engine.getUserClient ().newCall (request).execute ())
+    {
+      return response.code ();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class SessionSnapshotTest
+{
+  private static final SessionSnapshot SNAPSHOT =
+      new SessionSnapshot (new SessionToken ("tester1", "access-1", "refresh-1"), "5a1b2c3d");
+
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder ();
+
+  private File file_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.file_ = new File (this.folder_.getRoot (), "session.snapshot");
+  }
+
+  @Test
+  public void testReadMissing ()
+  {
+    Assert.assertNull (SessionSnapshot.read (this.file_));
+  }
+
+  @Test
+  public void testWriteRead () throws Exception
+  {
+    SNAPSHOT.write (this.file_);
+    Assert.assertEquals (SNAPSHOT, SessionSnapshot.read (this.file_));
+
+    SessionSnapshot snapshot = new SessionSnapshot (new SessionToken ("tester1", "access-1", null), null);
+    snapshot.write (this.file_);
+    Assert.assertEquals (snapshot, SessionSnapshot.read (this.file_));
+
+    SessionSnapshot.delete (this.file_);
+    Assert.assertNull (SessionSnapshot.read (this.file_));
+  }
+
+  @Test
+  public void testWithToken ()
+  {
+    SessionToken refreshed = new SessionToken ("tester1", "access-2", "refresh-2");
+    Assert.assertEquals ("5a1b2c3d", SNAPSHOT.withToken (refreshed).getUserId ());
+
+    SessionToken other = new SessionToken ("tester2", "access-2", "refresh-2");
+    Assert.assertNull (SNAPSHOT.withToken (other).getUserId ());
+  }
+
+  @Test
+  public void testTruncated () throws Exception
+  {
+    SNAPSHOT.write (this.file_);
+
+    try (RandomAccessFile file = new RandomAccessFile (this.file_, "rw"))
+    {
+      file.setLength (file.length () - 3);
+    }
+
+    Assert.assertNull (SessionSnapshot.read (this.file_));
+  }
+
+  @Test
+  public void testCorrupt () throws Exception
+  {
+    SNAPSHOT.write (this.file_);
+
+    try (RandomAccessFile file = new RandomAccessFile (this.file_, "rw"))
+    {
+      file.seek (12);
+      file.write ('X');
+    }
+
+    Assert.assertNull (SessionSnapshot.read (this.file_));
+  }
+}
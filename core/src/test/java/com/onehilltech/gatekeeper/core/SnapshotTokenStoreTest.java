@@ -0,0 +1,166 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class SnapshotTokenStoreTest
+{
+  private static final SessionToken TOKEN_1 = new SessionToken ("tester1", "access-1", "refresh-1");
+
+  private static final SessionToken TOKEN_2 = new SessionToken ("tester1", "access-2", "refresh-2");
+
+  private static final SessionToken OTHER_TOKEN = new SessionToken ("tester2", "access-3", "refresh-3");
+
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder ();
+
+  private File file_;
+
+  private InMemoryTokenStore store_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.file_ = new File (this.folder_.getRoot (), "session.snapshot");
+    this.store_ = new InMemoryTokenStore ();
+  }
+
+  @Test
+  public void testMirror ()
+  {
+    SnapshotTokenStore store = new SnapshotTokenStore (this.store_, this.file_);
+
+    store.save (TOKEN_1);
+    store.setUserId ("tester1", "5a1b2c3d");
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+
+    // The refreshed token keeps the user id.
+    Assert.assertEquals (new SessionSnapshot (TOKEN_2, "5a1b2c3d"), SessionSnapshot.read (this.file_));
+    Assert.assertEquals (TOKEN_2, this.store_.load ());
+
+    Assert.assertFalse (store.compareAndSwap (TOKEN_1, null));
+    Assert.assertEquals (TOKEN_2, SessionSnapshot.read (this.file_).getToken ());
+
+    store.delete (TOKEN_2);
+    Assert.assertFalse (this.file_.exists ());
+    Assert.assertNull (this.store_.load ());
+  }
+
+  @Test
+  public void testLoadFromSnapshot () throws Exception
+  {
+    new SessionSnapshot (TOKEN_1, null).write (this.file_);
+
+    // The other store is not used when there is a snapshot.
+    TokenStore unused = new InMemoryTokenStore ()
+    {
+      @Override
+      public SessionToken load ()
+      {
+        throw new AssertionError ("The store must not be loaded");
+      }
+    };
+
+    Assert.assertEquals (TOKEN_1, new SnapshotTokenStore (unused, this.file_).load ());
+  }
+
+  @Test
+  public void testLoadWithoutSnapshot ()
+  {
+    this.store_.save (TOKEN_1);
+
+    Assert.assertEquals (TOKEN_1, new SnapshotTokenStore (this.store_, this.file_).load ());
+    Assert.assertEquals (TOKEN_1, SessionSnapshot.read (this.file_).getToken ());
+  }
+
+  @Test
+  public void testSync ()
+  {
+    SnapshotTokenStore store = new SnapshotTokenStore (this.store_, this.file_);
+    store.save (TOKEN_1);
+
+    // Another client changed the token in the other store.
+    store.sync (TOKEN_2);
+    Assert.assertEquals (TOKEN_2, SessionSnapshot.read (this.file_).getToken ());
+
+    store.sync (null);
+    Assert.assertFalse (this.file_.exists ());
+  }
+
+  @Test
+  public void testFailedDelete ()
+  {
+    TokenStore failing = new InMemoryTokenStore ()
+    {
+      @Override
+      public void delete (SessionToken token)
+      {
+        throw new IllegalStateException ("The database is closed");
+      }
+    };
+
+    SnapshotTokenStore store = new SnapshotTokenStore (failing, this.file_);
+    store.save (TOKEN_1);
+
+    try
+    {
+      store.delete (TOKEN_1);
+      Assert.fail ();
+    }
+    catch (IllegalStateException e)
+    {
+      // The inner store failed.
+    }
+
+    // The snapshot was deleted first, so the token is loaded from the other store.
+    Assert.assertFalse (this.file_.exists ());
+    Assert.assertEquals (TOKEN_1, new SnapshotTokenStore (failing, this.file_).load ());
+  }
+
+  @Test
+  public void testFailedUserChange ()
+  {
+    TokenStore failing = new InMemoryTokenStore ()
+    {
+      @Override
+      public void save (SessionToken token)
+      {
+        if (token.getUsername ().equals (OTHER_TOKEN.getUsername ()))
+          throw new IllegalStateException ("The database is closed");
+
+        super.save (token);
+      }
+    };
+
+    SnapshotTokenStore store = new SnapshotTokenStore (failing, this.file_);
+    store.save (TOKEN_1);
+    store.setUserId ("tester1", "5a1b2c3d");
+
+    try
+    {
+      store.save (OTHER_TOKEN);
+      Assert.fail ();
+    }
+    catch (IllegalStateException e)
+    {
+      // The inner store failed.
+    }
+
+    Assert.assertFalse (this.file_.exists ());
+    Assert.assertEquals (TOKEN_1, store.load ());
+
+    // The token of the same user keeps the user id.
+    store.setUserId ("tester1", "5a1b2c3d");
+    store.save (TOKEN_2);
+    Assert.assertEquals (new SessionSnapshot (TOKEN_2, "5a1b2c3d"), SessionSnapshot.read (this.file_));
+
+    // The token of another user does not.
+    Assert.assertTrue (store.compareAndSwap (TOKEN_2, OTHER_TOKEN));
+    Assert.assertEquals (new SessionSnapshot (OTHER_TOKEN, null), SessionSnapshot.read (this.file_));
+  }
+}
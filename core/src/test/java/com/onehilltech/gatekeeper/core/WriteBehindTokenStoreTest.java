@@ -0,0 +1,219 @@
+package com.onehilltech.gatekeeper.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+public class WriteBehindTokenStoreTest
+{
+  private static final SessionToken TOKEN_1 = new SessionToken ("tester1", "access-1", "refresh-1");
+
+  private static final SessionToken TOKEN_2 = new SessionToken ("tester1", "access-2", "refresh-2");
+
+  private static final SessionToken TOKEN_3 = new SessionToken ("tester2", "access-3", "refresh-3");
+
+  /**
+   * Executor that runs its tasks when the test says so.
+   */
+  private static class ManualExecutor implements Executor
+  {
+    private final LinkedList <Runnable> tasks_ = new LinkedList<> ();
+
+    @Override
+    public void execute (Runnable command)
+    {
+      this.tasks_.add (command);
+    }
+
+    void runAll ()
+    {
+      while (!this.tasks_.isEmpty ())
+        this.tasks_.poll ().run ();
+    }
+  }
+
+  /**
+   * Store that counts the writes it receives.
+   */
+  private static class CountingTokenStore extends InMemoryTokenStore
+  {
+    int saveCount;
+
+    int deleteCount;
+
+    @Override
+    public void save (SessionToken token)
+    {
+      ++ this.saveCount;
+      super.save (token);
+    }
+
+    @Override
+    public void delete (SessionToken token)
+    {
+      ++ this.deleteCount;
+      super.delete (token);
+    }
+
+    @Override
+    public boolean compareAndSwap (SessionToken expected, SessionToken update)
+    {
+      if (!super.compareAndSwap (expected, update))
+        return false;
+
+      if (update != null)
+        ++ this.saveCount;
+      else
+        ++ this.deleteCount;
+
+      return true;
+    }
+  }
+
+  @Test
+  public void testWriteBehind ()
+  {
+    ManualExecutor executor = new ManualExecutor ();
+    CountingTokenStore backing = new CountingTokenStore ();
+    WriteBehindTokenStore store = new WriteBehindTokenStore (backing, executor);
+
+    store.save (TOKEN_1);
+
+    // The token is changed in memory before it is written.
+    Assert.assertEquals (TOKEN_1, store.load ());
+    Assert.assertNull (backing.load ());
+
+    executor.runAll ();
+    Assert.assertEquals (TOKEN_1, backing.load ());
+  }
+
+  @Test
+  public void testCoalesce ()
+  {
+    ManualExecutor executor = new ManualExecutor ();
+    CountingTokenStore backing = new CountingTokenStore ();
+    WriteBehindTokenStore store = new WriteBehindTokenStore (backing, executor);
+
+    store.save (TOKEN_1);
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+    Assert.assertFalse (store.compareAndSwap (TOKEN_1, null));
+
+    executor.runAll ();
+
+    Assert.assertEquals (1, backing.saveCount);
+    Assert.assertEquals (1, store.getCoalescedCount ());
+    Assert.assertEquals (TOKEN_2, backing.load ());
+
+    // A change for another user is not merged with the delete before it.
+    store.delete (TOKEN_2);
+    store.save (TOKEN_3);
+
+    executor.runAll ();
+
+    Assert.assertEquals (1, backing.deleteCount);
+    Assert.assertEquals (2, backing.saveCount);
+    Assert.assertEquals (TOKEN_3, backing.load ());
+  }
+
+  @Test
+  public void testDeleteRacesRefresh ()
+  {
+    ManualExecutor executor = new ManualExecutor ();
+    CountingTokenStore backing = new CountingTokenStore ();
+    backing.save (TOKEN_1);
+
+    WriteBehindTokenStore store = new WriteBehindTokenStore (backing, executor);
+
+    // The token is refreshed, and another client deletes the token before the
+    // refresh is written.
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+    backing.delete (TOKEN_1);
+
+    executor.runAll ();
+
+    // The refresh does not sign the user back in, and the store learns the token
+    // was deleted.
+    Assert.assertNull (backing.load ());
+    Assert.assertNull (store.load ());
+  }
+
+  @Test
+  public void testSignInDuringFailedWrite ()
+  {
+    ManualExecutor executor = new ManualExecutor ();
+    SessionToken signedIn = new SessionToken ("tester1", "access-4", "refresh-4");
+
+    final WriteBehindTokenStore [] store = new WriteBehindTokenStore[1];
+
+    CountingTokenStore backing = new CountingTokenStore ()
+    {
+      @Override
+      public boolean compareAndSwap (SessionToken expected, SessionToken update)
+      {
+        boolean swapped = super.compareAndSwap (expected, update);
+
+        // The user signs in again after the write failed, and before the store
+        // learned why.
+        if (!swapped)
+          store[0].save (signedIn);
+
+        return swapped;
+      }
+    };
+
+    backing.save (TOKEN_1);
+    store[0] = new WriteBehindTokenStore (backing, executor);
+
+    // Another client signs the user out before the refresh is written.
+    Assert.assertTrue (store[0].compareAndSwap (TOKEN_1, TOKEN_2));
+    backing.delete (TOKEN_1);
+
+    executor.runAll ();
+
+    // The new session is kept, in memory and in the other store.
+    Assert.assertEquals (signedIn, store[0].load ());
+    Assert.assertEquals (signedIn, backing.load ());
+  }
+
+  @Test
+  public void testReset ()
+  {
+    ManualExecutor executor = new ManualExecutor ();
+    CountingTokenStore backing = new CountingTokenStore ();
+    backing.save (TOKEN_1);
+
+    WriteBehindTokenStore store = new WriteBehindTokenStore (backing, executor);
+    Assert.assertTrue (store.compareAndSwap (TOKEN_1, TOKEN_2));
+
+    // Another client switches to another user, and the observer of the other store
+    // resets the store.
+    backing.save (TOKEN_3);
+    store.reset (TOKEN_3);
+
+    executor.runAll ();
+
+    Assert.assertEquals (TOKEN_3, backing.load ());
+    Assert.assertEquals (TOKEN_3, store.load ());
+
+    // A refresh that started with the token of the last user is not accepted.
+    Assert.assertFalse (store.compareAndSwap (TOKEN_2, new SessionToken ("tester1", "access-4", "refresh-4")));
+  }
+
+  @Test
+  public void testFlush () throws Exception
+  {
+    CountingTokenStore backing = new CountingTokenStore ();
+    WriteBehindTokenStore store = new WriteBehindTokenStore (backing);
+
+    for (int i = 0; i < 100; ++ i)
+      store.save (new SessionToken ("tester1", "access-" + i, "refresh-" + i));
+
+    store.delete (TOKEN_1);
+    store.flush ();
+
+    Assert.assertNull (backing.load ());
+    Assert.assertNull (store.load ());
+  }
+}
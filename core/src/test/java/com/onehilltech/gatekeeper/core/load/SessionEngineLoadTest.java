@@ -0,0 +1,125 @@
+package com.onehilltech.gatekeeper.core.load;
+
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.InMemoryMetricsSink;
+import com.onehilltech.gatekeeper.core.InMemoryTokenStore;
+import com.onehilltech.gatekeeper.core.SessionEngine;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperDispatcher;
+import com.onehilltech.gatekeeper.mockserver.GatekeeperServer;
+import com.onehilltech.gatekeeper.mockserver.load.LoadHarness;
+import com.onehilltech.gatekeeper.mockserver.load.LoadReport;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+
+/**
+ * Load tests for the user client of the SessionEngine against a server that issues
+ * short-lived tokens.
+ */
+public class SessionEngineLoadTest
+{
+  private GatekeeperServer server_;
+
+  private GatekeeperDispatcher dispatcher_;
+
+  private InMemoryMetricsSink metrics_;
+
+  private SessionEngine engine_;
+
+  private void startServer (long timeToLive, TimeUnit unit) throws Exception
+  {
+    this.dispatcher_ =
+        new GatekeeperDispatcher.Builder ()
+            .addClient ("client-id", "client-secret")
+            .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+            .setTokenTimeToLive (timeToLive, unit)
+            .build ();
+
+    this.server_ = new GatekeeperServer (this.dispatcher_);
+    this.server_.start ();
+
+    this.metrics_ = new InMemoryMetricsSink ();
+
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (this.server_.newProtocol ("client-id", "client-secret"))
+            .setTokenStore (new InMemoryTokenStore ())
+            .setMetricsSink (this.metrics_)
+            .build ();
+
+    this.engine_.signIn ("tester1", "tester1");
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    if (this.server_ != null)
+      this.server_.close ();
+  }
+
+  @Test
+  public void testOneRefreshForConcurrentExpiry () throws Exception
+  {
+    this.startServer (1, TimeUnit.MINUTES);
+    this.dispatcher_.expireTokens ();
+
+    LoadReport report =
+        this.newHarness ()
+            .setConcurrency (64)
+            .setRequestCount (256)
+            .build ()
+            .run ();
+
+    Assert.assertEquals (report.toString (), 0, report.getFailedCount ());
+
+    // All the requests that raced the expired token share a single refresh.
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+    Assert.assertEquals (1, this.metrics_.getCount (Counter.REFRESH_TOKEN));
+  }
+
+  @Test
+  public void testRefreshWithShortLivedTokens () throws Exception
+  {
+    // The tokens expire between the rounds of load, instead of on a timer, so the
+    // number of expiries does not depend on how fast the machine is.
+    final int rounds = 10;
+
+    this.startServer (1, TimeUnit.MINUTES);
+
+    for (int i = 0; i < rounds; ++ i)
+    {
+      this.dispatcher_.expireTokens ();
+
+      LoadReport report =
+          this.newHarness ()
+              .setConcurrency (32)
+              .setRequestCount (300)
+              .build ()
+              .run ();
+
+      Assert.assertEquals (report.toString (), 0, report.getFailedCount ());
+    }
+
+    // One refresh per expiry: no refresh token was used twice, and no token was
+    // refreshed before it expired.
+    Assert.assertEquals (rounds, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_REFRESH_TOKEN));
+    Assert.assertEquals (0, this.dispatcher_.getReusedRefreshTokenCount ());
+    Assert.assertEquals (0, this.dispatcher_.getEarlyRefreshCount ());
+    Assert.assertEquals (0, this.metrics_.getCount (Counter.REFRESH_TOKEN_FAILED));
+    Assert.assertEquals (rounds, this.metrics_.getCount (Counter.REFRESH_TOKEN));
+
+    Assert.assertEquals (1, this.dispatcher_.getGrantCount (GatekeeperDispatcher.GRANT_PASSWORD));
+  }
+
+  private LoadHarness.Builder newHarness ()
+  {
+    return new LoadHarness.Builder ()
+        .setClient (this.engine_.getUserClient ())
+        .setRequest (new Request.Builder ().url (this.server_.url (GatekeeperDispatcher.ME_PATH)).build ());
+  }
+}
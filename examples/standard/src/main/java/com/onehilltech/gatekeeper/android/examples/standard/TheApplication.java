@@ -18,6 +18,7 @@ public class TheApplication extends Application
             .openDatabasesOnInit (true)
             .build ());
 
-    Gatekeeper.initialize ();
+    // Open the Gatekeeper database off the main thread.
+    Gatekeeper.initializeAsync ();
   }
 }
@@ -0,0 +1,115 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
+import com.onehilltech.gatekeeper.core.Outbox;
+import com.onehilltech.gatekeeper.core.OutboxMessage;
+import com.raizlabs.android.dbflow.config.FlowManager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@RunWith (AndroidJUnit4.class)
+public class DbFlowOutboxStoreTest extends TestWithDatabase
+{
+  private static final String PASSWORD_BODY =
+      "{\"change-password\":{\"current_password\":\"tester1\",\"new_password\":\"tester2\"}}";
+
+  @Test
+  public void testPasswordIsNotWritten ()
+  {
+    DbFlowOutboxStore store = new DbFlowOutboxStore ();
+    OutboxMessage added = store.add (newMessage (Outbox.PASSWORD_PATH, PASSWORD_BODY));
+
+    // The entry keeps the place of the message, but not the passwords or the token.
+    Cursor cursor = this.queryOutbox ();
+
+    try
+    {
+      Assert.assertTrue (cursor.moveToFirst ());
+      Assert.assertEquals (Outbox.PASSWORD_PATH, cursor.getString (cursor.getColumnIndex ("path")));
+      Assert.assertTrue (cursor.isNull (cursor.getColumnIndex ("body")));
+      Assert.assertTrue (cursor.isNull (cursor.getColumnIndex ("access_token")));
+      Assert.assertTrue (cursor.isNull (cursor.getColumnIndex ("refresh_token")));
+    }
+    finally
+    {
+      cursor.close ();
+    }
+
+    // The body is in memory.
+    List <OutboxMessage> messages = store.loadAll ();
+
+    Assert.assertEquals (1, messages.size ());
+    Assert.assertEquals (added.getId (), messages.get (0).getId ());
+    Assert.assertEquals (PASSWORD_BODY, messages.get (0).getBody ());
+    Assert.assertEquals ("access-1", messages.get (0).getAccessToken ());
+
+    store.remove (added);
+    Assert.assertEquals (0, this.countOutbox ());
+  }
+
+  @Test
+  public void testLostPasswordIsRemoved ()
+  {
+    new DbFlowOutboxStore ().add (newMessage (Outbox.PASSWORD_PATH, PASSWORD_BODY));
+    new DbFlowOutboxStore ().add (newMessage (Outbox.ME_PATH, "{\"account\":{\"email\":\"tester1@example.com\"}}"));
+
+    // A new store is the store of a new process, which did not keep the passwords.
+    List <OutboxMessage> messages = new DbFlowOutboxStore ().loadAll ();
+
+    Assert.assertEquals (1, messages.size ());
+    Assert.assertEquals (Outbox.ME_PATH, messages.get (0).getPath ());
+    Assert.assertEquals (1, this.countOutbox ());
+  }
+
+  @Test
+  public void testLogoutIsWritten ()
+  {
+    OutboxMessage added = new DbFlowOutboxStore ().add (newMessage (Outbox.LOGOUT_PATH, null));
+
+    // The logout must survive the process to revoke the token.
+    List <OutboxMessage> messages = new DbFlowOutboxStore ().loadAll ();
+
+    Assert.assertEquals (1, messages.size ());
+    Assert.assertEquals (added.getId (), messages.get (0).getId ());
+    Assert.assertEquals ("refresh-1", messages.get (0).getRefreshToken ());
+  }
+
+  private Cursor queryOutbox ()
+  {
+    return FlowManager.getDatabase (GatekeeperDatabase.class)
+                      .getWritableDatabase ()
+                      .rawQuery ("SELECT * FROM outbox ORDER BY id", null);
+  }
+
+  private int countOutbox ()
+  {
+    Cursor cursor = this.queryOutbox ();
+
+    try
+    {
+      return cursor.getCount ();
+    }
+    finally
+    {
+      cursor.close ();
+    }
+  }
+
+  private static OutboxMessage newMessage (String path, String body)
+  {
+    return new OutboxMessage.Builder ()
+        .setRequest ("POST", path)
+        .setBody (body)
+        .setUsername ("tester1")
+        .setIdempotencyKey (path + "-key")
+        .setToken ("access-1", "refresh-1")
+        .build ();
+  }
+}
@@ -13,10 +13,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static com.onehilltech.promises.Promise.rejected;
+import static com.onehilltech.promises.Promise.resolved;
 
 
 @RunWith (AndroidJUnit4.class)
@@ -88,11 +95,58 @@ public class GatekeeperClientTest extends TestWithDatabase
         new GatekeeperClient.Builder (targetContext)
             .build ();
 
-    Assert.assertSame (this.httpClient_, this.gatekeeper_.getHttpClient ());
+    // The client is derived from the one provided so it shares the connection pool
+    // and dispatcher, but has the event listener for timing the calls.
+    Assert.assertSame (this.httpClient_.connectionPool (), this.gatekeeper_.getHttpClient ().connectionPool ());
+    Assert.assertSame (this.httpClient_.dispatcher (), this.gatekeeper_.getHttpClient ().dispatcher ());
     Assert.assertEquals (config.baseUri, client.getBaseUrl ());
     Assert.assertEquals (config.clientId, client.getClientId ());
   }
 
+  @Test
+  public void testWarmUp ()
+      throws Exception
+  {
+    this.server_.enqueue (new MockResponse ().setResponseCode (200));
+
+    this.server_.enqueue (
+        new MockResponse ()
+            .setResponseCode (200)
+            .setHeader ("Content-Type", "application/json")
+            .setBody (JsonBearerToken.generateRandomToken ().toString ()));
+
+    CountDownLatch warmedUp = new CountDownLatch (1);
+
+    this.gatekeeper_.warmUp ()
+                    .then (resolved (value -> warmedUp.countDown ()));
+
+    Assert.assertTrue (warmedUp.await (5, TimeUnit.SECONDS));
+
+    // The client sent a HEAD request to the base URL, and parked the connection it
+    // opened in the pool.
+    RecordedRequest head = this.server_.takeRequest ();
+
+    Assert.assertEquals ("HEAD", head.getMethod ());
+    Assert.assertEquals ("/", head.getPath ());
+    Assert.assertEquals (0, head.getSequenceNumber ());
+    Assert.assertEquals (1, this.gatekeeper_.getHttpClient ().connectionPool ().idleConnectionCount ());
+
+    CountDownLatch done = new CountDownLatch (1);
+
+    this.gatekeeper_.getClientToken ()
+                    .then (resolved (token -> done.countDown ()))
+                    ._catch (rejected (reason -> done.countDown ()));
+
+    Assert.assertTrue (done.await (5, TimeUnit.SECONDS));
+
+    // The token request is the second request on the warm connection.
+    RecordedRequest token = this.server_.takeRequest ();
+
+    Assert.assertEquals ("POST", token.getMethod ());
+    Assert.assertEquals (1, token.getSequenceNumber ());
+    Assert.assertEquals (1, this.gatekeeper_.getHttpClient ().connectionPool ().connectionCount ());
+  }
+
   @Test
   public void testGetUserToken ()
       throws Exception
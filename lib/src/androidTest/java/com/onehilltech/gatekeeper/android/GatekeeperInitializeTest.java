@@ -0,0 +1,38 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
+import com.onehilltech.promises.Promise;
+import com.raizlabs.android.dbflow.config.FlowConfig;
+import com.raizlabs.android.dbflow.config.FlowManager;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith (AndroidJUnit4.class)
+public class GatekeeperInitializeTest
+{
+  @Before
+  public void setup ()
+  {
+    Context context = InstrumentationRegistry.getTargetContext ();
+    FlowManager.init (new FlowConfig.Builder (context).build ());
+  }
+
+  @Test
+  public void testInitializeAsync ()
+  {
+    Promise <Void> promise = Gatekeeper.initializeAsync ();
+    Assert.assertSame (promise, Gatekeeper.initializeAsync ());
+
+    // The database is ready once the wait returns.
+    Gatekeeper.awaitInitialized ();
+
+    Assert.assertTrue (FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ().getVersion () > 0);
+  }
+}
@@ -0,0 +1,184 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.gatekeeper.android.TestWithDatabase;
+import com.raizlabs.android.dbflow.config.FlowManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import static com.onehilltech.promises.Promise.rejected;
+import static com.onehilltech.promises.Promise.resolved;
+
+@RunWith (AndroidJUnit4.class)
+public class AccountBatchLoaderTest extends TestWithDatabase
+{
+  private MockWebServer server_;
+
+  private AccountBatchLoader loader_;
+
+  @Before
+  public void setup ()
+      throws Exception
+  {
+    super.setup ();
+
+    this.server_ = new MockWebServer ();
+
+    Retrofit endpoint =
+        new Retrofit.Builder ()
+            .baseUrl (this.server_.url ("/v1/"))
+            .addConverterFactory (GsonConverterFactory.create ())
+            .build ();
+
+    this.loader_ = new AccountBatchLoader (endpoint, 50, TimeUnit.MILLISECONDS, 100);
+  }
+
+  @After
+  public void teardown ()
+      throws Exception
+  {
+    this.server_.shutdown ();
+    FlowManager.destroy ();
+  }
+
+  @Test
+  public void testBatchesLookups ()
+      throws Exception
+  {
+    ObjectId id1 = new ObjectId ();
+    ObjectId id2 = new ObjectId ();
+    ObjectId id3 = new ObjectId ();
+
+    this.server_.enqueue (
+        new MockResponse ()
+            .setResponseCode (200)
+            .setHeader ("Content-Type", "application/json")
+            .setBody ("{\"accounts\": [" +
+                          "{\"_id\": \"" + id1 + "\", \"username\": \"tester1\"}," +
+                          "{\"_id\": \"" + id2 + "\", \"username\": \"tester2\"}]}"));
+
+    ConcurrentHashMap <String, String> usernames = new ConcurrentHashMap<> ();
+    ConcurrentHashMap <String, Throwable> errors = new ConcurrentHashMap<> ();
+    CountDownLatch done = new CountDownLatch (4);
+
+    for (ObjectId id: Arrays.asList (id1, id2, id1, id3))
+    {
+      this.loader_.load (id)
+                  .then (resolved (account -> {
+                    usernames.put (account._id.toString (), account.username);
+                    done.countDown ();
+                  }))
+                  ._catch (rejected (reason -> {
+                    errors.put (id.toString (), reason);
+                    done.countDown ();
+                  }));
+    }
+
+    Assert.assertTrue (done.await (5, TimeUnit.SECONDS));
+
+    // All the lookups were sent in one request, and the duplicate id was removed.
+    Assert.assertEquals (1, this.server_.getRequestCount ());
+
+    RecordedRequest request = this.server_.takeRequest ();
+    String ids = request.getRequestUrl ().queryParameter ("ids");
+
+    Assert.assertEquals ("/v1/accounts", request.getRequestUrl ().encodedPath ());
+    Assert.assertEquals (3, ids.split (",").length);
+    Assert.assertEquals (new HashSet<> (Arrays.asList (id1.toString (), id2.toString (), id3.toString ())),
+                         new HashSet<> (Arrays.asList (ids.split (","))));
+
+    // The results were sent back to each waiting lookup.
+    Assert.assertEquals ("tester1", usernames.get (id1.toString ()));
+    Assert.assertEquals ("tester2", usernames.get (id2.toString ()));
+    Assert.assertTrue (errors.containsKey (id3.toString ()));
+  }
+
+  @Test
+  public void testRejectsBatchOnFailure ()
+      throws Exception
+  {
+    this.server_.enqueue (
+        new MockResponse ()
+            .setResponseCode (503));
+
+    CountDownLatch done = new CountDownLatch (2);
+
+    for (int i = 0; i < 2; ++ i)
+      this.loader_.load (new ObjectId ())
+                  ._catch (rejected (reason -> done.countDown ()));
+
+    Assert.assertTrue (done.await (5, TimeUnit.SECONDS));
+    Assert.assertEquals (1, this.server_.getRequestCount ());
+  }
+
+  @Test
+  public void testRejectsBatchOnHtmlError ()
+      throws Exception
+  {
+    // A proxy answered instead of Gatekeeper, so the error is not JSON.
+    this.server_.enqueue (
+        new MockResponse ()
+            .setResponseCode (502)
+            .setHeader ("Content-Type", "text/html")
+            .setBody ("<html><body>Bad Gateway</body></html>"));
+
+    CountDownLatch done = new CountDownLatch (2);
+
+    for (int i = 0; i < 2; ++ i)
+      this.loader_.load (new ObjectId ())
+                  ._catch (rejected (reason -> done.countDown ()));
+
+    Assert.assertTrue (done.await (5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testFullBatchRestartsWindow ()
+      throws Exception
+  {
+    Retrofit endpoint =
+        new Retrofit.Builder ()
+            .baseUrl (this.server_.url ("/v1/"))
+            .addConverterFactory (GsonConverterFactory.create ())
+            .build ();
+
+    AccountBatchLoader loader = new AccountBatchLoader (endpoint, 500, TimeUnit.MILLISECONDS, 2);
+
+    for (int i = 0; i < 2; ++ i)
+      this.server_.enqueue (
+          new MockResponse ()
+              .setResponseCode (200)
+              .setHeader ("Content-Type", "application/json")
+              .setBody ("{\"accounts\": []}"));
+
+    // The first batch is full, so it is sent without waiting for its window.
+    loader.load (new ObjectId ());
+    loader.load (new ObjectId ());
+
+    Assert.assertNotNull (this.server_.takeRequest (250, TimeUnit.MILLISECONDS));
+
+    // The window of the first batch must not close the window of the next batch.
+    Thread.sleep (250);
+    loader.load (new ObjectId ());
+
+    Assert.assertNull (this.server_.takeRequest (400, TimeUnit.MILLISECONDS));
+    Assert.assertNotNull (this.server_.takeRequest (5, TimeUnit.SECONDS));
+  }
+}
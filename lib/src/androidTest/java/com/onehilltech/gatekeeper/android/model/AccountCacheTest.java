@@ -0,0 +1,106 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.promises.Promise;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.onehilltech.promises.Promise.resolved;
+
+@RunWith (AndroidJUnit4.class)
+public class AccountCacheTest
+{
+  @Test
+  public void testEvictsLeastRecentlyUsed ()
+  {
+    AccountCache cache = new AccountCache (2, 1, TimeUnit.MINUTES);
+
+    Account a = new Account (new ObjectId ());
+    Account b = new Account (new ObjectId ());
+    Account c = new Account (new ObjectId ());
+
+    cache.put (a);
+    cache.put (b);
+
+    // Touch a so b is the least recently used account.
+    Assert.assertSame (a, cache.peek (a._id));
+
+    cache.put (c);
+
+    Assert.assertEquals (2, cache.size ());
+    Assert.assertSame (a, cache.peek (a._id));
+    Assert.assertNull (cache.peek (b._id));
+    Assert.assertSame (c, cache.peek (c._id));
+  }
+
+  @Test
+  public void testExpiresAccounts ()
+  {
+    AccountCache cache = new AccountCache (2, 0, TimeUnit.SECONDS);
+    Account a = new Account (new ObjectId ());
+
+    cache.put (a);
+
+    Assert.assertNull (cache.peek (a._id));
+  }
+
+  @Test
+  public void testCoalescesLoads () throws Exception
+  {
+    AccountCache cache = new AccountCache (2, 1, TimeUnit.MINUTES);
+    Account account = new Account (new ObjectId ());
+
+    AtomicInteger loads = new AtomicInteger ();
+    CountDownLatch release = new CountDownLatch (1);
+    CountDownLatch done = new CountDownLatch (3);
+
+    AccountCache.Loader loader = id -> new Promise<> (settlement -> {
+      loads.incrementAndGet ();
+
+      new Thread (() -> {
+        try
+        {
+          release.await ();
+          settlement.resolve (account);
+        }
+        catch (InterruptedException e)
+        {
+          settlement.reject (e);
+        }
+      }).start ();
+    });
+
+    for (int i = 0; i < 3; ++ i)
+      cache.get (account._id, loader).then (resolved (value -> {
+        Assert.assertSame (account, value);
+        done.countDown ();
+      }));
+
+    release.countDown ();
+
+    Assert.assertTrue (done.await (5, TimeUnit.SECONDS));
+    Assert.assertEquals (1, loads.get ());
+    Assert.assertSame (account, cache.peek (account._id));
+  }
+
+  @Test
+  public void testClear ()
+  {
+    AccountCache cache = new AccountCache (2, 1, TimeUnit.MINUTES);
+    Account a = new Account (new ObjectId ());
+
+    cache.put (a);
+    cache.clear ();
+
+    Assert.assertEquals (0, cache.size ());
+    Assert.assertNull (cache.peek (a._id));
+  }
+}
@@ -0,0 +1,60 @@
+package com.onehilltech.gatekeeper.android.tracing;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+@RunWith (AndroidJUnit4.class)
+public class RingBufferSpanExporterTest
+{
+  @Test
+  public void testParentChild ()
+  {
+    RingBufferSpanExporter exporter = new RingBufferSpanExporter (16);
+    Tracer tracer = new Tracer (exporter);
+
+    Span root = tracer.startSpan ("signIn");
+    Span child = root.startChild ("getUserToken");
+    child.end ();
+    root.end ();
+
+    // Ending a span again has no effect.
+    root.end (new IllegalStateException ());
+
+    List <Span> spans = exporter.getTrace (root.getTraceId ());
+    Assert.assertEquals (2, spans.size ());
+
+    Assert.assertSame (child, spans.get (0));
+    Assert.assertEquals (root.getSpanId (), child.getParentId ());
+    Assert.assertEquals (root.getTraceId (), child.getTraceId ());
+
+    Assert.assertSame (root, spans.get (1));
+    Assert.assertEquals (0, root.getParentId ());
+    Assert.assertNull (root.getError ());
+    Assert.assertTrue (root.getDurationNanos () >= child.getDurationNanos ());
+  }
+
+  @Test
+  public void testOverwritesOldest ()
+  {
+    RingBufferSpanExporter exporter = new RingBufferSpanExporter (2);
+    Tracer tracer = new Tracer (exporter);
+
+    tracer.startSpan ("a").end ();
+    tracer.startSpan ("b").end ();
+    tracer.startSpan ("c").end (new IllegalStateException ());
+
+    List <Span> spans = exporter.getSpans ();
+    Assert.assertEquals (2, spans.size ());
+    Assert.assertEquals ("b", spans.get (0).getName ());
+    Assert.assertEquals ("c", spans.get (1).getName ());
+    Assert.assertNotNull (spans.get (1).getError ());
+
+    exporter.clear ();
+    Assert.assertTrue (exporter.getSpans ().isEmpty ());
+  }
+}
@@ -0,0 +1,328 @@
+package com.onehilltech.gatekeeper.android;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Dns;
+
+/**
+ * @class CachingDns
+ *
+ * Dns implementation that caches the addresses for a host. Fresh entries are served
+ * directly from the cache. Expired entries are served while they are still within
+ * the stale window, and are refreshed in the background so the next lookup is fresh
+ * again. Only entries past the stale window block the caller on a new lookup.
+ *
+ * The addresses for a host are interleaved by address family, so the http client,
+ * which tries the routes in order, alternates between IPv4 and IPv6 instead of
+ * exhausting one family before trying the other.
+ */
+public class CachingDns implements Dns
+{
+  /// Default time-to-live when the runtime does not define one.
+  private static final long DEFAULT_TTL_SECONDS = 60;
+
+  /// Default window for serving expired entries while they are refreshed.
+  private static final long DEFAULT_MAX_STALE_SECONDS = 600;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating CachingDns objects.
+   */
+  public static final class Builder
+  {
+    private Dns dns_ = Dns.SYSTEM;
+
+    private long ttl_ = TimeUnit.SECONDS.toNanos (defaultTtlSeconds ());
+
+    private long maxStale_ = TimeUnit.SECONDS.toNanos (DEFAULT_MAX_STALE_SECONDS);
+
+    private Executor executor_;
+
+    /**
+     * Set the Dns used to resolve hosts that are not in the cache.
+     *
+     * @param dns         Dns object
+     */
+    public Builder setDns (Dns dns)
+    {
+      this.dns_ = dns;
+      return this;
+    }
+
+    /**
+     * Set how long resolved addresses are fresh.
+     *
+     * @param duration    Time-to-live
+     * @param unit        Unit for duration
+     */
+    public Builder setTimeToLive (long duration, TimeUnit unit)
+    {
+      this.ttl_ = unit.toNanos (duration);
+      return this;
+    }
+
+    /**
+     * Set how long expired addresses can be served while they are refreshed.
+     *
+     * @param duration    Stale window
+     * @param unit        Unit for duration
+     */
+    public Builder setMaxStale (long duration, TimeUnit unit)
+    {
+      this.maxStale_ = unit.toNanos (duration);
+      return this;
+    }
+
+    /**
+     * Set the executor used for background refreshes. By default, the refreshes run
+     * on a daemon thread of their own.
+     *
+     * @param executor    Executor object
+     */
+    public Builder setExecutor (Executor executor)
+    {
+      this.executor_ = executor;
+      return this;
+    }
+
+    public CachingDns build ()
+    {
+      Executor executor = this.executor_;
+
+      if (executor == null)
+      {
+        executor = Executors.newSingleThreadExecutor (runnable -> {
+          Thread thread = new Thread (runnable, "gatekeeper-dns");
+          thread.setDaemon (true);
+
+          return thread;
+        });
+      }
+
+      return new CachingDns (this.dns_, this.ttl_, this.maxStale_, executor);
+    }
+  }
+
+  /**
+   * Cached addresses for a single host.
+   */
+  private static final class Entry
+  {
+    final List<InetAddress> addresses;
+
+    final long expiresAt;
+
+    final long staleUntil;
+
+    Entry (List <InetAddress> addresses, long expiresAt, long staleUntil)
+    {
+      this.addresses = addresses;
+      this.expiresAt = expiresAt;
+      this.staleUntil = staleUntil;
+    }
+  }
+
+  private final Dns dns_;
+
+  private final long ttl_;
+
+  private final long maxStale_;
+
+  private final Executor executor_;
+
+  private final ConcurrentHashMap <String, Entry> cache_ = new ConcurrentHashMap<> ();
+
+  /// Hosts with a background refresh in progress.
+  private final ConcurrentHashMap <String, Boolean> refreshing_ = new ConcurrentHashMap<> ();
+
+  private final AtomicLong hitCount_ = new AtomicLong ();
+
+  private final AtomicLong staleHitCount_ = new AtomicLong ();
+
+  private final AtomicLong missCount_ = new AtomicLong ();
+
+  private CachingDns (Dns dns, long ttl, long maxStale, Executor executor)
+  {
+    this.dns_ = dns;
+    this.ttl_ = ttl;
+    this.maxStale_ = maxStale;
+    this.executor_ = executor;
+  }
+
+  @Override
+  public List<InetAddress> lookup (String hostname)
+      throws UnknownHostException
+  {
+    return this.lookup (hostname, System.nanoTime ());
+  }
+
+  List <InetAddress> lookup (String hostname, long now)
+      throws UnknownHostException
+  {
+    Entry entry = this.cache_.get (hostname);
+
+    if (entry != null)
+    {
+      if (now - entry.expiresAt < 0)
+      {
+        this.hitCount_.incrementAndGet ();
+        return entry.addresses;
+      }
+
+      if (now - entry.staleUntil < 0)
+      {
+        this.staleHitCount_.incrementAndGet ();
+        this.refreshInBackground (hostname);
+
+        return entry.addresses;
+      }
+    }
+
+    this.missCount_.incrementAndGet ();
+    return this.resolve (hostname, now);
+  }
+
+  /**
+   * Remove all cached entries.
+   */
+  public void clear ()
+  {
+    this.cache_.clear ();
+    this.refreshing_.clear ();
+  }
+
+  /**
+   * Get the number of lookups served with fresh addresses from the cache.
+   */
+  public long getHitCount ()
+  {
+    return this.hitCount_.get ();
+  }
+
+  /**
+   * Get the number of lookups served with expired addresses from the cache.
+   */
+  public long getStaleHitCount ()
+  {
+    return this.staleHitCount_.get ();
+  }
+
+  /**
+   * Get the number of lookups that had to wait on the underlying Dns.
+   */
+  public long getMissCount ()
+  {
+    return this.missCount_.get ();
+  }
+
+  /**
+   * Resolve the addresses for a host, and cache them.
+   *
+   * @param hostname        The host
+   * @param now             Time of the lookup, in nanoseconds
+   */
+  private List <InetAddress> resolve (String hostname, long now)
+      throws UnknownHostException
+  {
+    List <InetAddress> addresses = interleave (this.dns_.lookup (hostname));
+
+    this.cache_.put (hostname, new Entry (addresses, now + this.ttl_, now + this.ttl_ + this.maxStale_));
+
+    return addresses;
+  }
+
+  private void refreshInBackground (String hostname)
+  {
+    if (this.refreshing_.putIfAbsent (hostname, Boolean.TRUE) != null)
+      return;
+
+    this.executor_.execute (() -> {
+      try
+      {
+        // The time to live starts when the addresses are resolved, not when the
+        // stale entry was served.
+        this.resolve (hostname, System.nanoTime ());
+      }
+      catch (UnknownHostException e)
+      {
+        // Keep serving the stale entry until it falls out of the stale window.
+      }
+      finally
+      {
+        this.refreshing_.remove (hostname);
+      }
+    });
+  }
+
+  /**
+   * Order the addresses so the address families alternate, starting with the family
+   * of the first address returned by the resolver.
+   */
+  private static List <InetAddress> interleave (List <InetAddress> addresses)
+  {
+    if (addresses.size () < 2)
+      return Collections.unmodifiableList (new ArrayList<> (addresses));
+
+    ArrayList <InetAddress> preferred = new ArrayList<> ();
+    ArrayList <InetAddress> other = new ArrayList<> ();
+    boolean preferIPv4 = addresses.get (0) instanceof Inet4Address;
+
+    for (InetAddress address: addresses)
+    {
+      if ((address instanceof Inet4Address) == preferIPv4)
+        preferred.add (address);
+      else
+        other.add (address);
+    }
+
+    ArrayList <InetAddress> result = new ArrayList<> (addresses.size ());
+
+    for (int i = 0; i < preferred.size () || i < other.size (); ++ i)
+    {
+      if (i < preferred.size ())
+        result.add (preferred.get (i));
+
+      if (i < other.size ())
+        result.add (other.get (i));
+    }
+
+    return Collections.unmodifiableList (result);
+  }
+
+  /**
+   * Use the positive cache policy of the runtime as the default time-to-live.
+   */
+  private static long defaultTtlSeconds ()
+  {
+    try
+    {
+      String value = Security.getProperty ("networkaddress.cache.ttl");
+
+      if (value != null)
+      {
+        long ttl = Long.parseLong (value);
+
+        if (ttl > 0)
+          return ttl;
+      }
+    }
+    catch (NumberFormatException | SecurityException e)
+    {
+      // Fall through to the default.
+    }
+
+    return DEFAULT_TTL_SECONDS;
+  }
+}
@@ -0,0 +1,75 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.onehilltech.gatekeeper.android.model.UserToken;
+import com.onehilltech.gatekeeper.core.AccountStore;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.gatekeeper.core.TokenStore;
+import com.onehilltech.gatekeeper.core.WriteBehindTokenStore;
+import com.raizlabs.android.dbflow.sql.language.SQLite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @class DbFlowAccountStore
+ *
+ * AccountStore that keeps the tokens of the accounts in the user token table of
+ * the Gatekeeper database, and the active account in the shared preferences. The
+ * token of each account is written to the database in the background.
+ */
+class DbFlowAccountStore implements AccountStore
+{
+  private static final String PREFS_NAME = "gatekeeper_accounts.info";
+
+  private static final String PREF_ACTIVE = "active";
+
+  private final SharedPreferences prefs_;
+
+  DbFlowAccountStore (Context context)
+  {
+    this.prefs_ = context.getSharedPreferences (PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  @Override
+  public List <SessionToken> loadAll ()
+  {
+    Gatekeeper.awaitInitialized ();
+
+    List <UserToken> userTokens = SQLite.select ().from (UserToken.class).queryList ();
+    List <SessionToken> tokens = new ArrayList<> (userTokens.size ());
+
+    for (UserToken userToken : userTokens)
+      tokens.add (userToken.toSessionToken ());
+
+    return tokens;
+  }
+
+  @Override
+  public TokenStore getTokenStore (SessionToken token)
+  {
+    return new WriteBehindTokenStore (new DbFlowTokenStore (token.getUsername ()), token);
+  }
+
+  @Override
+  public String loadActive ()
+  {
+    return this.prefs_.getString (PREF_ACTIVE, null);
+  }
+
+  @Override
+  public void saveActive (String username)
+  {
+    SharedPreferences.Editor editor = this.prefs_.edit ();
+
+    if (username != null)
+      editor.putString (PREF_ACTIVE, username);
+    else
+      editor.remove (PREF_ACTIVE);
+
+    // The switch must not wait for the disk.
+    editor.apply ();
+  }
+}
@@ -0,0 +1,124 @@
+package com.onehilltech.gatekeeper.android;
+
+import com.onehilltech.gatekeeper.android.model.OutboxEntry;
+import com.onehilltech.gatekeeper.android.model.OutboxEntry$Table;
+import com.onehilltech.gatekeeper.core.OutboxMessage;
+import com.onehilltech.gatekeeper.core.OutboxStore;
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.language.SQLite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * @class DbFlowOutboxStore
+ *
+ * OutboxStore that keeps the messages in the outbox table of the Gatekeeper
+ * database, so the messages that were not sent survive a restart of the process.
+ *
+ * The database is not encrypted, so a secret message, such as a password change,
+ * is written without its body and its token, which are kept in memory. Its entry
+ * only keeps its place in the order. The entry of a secret message whose body was
+ * lost with an earlier process is removed when the messages are loaded. The entries
+ * are removed with secure_delete, so the deleted tokens are overwritten in the file.
+ */
+class DbFlowOutboxStore implements OutboxStore
+{
+  /// The secret messages, by their id.
+  private final HashMap <Long, OutboxMessage> secrets_ = new HashMap<> ();
+
+  @Override
+  public synchronized OutboxMessage add (OutboxMessage message)
+  {
+    Gatekeeper.awaitInitialized ();
+
+    // The database gives the entry its id, which orders the entries.
+    OutboxEntry entry = toEntry (message);
+    entry.id = 0;
+
+    FlowManager.getModelAdapter (OutboxEntry.class).insert (entry);
+
+    OutboxMessage added = message.newBuilder ().setId (entry.id).build ();
+
+    if (added.isSecret ())
+      this.secrets_.put (added.getId (), added);
+
+    return added;
+  }
+
+  @Override
+  public synchronized List <OutboxMessage> loadAll ()
+  {
+    Gatekeeper.awaitInitialized ();
+
+    List <OutboxEntry> entries =
+        SQLite.select ()
+              .from (OutboxEntry.class)
+              .orderBy (OutboxEntry$Table.id, true)
+              .queryList ();
+
+    List <OutboxMessage> messages = new ArrayList<> (entries.size ());
+
+    for (OutboxEntry entry : entries)
+    {
+      OutboxMessage message = entry.toMessage ();
+
+      if (message.isSecret ())
+      {
+        message = this.secrets_.get (message.getId ());
+
+        if (message == null)
+        {
+          // The body was lost with the process that added the message.
+          this.delete (entry);
+          continue;
+        }
+      }
+
+      messages.add (message);
+    }
+
+    return messages;
+  }
+
+  @Override
+  public synchronized void update (OutboxMessage message)
+  {
+    Gatekeeper.awaitInitialized ();
+    FlowManager.getModelAdapter (OutboxEntry.class).update (toEntry (message));
+
+    if (message.isSecret () && this.secrets_.containsKey (message.getId ()))
+      this.secrets_.put (message.getId (), message);
+  }
+
+  @Override
+  public synchronized void remove (OutboxMessage message)
+  {
+    Gatekeeper.awaitInitialized ();
+
+    this.secrets_.remove (message.getId ());
+    this.delete (toEntry (message));
+  }
+
+  private void delete (OutboxEntry entry)
+  {
+    // The pragma is set on the connection, so it is set before each delete in case
+    // the connection was opened again.
+    Gatekeeper.enableSecureDelete ();
+
+    FlowManager.getModelAdapter (OutboxEntry.class).delete (entry);
+  }
+
+  /**
+   * Get the entry for a message. The body and the token of a secret message are
+   * left out.
+   */
+  private static OutboxEntry toEntry (OutboxMessage message)
+  {
+    if (!message.isSecret ())
+      return OutboxEntry.fromMessage (message);
+
+    return OutboxEntry.fromMessage (message.newBuilder ().setBody (null).setToken (null, null).build ());
+  }
+}
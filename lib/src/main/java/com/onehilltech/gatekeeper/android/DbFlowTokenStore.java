@@ -0,0 +1,161 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.database.Cursor;
+
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
+import com.onehilltech.gatekeeper.android.model.UserToken;
+import com.onehilltech.gatekeeper.android.model.UserToken$Table;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.gatekeeper.core.TokenStore;
+import com.raizlabs.android.dbflow.config.FlowManager;
+import com.raizlabs.android.dbflow.sql.language.SQLite;
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper;
+
+/**
+ * @class DbFlowTokenStore
+ *
+ * TokenStore that keeps the user token in the Gatekeeper database. The username of
+ * the signed in user is read from the current session, or is fixed for a store that
+ * belongs to one account. This is the default store for the Android library.
+ */
+class DbFlowTokenStore implements TokenStore
+{
+  private final GatekeeperSession session_;
+
+  private final String username_;
+
+  DbFlowTokenStore (GatekeeperSession session)
+  {
+    this.session_ = session;
+    this.username_ = null;
+  }
+
+  /**
+   * Initializing constructor for the store of one account.
+   *
+   * @param username        Username for the account
+   */
+  DbFlowTokenStore (String username)
+  {
+    this.session_ = null;
+    this.username_ = username;
+  }
+
+  @Override
+  public SessionToken load ()
+  {
+    String username = this.username_ != null ? this.username_ : this.session_.getUsername ();
+    return username != null ? this.load (username) : null;
+  }
+
+  /**
+   * Load the token for a user.
+   *
+   * @param username        Username for the user
+   * @return                SessionToken object, or null if the user is not signed in
+   */
+  SessionToken load (String username)
+  {
+    Gatekeeper.awaitInitialized ();
+
+    UserToken userToken =
+        SQLite.select ()
+              .from (UserToken.class)
+              .where (UserToken$Table.username.eq (username))
+              .querySingle ();
+
+    return userToken != null ? userToken.toSessionToken () : null;
+  }
+
+  @Override
+  public void save (SessionToken token)
+  {
+    Gatekeeper.awaitInitialized ();
+
+    UserToken userToken = UserToken.fromToken (token);
+
+    // The generation is read and written in the same transaction so two saves
+    // cannot get the same generation.
+    DatabaseWrapper db = FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ();
+    db.beginTransaction ();
+
+    try
+    {
+      userToken.generation = nextGeneration (db, "user_tokens", "username", userToken.username);
+      FlowManager.getModelAdapter (UserToken.class).save (userToken);
+
+      db.setTransactionSuccessful ();
+    }
+    finally
+    {
+      db.endTransaction ();
+    }
+  }
+
+  @Override
+  public void delete (SessionToken token)
+  {
+    Gatekeeper.awaitInitialized ();
+    FlowManager.getModelAdapter (UserToken.class).delete (UserToken.fromToken (token));
+  }
+
+  @Override
+  public boolean compareAndSwap (SessionToken expected, SessionToken update)
+  {
+    SessionToken token = expected != null ? expected : update;
+
+    if (token == null)
+      return true;
+
+    Gatekeeper.awaitInitialized ();
+
+    // The select and the write are in the same transaction so another thread
+    // cannot change the token between them.
+    DatabaseWrapper db = FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ();
+    db.beginTransaction ();
+
+    try
+    {
+      SessionToken current = this.load (token.getUsername ());
+
+      if (current != null ? !current.equals (expected) : expected != null)
+        return false;
+
+      if (update != null)
+        this.save (update);
+      else
+        this.delete (expected);
+
+      db.setTransactionSuccessful ();
+      return true;
+    }
+    finally
+    {
+      db.endTransaction ();
+    }
+  }
+
+  /**
+   * Get the generation for a token that replaces the token stored under a key.
+   *
+   * @param db              Gatekeeper database
+   * @param table           Table for the token
+   * @param keyColumn       Column for the key
+   * @param key             Value of the key
+   * @return                The next generation, which is 1 for the first token
+   */
+  static long nextGeneration (DatabaseWrapper db, String table, String keyColumn, String key)
+  {
+    String sql = "SELECT generation FROM " + table + " WHERE " + keyColumn + " = ?";
+    Cursor cursor = db.rawQuery (sql, new String[] {key});
+
+    try
+    {
+      return cursor.moveToFirst () ? cursor.getLong (0) + 1 : 1;
+    }
+    finally
+    {
+      cursor.close ();
+    }
+  }
+}
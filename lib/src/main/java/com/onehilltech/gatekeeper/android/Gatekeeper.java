@@ -1,12 +1,331 @@
 package com.onehilltech.gatekeeper.android;
 
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.Endpoint;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.NoOpMetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Phase;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
+import com.onehilltech.gatekeeper.android.tracing.SpanExporter;
+import com.onehilltech.gatekeeper.android.tracing.Tracer;
+import com.onehilltech.gatekeeper.core.JwtValidator;
+import com.onehilltech.gatekeeper.core.SessionSnapshot;
+import com.onehilltech.promises.Promise;
 import com.raizlabs.android.dbflow.config.FlowManager;
 import com.raizlabs.android.dbflow.config.*;
+import com.raizlabs.android.dbflow.structure.database.AndroidDatabase;
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
 
 public class Gatekeeper
 {
+  private static volatile MetricsSink metricsSink_ = NoOpMetricsSink.INSTANCE;
+
+  private static volatile Tracer tracer_ = Tracer.NONE;
+
+  private static volatile boolean sessionSnapshotEnabled_ = false;
+
+  private static volatile JwtValidator tokenValidator_;
+
+  private static volatile boolean revocationChannelEnabled_ = false;
+
+  /// Name of the session snapshot file in the files directory.
+  private static final String SESSION_SNAPSHOT_FILE = "gatekeeper_session.snapshot";
+
+  /// Promise for the database opened by initializeAsync(), or null if the database
+  /// is opened on first use.
+  private static Promise <Void> initializePromise_;
+
+  /// Released when the database opened by initializeAsync() is ready.
+  private static volatile CountDownLatch initialized_;
+
+  private static volatile Thread initializeThread_;
+
+  private static volatile Throwable initializeError_;
+
+  private static volatile boolean databaseOpen_;
+
+  /// Sink that forwards to the current sink. This is given to the objects from the
+  /// core so they see the sink set after they are created.
+  static final MetricsSink FORWARDING_METRICS_SINK = new MetricsSink ()
+  {
+    @Override
+    public void increment (Counter counter)
+    {
+      metricsSink_.increment (counter);
+    }
+
+    @Override
+    public void recordLatency (Timer timer, long nanos)
+    {
+      metricsSink_.recordLatency (timer, nanos);
+    }
+
+    @Override
+    public void recordPhase (Endpoint endpoint, Phase phase, long nanos)
+    {
+      metricsSink_.recordPhase (endpoint, phase, nanos);
+    }
+  };
+
   public static void initialize ()
   {
     FlowManager.initModule (GatekeeperGeneratedDatabaseHolder.class);
   }
+
+  /**
+   * Initialize Gatekeeper, and open its database on a background thread. Opening
+   * the database, and checking its schema, is then off the thread that starts the
+   * application. The library waits for the database on its first use of it, so the
+   * application does not need to wait for the promise before using the library.
+   *
+   * DBFlow must be initialized before calling this method. Calling this method more
+   * than once returns the same promise.
+   *
+   * @return      Promise that is settled when the database is ready
+   */
+  public static synchronized Promise <Void> initializeAsync ()
+  {
+    if (initializePromise_ != null)
+      return initializePromise_;
+
+    // Loading the module only creates the generated classes. It stays on this thread
+    // so the model adapters are registered before the method returns.
+    FlowManager.initModule (GatekeeperGeneratedDatabaseHolder.class);
+
+    final CountDownLatch initialized = new CountDownLatch (1);
+    initialized_ = initialized;
+
+    initializePromise_ = new Promise<> (settlement -> {
+      Thread thread = new Thread (() -> {
+        try
+        {
+          openDatabase ();
+          initialized.countDown ();
+
+          settlement.resolve (null);
+        }
+        catch (Throwable e)
+        {
+          initializeError_ = e;
+          initialized.countDown ();
+
+          settlement.reject (e);
+        }
+      }, "gatekeeper-initialize");
+
+      initializeThread_ = thread;
+      thread.start ();
+    });
+
+    return initializePromise_;
+  }
+
+  /**
+   * Wait for the database to be ready. If initializeAsync() was called, this waits
+   * for the database it opens. Otherwise, the database is opened on the calling thread
+   * the first time. Each entry point of the library that uses the database calls this
+   * method first.
+   *
+   * @throws IllegalStateException    The database failed to open
+   */
+  public static void awaitInitialized ()
+  {
+    CountDownLatch initialized = initialized_;
+
+    if (initialized == null)
+    {
+      if (!databaseOpen_)
+        openDatabase ();
+
+      return;
+    }
+
+    if (Thread.currentThread () == initializeThread_)
+      return;
+
+    try
+    {
+      initialized.await ();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new IllegalStateException ("Interrupted while waiting for Gatekeeper to initialize", e);
+    }
+
+    if (initializeError_ != null)
+      throw new IllegalStateException ("Gatekeeper failed to initialize", initializeError_);
+  }
+
+  /**
+   * Open the Gatekeeper database, and switch it to write-ahead logging so reading
+   * the tokens does not wait for a token being written.
+   */
+  private static synchronized void openDatabase ()
+  {
+    if (databaseOpen_)
+      return;
+
+    DatabaseWrapper database = FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ();
+    enableWriteAheadLogging (database);
+
+    databaseOpen_ = true;
+  }
+
+  /**
+   * Switch the database to write-ahead logging. Readers then see the last committed
+   * state of the database while a writer is in a transaction, instead of waiting for
+   * it. Write-ahead logging needs API 16, so older devices keep the rollback journal.
+   *
+   * @param database        Open database
+   * @return                True if write-ahead logging is enabled
+   */
+  static boolean enableWriteAheadLogging (DatabaseWrapper database)
+  {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || !(database instanceof AndroidDatabase))
+      return false;
+
+    return ((AndroidDatabase) database).getDatabase ().enableWriteAheadLogging ();
+  }
+
+  /**
+   * Have SQLite overwrite deleted rows with zeros, so a deleted token cannot be read
+   * back from the free pages of the database file.
+   */
+  static void enableSecureDelete ()
+  {
+    awaitInitialized ();
+    enableSecureDelete (FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ());
+  }
+
+  /**
+   * Have SQLite overwrite the rows deleted from a database.
+   *
+   * @param database        Open database
+   */
+  static void enableSecureDelete (DatabaseWrapper database)
+  {
+    // The pragma returns its new value, so it must be run as a query. execSQL throws
+    // for a statement that returns a row.
+    Cursor cursor = database.rawQuery ("PRAGMA secure_delete = ON", null);
+
+    try
+    {
+      cursor.moveToFirst ();
+    }
+    finally
+    {
+      cursor.close ();
+    }
+  }
+
+  /**
+   * Set the sink for the metrics recorded by the Gatekeeper clients.
+   *
+   * @param metricsSink       MetricsSink object, or null to discard the metrics
+   */
+  public static void setMetricsSink (MetricsSink metricsSink)
+  {
+    metricsSink_ = metricsSink != null ? metricsSink : NoOpMetricsSink.INSTANCE;
+  }
+
+  public static MetricsSink getMetricsSink ()
+  {
+    return metricsSink_;
+  }
+
+  /**
+   * Set the exporter for the spans traced by the Gatekeeper clients.
+   *
+   * @param exporter          SpanExporter object, or null to discard the spans
+   */
+  public static void setSpanExporter (SpanExporter exporter)
+  {
+    tracer_ = exporter != null ? new Tracer (exporter) : Tracer.NONE;
+  }
+
+  public static Tracer getTracer ()
+  {
+    return tracer_;
+  }
+
+  /**
+   * Check the JWT access tokens on the device, so a token that has expired is
+   * refreshed before a request is sent with it. This must be set before the session
+   * client, or the account manager, is created.
+   *
+   * @param tokenValidator    JwtValidator object, or null to leave the tokens to
+   *                          the server
+   */
+  public static void setTokenValidator (JwtValidator tokenValidator)
+  {
+    tokenValidator_ = tokenValidator;
+  }
+
+  public static JwtValidator getTokenValidator ()
+  {
+    return tokenValidator_;
+  }
+
+  /**
+   * Keep a revocation channel open to Gatekeeper while a user is signed in, so a
+   * revoked token is known right away, instead of when a request is rejected with
+   * it. This must be set before the session client is created.
+   *
+   * @param enabled           Enable the channel
+   */
+  public static void setRevocationChannelEnabled (boolean enabled)
+  {
+    revocationChannelEnabled_ = enabled;
+  }
+
+  public static boolean isRevocationChannelEnabled ()
+  {
+    return revocationChannelEnabled_;
+  }
+
+  /**
+   * Keep a snapshot of the session in a small file next to the database. The session
+   * client then loads the session from the snapshot when it is created, instead of
+   * from the database, and peekSession() can check the session without the database.
+   * This must be set before the session client is created.
+   *
+   * @param enabled           Enable the snapshot
+   */
+  public static void setSessionSnapshotEnabled (boolean enabled)
+  {
+    sessionSnapshotEnabled_ = enabled;
+  }
+
+  public static boolean isSessionSnapshotEnabled ()
+  {
+    return sessionSnapshotEnabled_;
+  }
+
+  /**
+   * Read the session of the signed in user from the session snapshot. This does not
+   * use the database, or create the session client, so it can run before either one
+   * is initialized.
+   *
+   * @param context           Target context
+   * @return                  The snapshot, or null if no user is signed in or the
+   *                          snapshot is not enabled
+   */
+  public static SessionSnapshot peekSession (Context context)
+  {
+    return sessionSnapshotEnabled_ ? SessionSnapshot.read (getSessionSnapshotFile (context)) : null;
+  }
+
+  static File getSessionSnapshotFile (Context context)
+  {
+    return new File (context.getFilesDir (), SESSION_SNAPSHOT_FILE);
+  }
 }
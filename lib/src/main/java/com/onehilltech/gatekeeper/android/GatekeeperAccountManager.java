@@ -0,0 +1,321 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.onehilltech.gatekeeper.core.KioskSessionPool;
+import com.onehilltech.gatekeeper.core.Outbox;
+import com.onehilltech.gatekeeper.core.OutboxMessage;
+import com.onehilltech.gatekeeper.core.SessionEngine;
+import com.onehilltech.gatekeeper.core.SessionListener;
+import com.onehilltech.gatekeeper.core.SessionManager;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.promises.Promise;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * @class GatekeeperAccountManager
+ *
+ * Gatekeeper client for devices shared by many users. Many accounts can be signed
+ * in at the same time, and one of them is the active account. All the accounts stay
+ * loaded, so switching the active account does not make a network call, or read
+ * the database.
+ *
+ * Each account has its own user client. The user clients share the connection pool
+ * of the Gatekeeper client. Use either the account manager, or the session client,
+ * in an application since both keep the tokens in the same table.
+ */
+public class GatekeeperAccountManager
+{
+  public static GatekeeperAccountManager getInstance (Context context)
+  {
+    if (instance_ != null)
+      return instance_;
+
+    instance_ = new GatekeeperAccountManager (context);
+    return instance_;
+  }
+
+  private static GatekeeperAccountManager instance_;
+
+  private final GatekeeperClient client_;
+
+  private final SessionManager manager_;
+
+  /// Sends the logouts of the accounts, and keeps them in the database until they
+  /// are sent.
+  private final Outbox outbox_;
+
+  private final Handler uiHandler_ = new Handler (Looper.getMainLooper ());
+
+  private volatile KioskSessionPool kioskPool_;
+
+  /**
+   * Initializing constructor.
+   *
+   * @param context         Target context
+   */
+  private GatekeeperAccountManager (Context context)
+  {
+    this.client_ = new GatekeeperClient.Builder (context).build ();
+
+    this.manager_ =
+        new SessionManager.Builder ()
+            .setProtocol (this.client_.getProtocol ())
+            .setAccountStore (new DbFlowAccountStore (context.getApplicationContext ()))
+            .setScheduler (this.uiHandler_::post)
+            .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+            .setTokenValidator (Gatekeeper.getTokenValidator ())
+            .build ();
+
+    // A logout carries the token of its account, so the outbox does not need a
+    // session.
+    this.outbox_ =
+        new Outbox.Builder ()
+            .setProtocol (this.client_.getProtocol ())
+            .setStore (new DbFlowOutboxStore ())
+            .setScheduler (this.uiHandler_::post)
+            .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+            .build ();
+
+    this.outbox_.start ();
+  }
+
+  public GatekeeperClient getClient ()
+  {
+    return this.client_;
+  }
+
+  /**
+   * Get the outbox that sends the logouts of the accounts.
+   */
+  public Outbox getOutbox ()
+  {
+    return this.outbox_;
+  }
+
+  /**
+   * Get the platform independent session manager.
+   */
+  public SessionManager getSessionManager ()
+  {
+    return this.manager_;
+  }
+
+  public Set <String> getAccounts ()
+  {
+    return this.manager_.getAccounts ();
+  }
+
+  public boolean isSignedIn (String username)
+  {
+    return this.manager_.getSession (username) != null;
+  }
+
+  /**
+   * Get the username of the active account.
+   *
+   * @return        The username, or null if there is no active account
+   */
+  public String getActiveAccount ()
+  {
+    SessionEngine engine = this.manager_.getActive ();
+    SessionToken token = engine != null ? engine.getToken () : null;
+
+    return token != null ? token.getUsername () : null;
+  }
+
+  /**
+   * Get the user client for the active account.
+   *
+   * @return        OkHttpClient object, or null if there is no active account
+   */
+  public OkHttpClient getUserClient ()
+  {
+    SessionEngine engine = this.manager_.getActive ();
+    return engine != null ? engine.getUserClient () : null;
+  }
+
+  /**
+   * Get the user client for an account.
+   *
+   * @param username        Username for the account
+   * @return                OkHttpClient object, or null if the account is not signed in
+   */
+  public OkHttpClient getUserClient (String username)
+  {
+    SessionEngine engine = this.manager_.getSession (username);
+    return engine != null ? engine.getUserClient () : null;
+  }
+
+  /**
+   * Enable kiosk mode for a device that users sign in to and release every few
+   * minutes. The sessions of users that release the device are kept in a pool, and
+   * have their token refreshed in the background, so a returning user signs in
+   * without calling Gatekeeper. Sessions are evicted when the pool is full, or when
+   * they have been idle for the timeout, and their tokens are deleted and zeroed in
+   * the database.
+   *
+   * The accounts signed in before kiosk mode is enabled are signed out.
+   *
+   * @param capacity          Most sessions kept in the pool
+   * @param idleTimeout       How long a released session is kept
+   * @param unit              Unit for the timeout
+   * @return                  The session pool
+   */
+  public synchronized KioskSessionPool enableKioskMode (int capacity, long idleTimeout, TimeUnit unit)
+  {
+    if (this.kioskPool_ != null)
+      return this.kioskPool_;
+
+    Gatekeeper.enableSecureDelete ();
+
+    KioskSessionPool pool =
+        new KioskSessionPool.Builder ()
+            .setSessionManager (this.manager_)
+            .setOutbox (this.outbox_)
+            .setCapacity (capacity)
+            .setIdleTimeout (idleTimeout, unit)
+            .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+            .build ();
+
+    pool.start ();
+    this.kioskPool_ = pool;
+
+    return pool;
+  }
+
+  public boolean isKioskModeEnabled ()
+  {
+    return this.kioskPool_ != null;
+  }
+
+  /**
+   * Release the device from the active account in kiosk mode. The session stays
+   * signed in for when the user returns.
+   */
+  public void release ()
+  {
+    KioskSessionPool pool = this.kioskPool_;
+
+    if (pool == null)
+      throw new IllegalStateException ("Kiosk mode is not enabled");
+
+    pool.release ();
+  }
+
+  public void addListener (SessionListener listener)
+  {
+    this.manager_.addListener (listener);
+  }
+
+  public void removeListener (SessionListener listener)
+  {
+    this.manager_.removeListener (listener);
+  }
+
+  /**
+   * Sign in an account. The account becomes the active account if there is no
+   * active account. In kiosk mode, the account always becomes the active account,
+   * and a returning user is switched to their pooled session.
+   *
+   * @param username          Username for the account
+   * @param password          Password for the account
+   */
+  public Promise <Void> signIn (String username, String password)
+  {
+    KioskSessionPool pool = this.kioskPool_;
+
+    if (pool != null)
+      return this.signInKiosk (pool, username, password);
+
+    if (this.isSignedIn (username))
+      return Promise.reject (new IllegalStateException ("Account is already signed in"));
+
+    return this.client_
+               .getUserToken (username, password)
+               .then (token -> {
+                 this.manager_.addSession (SessionToken.fromJson (username, token));
+                 return Promise.resolve (null);
+               });
+  }
+
+  private Promise <Void> signInKiosk (KioskSessionPool pool, String username, String password)
+  {
+    // Checking the password is too slow for the main thread, so run it with the
+    // other network calls of the client.
+    return new Promise<> (settlement ->
+      this.client_.getProtocol ().getHttpClient ().dispatcher ().executorService ().execute (() -> {
+        try
+        {
+          pool.signIn (username, password);
+          settlement.resolve (null);
+        }
+        catch (IOException | RuntimeException e)
+        {
+          settlement.reject (e);
+        }
+      })
+    );
+  }
+
+  /**
+   * Make an account the active account. This does not make a network call, or read
+   * the database.
+   *
+   * @param username          Username for the account
+   */
+  public void switchTo (String username)
+  {
+    this.manager_.switchTo (username);
+  }
+
+  /**
+   * Sign out an account. The account is removed from the device right away, and the
+   * logout waits in the outbox until Gatekeeper can be reached.
+   *
+   * @param username          Username for the account
+   */
+  public Promise <Boolean> signOut (String username)
+  {
+    KioskSessionPool pool = this.kioskPool_;
+
+    if (pool != null)
+      pool.remove (username);
+
+    SessionEngine engine = this.manager_.getSession (username);
+
+    if (engine == null)
+      return Promise.resolve (true);
+
+    SessionToken token = engine.getToken ();
+
+    if (token == null)
+      return Promise.resolve (true);
+
+    // The logout is sent from the outbox, so it is not lost if the device is
+    // offline. The outbox writes it to the database, which is too slow for the main
+    // thread.
+    OutboxMessage logout = this.outbox_.newLogout (token);
+
+    return new Promise<> (settlement ->
+      this.client_.getProtocol ().getHttpClient ().dispatcher ().executorService ().execute (() -> {
+        try
+        {
+          this.outbox_.enqueue (logout);
+        }
+        finally
+        {
+          this.manager_.signOut (username);
+          settlement.resolve (true);
+        }
+      })
+    );
+  }
+}
@@ -4,8 +4,6 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.typeadapters.RuntimeTypeAdapterFactory;
 import com.onehilltech.backbone.data.HttpError;
 import com.onehilltech.backbone.data.Resource;
 import com.onehilltech.backbone.data.ResourceSerializer;
@@ -16,17 +14,33 @@ import com.onehilltech.gatekeeper.android.http.JsonClientCredentials;
 import com.onehilltech.gatekeeper.android.http.JsonGrant;
 import com.onehilltech.gatekeeper.android.http.JsonPassword;
 import com.onehilltech.gatekeeper.android.http.JsonRefreshToken;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.GatekeeperEventListener;
+import com.onehilltech.gatekeeper.android.metrics.MetricsSink;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
+import com.onehilltech.gatekeeper.android.model.Account;
+import com.onehilltech.gatekeeper.android.model.ClientToken;
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
+import com.onehilltech.gatekeeper.android.model.UserToken;
+import com.onehilltech.gatekeeper.core.ClientMetadata;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+import com.onehilltech.gatekeeper.core.RefreshResult;
 import com.onehilltech.metadata.ManifestMetadata;
 import com.onehilltech.metadata.MetadataProperty;
 import com.onehilltech.promises.Promise;
+import com.raizlabs.android.dbflow.config.FlowManager;
 
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Callback;
@@ -34,8 +48,6 @@ import retrofit2.Converter;
 import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
-import retrofit2.http.Body;
-import retrofit2.http.POST;
 
 /**
  * Client interface for communicating with a Gatekeeper service.
@@ -94,6 +106,8 @@ public class GatekeeperClient
 
     private Context context_;
 
+    private Dns dns_;
+
     public Builder (Context context)
     {
       this.context_ = context;
@@ -111,6 +125,18 @@ public class GatekeeperClient
       return this;
     }
 
+    /**
+     * Set the Dns used to resolve the Gatekeeper host, such as a CachingDns. The
+     * Dns is installed into the http client built for the GatekeeperClient.
+     *
+     * @param dns       Dns object
+     */
+    public Builder setDns (Dns dns)
+    {
+      this.dns_ = dns;
+      return this;
+    }
+
     public GatekeeperClient build ()
     {
       try
@@ -125,7 +151,16 @@ public class GatekeeperClient
         if (httpClient == null)
           httpClient = new OkHttpClient.Builder ().build ();
 
-        return new GatekeeperClient (this.context_, config, httpClient);
+        // Time the phases of each call to a Gatekeeper endpoint. The events are also
+        // forwarded to the event listener factory already installed on the http client.
+        OkHttpClient.Builder builder =
+            httpClient.newBuilder ()
+                      .eventListenerFactory (new GatekeeperEventListener.Factory (getBaseUrlWithVersion (config), httpClient.eventListenerFactory ()));
+
+        if (this.dns_ != null)
+          builder.dns (this.dns_);
+
+        return new GatekeeperClient (this.context_, config, builder.build ());
       }
       catch (PackageManager.NameNotFoundException | IllegalAccessException | ClassNotFoundException | InvocationTargetException e)
       {
@@ -134,7 +169,7 @@ public class GatekeeperClient
     }
   }
 
-  public static final int VERSION = 1;
+  public static final int VERSION = GatekeeperProtocol.VERSION;
 
   private final Context context_;
 
@@ -142,7 +177,7 @@ public class GatekeeperClient
 
   private final OkHttpClient httpClient_;
 
-  private final Service service_;
+  private final GatekeeperProtocol protocol_;
 
   private Gson gson_;
 
@@ -163,14 +198,7 @@ public class GatekeeperClient
     this.config_ = config;
     this.httpClient_ = httpClient;
 
-    // Initialize the type factories for Gson.
-    RuntimeTypeAdapterFactory <JsonGrant> grantTypes =
-        RuntimeTypeAdapterFactory.of (JsonGrant.class, "grant_type")
-                                 .registerSubtype (JsonClientCredentials.class, "client_credentials")
-                                 .registerSubtype (JsonPassword.class, "password")
-                                 .registerSubtype (JsonRefreshToken.class, "refresh_token");
-
-    // Initialize the Retrofit.
+    // Initialize the serializer for the resources.
     ResourceSerializer serializer = new ResourceSerializer ();
     serializer.put ("account", JsonAccount.class);
     serializer.put ("accounts", JsonAccount.class);
@@ -179,24 +207,41 @@ public class GatekeeperClient
     serializer.put ("errors", HttpError.class);
 
     this.gson_ =
-        new GsonBuilder ()
-            .registerTypeAdapter (Resource.class, serializer)
-            .registerTypeAdapterFactory (grantTypes)
-            .create ();
+        GatekeeperProtocol.newGsonBuilder ()
+                          .registerTypeAdapter (Resource.class, serializer)
+                          .create ();
 
     serializer.setGson (this.gson_);
 
-    this.retrofit_ =
-        new Retrofit.Builder ()
-            .baseUrl (this.getBaseUrlWithVersion ())
-            .addConverterFactory (GsonConverterFactory.create (this.gson_))
-            .client (this.httpClient_)
+    // The token protocol is implemented by the core, which knows nothing about
+    // Android. The client metadata comes from the configuration and the context.
+    ClientMetadata metadata =
+        new ClientMetadata.Builder ()
+            .setClientId (config.clientId)
+            .setClientSecret (config.clientSecret)
+            .setBaseUrl (config.baseUri)
+            .setPackageName (context.getPackageName ())
+            .build ();
+
+    this.protocol_ =
+        new GatekeeperProtocol.Builder ()
+            .setMetadata (metadata)
+            .setHttpClient (this.httpClient_)
+            .setGson (this.gson_)
             .build ();
 
+    this.retrofit_ = this.protocol_.getRetrofit ();
     this.resourceConverter_ = this.retrofit_.responseBodyConverter (Resource.class, new Annotation[0]);
+  }
 
-    // Create the remoting endpoints.
-    this.service_ = this.retrofit_.create (Service.class);
+  /**
+   * Get the platform independent protocol client.
+   *
+   * @return        GatekeeperProtocol object
+   */
+  public GatekeeperProtocol getProtocol ()
+  {
+    return this.protocol_;
   }
 
   /**
@@ -261,7 +306,83 @@ public class GatekeeperClient
 
   public String getBaseUrlWithVersion ()
   {
-    return this.getBaseUrl () + "v" + VERSION + "/";
+    return getBaseUrlWithVersion (this.config_);
+  }
+
+  private static String getBaseUrlWithVersion (Configuration config)
+  {
+    return GatekeeperProtocol.getBaseUrlWithVersion (config.baseUri);
+  }
+
+  /**
+   * Warm up the client before its first real request. This resolves the host for
+   * the base URL, and opens a connection (including the TLS handshake) that is parked
+   * in the connection pool of the http client. It also preloads the Gson type adapters
+   * and the DBFlow tables used when signing in so the first sign in does not pay for
+   * any of the setup costs.
+   *
+   * @return      Promise that is settled when the connection is ready
+   */
+  public Promise <Void> warmUp ()
+  {
+    return new Promise<> (settlement -> {
+      // Open the database, and preload the model adapters off the calling thread.
+      this.httpClient_.dispatcher ().executorService ().execute (this::preloadModels);
+
+      // Preload the type adapters used to serialize the grants, and to parse the
+      // token and error responses.
+      this.gson_.getAdapter (JsonGrant.class);
+      this.gson_.getAdapter (JsonBearerToken.class);
+      this.gson_.getAdapter (JsonAccount.class);
+      this.gson_.getAdapter (Resource.class);
+
+      // A HEAD request against the base URL forces the http client to resolve the
+      // host, connect, and complete the handshake. Closing the response returns the
+      // connection to the pool where the first real request will find it.
+      Request request =
+          new Request.Builder ()
+              .url (HttpUrl.parse (this.getBaseUrl ()))
+              .head ()
+              .build ();
+
+      this.httpClient_.newCall (request).enqueue (new okhttp3.Callback ()
+      {
+        @Override
+        public void onFailure (okhttp3.Call call, IOException e)
+        {
+          settlement.reject (e);
+        }
+
+        @Override
+        public void onResponse (okhttp3.Call call, okhttp3.Response response)
+        {
+          response.close ();
+          settlement.resolve (null);
+        }
+      });
+    });
+  }
+
+  /**
+   * Open the Gatekeeper database, and load the model adapters for the tables
+   * touched when signing in.
+   */
+  private void preloadModels ()
+  {
+    try
+    {
+      Gatekeeper.awaitInitialized ();
+      FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ();
+
+      FlowManager.getModelAdapter (UserToken.class);
+      FlowManager.getModelAdapter (ClientToken.class);
+      FlowManager.getModelAdapter (Account.class);
+    }
+    catch (Exception e)
+    {
+      // The application has not initialized DBFlow yet. The tables will be loaded
+      // on first use instead.
+    }
   }
 
   /**
@@ -285,7 +406,7 @@ public class GatekeeperClient
   public Promise <JsonBearerToken> getClientToken ()
   {
     JsonClientCredentials credentials = new JsonClientCredentials ();
-    return this.getToken (credentials);
+    return this.getToken (credentials, Timer.GET_CLIENT_TOKEN, Counter.GET_CLIENT_TOKEN, Counter.GET_CLIENT_TOKEN_FAILED);
   }
 
   /**
@@ -298,18 +419,37 @@ public class GatekeeperClient
     JsonRefreshToken grant = new JsonRefreshToken ();
     grant.refreshToken = refreshToken;
 
-    return this.getToken (grant);
+    return this.getToken (grant, Timer.REFRESH_TOKEN, Counter.REFRESH_TOKEN, Counter.REFRESH_TOKEN_FAILED);
   }
 
-  Call <JsonBearerToken> refreshTokenSync (String refreshToken)
+  /**
+   * Refresh many tokens at once, such as the tokens of all the accounts after
+   * restoring a device. The grants are sent in one request if the service has the
+   * batch token endpoint, and as a bounded number of concurrent requests otherwise.
+   *
+   * @param refreshTokens       Refresh tokens
+   * @return                    Results in the same order as the refresh tokens
+   */
+  public Promise <List <RefreshResult>> refreshTokens (List <String> refreshTokens)
   {
-    JsonRefreshToken grant = new JsonRefreshToken ();
-    grant.refreshToken = refreshToken;
-    grant.clientId = this.config_.clientId;
-    grant.clientSecret = this.config_.clientSecret;
-    grant.packageName = this.context_.getPackageName ();
+    return new Promise<> (settlement ->
+      this.protocol_.getHttpClient ().dispatcher ().executorService ().execute (() -> {
+        try
+        {
+          List <RefreshResult> results = this.protocol_.refreshTokens (refreshTokens);
+          MetricsSink metrics = Gatekeeper.getMetricsSink ();
 
-    return this.service_.getBearerToken (grant);
+          for (RefreshResult result : results)
+            metrics.increment (result.isSuccessful () ? Counter.REFRESH_TOKEN : Counter.REFRESH_TOKEN_FAILED);
+
+          settlement.resolve (results);
+        }
+        catch (IOException e)
+        {
+          settlement.reject (e);
+        }
+      })
+    );
   }
 
   /**
@@ -318,23 +458,38 @@ public class GatekeeperClient
    * @param grantType     JsonGrant object
    */
   private Promise<JsonBearerToken> getToken (JsonGrant grantType)
+  {
+    return this.getToken (grantType, null, null, null);
+  }
+
+  /**
+   * Helper method for requesting an access token, and recording the metrics for
+   * the request.
+   *
+   * @param grantType     JsonGrant object
+   * @param timer         Timer for the request
+   * @param succeeded     Counter for successful requests
+   * @param failed        Counter for failed requests
+   */
+  private Promise<JsonBearerToken> getToken (JsonGrant grantType, Timer timer, Counter succeeded, Counter failed)
   {
     return new Promise<> ((settlement) -> {
-      grantType.clientId = this.config_.clientId;
-      grantType.clientSecret = this.config_.clientSecret;
-      grantType.packageName = this.context_.getPackageName ();
+      final long startTime = System.nanoTime ();
 
-      this.service_.getBearerToken (grantType).enqueue (new Callback<JsonBearerToken> ()
+      this.protocol_.newTokenCall (grantType).enqueue (new Callback<JsonBearerToken> ()
       {
         @Override
         public void onResponse (Call<JsonBearerToken> call, Response<JsonBearerToken> response)
         {
           if (response.isSuccessful ())
           {
+            recordMetrics (timer, succeeded, startTime);
             settlement.resolve (response.body ());
           }
           else
           {
+            recordMetrics (null, failed, startTime);
+
             try
             {
               HttpError error = getError (response.errorBody ());
@@ -352,12 +507,24 @@ public class GatekeeperClient
         @Override
         public void onFailure (Call<JsonBearerToken> call, Throwable t)
         {
+          recordMetrics (null, failed, startTime);
           settlement.reject (t);
         }
       });
     });
   }
 
+  private static void recordMetrics (Timer timer, Counter counter, long startTime)
+  {
+    MetricsSink metrics = Gatekeeper.getMetricsSink ();
+
+    if (counter != null)
+      metrics.increment (counter);
+
+    if (timer != null)
+      metrics.recordLatency (timer, System.nanoTime () - startTime);
+  }
+
   /**
    * Get the HttpError from the ResponseBody.
    *
@@ -371,10 +538,4 @@ public class GatekeeperClient
     Resource resource = this.resourceConverter_.convert (errorBody);
     return resource.get ("errors");
   }
-
-  private interface Service
-  {
-    @POST("oauth2/token")
-    Call<JsonBearerToken> getBearerToken (@Body JsonGrant grant);
-  }
 }
@@ -1,8 +1,12 @@
 package com.onehilltech.gatekeeper.android;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -12,39 +16,44 @@ import com.onehilltech.backbone.data.Resource;
 import com.onehilltech.backbone.data.ResourceEndpoint;
 import com.onehilltech.gatekeeper.android.http.JsonAccount;
 import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
-import com.onehilltech.gatekeeper.android.http.JsonChangePassword;
-import com.onehilltech.gatekeeper.android.model.Account;
+import com.onehilltech.gatekeeper.android.metrics.Counter;
+import com.onehilltech.gatekeeper.android.metrics.Timer;
 import com.onehilltech.gatekeeper.android.model.ClientToken;
+import com.onehilltech.gatekeeper.android.model.GatekeeperDatabase;
 import com.onehilltech.gatekeeper.android.model.GatekeeperStore;
 import com.onehilltech.gatekeeper.android.model.UserToken;
-import com.onehilltech.gatekeeper.android.model.UserToken$Table;
+import com.onehilltech.gatekeeper.android.tracing.Span;
+import com.onehilltech.gatekeeper.core.GatekeeperException;
+import com.onehilltech.gatekeeper.core.Outbox;
+import com.onehilltech.gatekeeper.core.OutboxListener;
+import com.onehilltech.gatekeeper.core.OutboxMessage;
+import com.onehilltech.gatekeeper.core.RevocationChannel;
+import com.onehilltech.gatekeeper.core.SessionEngine;
+import com.onehilltech.gatekeeper.core.SessionListener;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.gatekeeper.core.SnapshotTokenStore;
+import com.onehilltech.gatekeeper.core.TokenStore;
+import com.onehilltech.gatekeeper.core.WriteBehindTokenStore;
 import com.onehilltech.promises.Promise;
 import com.raizlabs.android.dbflow.config.FlowManager;
 import com.raizlabs.android.dbflow.runtime.FlowContentObserver;
-import com.raizlabs.android.dbflow.sql.language.SQLite;
 import com.raizlabs.android.dbflow.structure.BaseModel;
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.Response;
 import okhttp3.ResponseBody;
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Converter;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
-import retrofit2.http.Body;
-import retrofit2.http.POST;
 
 import static com.onehilltech.promises.Promise.rejected;
 import static com.onehilltech.promises.Promise.resolved;
@@ -94,16 +103,23 @@ public class GatekeeperSessionClient
 
   private static GatekeeperSessionClient instance_;
 
-  private OkHttpClient httpClient_;
+  private final OkHttpClient httpClient_;
 
-  /// The user token for the current session.
-  private UserToken userToken_;
+  /// The session engine from the core. The engine holds the user token for the
+  /// current session, and refreshes it when it is rejected.
+  private final SessionEngine engine_;
+
+  private final DbFlowTokenStore tokenStore_;
+
+  /// Snapshot of the session next to the database, or null if it is not enabled.
+  private final SnapshotTokenStore snapshotStore_;
+
+  /// Writes the token to the database off the thread that changed it.
+  private final WriteBehindTokenStore tokenWriter_;
 
   /// The client token for the session client.
   private ClientToken clientToken_;
 
-  private Retrofit retrofit_;
-
   private final LinkedList <Listener> listeners_ = new LinkedList<> ();
 
   private final FlowContentObserver userTokenObserver_ = new FlowContentObserver ();
@@ -112,19 +128,23 @@ public class GatekeeperSessionClient
 
   private final GatekeeperSession session_;
 
-  private final UserMethods userMethods_;
+  /// Sends the logouts and the account changes, and keeps them in the database until
+  /// they are sent.
+  private final Outbox outbox_;
 
-  private String userAgent_;
-
-  private OkHttpClient userClient_;
+  /// Channel over which Gatekeeper pushes the revocation of the token, or null if
+  /// it is not enabled.
+  private final RevocationChannel revocationChannel_;
 
-  private Retrofit userEndpoint_;
+  /// The callbacks for the first outcome of the messages in the outbox, by their
+  /// idempotency key.
+  private final HashMap <String, OutboxListener> outboxCallbacks_ = new HashMap<> ();
 
-  private final Logger logger_ = LoggerFactory.getLogger (GatekeeperSessionClient.class);
+  private String userAgent_;
 
-  private final Converter<ResponseBody, Resource> resourceConverter_;
+  private final Retrofit userEndpoint_;
 
-  private static final ArrayList <String> REAUTHENTICATE_ERROR_CODES = new ArrayList<> ();
+  private final Logger logger_ = LoggerFactory.getLogger (GatekeeperSessionClient.class);
 
   private final Context context_;
 
@@ -138,52 +158,87 @@ public class GatekeeperSessionClient
     this.context_ = context.getApplicationContext ();
     this.client_ = new GatekeeperClient.Builder (context).build ();
     this.session_ = GatekeeperSession.getCurrent (context);
+    this.tokenStore_ = new DbFlowTokenStore (this.session_);
 
-    // Build a new HttpClient for the user session. This client is responsible for
-    // adding the authentication header to each request.
-    OkHttpClient.Builder builder = this.client_.getHttpClient ().newBuilder ();
-    builder.addInterceptor (this.responseInterceptor_);
+    // The snapshot lets the engine load the token without opening the database. A
+    // snapshot left from when it was enabled is stale, and is deleted.
+    File snapshotFile = Gatekeeper.getSessionSnapshotFile (this.context_);
 
-    this.httpClient_ = builder.build ();
+    if (Gatekeeper.isSessionSnapshotEnabled ())
+    {
+      this.snapshotStore_ = new SnapshotTokenStore (this.tokenStore_, snapshotFile);
+    }
+    else
+    {
+      this.snapshotStore_ = null;
+      snapshotFile.delete ();
+    }
 
-    // Build the Retrofit object for this client.
-    this.retrofit_ = new Retrofit.Builder ()
-        .baseUrl (this.client_.getBaseUrlWithVersion ())
-        .addConverterFactory (GsonConverterFactory.create (this.client_.getGson ()))
-        .client (this.httpClient_)
-        .build ();
+    TokenStore tokenStore = this.snapshotStore_ != null ? this.snapshotStore_ : this.tokenStore_;
+
+    // A refreshed token is written to the database behind the request that is
+    // replayed with it, so the replay does not wait for the write.
+    this.tokenWriter_ = new WriteBehindTokenStore (tokenStore);
+
+    // The engine loads the token for the current user from the token store, and
+    // builds the http clients for the session. Its notifications are run on the
+    // main thread.
+    this.engine_ =
+        new SessionEngine.Builder ()
+            .setProtocol (this.client_.getProtocol ())
+            .setTokenStore (this.tokenWriter_)
+            .setScheduler (this.uiHandler_::post)
+            .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+            .setTokenValidator (Gatekeeper.getTokenValidator ())
+            .build ();
 
-    this.resourceConverter_ = this.retrofit_.responseBodyConverter (Resource.class, new Annotation[0]);
-    this.userMethods_ = this.retrofit_.create (UserMethods.class);
+    this.engine_.addListener (this.sessionListener_);
+    this.httpClient_ = this.engine_.getHttpClient ();
+
+    // The outbox sends the messages left from the last run when it starts, and
+    // sends the waiting messages again when the device is back online.
+    this.outbox_ =
+        new Outbox.Builder ()
+            .setProtocol (this.client_.getProtocol ())
+            .setStore (new DbFlowOutboxStore ())
+            .setSessionEngine (this.engine_)
+            .setScheduler (this.uiHandler_::post)
+            .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+            .build ();
 
-    this.initUserToken (context);
+    this.outbox_.addListener (this.outboxListener_);
+    this.outbox_.start ();
 
-    this.userClient_ =
-        this.httpClient_.newBuilder ()
-                        .addInterceptor (this.userAuthorizationHeader_)
-                        .build ();
+    if (Gatekeeper.isRevocationChannelEnabled ())
+    {
+      this.revocationChannel_ =
+          new RevocationChannel.Builder ()
+              .setSessionEngine (this.engine_)
+              .setMetricsSink (Gatekeeper.FORWARDING_METRICS_SINK)
+              .build ();
+
+      this.revocationChannel_.start ();
+    }
+    else
+    {
+      this.revocationChannel_ = null;
+    }
+
+    this.context_.registerReceiver (this.connectivityReceiver_, new IntentFilter (ConnectivityManager.CONNECTIVITY_ACTION));
+
+    this.observeUserToken (context);
 
     this.userEndpoint_ =
         new Retrofit.Builder ()
             .baseUrl (this.client_.getBaseUrlWithVersion ())
             .addConverterFactory (GsonConverterFactory.create (this.client_.getGson ()))
-            .client (this.userClient_)
+            .client (this.engine_.getUserClient ())
             .build ();
   }
 
-  private void initUserToken (Context context)
+  private void observeUserToken (Context context)
   {
-    String username = GatekeeperSession.getCurrent (context).getUsername ();
-
-    if (username != null)
-      this.userToken_ =
-          SQLite.select ()
-                .from (UserToken.class)
-                .where (UserToken$Table.username.eq (username))
-                .querySingle ();
-
-    // Load the one and only user token from the database. We also want to
-    // observe the user token table for changes. These changes could be logging
+    // Observe the user token table for changes. These changes could be logging
     // out or refreshing the user token.
     this.userTokenObserver_.registerForContentChanges (context, UserToken.class);
     this.userTokenObserver_.addModelChangeListener ((table, action, primaryKeyValues) -> {
@@ -191,8 +246,16 @@ public class GatekeeperSessionClient
       {
         this.logger_.info ("The user token has been deleted from the database");
 
-        if (this.userToken_ != null)
-          this.userToken_ = null;
+        // The delete written by this client has already cleared the token in memory,
+        // and a sign in made after it must not be dropped. A delete without a key
+        // could be for any user.
+        SessionToken token = this.tokenWriter_.load ();
+
+        if (token != null && (primaryKeyValues == null || primaryKeyValues.length == 0 || token.getUsername ().equals (primaryKeyValues[0].value ())))
+          this.tokenWriter_.reset (null);
+
+        this.engine_.restore (null);
+        this.syncSnapshot ();
 
         Message msg = this.uiHandler_.obtainMessage (MSG_ON_LOGOUT);
         msg.sendToTarget ();
@@ -202,19 +265,22 @@ public class GatekeeperSessionClient
         // Get the username from the sql condition. We then need to load the
         // user token from the database that matches the username.
         String value = (String) primaryKeyValues[0].value ();
+        SessionToken token = this.engine_.getToken ();
 
-        if (this.userToken_ == null || !this.userToken_.username.equals (value))
+        if (token == null || !token.getUsername ().equals (value))
         {
           this.logger_.info ("Loading token for the user");
 
-          // Load the token for the user that was logged in.
-          this.userToken_ =
-              SQLite.select ()
-                    .from (UserToken.class)
-                    .where (UserToken$Table.username.eq (value))
-                    .querySingle ();
+          // Load the token for the user that was logged in. The token in memory is
+          // replaced too, so a refresh for the last user is not written over it.
+          SessionToken loaded = this.tokenStore_.load (value);
+
+          this.tokenWriter_.reset (loaded);
+          this.engine_.restore (loaded);
         }
 
+        this.syncSnapshot ();
+
         if (action == BaseModel.Action.SAVE)
         {
           this.logger_.info ("Notifying client the user token has been saved");
@@ -229,6 +295,41 @@ public class GatekeeperSessionClient
     });
   }
 
+  /**
+   * Keep the snapshot in step with the engine when the token changes in the database
+   * without going through the engine.
+   */
+  private void syncSnapshot ()
+  {
+    if (this.snapshotStore_ != null)
+      this.snapshotStore_.sync (this.engine_.getToken ());
+  }
+
+  /**
+   * Wait for the changes to the token to be written to the database. The token is
+   * written in the background when it changes, so call this method where it must be
+   * durable, such as before the application is stopped.
+   */
+  public void flush ()
+  {
+    try
+    {
+      this.tokenWriter_.flush ();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   * Get the outbox that sends the logouts and the account changes.
+   */
+  public Outbox getOutbox ()
+  {
+    return this.outbox_;
+  }
+
   public GatekeeperClient getClient ()
   {
     return this.client_;
@@ -247,6 +348,7 @@ public class GatekeeperSessionClient
   void setUserAgent (String userAgent)
   {
     this.userAgent_ = userAgent;
+    this.engine_.setUserAgent (userAgent);
   }
 
   /**
@@ -281,7 +383,7 @@ public class GatekeeperSessionClient
    */
   public String getAccessToken ()
   {
-    return this.userToken_.accessToken;
+    return this.engine_.getToken ().getAccessToken ();
   }
 
   /**
@@ -291,7 +393,17 @@ public class GatekeeperSessionClient
    */
   public OkHttpClient getUserClient ()
   {
-    return this.userClient_;
+    return this.engine_.getUserClient ();
+  }
+
+  /**
+   * Get the platform independent session engine for the client.
+   *
+   * @return
+   */
+  public SessionEngine getEngine ()
+  {
+    return this.engine_;
   }
 
   /**
@@ -371,6 +483,13 @@ public class GatekeeperSessionClient
   public void onDestroy (Context context)
   {
     this.userTokenObserver_.unregisterForContentChanges (context);
+    this.context_.unregisterReceiver (this.connectivityReceiver_);
+
+    // The messages stay in the database, and the next client sends them.
+    this.outbox_.close ();
+
+    if (this.revocationChannel_ != null)
+      this.revocationChannel_.close ();
   }
 
   /**
@@ -388,7 +507,7 @@ public class GatekeeperSessionClient
    */
   public boolean isSignedIn ()
   {
-    return this.userToken_ != null;
+    return this.engine_.isSignedIn ();
   }
 
   /**
@@ -401,20 +520,20 @@ public class GatekeeperSessionClient
     if (!this.isSignedIn ())
       return Promise.reject (new IllegalStateException ("User must be signed in to refresh token"));
 
+    // The engine refreshes the token on the calling thread, and saves it to the
+    // database. This refresh is serialized with the ones made by the interceptors.
     return new Promise<> (settlement ->
-      this.client_.refreshToken (this.userToken_.refreshToken)
-                  .then (resolved (token -> {
-                    // The token was refreshed. Let's save the token, and then resolve this
-                    // promise so the client can continue on.
-                    this.userToken_.accessToken = token.accessToken;
-                    this.userToken_.refreshToken = token.refreshToken;
-
-                    // Update the user token in the database.
-                    FlowManager.getModelAdapter (UserToken.class).update (this.userToken_);
-
-                    settlement.resolve (null);
-                  }))
-                  ._catch (rejected (settlement::reject))
+      this.httpClient_.dispatcher ().executorService ().execute (() -> {
+        try
+        {
+          this.engine_.refreshToken ();
+          settlement.resolve (null);
+        }
+        catch (IOException | IllegalStateException e)
+        {
+          settlement.reject (e);
+        }
+      })
     );
   }
 
@@ -423,7 +542,7 @@ public class GatekeeperSessionClient
    */
   private void completeSignOut ()
   {
-    if (this.userToken_ == null)
+    if (!this.engine_.isSignedIn ())
       return;
 
     // Delete the current session information.
@@ -431,10 +550,11 @@ public class GatekeeperSessionClient
 
     // Delete the token from the database. This will cause all session clients
     // listening for changes to be notified of the change.
-    FlowManager.getModelAdapter (UserToken.class).delete (this.userToken_);
-    GatekeeperStore.getInstance (this.context_).clearCache ();
+    this.engine_.signOut ();
+    this.flush ();
 
-    this.userToken_ = null;
+    GatekeeperStore.getInstance (this.context_).clearCache ();
+    GatekeeperStore.invalidate ();
   }
 
   public HttpError getError (ResponseBody errorBody)
@@ -454,13 +574,31 @@ public class GatekeeperSessionClient
     if (this.isSignedIn ())
       return Promise.reject (new IllegalStateException ("User is already signed in"));
 
-    return new Promise<> (settlement ->
+    return new Promise<> (settlement -> {
+      final long startTime = System.nanoTime ();
+      final Span span = Gatekeeper.getTracer ().startSpan ("signIn");
+      final Span tokenSpan = span.startChild ("getUserToken");
+
       this.client_
           .getUserToken (username, password)
-          .then (token -> this.completeSignIn (username, token))
-          .then (resolved (value -> settlement.resolve (null)))
-          ._catch (rejected (settlement::reject))
-    );
+          .then (token -> {
+            tokenSpan.end ();
+            return this.completeSignIn (username, token, span);
+          })
+          .then (resolved (value -> {
+            recordMetrics (Timer.SIGN_IN, Counter.SIGN_IN, startTime);
+            span.end ();
+
+            settlement.resolve (null);
+          }))
+          ._catch (rejected (reason -> {
+            Gatekeeper.getMetricsSink ().increment (Counter.SIGN_IN_FAILED);
+            tokenSpan.end (reason);
+            span.end (reason);
+
+            settlement.reject (reason);
+          }));
+    });
   }
 
   /**
@@ -469,30 +607,43 @@ public class GatekeeperSessionClient
    *
    * @param username            Username that signed in
    * @param jsonToken           Access token for the user
+   * @param parent              Span of the calling pipeline
    */
-  private Promise <Void> completeSignIn (String username, JsonBearerToken jsonToken)
+  private Promise <Void> completeSignIn (String username, JsonBearerToken jsonToken, Span parent)
   {
     return new Promise<> (settlement -> {
-      // Save the user access token. We need it so we can
-      this.userToken_ = UserToken.fromToken (username, jsonToken);
+      final Span span = parent.startChild ("completeSignIn");
 
-      FlowManager.getModelAdapter (UserToken.class).save (this.userToken_);
+      // Save the user access token. We need it so we can
+      Span saveSpan = span.startChild ("saveUserToken");
+      this.engine_.setToken (SessionToken.fromJson (username, jsonToken));
+      saveSpan.end ();
 
-      GatekeeperStore.getInstance (this.context_)
-                     .get (Account.class, "me")
+      GatekeeperStore.getCurrentAccount (this.context_, span)
                      .then (resolved (account -> {
+                       Span commitSpan = span.startChild ("commitSession");
+
+                       // The session is durable once the sign in completes.
+                       this.flush ();
+
                        this.session_.edit ()
                                     .setUsername (account.username)
                                     .setUserId (account._id.toString ())
                                     .commit ();
 
+                       if (this.snapshotStore_ != null)
+                         this.snapshotStore_.setUserId (account.username, account._id.toString ());
+
+                       commitSpan.end ();
+                       span.end ();
 
                        settlement.resolve (null);
                      }))
                      ._catch (rejected (reason -> {
+                       span.end (reason);
+
                        // Delete the user token that we temporarily saved.
-                       this.userToken_ = null;
-                       FlowManager.getModelAdapter (UserToken.class).delete (this.userToken_);
+                       this.engine_.signOut ();
 
                        settlement.reject (reason);
                      }));
@@ -505,94 +656,143 @@ public class GatekeeperSessionClient
   }
 
   /**
-   * Sign out the current user
+   * Sign out the current user. The logout is sent to Gatekeeper from the outbox, so
+   * it is not lost if the device is offline.
+   *
+   * @param forceSignOut    Sign out the user right away, instead of waiting for
+   *                        Gatekeeper to accept the logout. Without it, the user is
+   *                        still signed out if the device is offline, but not if
+   *                        Gatekeeper rejects the logout.
    */
   public Promise <Boolean> signOut (boolean forceSignOut)
   {
-    if (this.userToken_ == null)
+    SessionToken token = this.engine_.getToken ();
+
+    if (token == null)
       return Promise.resolve (true);
 
     return new Promise<> (settlement -> {
       this.logger_.info ("Signing out current user");
 
-      this.userMethods_.logout ().enqueue (new Callback<Boolean> ()
+      OutboxMessage logout = this.outbox_.newLogout (token);
+
+      if (forceSignOut)
+      {
+        this.send (logout, null, () -> {
+          this.completeSignOut ();
+          settlement.resolve (true);
+        });
+
+        return;
+      }
+
+      this.send (logout, new OutboxListener ()
       {
         @Override
-        public void onResponse (Call<Boolean> call, retrofit2.Response<Boolean> response)
+        public void onDelivered (Outbox outbox, OutboxMessage message)
         {
-          if (response.isSuccessful () || forceSignOut)
-          {
-            Boolean result = response.body ();
-            boolean complete = (result != null && result) || forceSignOut;
-
-            if (complete)
-              completeSignOut ();
-
-            settlement.resolve (complete);
-          }
-          else
-          {
-            settlement.reject (new IllegalStateException ("Failed to sign out user"));
-          }
+          completeSignOut ();
+          settlement.resolve (true);
         }
 
         @Override
-        public void onFailure (Call<Boolean> call, Throwable t)
+        public void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason)
         {
-          if (forceSignOut)
-          {
-            completeSignOut ();
-            settlement.resolve (true);
-          }
-          else
-          {
-            settlement.reject (t);
-          }
+          settlement.reject (reason);
         }
-      });
+
+        @Override
+        public void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason)
+        {
+          // The logout is in the outbox, so the user can be signed out on the device.
+          completeSignOut ();
+          settlement.resolve (true);
+        }
+      }, null);
     });
   }
 
   /**
-   * Change the users current password.
+   * Change the users current password. If the device is offline, the change is kept
+   * in the outbox, and is sent when the device is back online.
    *
    * @param currentPassword
    * @param newPassword
-   * @return
+   * @return                  Promise that resolves to true if the password was
+   *                          changed, or false if the change is waiting in the outbox
    */
   public Promise <Boolean> changePassword (String currentPassword, String newPassword)
   {
-    return new Promise<> (settlement -> {
-      JsonChangePassword change = new JsonChangePassword ();
-      change.currentPassword = currentPassword;
-      change.newPassword = newPassword;
+    SessionToken token = this.engine_.getToken ();
+
+    if (token == null)
+      return Promise.reject (new IllegalStateException ("User must be signed in to change the password"));
+
+    return new Promise<> (settlement ->
+      this.send (this.outbox_.newChangePassword (token.getUsername (), currentPassword, newPassword),
+                 new OutboxCallback (settlement),
+                 null)
+    );
+  }
+
+  /**
+   * Update the account of the current user. Only the fields that are set are changed.
+   * If the device is offline, the update is kept in the outbox, and is sent when the
+   * device is back online.
+   *
+   * @param account           The fields to change
+   * @return                  Promise that resolves to true if the account was
+   *                          updated, or false if the update is waiting in the outbox
+   */
+  public Promise <Boolean> updateAccount (JsonAccount account)
+  {
+    SessionToken token = this.engine_.getToken ();
+
+    if (token == null)
+      return Promise.reject (new IllegalStateException ("User must be signed in to update the account"));
 
-      Resource r = new Resource ("change-password", change);
+    return new Promise<> (settlement ->
+      this.send (this.outbox_.newUpdateAccount (token.getUsername (), account),
+                 new OutboxCallback (settlement),
+                 null)
+    );
+  }
 
-      this.userMethods_.changePassword (r).enqueue (new Callback<Boolean> ()
+  /**
+   * Add a message to the outbox off the main thread, since the message is written to
+   * the database.
+   *
+   * @param message           The message
+   * @param callback          Callback for the first outcome of the message, or null
+   * @param queued            Task to run once the message is in the outbox, or null
+   */
+  private void send (OutboxMessage message, OutboxListener callback, Runnable queued)
+  {
+    // The callback is registered before the message can be sent.
+    if (callback != null)
+    {
+      synchronized (this.outboxCallbacks_)
       {
-        @Override
-        public void onResponse (Call<Boolean> call, retrofit2.Response<Boolean> response)
-        {
-          if (response.isSuccessful ())
-          {
-            settlement.resolve (response.body ());
-          }
-          else
-          {
-            settlement.reject (new IllegalStateException (response.message ()));
-          }
-        }
+        this.outboxCallbacks_.put (message.getIdempotencyKey (), callback);
+      }
+    }
 
-        @Override
-        public void onFailure (Call<Boolean> call, Throwable t)
-        {
-          settlement.reject (t);
-        }
-      });
+    this.httpClient_.dispatcher ().executorService ().execute (() -> {
+      this.outbox_.enqueue (message);
+
+      if (queued != null)
+        queued.run ();
     });
   }
 
+  private OutboxListener takeOutboxCallback (OutboxMessage message)
+  {
+    synchronized (this.outboxCallbacks_)
+    {
+      return this.outboxCallbacks_.remove (message.getIdempotencyKey ());
+    }
+  }
+
   /**
    * Create a new account.
    *
@@ -602,11 +802,15 @@ public class GatekeeperSessionClient
    */
   public Promise<JsonAccount> createAccount (String username, String password, String email)
   {
-    return new Promise<> (settlement ->
+    return new Promise<> (settlement -> {
+      final long startTime = System.nanoTime ();
+      final Span span = Gatekeeper.getTracer ().startSpan ("createAccount");
+      final Span tokenSpan = span.startChild ("getClientToken");
+
       this.client_.getClientToken ()
                   .then (token -> {
-                    this.clientToken_ = ClientToken.fromToken (this.client_.getClientId (), token);
-                    FlowManager.getModelAdapter (ClientToken.class).save (this.clientToken_);
+                    tokenSpan.end ();
+                    this.saveClientToken (token, span);
 
                     // Make a call to create the account.
                     JsonAccount account = new JsonAccount ();
@@ -614,11 +818,22 @@ public class GatekeeperSessionClient
                     account.password = password;
                     account.email = email;
 
-                    return this.getCreateAccountEndpoint ().create (account);
+                    return trace (this.getCreateAccountEndpoint ().create (account), span.startChild ("postAccount"));
                   })
-                  .then (resolved (r -> settlement.resolve (r.get ("account"))))
-                  ._catch (rejected (settlement::reject))
-    );
+                  .then (resolved (r -> {
+                    recordMetrics (Timer.CREATE_ACCOUNT, Counter.CREATE_ACCOUNT, startTime);
+                    span.end ();
+
+                    settlement.resolve (r.get ("account"));
+                  }))
+                  ._catch (rejected (reason -> {
+                    Gatekeeper.getMetricsSink ().increment (Counter.CREATE_ACCOUNT_FAILED);
+                    tokenSpan.end (reason);
+                    span.end (reason);
+
+                    settlement.reject (reason);
+                  }));
+    });
   }
 
   /**
@@ -631,13 +846,17 @@ public class GatekeeperSessionClient
    */
   public Promise <JsonAccount> createAccount (String username, String password, String email, boolean autoSignIn)
   {
-    return new Promise<> (settlement ->
+    return new Promise<> (settlement -> {
+      final long startTime = System.nanoTime ();
+      final Span span = Gatekeeper.getTracer ().startSpan ("createAccount");
+      final Span tokenSpan = span.startChild ("getClientToken");
+
       this.client_.getClientToken ()
                   .then (token -> {
                     // Use the client token to create a new account. We are going to login
                     // with the newly created account.
-                    this.clientToken_ = ClientToken.fromToken (this.client_.getClientId (), token);
-                    FlowManager.getModelAdapter (ClientToken.class).save (this.clientToken_);
+                    tokenSpan.end ();
+                    this.saveClientToken (token, span);
 
                     // Make a call to create the account.
                     JsonAccount account = new JsonAccount ();
@@ -648,18 +867,91 @@ public class GatekeeperSessionClient
                     HashMap <String, Object> options = new HashMap<> ();
                     options.put ("login", autoSignIn);
 
-                    return this.getCreateAccountEndpoint ().create (account, options);
+                    return trace (this.getCreateAccountEndpoint ().create (account, options), span.startChild ("postAccount"));
                   })
                   .then (resolved (r -> {
                     // Complete the sign in process.
                     JsonAccount account = r.get ("account");
                     JsonBearerToken userToken = r.get ("token");
 
-                    this.completeSignIn (username, userToken)
-                        .then (resolved (value -> settlement.resolve (account)))
-                        ._catch (rejected (settlement::reject));
+                    this.completeSignIn (username, userToken, span)
+                        .then (resolved (value -> {
+                          recordMetrics (Timer.CREATE_ACCOUNT, Counter.CREATE_ACCOUNT, startTime);
+                          span.end ();
+
+                          settlement.resolve (account);
+                        }))
+                        ._catch (rejected (reason -> {
+                          Gatekeeper.getMetricsSink ().increment (Counter.CREATE_ACCOUNT_FAILED);
+                          span.end (reason);
+
+                          settlement.reject (reason);
+                        }));
                   }))
-                  ._catch (rejected (settlement::reject))
+                  ._catch (rejected (reason -> {
+                    Gatekeeper.getMetricsSink ().increment (Counter.CREATE_ACCOUNT_FAILED);
+                    tokenSpan.end (reason);
+                    span.end (reason);
+
+                    settlement.reject (reason);
+                  }));
+    });
+  }
+
+  /**
+   * Save the client token used to create an account.
+   *
+   * @param token               Access token for the client
+   * @param parent              Span of the calling pipeline
+   */
+  private void saveClientToken (JsonBearerToken token, Span parent)
+  {
+    Span span = parent.startChild ("saveClientToken");
+
+    this.clientToken_ = ClientToken.fromToken (this.client_.getClientId (), token);
+
+    Gatekeeper.awaitInitialized ();
+
+    // The generation is read and written in the same transaction so two saves
+    // cannot get the same generation.
+    DatabaseWrapper db = FlowManager.getDatabase (GatekeeperDatabase.class).getWritableDatabase ();
+    db.beginTransaction ();
+
+    try
+    {
+      this.clientToken_.generation =
+          DbFlowTokenStore.nextGeneration (db, "client_tokens", "client_id", this.clientToken_.clientId.toString ());
+
+      FlowManager.getModelAdapter (ClientToken.class).save (this.clientToken_);
+
+      db.setTransactionSuccessful ();
+    }
+    finally
+    {
+      db.endTransaction ();
+    }
+
+    span.end ();
+  }
+
+  /**
+   * End a span when a promise settles.
+   *
+   * @param promise             Promise for the stage
+   * @param span                Span for the stage
+   * @return                    Promise that settles with the stage
+   */
+  private static <T> Promise <T> trace (Promise <T> promise, Span span)
+  {
+    return new Promise<> (settlement ->
+      promise.then (resolved (value -> {
+               span.end ();
+               settlement.resolve (value);
+             }))
+             ._catch (rejected (reason -> {
+               span.end (reason);
+               settlement.reject (reason);
+             }))
     );
   }
 
@@ -685,7 +977,6 @@ public class GatekeeperSessionClient
   // parties when a user is signed in and when a user is signed out.
   private static final int MSG_ON_LOGIN = 0;
   private static final int MSG_ON_LOGOUT = 1;
-  private static final int MSG_ON_REAUTHENTICATE = 2;
 
   private final Handler uiHandler_ = new Handler (Looper.getMainLooper ()) {
     @Override
@@ -702,68 +993,14 @@ public class GatekeeperSessionClient
           for (Listener listener: listeners_)
             listener.onSignedOut (GatekeeperSessionClient.this);
           break;
-
-        case MSG_ON_REAUTHENTICATE:
-          HttpError httpError = (HttpError)msg.obj;
-
-          for (Listener listener: listeners_)
-            listener.onReauthenticate (GatekeeperSessionClient.this, httpError);
-          break;
       }
     }
   };
 
-  /**
-   * Interceptor that adds the user token as the Authorization header to the request.
-   */
-  private final Interceptor userAuthorizationHeader_ = new Interceptor ()
+  private static void recordMetrics (Timer timer, Counter counter, long startTime)
   {
-    @Override
-    public Response intercept (Chain chain) throws IOException
-    {
-      okhttp3.Request original = chain.request ();
-      okhttp3.Request.Builder builder = original.newBuilder ();
-
-      if (userToken_ != null)
-        builder.header ("Authorization", "Bearer " + userToken_.accessToken);
-
-      if (userAgent_ != null)
-        builder.header ("User-Agent", userAgent_);
-
-      builder.method (original.method (), original.body ());
-
-      return chain.proceed (builder.build ());
-    }
-  };
-
-  private boolean refreshTokenSync ()
-  {
-    try
-    {
-      retrofit2.Response<JsonBearerToken> response =
-          this.client_.refreshTokenSync (this.userToken_.refreshToken)
-                      .execute ();
-
-      if (response.isSuccessful ())
-      {
-        JsonBearerToken token = response.body ();
-
-        this.userToken_.accessToken = token.accessToken;
-        this.userToken_.refreshToken = token.refreshToken;
-        FlowManager.getModelAdapter (UserToken.class).save (this.userToken_);
-
-        return true;
-      }
-      else
-      {
-        return false;
-      }
-    }
-    catch (IOException e)
-    {
-      this.logger_.error (e.getLocalizedMessage (), e);
-      return false;
-    }
+    Gatekeeper.getMetricsSink ().increment (counter);
+    Gatekeeper.getMetricsSink ().recordLatency (timer, System.nanoTime () - startTime);
   }
 
   /**
@@ -786,78 +1023,121 @@ public class GatekeeperSessionClient
   };
 
   /**
-   * Interceptor that handles special cases for a response, such a refreshing
-   * the token or for ending a session.
+   * Listener for the notifications from the session engine. The sign in and sign out
+   * notifications are sent by the observer for the user token table, so they also
+   * reach this client when the table is changed by another client.
    */
-  private final Interceptor responseInterceptor_ = new Interceptor ()
+  private final SessionListener sessionListener_ = new SessionListener ()
   {
     @Override
-    public Response intercept (Chain chain) throws IOException
+    public void onSignedIn (SessionEngine engine, SessionToken token)
     {
-      // Proceed with the original request. Check the status code for the response.
-      // If the status code is 401, then we need to refresh the token. Otherwise,
-      // we return control to the next interceptor.
 
-      Request origRequest = chain.request ();
-      Response origResponse = chain.proceed (origRequest);
+    }
 
-      if (origResponse.isSuccessful ())
-        return origResponse;
+    @Override
+    public void onSignedOut (SessionEngine engine)
+    {
 
-      int statusCode = origResponse.code ();
+    }
 
-      if (statusCode == 401) {
-        // Let's try to update the original token. If the response is not successful,
-        // the return the original response. Otherwise, retry the same request.
-        if (refreshTokenSync ())
-          return chain.proceed (origRequest);
-      }
-      else if (statusCode == 403) {
-        // Let's see what kind of error message we received. We may be able to handle
-        // it here in the interceptor if it related to the token.
-        Resource resource = resourceConverter_.convert (origResponse.body ());
-        HttpError error = resource.get ("errors");
-
-        // Since we can only consume a ResponseBody once, we need to replace the original
-        // one with a new one.
-        String origBody = client_.getGson ().toJson (resource);
-        ResponseBody responseBody = ResponseBody.create (origResponse.body ().contentType (), origBody);
-
-        origResponse =
-            origResponse.newBuilder ()
-                        .body (responseBody)
-                        .build();
-
-        if (REAUTHENTICATE_ERROR_CODES.contains (error.getCode ()))
-        {
-          // Notify the client to authenticate. This is optional. If the client
-          // does not authenticate, then all calls will continue to fail.
-          Message msg = uiHandler_.obtainMessage (MSG_ON_REAUTHENTICATE, error);
-          msg.sendToTarget ();
-        }
-      }
+    @Override
+    public void onReauthenticate (SessionEngine engine, GatekeeperException reason)
+    {
+      // Let the listeners see the error in the same form as the other errors.
+      Resource resource = client_.getGson ().fromJson (reason.getResponseBody (), Resource.class);
+      HttpError error = resource.get ("errors");
+      error.setStatusCode (reason.getStatusCode ());
 
-      return origResponse;
+      for (Listener listener: listeners_)
+        listener.onReauthenticate (GatekeeperSessionClient.this, error);
     }
   };
 
-  interface UserMethods
+  /**
+   * Forwards the outcome of each message in the outbox to its callback. A callback
+   * only receives the first outcome of its message.
+   */
+  private final OutboxListener outboxListener_ = new OutboxListener ()
   {
-    @POST("oauth2/logout")
-    Call <Boolean> logout ();
+    @Override
+    public void onDelivered (Outbox outbox, OutboxMessage message)
+    {
+      OutboxListener callback = takeOutboxCallback (message);
 
-    @POST("accounts/me/password")
-    Call <Boolean> changePassword (@Body Resource r);
-  }
+      if (callback != null)
+        callback.onDelivered (outbox, message);
+    }
+
+    @Override
+    public void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason)
+    {
+      logger_.warn ("Gatekeeper rejected " + message + ": " + reason.getMessage ());
+      OutboxListener callback = takeOutboxCallback (message);
+
+      if (callback != null)
+        callback.onRejected (outbox, message, reason);
+    }
+
+    @Override
+    public void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason)
+    {
+      OutboxListener callback = takeOutboxCallback (message);
+
+      if (callback != null)
+        callback.onRetryScheduled (outbox, message, reason);
+    }
+  };
+
+  /**
+   * Sends the messages in the outbox again when the device is back online, instead
+   * of waiting for their backoff to end.
+   */
+  private final BroadcastReceiver connectivityReceiver_ = new BroadcastReceiver ()
+  {
+    @Override
+    public void onReceive (Context context, Intent intent)
+    {
+      ConnectivityManager manager = (ConnectivityManager)context.getSystemService (Context.CONNECTIVITY_SERVICE);
+      NetworkInfo network = manager != null ? manager.getActiveNetworkInfo () : null;
+
+      if (network != null && network.isConnected ())
+        httpClient_.dispatcher ().executorService ().execute (outbox_::retryNow);
+    }
+  };
 
-  static
+  /**
+   * @class OutboxCallback
+   *
+   * Settles the promise for a message in the outbox: true if Gatekeeper accepted the
+   * message, false if the message is waiting in the outbox, or the error if
+   * Gatekeeper rejected it.
+   */
+  private static final class OutboxCallback implements OutboxListener
   {
-    REAUTHENTICATE_ERROR_CODES.add ("unknown_token");
-    REAUTHENTICATE_ERROR_CODES.add ("invalid_token");
-    REAUTHENTICATE_ERROR_CODES.add ("token_disabled");
-    REAUTHENTICATE_ERROR_CODES.add ("unknown_client");
-    REAUTHENTICATE_ERROR_CODES.add ("client_disabled");
-    REAUTHENTICATE_ERROR_CODES.add ("unknown_account");
-    REAUTHENTICATE_ERROR_CODES.add ("account_disabled");
+    private final Promise.Settlement <Boolean> settlement_;
+
+    OutboxCallback (Promise.Settlement <Boolean> settlement)
+    {
+      this.settlement_ = settlement;
+    }
+
+    @Override
+    public void onDelivered (Outbox outbox, OutboxMessage message)
+    {
+      this.settlement_.resolve (true);
+    }
+
+    @Override
+    public void onRejected (Outbox outbox, OutboxMessage message, GatekeeperException reason)
+    {
+      this.settlement_.reject (reason);
+    }
+
+    @Override
+    public void onRetryScheduled (Outbox outbox, OutboxMessage message, IOException reason)
+    {
+      this.settlement_.resolve (false);
+    }
   }
 }
@@ -280,6 +280,13 @@ public class GatekeeperSignInFragment extends Fragment
       }
     }
 
+    // Prepare the connection to Gatekeeper while the user is entering their
+    // credentials so signing in does not pay for the connection setup.
+    GatekeeperSessionClient.getInstance (this.getContext ())
+                           .getClient ()
+                           .warmUp ()
+                           ._catch (rejected (reason -> { }));
+
     return view;
   }
 
@@ -0,0 +1,325 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+import com.onehilltech.gatekeeper.android.Gatekeeper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * @class GatekeeperEventListener
+ *
+ * EventListener that times the phases of a call to a Gatekeeper endpoint, and
+ * records them with the MetricsSink. The phases show if a slow call is spending
+ * its time setting up the connection (DNS, connect, and TLS), or waiting on the
+ * server (time to first byte).
+ *
+ * The listener forwards each event to the listener created by the factory that was
+ * installed on the http client before, so the timings do not replace the listener
+ * of the application.
+ */
+public class GatekeeperEventListener extends EventListener
+{
+  /**
+   * @class Factory
+   *
+   * Factory that creates a GatekeeperEventListener for each call to Gatekeeper.
+   * Calls to other hosts only get the listener from the other factory.
+   */
+  public static final class Factory implements EventListener.Factory
+  {
+    private final String host_;
+
+    private final int port_;
+
+    private final String basePath_;
+
+    private final EventListener.Factory delegate_;
+
+    private final MetricsSink metrics_;
+
+    /**
+     * Initializing constructor.
+     *
+     * @param baseUrl       Versioned base URL for Gatekeeper
+     */
+    public Factory (String baseUrl)
+    {
+      this (baseUrl, null);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param baseUrl       Versioned base URL for Gatekeeper
+     * @param delegate      Factory whose listeners receive each event, or null
+     */
+    public Factory (String baseUrl, EventListener.Factory delegate)
+    {
+      this (baseUrl, delegate, null);
+    }
+
+    /**
+     * Initializing constructor.
+     *
+     * @param baseUrl       Versioned base URL for Gatekeeper
+     * @param delegate      Factory whose listeners receive each event, or null
+     * @param metrics       Sink for the phases, or null for the sink of Gatekeeper
+     */
+    public Factory (String baseUrl, EventListener.Factory delegate, MetricsSink metrics)
+    {
+      HttpUrl url = HttpUrl.parse (baseUrl);
+
+      this.host_ = url.host ();
+      this.port_ = url.port ();
+      this.basePath_ = url.encodedPath ();
+      this.delegate_ = delegate;
+      this.metrics_ = metrics;
+    }
+
+    @Override
+    public EventListener create (Call call)
+    {
+      EventListener delegate = this.delegate_ != null ? this.delegate_.create (call) : EventListener.NONE;
+      HttpUrl url = call.request ().url ();
+
+      if (!url.host ().equals (this.host_) || url.port () != this.port_)
+        return delegate;
+
+      String path = url.encodedPath ();
+
+      if (!path.startsWith (this.basePath_))
+        return delegate;
+
+      return new GatekeeperEventListener (getEndpoint (path.substring (this.basePath_.length ())), delegate, this.metrics_);
+    }
+
+    private static Endpoint getEndpoint (String path)
+    {
+      if (path.equals ("oauth2/token"))
+        return Endpoint.TOKEN;
+      else if (path.equals ("oauth2/logout"))
+        return Endpoint.LOGOUT;
+      else if (path.equals ("accounts") || path.startsWith ("accounts/"))
+        return Endpoint.ACCOUNTS;
+      else
+        return Endpoint.OTHER;
+    }
+  }
+
+  private final Endpoint endpoint_;
+
+  private final EventListener delegate_;
+
+  /// Sink for the phases, or null for the sink of Gatekeeper.
+  private final MetricsSink metrics_;
+
+  private long callStart_;
+
+  private long dnsStart_;
+
+  private long connectStart_;
+
+  private long secureConnectStart_;
+
+  private long requestStart_;
+
+  private long requestEnd_;
+
+  private long responseBodyStart_;
+
+  private GatekeeperEventListener (Endpoint endpoint, EventListener delegate, MetricsSink metrics)
+  {
+    this.endpoint_ = endpoint;
+    this.delegate_ = delegate;
+    this.metrics_ = metrics;
+  }
+
+  public Endpoint getEndpoint ()
+  {
+    return this.endpoint_;
+  }
+
+  @Override
+  public void callStart (Call call)
+  {
+    this.callStart_ = System.nanoTime ();
+
+    this.delegate_.callStart (call);
+  }
+
+  @Override
+  public void dnsStart (Call call, String domainName)
+  {
+    this.dnsStart_ = System.nanoTime ();
+
+    this.delegate_.dnsStart (call, domainName);
+  }
+
+  @Override
+  public void dnsEnd (Call call, String domainName, List<InetAddress> inetAddressList)
+  {
+    this.record (Phase.DNS, this.dnsStart_);
+
+    this.delegate_.dnsEnd (call, domainName, inetAddressList);
+  }
+
+  @Override
+  public void connectStart (Call call, InetSocketAddress inetSocketAddress, Proxy proxy)
+  {
+    this.connectStart_ = System.nanoTime ();
+
+    this.delegate_.connectStart (call, inetSocketAddress, proxy);
+  }
+
+  @Override
+  public void secureConnectStart (Call call)
+  {
+    // The TCP connection is open once the handshake starts.
+    this.secureConnectStart_ = System.nanoTime ();
+    this.record (Phase.CONNECT, this.connectStart_, this.secureConnectStart_);
+
+    this.delegate_.secureConnectStart (call);
+  }
+
+  @Override
+  public void secureConnectEnd (Call call, Handshake handshake)
+  {
+    this.record (Phase.TLS, this.secureConnectStart_);
+
+    this.delegate_.secureConnectEnd (call, handshake);
+  }
+
+  @Override
+  public void connectEnd (Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol)
+  {
+    // The connect phase for secure connections ends when the handshake starts.
+    if (this.secureConnectStart_ == 0)
+      this.record (Phase.CONNECT, this.connectStart_);
+
+    this.secureConnectStart_ = 0;
+
+    this.delegate_.connectEnd (call, inetSocketAddress, proxy, protocol);
+  }
+
+  @Override
+  public void connectFailed (Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe)
+  {
+    this.secureConnectStart_ = 0;
+
+    this.delegate_.connectFailed (call, inetSocketAddress, proxy, protocol, ioe);
+  }
+
+  @Override
+  public void connectionAcquired (Call call, Connection connection)
+  {
+    this.delegate_.connectionAcquired (call, connection);
+  }
+
+  @Override
+  public void connectionReleased (Call call, Connection connection)
+  {
+    this.delegate_.connectionReleased (call, connection);
+  }
+
+  @Override
+  public void requestHeadersStart (Call call)
+  {
+    this.requestStart_ = System.nanoTime ();
+
+    this.delegate_.requestHeadersStart (call);
+  }
+
+  @Override
+  public void requestHeadersEnd (Call call, Request request)
+  {
+    this.requestEnd_ = System.nanoTime ();
+
+    this.delegate_.requestHeadersEnd (call, request);
+  }
+
+  @Override
+  public void requestBodyStart (Call call)
+  {
+    this.delegate_.requestBodyStart (call);
+  }
+
+  @Override
+  public void requestBodyEnd (Call call, long byteCount)
+  {
+    this.requestEnd_ = System.nanoTime ();
+
+    this.delegate_.requestBodyEnd (call, byteCount);
+  }
+
+  @Override
+  public void responseHeadersStart (Call call)
+  {
+    long now = System.nanoTime ();
+
+    this.record (Phase.REQUEST_WRITE, this.requestStart_, this.requestEnd_);
+    this.record (Phase.TIME_TO_FIRST_BYTE, this.requestEnd_, now);
+
+    this.delegate_.responseHeadersStart (call);
+  }
+
+  @Override
+  public void responseHeadersEnd (Call call, Response response)
+  {
+    this.delegate_.responseHeadersEnd (call, response);
+  }
+
+  @Override
+  public void responseBodyStart (Call call)
+  {
+    this.responseBodyStart_ = System.nanoTime ();
+
+    this.delegate_.responseBodyStart (call);
+  }
+
+  @Override
+  public void responseBodyEnd (Call call, long byteCount)
+  {
+    this.record (Phase.RESPONSE_BODY, this.responseBodyStart_);
+
+    this.delegate_.responseBodyEnd (call, byteCount);
+  }
+
+  @Override
+  public void callEnd (Call call)
+  {
+    this.record (Phase.CALL, this.callStart_);
+
+    this.delegate_.callEnd (call);
+  }
+
+  @Override
+  public void callFailed (Call call, IOException ioe)
+  {
+    this.record (Phase.CALL, this.callStart_);
+
+    this.delegate_.callFailed (call, ioe);
+  }
+
+  private void record (Phase phase, long start)
+  {
+    this.record (phase, start, System.nanoTime ());
+  }
+
+  private void record (Phase phase, long start, long end)
+  {
+    MetricsSink metrics = this.metrics_ != null ? this.metrics_ : Gatekeeper.getMetricsSink ();
+    metrics.recordPhase (this.endpoint_, phase, end - start);
+  }
+}
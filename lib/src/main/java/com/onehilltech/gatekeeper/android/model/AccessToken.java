@@ -1,5 +1,6 @@
 package com.onehilltech.gatekeeper.android.model;
 
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
 import com.raizlabs.android.dbflow.annotation.Column;
 
 public class AccessToken
@@ -8,6 +9,37 @@ public class AccessToken
   @Column(name="access_token")
   public String accessToken;
 
+  /// Time the token was stored, in milliseconds since the epoch.
+  @Column(name="issued_at")
+  public long issuedAt;
+
+  /// Time the token expires, in milliseconds since the epoch, or 0 if the server
+  /// did not say.
+  @Column(name="expires_at")
+  public long expiresAt;
+
+  /// Scope granted to the token, or null if the server did not say.
+  @Column(name="scope")
+  public String scope;
+
+  /// Number of times the token has been stored for the same key. The first token
+  /// is generation 1, and each refresh adds 1.
+  @Column(name="generation")
+  public long generation;
+
+  /**
+   * Set the issue time, the expiration time, and the scope of the token from the
+   * token returned by Gatekeeper.
+   *
+   * @param token           Token returned by Gatekeeper
+   */
+  protected void setIssued (JsonBearerToken token)
+  {
+    this.issuedAt = System.currentTimeMillis ();
+    this.expiresAt = token.expiresIn != null ? this.issuedAt + token.expiresIn * 1000 : 0;
+    this.scope = token.scope;
+  }
+
   @Override
   public boolean equals (Object obj)
   {
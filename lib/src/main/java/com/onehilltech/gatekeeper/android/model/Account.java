@@ -3,6 +3,7 @@ package com.onehilltech.gatekeeper.android.model;
 import com.onehilltech.backbone.data.DataModel;
 import com.onehilltech.backbone.data.serializers.ObjectIdSerializer;
 import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
 import com.raizlabs.android.dbflow.annotation.Column;
 import com.raizlabs.android.dbflow.annotation.PrimaryKey;
 import com.raizlabs.android.dbflow.annotation.Table;
@@ -20,6 +21,21 @@ public class Account extends DataModel <Account>
   @Column
   public String email;
 
+  /**
+   * Create an Account from its JSON representation.
+   *
+   * @param json
+   * @return
+   */
+  public static Account fromJson (JsonAccount json)
+  {
+    Account account = new Account (new ObjectId (json._id));
+    account.username = json.username;
+    account.email = json.email;
+
+    return account;
+  }
+
   Account ()
   {
     // required constructor
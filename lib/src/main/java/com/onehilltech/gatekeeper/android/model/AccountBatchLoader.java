@@ -0,0 +1,270 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import com.onehilltech.backbone.data.HttpError;
+import com.onehilltech.backbone.data.Resource;
+import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
+import com.onehilltech.gatekeeper.android.http.JsonAccounts;
+import com.onehilltech.promises.Promise;
+import com.raizlabs.android.dbflow.config.FlowManager;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Converter;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Query;
+
+/**
+ * @class AccountBatchLoader
+ *
+ * Loader that batches account lookups. The lookups made within a short window are
+ * collected, and loaded with a single GET /accounts?ids=... request. Duplicate ids
+ * in the same window are loaded once, and the result is sent to each caller.
+ */
+public class AccountBatchLoader implements AccountCache.Loader
+{
+  private static final long DEFAULT_WINDOW_MILLIS = 10;
+
+  private static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+  /**
+   * Caller waiting on an account in a batch.
+   */
+  private interface Waiter
+  {
+    void settle (Account account, Throwable reason);
+  }
+
+  private final AccountMethods methods_;
+
+  private final Converter <ResponseBody, Resource> resourceConverter_;
+
+  private final long window_;
+
+  private final int maxBatchSize_;
+
+  /// Closes the windows. The thread is a daemon so it does not keep the process
+  /// alive.
+  private final ScheduledExecutorService scheduler_ = Executors.newSingleThreadScheduledExecutor (runnable -> {
+    Thread thread = new Thread (runnable, "gatekeeper-account-batch");
+    thread.setDaemon (true);
+
+    return thread;
+  });
+
+  /// The lookups for the current batch, in the order they were requested.
+  private LinkedHashMap <ObjectId, ArrayList <Waiter>> batch_ = new LinkedHashMap<> ();
+
+  /// Closes the window of the current batch.
+  private ScheduledFuture <?> windowTimer_;
+
+  /**
+   * Initializing constructor.
+   *
+   * @param endpoint          Endpoint for the accounts
+   */
+  public AccountBatchLoader (Retrofit endpoint)
+  {
+    this (endpoint, DEFAULT_WINDOW_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /**
+   * Initializing constructor.
+   *
+   * @param endpoint          Endpoint for the accounts
+   * @param window            Window for collecting lookups
+   * @param unit              Unit for window
+   * @param maxBatchSize      Maximum number of ids in a single request
+   */
+  public AccountBatchLoader (Retrofit endpoint, long window, TimeUnit unit, int maxBatchSize)
+  {
+    this.methods_ = endpoint.create (AccountMethods.class);
+    this.resourceConverter_ = endpoint.responseBodyConverter (Resource.class, new Annotation[0]);
+    this.window_ = unit.toNanos (window);
+    this.maxBatchSize_ = maxBatchSize;
+  }
+
+  @Override
+  public Promise <Account> load (ObjectId id)
+  {
+    return new Promise<> (settlement -> {
+      Waiter waiter = (account, reason) -> {
+        if (reason == null)
+          settlement.resolve (account);
+        else
+          settlement.reject (reason);
+      };
+
+      LinkedHashMap <ObjectId, ArrayList <Waiter>> full = null;
+
+      synchronized (this)
+      {
+        ArrayList <Waiter> waiters = this.batch_.get (id);
+
+        if (waiters == null)
+        {
+          waiters = new ArrayList<> ();
+          this.batch_.put (id, waiters);
+
+          // The first lookup in the batch starts the window.
+          if (this.batch_.size () == 1)
+            this.windowTimer_ = this.scheduler_.schedule (this::flush, this.window_, TimeUnit.NANOSECONDS);
+        }
+
+        waiters.add (waiter);
+
+        if (this.batch_.size () >= this.maxBatchSize_)
+          full = this.takeBatch ();
+      }
+
+      if (full != null)
+        this.send (full);
+    });
+  }
+
+  /**
+   * Send the current batch without waiting for the window to close.
+   */
+  public void flush ()
+  {
+    LinkedHashMap <ObjectId, ArrayList <Waiter>> batch;
+
+    synchronized (this)
+    {
+      batch = this.takeBatch ();
+    }
+
+    if (!batch.isEmpty ())
+      this.send (batch);
+  }
+
+  private LinkedHashMap <ObjectId, ArrayList <Waiter>> takeBatch ()
+  {
+    LinkedHashMap <ObjectId, ArrayList <Waiter>> batch = this.batch_;
+    this.batch_ = new LinkedHashMap<> ();
+
+    // The timer would otherwise close the window of the next batch early.
+    if (this.windowTimer_ != null)
+    {
+      this.windowTimer_.cancel (false);
+      this.windowTimer_ = null;
+    }
+
+    return batch;
+  }
+
+  private void send (final LinkedHashMap <ObjectId, ArrayList <Waiter>> batch)
+  {
+    StringBuilder ids = new StringBuilder ();
+
+    for (ObjectId id: batch.keySet ())
+    {
+      if (ids.length () > 0)
+        ids.append (',');
+
+      ids.append (id.toString ());
+    }
+
+    this.methods_.getAccounts (ids.toString ()).enqueue (new Callback<JsonAccounts> ()
+    {
+      @Override
+      public void onResponse (Call<JsonAccounts> call, Response<JsonAccounts> response)
+      {
+        if (response.isSuccessful ())
+        {
+          HashMap <String, Account> accounts = new HashMap<> ();
+          JsonAccounts body = response.body ();
+
+          try
+          {
+            if (body != null && body.accounts != null)
+            {
+              for (JsonAccount jsonAccount : body.accounts)
+                accounts.put (jsonAccount._id, Account.fromJson (jsonAccount));
+
+              FlowManager.getModelAdapter (Account.class).saveAll (accounts.values ());
+            }
+          }
+          catch (RuntimeException e)
+          {
+            // The accounts could not be saved. The waiters must still be settled, or
+            // they wait forever.
+            this.rejectAll (e);
+            return;
+          }
+
+          for (Map.Entry <ObjectId, ArrayList <Waiter>> entry: batch.entrySet ())
+          {
+            Account account = accounts.get (entry.getKey ().toString ());
+            Throwable reason = account != null ? null : new IllegalStateException ("Account not found: " + entry.getKey ());
+
+            for (Waiter waiter : entry.getValue ())
+              waiter.settle (account, reason);
+          }
+        }
+        else
+        {
+          this.rejectAll (getError (response));
+        }
+      }
+
+      @Override
+      public void onFailure (Call<JsonAccounts> call, Throwable t)
+      {
+        this.rejectAll (t);
+      }
+
+      private void rejectAll (Throwable reason)
+      {
+        for (ArrayList <Waiter> waiters: batch.values ())
+          for (Waiter waiter : waiters)
+            waiter.settle (null, reason);
+      }
+    });
+  }
+
+  /**
+   * Get the reason a batch request failed.
+   */
+  private Throwable getError (Response <?> response)
+  {
+    try
+    {
+      Resource resource = this.resourceConverter_.convert (response.errorBody ());
+      HttpError error = resource != null ? resource.get ("errors") : null;
+
+      if (error != null)
+      {
+        error.setStatusCode (response.code ());
+        return error;
+      }
+    }
+    catch (IOException | RuntimeException e)
+    {
+      // The error body is not a Gatekeeper error, such as an html page from a proxy.
+      return e;
+    }
+
+    return new IllegalStateException (response.message ());
+  }
+
+  interface AccountMethods
+  {
+    @GET("accounts")
+    Call <JsonAccounts> getAccounts (@Query ("ids") String ids);
+  }
+}
@@ -0,0 +1,214 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.promises.Promise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.onehilltech.promises.Promise.rejected;
+import static com.onehilltech.promises.Promise.resolved;
+
+/**
+ * @class AccountCache
+ *
+ * Bounded in-memory cache of Account objects keyed by id. The cache holds at most
+ * a fixed number of accounts, and evicts the least recently used account when it
+ * is full. Accounts also expire after a fixed time-to-live.
+ *
+ * Concurrent gets for an account that is not in the cache are coalesced so the
+ * account is loaded once, and all callers receive the same result.
+ */
+public class AccountCache
+{
+  /**
+   * @interface Loader
+   *
+   * Loads an account that is not in the cache.
+   */
+  public interface Loader
+  {
+    Promise <Account> load (ObjectId id);
+  }
+
+  private static final class Entry
+  {
+    final Account account;
+
+    final long expiresAt;
+
+    Entry (Account account, long expiresAt)
+    {
+      this.account = account;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Caller waiting on a pending load.
+   */
+  private interface Waiter
+  {
+    void settle (Account account, Throwable reason);
+  }
+
+  private final LinkedHashMap <ObjectId, Entry> entries_;
+
+  private final HashMap <ObjectId, ArrayList <Waiter>> pending_ = new HashMap<> ();
+
+  private final long ttl_;
+
+  /// Incremented when the cache is cleared so loads that started before the
+  /// clear do not repopulate the cache.
+  private int generation_;
+
+  /**
+   * Initializing constructor.
+   *
+   * @param maxEntries        Maximum number of accounts in the cache
+   * @param ttl               Time-to-live for an account
+   * @param unit              Unit for ttl
+   */
+  public AccountCache (final int maxEntries, long ttl, TimeUnit unit)
+  {
+    this.ttl_ = unit.toNanos (ttl);
+    this.entries_ = new LinkedHashMap <ObjectId, Entry> (16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry (Map.Entry<ObjectId, Entry> eldest)
+      {
+        return this.size () > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Get an account from the cache. If the account is not in the cache, or it has
+   * expired, the account is loaded using the loader.
+   *
+   * @param id            Id of the account
+   * @param loader        Loader for the account
+   * @return              Promise for the account
+   */
+  public Promise <Account> get (ObjectId id, Loader loader)
+  {
+    return new Promise<> (settlement -> {
+      Account cached;
+      boolean startLoad = false;
+      int generation;
+
+      synchronized (this)
+      {
+        cached = this.peek (id);
+        generation = this.generation_;
+
+        if (cached == null)
+        {
+          ArrayList <Waiter> waiters = this.pending_.get (id);
+
+          if (waiters == null)
+          {
+            waiters = new ArrayList<> ();
+            this.pending_.put (id, waiters);
+            startLoad = true;
+          }
+
+          waiters.add ((account, reason) -> {
+            if (reason == null)
+              settlement.resolve (account);
+            else
+              settlement.reject (reason);
+          });
+        }
+      }
+
+      if (cached != null)
+      {
+        settlement.resolve (cached);
+      }
+      else if (startLoad)
+      {
+        loader.load (id)
+              .then (resolved (account -> this.complete (id, generation, account, null)))
+              ._catch (rejected (reason -> this.complete (id, generation, null, reason)));
+      }
+    });
+  }
+
+  /**
+   * Get an account from the cache without loading it.
+   *
+   * @param id            Id of the account
+   * @return              Account object, or null if not cached or expired
+   */
+  public synchronized Account peek (ObjectId id)
+  {
+    Entry entry = this.entries_.get (id);
+
+    if (entry == null)
+      return null;
+
+    if (System.nanoTime () - entry.expiresAt >= 0)
+    {
+      this.entries_.remove (id);
+      return null;
+    }
+
+    return entry.account;
+  }
+
+  /**
+   * Put an account into the cache.
+   *
+   * @param account       Account object
+   */
+  public synchronized void put (Account account)
+  {
+    this.entries_.put (account._id, new Entry (account, System.nanoTime () + this.ttl_));
+  }
+
+  /**
+   * Remove an account from the cache.
+   *
+   * @param id            Id of the account
+   */
+  public synchronized void invalidate (ObjectId id)
+  {
+    this.entries_.remove (id);
+  }
+
+  /**
+   * Remove all accounts from the cache.
+   */
+  public synchronized void clear ()
+  {
+    this.entries_.clear ();
+    ++ this.generation_;
+  }
+
+  public synchronized int size ()
+  {
+    return this.entries_.size ();
+  }
+
+  private void complete (ObjectId id, int generation, Account account, Throwable reason)
+  {
+    ArrayList <Waiter> waiters;
+
+    synchronized (this)
+    {
+      waiters = this.pending_.remove (id);
+
+      if (account != null && generation == this.generation_)
+        this.put (account);
+    }
+
+    if (waiters == null)
+      return;
+
+    for (Waiter waiter: waiters)
+      waiter.settle (account, reason);
+  }
+}
@@ -17,7 +17,10 @@ public class ClientToken extends AccessToken
 
   public static ClientToken fromToken (String clientId, JsonBearerToken token)
   {
-    return new ClientToken (new ObjectId (clientId), token.accessToken);
+    ClientToken clientToken = new ClientToken (new ObjectId (clientId), token.accessToken);
+    clientToken.setIssued (token);
+
+    return clientToken;
   }
 
   ClientToken ()
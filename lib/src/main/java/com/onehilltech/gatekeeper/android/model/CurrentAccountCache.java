@@ -0,0 +1,73 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import okhttp3.Response;
+
+/**
+ * @class CurrentAccountCache
+ *
+ * The account of the signed in user, as of the last (re)validation with the server.
+ * The account is kept with the username of the session it was loaded for, so a
+ * response the server did not send a body for, such as a 304 or a response from the
+ * http cache, is never answered with the account of another user.
+ */
+final class CurrentAccountCache
+{
+  /// The user whose data is cached.
+  private String username_;
+
+  private Account account_;
+
+  /**
+   * Set the user of the session. If the user changed, the account of the last user
+   * is dropped.
+   *
+   * @param username        Username for the user, or null if no user is signed in
+   * @return                True if the user changed, and the data cached for the
+   *                        last user must be dropped
+   */
+  synchronized boolean setUser (String username)
+  {
+    if (username != null ? username.equals (this.username_) : this.username_ == null)
+      return false;
+
+    this.username_ = username;
+    this.account_ = null;
+
+    return true;
+  }
+
+  /**
+   * Get the account for a response to GET accounts/me, if the account in memory is
+   * still the account of the server.
+   *
+   * @param username        Username of the session that sent the request
+   * @param response        Successful response to the request
+   * @return                The account, or null if the account must be read from the
+   *                        body of the response
+   */
+  synchronized Account getIfNotModified (String username, Response response)
+  {
+    Response networkResponse = response.networkResponse ();
+    boolean notModified = networkResponse == null || networkResponse.code () == 304;
+
+    return notModified && username != null && username.equals (this.username_) ? this.account_ : null;
+  }
+
+  /**
+   * Keep the account read from a response. The account is dropped if the user changed
+   * while the request was in flight.
+   *
+   * @param username        Username of the session that sent the request
+   * @param account         The account
+   */
+  synchronized void put (String username, Account account)
+  {
+    if (username != null && username.equals (this.username_))
+      this.account_ = account;
+  }
+
+  synchronized void clear ()
+  {
+    this.account_ = null;
+  }
+}
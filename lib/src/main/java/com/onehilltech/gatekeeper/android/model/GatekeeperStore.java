@@ -4,35 +4,302 @@ import android.content.Context;
 
 import com.onehilltech.backbone.data.DataStore;
 import com.onehilltech.backbone.data.DataStoreAdapter;
+import com.onehilltech.backbone.data.HttpError;
+import com.onehilltech.backbone.data.Resource;
 import com.onehilltech.backbone.data.serializers.ObjectIdSerializer;
 import com.onehilltech.backbone.objectid.ObjectId;
+import com.onehilltech.gatekeeper.android.Gatekeeper;
+import com.onehilltech.gatekeeper.android.GatekeeperClient;
 import com.onehilltech.gatekeeper.android.GatekeeperSessionClient;
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
+import com.onehilltech.gatekeeper.android.tracing.Span;
+import com.onehilltech.gatekeeper.core.SessionToken;
+import com.onehilltech.promises.Promise;
+import com.raizlabs.android.dbflow.config.FlowManager;
 
-import okhttp3.CacheControl;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+import retrofit2.http.GET;
 
 public class GatekeeperStore
 {
+  private static final String HTTP_CACHE_DIR = "gatekeeper-http";
+
+  private static final long HTTP_CACHE_SIZE = 1024 * 1024;
+
+  private static final int DEFAULT_ACCOUNT_CACHE_SIZE = 128;
+
+  private static final long DEFAULT_ACCOUNT_CACHE_TTL_MINUTES = 10;
+
   private static DataStore dataStore_;
 
-  private static DataStoreAdapter dataStoreAdapter_ = request ->
-      request.url ().encodedPath ().endsWith ("/accounts/me") && request.method ().equals ("GET") ?
-          request.newBuilder ().cacheControl (CacheControl.FORCE_NETWORK).build () :
-          request;
+  private static Cache httpCache_;
+
+  private static AccountMethods accountMethods_;
+
+  private static AccountBatchLoader accountLoader_;
+
+  /// The account for the signed in user, as of the last (re)validation.
+  private static final CurrentAccountCache currentAccount_ = new CurrentAccountCache ();
+
+  /// Cache of accounts loaded through the store.
+  private static volatile AccountCache accountCache_ =
+      new AccountCache (DEFAULT_ACCOUNT_CACHE_SIZE, DEFAULT_ACCOUNT_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
+
+  /// The cache and timeout policies for the routes used by the store. By default, the
+  /// account of the signed in user is revalidated with the server on each request.
+  private static volatile RouteTable routeTable_ =
+      new RouteTable.Builder ()
+          .add ("GET", "accounts/me", new RoutePolicy.Builder ().setTimeToLive (0, TimeUnit.SECONDS).build ())
+          .build ();
+
+  private static DataStoreAdapter dataStoreAdapter_ = request -> routeTable_.apply (request);
+
+  /**
+   * Interceptor that applies the policy for the route to requests that did not pass
+   * through the data store adapter, and applies the timeouts for the route.
+   */
+  private static final Interceptor routePolicyInterceptor_ = chain -> {
+    Request request = chain.request ();
+    RoutePolicy policy = request.tag (RoutePolicy.class);
+
+    if (policy == null)
+    {
+      request = routeTable_.apply (request);
+      policy = request.tag (RoutePolicy.class);
+
+      if (policy == null)
+        return chain.proceed (request);
+    }
+
+    if (policy.getConnectTimeout () > 0)
+      chain = chain.withConnectTimeout (policy.getConnectTimeout (), TimeUnit.MILLISECONDS);
+
+    if (policy.getReadTimeout () > 0)
+      chain = chain.withReadTimeout (policy.getReadTimeout (), TimeUnit.MILLISECONDS);
+
+    if (policy.getWriteTimeout () > 0)
+      chain = chain.withWriteTimeout (policy.getWriteTimeout (), TimeUnit.MILLISECONDS);
+
+    return chain.proceed (request);
+  };
 
   public static DataStore getInstance (Context context)
   {
     if (dataStore_ != null)
       return dataStore_;
 
+    // The data store opens the database.
+    Gatekeeper.awaitInitialized ();
+
     GatekeeperSessionClient sessionClient = GatekeeperSessionClient.getInstance (context);
+    GatekeeperClient client = sessionClient.getClient ();
+
+    // The responses for the store are kept in a private http cache. This allows the
+    // client to revalidate the cached resources with conditional requests.
+    httpCache_ = new Cache (new File (context.getCacheDir (), HTTP_CACHE_DIR), HTTP_CACHE_SIZE);
+
+    OkHttpClient httpClient =
+        sessionClient.getUserClient ()
+                     .newBuilder ()
+                     .addInterceptor (routePolicyInterceptor_)
+                     .cache (httpCache_)
+                     .build ();
 
     dataStore_ = new DataStore.Builder (context, GatekeeperDatabase.class)
-        .setBaseUrl (sessionClient.getClient ().getBaseUrlWithVersion ())
+        .setBaseUrl (client.getBaseUrlWithVersion ())
         .setApplicationAdapter (dataStoreAdapter_)
-        .setHttpClient (sessionClient.getUserClient ())
+        .setHttpClient (httpClient)
         .addTypeAdapter (ObjectId.class, new ObjectIdSerializer ())
         .build ();
 
+    Retrofit endpoint =
+        new Retrofit.Builder ()
+            .baseUrl (client.getBaseUrlWithVersion ())
+            .addConverterFactory (GsonConverterFactory.create (client.getGson ()))
+            .client (httpClient)
+            .build ();
+
+    accountMethods_ = endpoint.create (AccountMethods.class);
+    accountLoader_ = new AccountBatchLoader (endpoint);
+
     return dataStore_;
   }
+
+  /**
+   * Set the route table for the store. The table assigns the cache policy (e.g., how
+   * long the account of the signed in user is fresh) and the timeouts for each
+   * endpoint used by the store.
+   *
+   * @param routeTable          RouteTable object
+   */
+  public static void setRouteTable (RouteTable routeTable)
+  {
+    routeTable_ = routeTable;
+  }
+
+  /**
+   * Replace the cache used for accounts loaded through the store.
+   *
+   * @param accountCache        AccountCache object
+   */
+  public static void setAccountCache (AccountCache accountCache)
+  {
+    accountCache_ = accountCache;
+  }
+
+  /**
+   * Get an account by its id. The account is served from the in-memory account
+   * cache when possible. Concurrent gets for the same account share a single load,
+   * and the accounts that are not cached are loaded in batches.
+   *
+   * @param context       Target context
+   * @param id            Id of the account
+   * @return              Promise for the account
+   */
+  public static Promise <Account> getAccount (Context context, ObjectId id)
+  {
+    getInstance (context);
+    return accountCache_.get (id, accountLoader_);
+  }
+
+  /**
+   * Get the account for the signed in user. The account is revalidated with the
+   * server using a conditional request. If the account has not been modified, the
+   * cached account is returned without rewriting it to the database. The cached data
+   * is dropped when the signed in user changes.
+   *
+   * @param context       Target context
+   * @return              Promise for the account
+   */
+  public static Promise <Account> getCurrentAccount (Context context)
+  {
+    return getCurrentAccount (context, null);
+  }
+
+  /**
+   * Get the account for the signed in user as a stage of a traced pipeline.
+   *
+   * @param context       Target context
+   * @param parent        Span of the calling pipeline, or null to start a new trace
+   * @return              Promise for the account
+   */
+  public static Promise <Account> getCurrentAccount (Context context, Span parent)
+  {
+    getInstance (context);
+
+    SessionToken token = GatekeeperSessionClient.getInstance (context).getEngine ().getToken ();
+    final String username = token != null ? token.getUsername () : null;
+
+    // The user may have changed without signing out through this client, such as
+    // when the account manager switched accounts. The responses cached for the last
+    // user must not be served to the new user.
+    if (currentAccount_.setUser (username))
+      invalidate ();
+
+    final Span span =
+        parent != null ?
+            parent.startChild ("getCurrentAccount") :
+            Gatekeeper.getTracer ().startSpan ("getCurrentAccount");
+
+    final Span fetchSpan = span.startChild ("fetchAccount");
+
+    return new Promise<> (settlement ->
+      accountMethods_.getMe ().enqueue (new Callback<Resource> ()
+      {
+        @Override
+        public void onResponse (Call<Resource> call, Response<Resource> response)
+        {
+          fetchSpan.end ();
+
+          if (response.isSuccessful ())
+          {
+            Account account = currentAccount_.getIfNotModified (username, response.raw ());
+
+            if (account == null)
+            {
+              // The server sent a new representation of the account, or we do not
+              // have the account in memory. Either way, we need to save the account.
+              Span saveSpan = span.startChild ("saveAccount");
+              JsonAccount jsonAccount = response.body ().get ("account");
+              account = Account.fromJson (jsonAccount);
+
+              FlowManager.getModelAdapter (Account.class).save (account);
+              accountCache_.put (account);
+              currentAccount_.put (username, account);
+
+              saveSpan.end ();
+            }
+
+            span.end ();
+            settlement.resolve (account);
+          }
+          else
+          {
+            try
+            {
+              HttpError error = GatekeeperSessionClient.getInstance (context).getError (response.errorBody ());
+              error.setStatusCode (response.code ());
+
+              span.end (error);
+              settlement.reject (error);
+            }
+            catch (IOException e)
+            {
+              span.end (e);
+              settlement.reject (e);
+            }
+          }
+        }
+
+        @Override
+        public void onFailure (Call<Resource> call, Throwable t)
+        {
+          fetchSpan.end (t);
+          span.end (t);
+
+          settlement.reject (t);
+        }
+      })
+    );
+  }
+
+  /**
+   * Invalidate the data cached for the signed in user. This must be called when the
+   * user signs out so the next user does not see the cached responses.
+   */
+  public static void invalidate ()
+  {
+    currentAccount_.clear ();
+    accountCache_.clear ();
+
+    if (httpCache_ == null)
+      return;
+
+    try
+    {
+      httpCache_.evictAll ();
+    }
+    catch (IOException e)
+    {
+      // The cache will be rewritten by the next response.
+    }
+  }
+
+  interface AccountMethods
+  {
+    @GET("accounts/me")
+    Call <Resource> getMe ();
+  }
 }
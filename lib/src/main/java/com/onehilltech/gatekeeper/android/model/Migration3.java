@@ -0,0 +1,74 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import android.database.Cursor;
+
+import com.raizlabs.android.dbflow.annotation.Migration;
+import com.raizlabs.android.dbflow.sql.migration.BaseMigration;
+import com.raizlabs.android.dbflow.structure.database.DatabaseWrapper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @class Migration3
+ *
+ * Migrate the Gatekeeper database to version 3. The token tables gain the issue
+ * time, the expiration time, the scope, and the generation of the token.
+ *
+ * DBFlow also runs the migrations when it creates a new database, after it has
+ * created the tables with the current columns. Each column is only added if the
+ * table does not have it yet.
+ */
+@Migration (version = 3, database = GatekeeperDatabase.class)
+public class Migration3 extends BaseMigration
+{
+  private static final String [] TOKEN_TABLES = {"user_tokens", "client_tokens"};
+
+  private static final String [][] TOKEN_COLUMNS = {
+      {"issued_at", "INTEGER"},
+      {"expires_at", "INTEGER"},
+      {"scope", "TEXT"},
+      {"generation", "INTEGER"}
+  };
+
+  @Override
+  public void migrate (DatabaseWrapper database)
+  {
+    for (String table : TOKEN_TABLES)
+    {
+      Set <String> columns = getColumns (database, table);
+
+      for (String [] column : TOKEN_COLUMNS)
+      {
+        if (!columns.contains (column[0]))
+          database.execSQL ("ALTER TABLE " + table + " ADD COLUMN " + column[0] + " " + column[1]);
+      }
+    }
+  }
+
+  /**
+   * Get the names of the columns in a table.
+   *
+   * @param database        Target database
+   * @param table           Name of the table
+   */
+  static Set <String> getColumns (DatabaseWrapper database, String table)
+  {
+    Set <String> columns = new HashSet<> ();
+    Cursor cursor = database.rawQuery ("PRAGMA table_info(" + table + ")", null);
+
+    try
+    {
+      int nameIndex = cursor.getColumnIndex ("name");
+
+      while (cursor.moveToNext ())
+        columns.add (cursor.getString (nameIndex));
+    }
+    finally
+    {
+      cursor.close ();
+    }
+
+    return columns;
+  }
+}
@@ -0,0 +1,95 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import com.onehilltech.gatekeeper.core.OutboxMessage;
+import com.raizlabs.android.dbflow.annotation.Column;
+import com.raizlabs.android.dbflow.annotation.PrimaryKey;
+import com.raizlabs.android.dbflow.annotation.Table;
+
+/**
+ * @class OutboxEntry
+ *
+ * A message in the outbox, waiting to be sent to Gatekeeper. The entries are sent
+ * in the order of their ids.
+ */
+@Table(database=GatekeeperDatabase.class, name="outbox")
+public class OutboxEntry
+{
+  @PrimaryKey(autoincrement = true)
+  public long id;
+
+  @Column
+  public String method;
+
+  @Column
+  public String path;
+
+  @Column
+  public String body;
+
+  @Column
+  public String username;
+
+  @Column(name="idempotency_key")
+  public String idempotencyKey;
+
+  @Column
+  public int attempts;
+
+  /// Time the message is sent again, in milliseconds since the epoch.
+  @Column(name="next_attempt_at")
+  public long nextAttemptAt;
+
+  /// Token the message is sent with, for a user that has signed out.
+  @Column(name="access_token")
+  public String accessToken;
+
+  @Column(name="refresh_token")
+  public String refreshToken;
+
+  /**
+   * Create an entry from a message.
+   *
+   * @param message
+   * @return
+   */
+  public static OutboxEntry fromMessage (OutboxMessage message)
+  {
+    OutboxEntry entry = new OutboxEntry ();
+    entry.id = message.getId ();
+    entry.method = message.getMethod ();
+    entry.path = message.getPath ();
+    entry.body = message.getBody ();
+    entry.username = message.getUsername ();
+    entry.idempotencyKey = message.getIdempotencyKey ();
+    entry.attempts = message.getAttempts ();
+    entry.nextAttemptAt = message.getNextAttemptAt ();
+    entry.accessToken = message.getAccessToken ();
+    entry.refreshToken = message.getRefreshToken ();
+
+    return entry;
+  }
+
+  OutboxEntry ()
+  {
+
+  }
+
+  /**
+   * Convert the entry to a message.
+   *
+   * @return
+   */
+  public OutboxMessage toMessage ()
+  {
+    return new OutboxMessage.Builder ()
+        .setId (this.id)
+        .setRequest (this.method, this.path)
+        .setBody (this.body)
+        .setUsername (this.username)
+        .setIdempotencyKey (this.idempotencyKey)
+        .setAttempts (this.attempts)
+        .setNextAttemptAt (this.nextAttemptAt)
+        .setToken (this.accessToken, this.refreshToken)
+        .build ();
+  }
+}
@@ -0,0 +1,136 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+
+/**
+ * @class RoutePolicy
+ *
+ * Cache and timeout policy for the requests that match a route in a RouteTable.
+ */
+public final class RoutePolicy
+{
+  /**
+   * @class Builder
+   *
+   * Builder for creating RoutePolicy objects.
+   */
+  public static final class Builder
+  {
+    private CacheControl cacheControl_;
+
+    private int connectTimeout_;
+
+    private int readTimeout_;
+
+    private int writeTimeout_;
+
+    /**
+     * Set the cache control for matching requests.
+     *
+     * @param cacheControl      CacheControl object
+     */
+    public Builder setCacheControl (CacheControl cacheControl)
+    {
+      this.cacheControl_ = cacheControl;
+      return this;
+    }
+
+    /**
+     * Set how long a cached response is fresh. Once the response is stale, it is
+     * revalidated with the server using a conditional request.
+     *
+     * @param duration          Time-to-live
+     * @param unit              Unit for duration
+     */
+    public Builder setTimeToLive (long duration, TimeUnit unit)
+    {
+      this.cacheControl_ = new CacheControl.Builder ().maxAge ((int)unit.toSeconds (duration), TimeUnit.SECONDS).build ();
+      return this;
+    }
+
+    /**
+     * Set the connect, read, and write timeout for matching requests.
+     *
+     * @param duration          Timeout
+     * @param unit              Unit for duration
+     */
+    public Builder setTimeout (long duration, TimeUnit unit)
+    {
+      this.connectTimeout_ = this.readTimeout_ = this.writeTimeout_ = (int)unit.toMillis (duration);
+      return this;
+    }
+
+    public Builder setConnectTimeout (long duration, TimeUnit unit)
+    {
+      this.connectTimeout_ = (int)unit.toMillis (duration);
+      return this;
+    }
+
+    public Builder setReadTimeout (long duration, TimeUnit unit)
+    {
+      this.readTimeout_ = (int)unit.toMillis (duration);
+      return this;
+    }
+
+    public Builder setWriteTimeout (long duration, TimeUnit unit)
+    {
+      this.writeTimeout_ = (int)unit.toMillis (duration);
+      return this;
+    }
+
+    public RoutePolicy build ()
+    {
+      return new RoutePolicy (this.cacheControl_, this.connectTimeout_, this.readTimeout_, this.writeTimeout_);
+    }
+  }
+
+  private final CacheControl cacheControl_;
+
+  private final int connectTimeout_;
+
+  private final int readTimeout_;
+
+  private final int writeTimeout_;
+
+  private RoutePolicy (CacheControl cacheControl, int connectTimeout, int readTimeout, int writeTimeout)
+  {
+    this.cacheControl_ = cacheControl;
+    this.connectTimeout_ = connectTimeout;
+    this.readTimeout_ = readTimeout;
+    this.writeTimeout_ = writeTimeout;
+  }
+
+  /**
+   * Get the cache control for the route, or null to leave the request unchanged.
+   */
+  public CacheControl getCacheControl ()
+  {
+    return this.cacheControl_;
+  }
+
+  /**
+   * Get the connect timeout in milliseconds, or 0 to use the client default.
+   */
+  public int getConnectTimeout ()
+  {
+    return this.connectTimeout_;
+  }
+
+  /**
+   * Get the read timeout in milliseconds, or 0 to use the client default.
+   */
+  public int getReadTimeout ()
+  {
+    return this.readTimeout_;
+  }
+
+  /**
+   * Get the write timeout in milliseconds, or 0 to use the client default.
+   */
+  public int getWriteTimeout ()
+  {
+    return this.writeTimeout_;
+  }
+}
@@ -0,0 +1,194 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import java.util.HashMap;
+import java.util.List;
+
+import okhttp3.Request;
+
+/**
+ * @class RouteTable
+ *
+ * Table that assigns a RoutePolicy to requests based on the method and path of the
+ * request. The path templates are written relative to the versioned base URL (e.g.,
+ * accounts/me or accounts/:id), and are matched against the end of the request path.
+ * A segment that starts with a colon matches any value. When more than one template
+ * matches a request, the longest template wins, and literal segments are preferred
+ * over parameters.
+ *
+ * The routes are compiled into a trie for each method when the table is built. The
+ * cost of matching a request depends only on the number of segments in its path, and
+ * not on the number of routes in the table.
+ */
+public final class RouteTable
+{
+  /**
+   * @class Builder
+   *
+   * Builder for creating RouteTable objects.
+   */
+  public static final class Builder
+  {
+    private final HashMap <String, Node> roots_ = new HashMap<> ();
+
+    /**
+     * Add a route to the table.
+     *
+     * @param method          Http method (e.g., GET)
+     * @param pathTemplate    Path template (e.g., accounts/:id)
+     * @param policy          Policy for matching requests
+     */
+    public Builder add (String method, String pathTemplate, RoutePolicy policy)
+    {
+      Node root = this.roots_.get (method);
+
+      if (root == null)
+      {
+        root = new Node ();
+        this.roots_.put (method, root);
+      }
+
+      // The segments are inserted in reverse order since the templates are matched
+      // against the end of the request path.
+      String [] segments = pathTemplate.split ("/");
+      Node node = root;
+
+      for (int i = segments.length - 1; i >= 0; -- i)
+      {
+        String segment = segments[i];
+
+        if (segment.isEmpty ())
+          continue;
+
+        node = segment.charAt (0) == ':' ? node.param () : node.child (segment);
+      }
+
+      node.policy = policy;
+
+      return this;
+    }
+
+    public RouteTable build ()
+    {
+      return new RouteTable (new HashMap<> (this.roots_));
+    }
+  }
+
+  /**
+   * Node in the trie for a method.
+   */
+  private static final class Node
+  {
+    HashMap <String, Node> children;
+
+    Node param;
+
+    RoutePolicy policy;
+
+    Node child (String segment)
+    {
+      if (this.children == null)
+        this.children = new HashMap<> ();
+
+      Node node = this.children.get (segment);
+
+      if (node == null)
+      {
+        node = new Node ();
+        this.children.put (segment, node);
+      }
+
+      return node;
+    }
+
+    Node param ()
+    {
+      if (this.param == null)
+        this.param = new Node ();
+
+      return this.param;
+    }
+  }
+
+  private final HashMap <String, Node> roots_;
+
+  private RouteTable (HashMap <String, Node> roots)
+  {
+    this.roots_ = roots;
+  }
+
+  /**
+   * Find the policy for a request.
+   *
+   * @param request         Http request
+   * @return                RoutePolicy object, or null if no route matches
+   */
+  public RoutePolicy lookup (Request request)
+  {
+    Node root = this.roots_.get (request.method ());
+
+    if (root == null)
+      return null;
+
+    List <String> segments = request.url ().pathSegments ();
+    int last = segments.size () - 1;
+
+    // A trailing slash shows up as an empty last segment.
+    if (last >= 0 && segments.get (last).isEmpty ())
+      -- last;
+
+    return match (root, segments, last);
+  }
+
+  /**
+   * Apply the cache policy of the matching route to the request. The policy is also
+   * attached to the request as a tag so interceptors can apply the timeouts.
+   *
+   * @param request         Original request
+   * @return                Request with the policy applied
+   */
+  public Request apply (Request request)
+  {
+    RoutePolicy policy = this.lookup (request);
+
+    if (policy == null)
+      return request;
+
+    Request.Builder builder = request.newBuilder ().tag (RoutePolicy.class, policy);
+
+    if (policy.getCacheControl () != null)
+      builder.cacheControl (policy.getCacheControl ());
+
+    return builder.build ();
+  }
+
+  private static RoutePolicy match (Node node, List <String> segments, int index)
+  {
+    // Prefer the longest template that matches the request, and literal segments
+    // over parameters at each level.
+    if (index >= 0)
+    {
+      if (node.children != null)
+      {
+        Node child = node.children.get (segments.get (index));
+
+        if (child != null)
+        {
+          RoutePolicy policy = match (child, segments, index - 1);
+
+          if (policy != null)
+            return policy;
+        }
+      }
+
+      if (node.param != null)
+      {
+        RoutePolicy policy = match (node.param, segments, index - 1);
+
+        if (policy != null)
+          return policy;
+      }
+    }
+
+    return node.policy;
+  }
+}
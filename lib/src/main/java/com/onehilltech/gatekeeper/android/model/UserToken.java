@@ -1,6 +1,6 @@
 package com.onehilltech.gatekeeper.android.model;
 
-import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.core.SessionToken;
 import com.raizlabs.android.dbflow.annotation.Column;
 import com.raizlabs.android.dbflow.annotation.PrimaryKey;
 import com.raizlabs.android.dbflow.annotation.Table;
@@ -17,15 +17,19 @@ public class UserToken extends AccessToken
   public String refreshToken;
 
   /**
-   * Create a User token from a token.
+   * Create a User token from a session token.
    *
-   * @param username
    * @param token
    * @return
    */
-  public static UserToken fromToken (String username, JsonBearerToken token)
+  public static UserToken fromToken (SessionToken token)
   {
-    return new UserToken (username, token.accessToken, token.refreshToken);
+    UserToken userToken = new UserToken (token.getUsername (), token.getAccessToken (), token.getRefreshToken ());
+    userToken.issuedAt = System.currentTimeMillis ();
+    userToken.expiresAt = token.getExpiresAt ();
+    userToken.scope = token.getScope ();
+
+    return userToken;
   }
 
   UserToken ()
@@ -40,6 +44,16 @@ public class UserToken extends AccessToken
     this.refreshToken = refreshToken;
   }
 
+  /**
+   * Convert the user token to a session token.
+   *
+   * @return
+   */
+  public SessionToken toSessionToken ()
+  {
+    return new SessionToken (this.username, this.accessToken, this.refreshToken, this.expiresAt, this.scope);
+  }
+
   public boolean canRefresh ()
   {
     return this.refreshToken != null;
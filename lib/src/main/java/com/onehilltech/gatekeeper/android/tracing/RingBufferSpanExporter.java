@@ -0,0 +1,76 @@
+package com.onehilltech.gatekeeper.android.tracing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @class RingBufferSpanExporter
+ *
+ * SpanExporter that keeps the most recent spans in memory. This exporter is meant
+ * for tests, and for inspecting the recent pipelines from a debug screen.
+ */
+public class RingBufferSpanExporter implements SpanExporter
+{
+  private final Span [] spans_;
+
+  private int next_;
+
+  private int size_;
+
+  public RingBufferSpanExporter (int capacity)
+  {
+    this.spans_ = new Span[capacity];
+  }
+
+  @Override
+  public synchronized void export (Span span)
+  {
+    this.spans_[this.next_] = span;
+    this.next_ = (this.next_ + 1) % this.spans_.length;
+
+    if (this.size_ < this.spans_.length)
+      ++ this.size_;
+  }
+
+  /**
+   * Get the spans in the buffer, from the oldest to the most recent.
+   */
+  public synchronized List <Span> getSpans ()
+  {
+    ArrayList <Span> spans = new ArrayList<> (this.size_);
+    int start = (this.next_ - this.size_ + this.spans_.length) % this.spans_.length;
+
+    for (int i = 0; i < this.size_; ++ i)
+      spans.add (this.spans_[(start + i) % this.spans_.length]);
+
+    return spans;
+  }
+
+  /**
+   * Get the spans in the buffer for a single trace, from the oldest to the most
+   * recent.
+   *
+   * @param traceId       Id of the trace
+   */
+  public List <Span> getTrace (long traceId)
+  {
+    ArrayList <Span> trace = new ArrayList<> ();
+
+    for (Span span: this.getSpans ())
+    {
+      if (span.getTraceId () == traceId)
+        trace.add (span);
+    }
+
+    return trace;
+  }
+
+  public synchronized void clear ()
+  {
+    for (int i = 0; i < this.spans_.length; ++ i)
+      this.spans_[i] = null;
+
+    this.next_ = 0;
+    this.size_ = 0;
+  }
+}
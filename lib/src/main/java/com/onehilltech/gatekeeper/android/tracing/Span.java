@@ -0,0 +1,140 @@
+package com.onehilltech.gatekeeper.android.tracing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @class Span
+ *
+ * A timed stage of a pipeline, such as signing in a user. A span can have child
+ * spans for the stages inside of it. All spans started from the same root span
+ * share the trace id of the root span, which can be used to build a waterfall of
+ * the stages in the pipeline.
+ */
+public final class Span
+{
+  private static final AtomicLong NEXT_ID = new AtomicLong (1);
+
+  private final SpanExporter exporter_;
+
+  private final String name_;
+
+  private final long traceId_;
+
+  private final long spanId_;
+
+  private final long parentId_;
+
+  private final long startNanos_;
+
+  private volatile long endNanos_;
+
+  private volatile Throwable error_;
+
+  private final AtomicBoolean ended_ = new AtomicBoolean ();
+
+  Span (SpanExporter exporter, String name, Span parent)
+  {
+    this.exporter_ = exporter;
+    this.name_ = name;
+    this.spanId_ = NEXT_ID.getAndIncrement ();
+    this.traceId_ = parent != null ? parent.traceId_ : this.spanId_;
+    this.parentId_ = parent != null ? parent.spanId_ : 0;
+    this.startNanos_ = System.nanoTime ();
+  }
+
+  /**
+   * Start a child span of this span.
+   *
+   * @param name          Name of the stage
+   * @return              Span object
+   */
+  public Span startChild (String name)
+  {
+    return new Span (this.exporter_, name, this);
+  }
+
+  /**
+   * End the span, and export it. Only the first call to end a span has an effect.
+   */
+  public void end ()
+  {
+    this.end (null);
+  }
+
+  /**
+   * End the span because the stage failed, and export it. Only the first call to
+   * end a span has an effect.
+   *
+   * @param error         Reason the stage failed
+   */
+  public void end (Throwable error)
+  {
+    if (!this.ended_.compareAndSet (false, true))
+      return;
+
+    this.error_ = error;
+    this.endNanos_ = System.nanoTime ();
+
+    this.exporter_.export (this);
+  }
+
+  public String getName ()
+  {
+    return this.name_;
+  }
+
+  public long getTraceId ()
+  {
+    return this.traceId_;
+  }
+
+  public long getSpanId ()
+  {
+    return this.spanId_;
+  }
+
+  /**
+   * Get the id of the parent span, or 0 if this is a root span.
+   */
+  public long getParentId ()
+  {
+    return this.parentId_;
+  }
+
+  /**
+   * Get the start time of the span from System.nanoTime ().
+   */
+  public long getStartNanos ()
+  {
+    return this.startNanos_;
+  }
+
+  /**
+   * Get the duration of the span in nanoseconds, or -1 if the span has not ended.
+   */
+  public long getDurationNanos ()
+  {
+    return this.isEnded () ? this.endNanos_ - this.startNanos_ : -1;
+  }
+
+  public boolean isEnded ()
+  {
+    return this.ended_.get ();
+  }
+
+  /**
+   * Get the reason the stage failed, or null if the stage succeeded.
+   */
+  public Throwable getError ()
+  {
+    return this.error_;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return this.name_ + " [trace=" + this.traceId_ + ", span=" + this.spanId_ + ", parent=" + this.parentId_ +
+        ", duration=" + this.getDurationNanos () + "ns" + (this.error_ != null ? ", error=" + this.error_ : "") + "]";
+  }
+}
@@ -0,0 +1,17 @@
+package com.onehilltech.gatekeeper.android.tracing;
+
+/**
+ * @interface SpanExporter
+ *
+ * Receives each span when it ends. Spans end on the thread that completes the
+ * stage, so implementations must be thread-safe.
+ */
+public interface SpanExporter
+{
+  /**
+   * Export a span that has ended.
+   *
+   * @param span        The ended span
+   */
+  void export (Span span);
+}
@@ -0,0 +1,31 @@
+package com.onehilltech.gatekeeper.android.tracing;
+
+/**
+ * @class Tracer
+ *
+ * Starts the root spans for the pipelines in the Gatekeeper clients, and sends the
+ * spans to an exporter when they end.
+ */
+public final class Tracer
+{
+  /// Tracer that discards all spans.
+  public static final Tracer NONE = new Tracer (span -> { });
+
+  private final SpanExporter exporter_;
+
+  public Tracer (SpanExporter exporter)
+  {
+    this.exporter_ = exporter;
+  }
+
+  /**
+   * Start a new root span.
+   *
+   * @param name          Name of the pipeline
+   * @return              Span object
+   */
+  public Span startSpan (String name)
+  {
+    return new Span (this.exporter_, name, null);
+  }
+}
@@ -0,0 +1,213 @@
+package com.onehilltech.gatekeeper.android;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dns;
+
+public class CachingDnsTest
+{
+  private static final String HOSTNAME = "gatekeeper.example.com";
+
+  private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos (60);
+
+  private static final long MAX_STALE_NANOS = TimeUnit.SECONDS.toNanos (600);
+
+  /**
+   * Dns that counts its lookups, and answers with the addresses it is given.
+   */
+  private static class CountingDns implements Dns
+  {
+    List <InetAddress> addresses;
+
+    int lookupCount;
+
+    @Override
+    public List <InetAddress> lookup (String hostname)
+        throws UnknownHostException
+    {
+      ++ this.lookupCount;
+
+      if (this.addresses == null)
+        throw new UnknownHostException (hostname);
+
+      return this.addresses;
+    }
+  }
+
+  private CountingDns dns_;
+
+  /// The background refreshes, which the tests run when they choose.
+  private List <Runnable> refreshes_;
+
+  private CachingDns cachingDns_;
+
+  private long now_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.dns_ = new CountingDns ();
+    this.dns_.addresses = Arrays.asList (address (10, 0, 0, 1));
+
+    this.refreshes_ = new ArrayList<> ();
+
+    this.cachingDns_ =
+        new CachingDns.Builder ()
+            .setDns (this.dns_)
+            .setTimeToLive (TTL_NANOS, TimeUnit.NANOSECONDS)
+            .setMaxStale (MAX_STALE_NANOS, TimeUnit.NANOSECONDS)
+            .setExecutor (this.refreshes_::add)
+            .build ();
+
+    this.now_ = System.nanoTime ();
+  }
+
+  @Test
+  public void testFresh () throws Exception
+  {
+    List <InetAddress> addresses = this.cachingDns_.lookup (HOSTNAME, this.now_);
+
+    Assert.assertEquals (this.dns_.addresses, addresses);
+    Assert.assertEquals (addresses, this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS - 1));
+
+    Assert.assertEquals (1, this.dns_.lookupCount);
+    Assert.assertEquals (1, this.cachingDns_.getMissCount ());
+    Assert.assertEquals (1, this.cachingDns_.getHitCount ());
+    Assert.assertEquals (0, this.cachingDns_.getStaleHitCount ());
+    Assert.assertTrue (this.refreshes_.isEmpty ());
+  }
+
+  @Test
+  public void testStale () throws Exception
+  {
+    List <InetAddress> addresses = this.cachingDns_.lookup (HOSTNAME, this.now_);
+    this.dns_.addresses = Arrays.asList (address (10, 0, 0, 2));
+
+    // The expired addresses are served without waiting on the Dns, and a single
+    // refresh is started for the host.
+    long expired = this.now_ + TTL_NANOS;
+
+    Assert.assertEquals (addresses, this.cachingDns_.lookup (HOSTNAME, expired));
+    Assert.assertEquals (addresses, this.cachingDns_.lookup (HOSTNAME, expired));
+
+    Assert.assertEquals (1, this.dns_.lookupCount);
+    Assert.assertEquals (2, this.cachingDns_.getStaleHitCount ());
+    Assert.assertEquals (1, this.refreshes_.size ());
+
+    // The refresh makes the entry fresh again.
+    this.refreshes_.remove (0).run ();
+
+    Assert.assertEquals (2, this.dns_.lookupCount);
+    Assert.assertEquals (this.dns_.addresses, this.cachingDns_.lookup (HOSTNAME, expired + 1));
+    Assert.assertEquals (1, this.cachingDns_.getHitCount ());
+
+    // The next expiry starts another refresh.
+    this.cachingDns_.lookup (HOSTNAME, expired + TTL_NANOS);
+    Assert.assertEquals (1, this.refreshes_.size ());
+  }
+
+  @Test
+  public void testRefreshStartsTimeToLive () throws Exception
+  {
+    // The addresses were resolved, and went stale, in the past.
+    long resolvedAt = this.now_ - 2 * TTL_NANOS;
+
+    this.cachingDns_.lookup (HOSTNAME, resolvedAt);
+    this.cachingDns_.lookup (HOSTNAME, resolvedAt + TTL_NANOS);
+
+    // The refresh runs now, so the addresses are fresh from now on, and not from
+    // the time of the stale lookup.
+    this.refreshes_.remove (0).run ();
+    this.cachingDns_.lookup (HOSTNAME, System.nanoTime ());
+
+    Assert.assertEquals (1, this.cachingDns_.getHitCount ());
+    Assert.assertTrue (this.refreshes_.isEmpty ());
+  }
+
+  @Test
+  public void testFailedRefresh () throws Exception
+  {
+    List <InetAddress> addresses = this.cachingDns_.lookup (HOSTNAME, this.now_);
+    this.dns_.addresses = null;
+
+    this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS);
+    this.refreshes_.remove (0).run ();
+
+    // The stale addresses are kept until they fall out of the stale window.
+    Assert.assertEquals (addresses, this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS + MAX_STALE_NANOS - 1));
+
+    try
+    {
+      this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS + MAX_STALE_NANOS);
+      Assert.fail ();
+    }
+    catch (UnknownHostException e)
+    {
+      // The Dns was asked, and failed.
+    }
+
+    Assert.assertEquals (2, this.cachingDns_.getMissCount ());
+    Assert.assertEquals (2, this.cachingDns_.getStaleHitCount ());
+  }
+
+  @Test
+  public void testMiss () throws Exception
+  {
+    this.cachingDns_.lookup (HOSTNAME, this.now_);
+    this.dns_.addresses = Arrays.asList (address (10, 0, 0, 2));
+
+    // Past the stale window, the caller waits on the Dns.
+    Assert.assertEquals (this.dns_.addresses, this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS + MAX_STALE_NANOS));
+
+    Assert.assertEquals (2, this.dns_.lookupCount);
+    Assert.assertEquals (2, this.cachingDns_.getMissCount ());
+    Assert.assertEquals (0, this.cachingDns_.getStaleHitCount ());
+    Assert.assertTrue (this.refreshes_.isEmpty ());
+
+    // Clearing the cache makes the next lookup a miss.
+    this.cachingDns_.clear ();
+    this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS + MAX_STALE_NANOS);
+
+    Assert.assertEquals (3, this.cachingDns_.getMissCount ());
+
+    // A refresh that was in flight when the cache was cleared does not stop the
+    // next stale lookup from starting one.
+    long stale = this.now_ + 2 * TTL_NANOS + MAX_STALE_NANOS;
+
+    this.cachingDns_.lookup (HOSTNAME, stale);
+    this.cachingDns_.clear ();
+    this.cachingDns_.lookup (HOSTNAME, this.now_);
+    this.cachingDns_.lookup (HOSTNAME, this.now_ + TTL_NANOS);
+
+    Assert.assertEquals (2, this.refreshes_.size ());
+  }
+
+  @Test
+  public void testInterleave () throws Exception
+  {
+    InetAddress ipv4a = address (10, 0, 0, 1);
+    InetAddress ipv4b = address (10, 0, 0, 2);
+    InetAddress ipv6a = InetAddress.getByAddress (HOSTNAME, new byte[] {0x20, 0x01, 0x0d, (byte)0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+    InetAddress ipv6b = InetAddress.getByAddress (HOSTNAME, new byte[] {0x20, 0x01, 0x0d, (byte)0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2});
+
+    this.dns_.addresses = Arrays.asList (ipv6a, ipv6b, ipv4a, ipv4b);
+
+    // The family of the first address goes first.
+    Assert.assertEquals (Arrays.asList (ipv6a, ipv4a, ipv6b, ipv4b), this.cachingDns_.lookup (HOSTNAME, this.now_));
+  }
+
+  private static InetAddress address (int a, int b, int c, int d)
+      throws UnknownHostException
+  {
+    return InetAddress.getByAddress (HOSTNAME, new byte[] {(byte)a, (byte)b, (byte)c, (byte)d});
+  }
+}
@@ -0,0 +1,61 @@
+package com.onehilltech.gatekeeper.android;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.raizlabs.android.dbflow.structure.database.AndroidDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+@RunWith (RobolectricTestRunner.class)
+@Config (manifest = Config.NONE, sdk = 23)
+public class WriteAheadLoggingTest
+{
+  private File file_;
+
+  private SQLiteDatabase db_;
+
+  @Before
+  public void setup ()
+  {
+    this.file_ = RuntimeEnvironment.application.getDatabasePath ("gatekeeper-wal.db");
+    this.file_.getParentFile ().mkdirs ();
+    this.file_.delete ();
+
+    this.db_ = SQLiteDatabase.openOrCreateDatabase (this.file_, null);
+  }
+
+  @After
+  public void teardown ()
+  {
+    this.db_.close ();
+    this.file_.delete ();
+  }
+
+  @Test
+  public void testEnableWriteAheadLogging ()
+  {
+    Assert.assertTrue (Gatekeeper.enableWriteAheadLogging (AndroidDatabase.from (this.db_)));
+
+    Cursor cursor = this.db_.rawQuery ("PRAGMA journal_mode", null);
+
+    try
+    {
+      Assert.assertTrue (cursor.moveToFirst ());
+      Assert.assertEquals ("wal", cursor.getString (0).toLowerCase ());
+    }
+    finally
+    {
+      cursor.close ();
+    }
+  }
+}
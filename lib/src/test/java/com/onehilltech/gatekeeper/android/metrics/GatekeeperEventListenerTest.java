@@ -0,0 +1,193 @@
+package com.onehilltech.gatekeeper.android.metrics;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+public class GatekeeperEventListenerTest
+{
+  /**
+   * Sink that keeps the phases it receives.
+   */
+  private static class RecordingMetricsSink implements MetricsSink
+  {
+    final Map <Phase, Endpoint> phases = Collections.synchronizedMap (new EnumMap <Phase, Endpoint> (Phase.class));
+
+    @Override
+    public void increment (Counter counter)
+    {
+
+    }
+
+    @Override
+    public void recordLatency (Timer timer, long nanos)
+    {
+
+    }
+
+    @Override
+    public void recordPhase (Endpoint endpoint, Phase phase, long nanos)
+    {
+      Assert.assertTrue (nanos >= 0);
+      this.phases.put (phase, endpoint);
+    }
+  }
+
+  /**
+   * Listener of the application, which keeps the events it receives.
+   */
+  private static class RecordingEventListener extends EventListener
+  {
+    final List <String> events = Collections.synchronizedList (new ArrayList <String> ());
+
+    @Override
+    public void callStart (Call call)
+    {
+      this.events.add ("callStart");
+    }
+
+    @Override
+    public void connectionAcquired (Call call, Connection connection)
+    {
+      this.events.add ("connectionAcquired");
+    }
+
+    @Override
+    public void requestBodyStart (Call call)
+    {
+      this.events.add ("requestBodyStart");
+    }
+
+    @Override
+    public void responseHeadersEnd (Call call, Response response)
+    {
+      this.events.add ("responseHeadersEnd");
+    }
+
+    @Override
+    public void callEnd (Call call)
+    {
+      this.events.add ("callEnd");
+    }
+  }
+
+  private MockWebServer server_;
+
+  private RecordingMetricsSink metrics_;
+
+  private RecordingEventListener delegate_;
+
+  private OkHttpClient httpClient_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.server_ = new MockWebServer ();
+    this.server_.start ();
+
+    this.metrics_ = new RecordingMetricsSink ();
+    this.delegate_ = new RecordingEventListener ();
+
+    this.httpClient_ =
+        new OkHttpClient.Builder ()
+            .eventListenerFactory (
+                new GatekeeperEventListener.Factory (
+                    this.server_.url ("/v1/").toString (),
+                    call -> this.delegate_,
+                    this.metrics_))
+            .build ();
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.server_.shutdown ();
+  }
+
+  @Test
+  public void testEndpoints ()
+  {
+    GatekeeperEventListener.Factory factory = new GatekeeperEventListener.Factory (this.server_.url ("/v1/").toString ());
+
+    Assert.assertEquals (Endpoint.TOKEN, this.getEndpoint (factory, "/v1/oauth2/token"));
+    Assert.assertEquals (Endpoint.LOGOUT, this.getEndpoint (factory, "/v1/oauth2/logout"));
+    Assert.assertEquals (Endpoint.ACCOUNTS, this.getEndpoint (factory, "/v1/accounts"));
+    Assert.assertEquals (Endpoint.ACCOUNTS, this.getEndpoint (factory, "/v1/accounts/me/password"));
+    Assert.assertEquals (Endpoint.OTHER, this.getEndpoint (factory, "/v1/oauth2/events"));
+
+    // The calls outside of the base path, or to other hosts, are not timed.
+    Assert.assertSame (EventListener.NONE, this.create (factory, this.server_.url ("/v2/oauth2/token").toString ()));
+    Assert.assertSame (EventListener.NONE, this.create (factory, "http://example.com/v1/oauth2/token"));
+  }
+
+  @Test
+  public void testPhases () throws Exception
+  {
+    this.server_.enqueue (new MockResponse ().setBody ("{\"access_token\":\"access-1\"}"));
+
+    Request request =
+        new Request.Builder ()
+            .url (this.server_.url ("/v1/oauth2/token"))
+            .post (RequestBody.create (MediaType.parse ("application/json"), "{}"))
+            .build ();
+
+    try (Response response = this.httpClient_.newCall (request).execute ())
+    {
+      Assert.assertEquals ("{\"access_token\":\"access-1\"}", response.body ().string ());
+    }
+
+    for (Phase phase : new Phase[] {Phase.CONNECT, Phase.REQUEST_WRITE, Phase.TIME_TO_FIRST_BYTE, Phase.RESPONSE_BODY, Phase.CALL})
+      Assert.assertEquals (phase.name (), Endpoint.TOKEN, this.metrics_.phases.get (phase));
+
+    // The server does not use TLS.
+    Assert.assertFalse (this.metrics_.phases.containsKey (Phase.TLS));
+
+    // The listener of the application still receives the events.
+    Assert.assertEquals (
+        Arrays.asList ("callStart", "connectionAcquired", "requestBodyStart", "responseHeadersEnd", "callEnd"),
+        this.delegate_.events);
+  }
+
+  @Test
+  public void testOtherHost ()
+  {
+    // A call to another host gets the listener of the application, without the
+    // timings.
+    GatekeeperEventListener.Factory factory =
+        new GatekeeperEventListener.Factory (this.server_.url ("/v1/").toString (), call -> this.delegate_);
+
+    Assert.assertSame (this.delegate_, this.create (factory, "http://example.com/v1/oauth2/token"));
+  }
+
+  private Endpoint getEndpoint (GatekeeperEventListener.Factory factory, String path)
+  {
+    EventListener listener = this.create (factory, this.server_.url (path).toString ());
+
+    Assert.assertTrue (listener instanceof GatekeeperEventListener);
+    return ((GatekeeperEventListener)listener).getEndpoint ();
+  }
+
+  private EventListener create (GatekeeperEventListener.Factory factory, String url)
+  {
+    return factory.create (this.httpClient_.newCall (new Request.Builder ().url (url).build ()));
+  }
+}
@@ -0,0 +1,197 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import com.onehilltech.backbone.objectid.ObjectId;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class CurrentAccountCacheTest
+{
+  private static final String ETAG = "\"account-1\"";
+
+  @Rule
+  public TemporaryFolder folder_ = new TemporaryFolder ();
+
+  private MockWebServer server_;
+
+  private Cache httpCache_;
+
+  private CurrentAccountCache currentAccount_;
+
+  private Account account_;
+
+  @Before
+  public void setup () throws Exception
+  {
+    this.server_ = new MockWebServer ();
+    this.server_.start ();
+
+    this.httpCache_ = new Cache (this.folder_.newFolder ("http"), 1024 * 1024);
+    this.currentAccount_ = new CurrentAccountCache ();
+
+    this.account_ = new Account (new ObjectId ());
+    this.account_.username = "tester1";
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    this.httpCache_.close ();
+    this.server_.shutdown ();
+  }
+
+  @Test
+  public void testModified () throws Exception
+  {
+    OkHttpClient httpClient = this.newHttpClient (this.newRouteTable (0));
+    this.currentAccount_.setUser ("tester1");
+
+    this.server_.enqueue (this.newAccountResponse ());
+
+    // The server sent the account, so it is read from the body.
+    try (Response response = this.getMe (httpClient))
+    {
+      Assert.assertEquals (200, response.networkResponse ().code ());
+      Assert.assertNull (this.currentAccount_.getIfNotModified ("tester1", response));
+    }
+
+    this.currentAccount_.put ("tester1", this.account_);
+    this.server_.enqueue (this.newAccountResponse ());
+
+    try (Response response = this.getMe (httpClient))
+    {
+      Assert.assertNull (this.currentAccount_.getIfNotModified ("tester1", response));
+    }
+  }
+
+  @Test
+  public void testNotModified () throws Exception
+  {
+    OkHttpClient httpClient = this.newHttpClient (this.newRouteTable (0));
+    this.currentAccount_.setUser ("tester1");
+
+    this.server_.enqueue (this.newAccountResponse ());
+    this.getMe (httpClient).close ();
+    this.currentAccount_.put ("tester1", this.account_);
+
+    // With a time-to-live of 0, the cached account is revalidated on each request.
+    this.server_.enqueue (new MockResponse ().setResponseCode (304).setHeader ("ETag", ETAG));
+
+    try (Response response = this.getMe (httpClient))
+    {
+      Assert.assertEquals (304, response.networkResponse ().code ());
+      Assert.assertSame (this.account_, this.currentAccount_.getIfNotModified ("tester1", response));
+
+      // The account in memory is not the account of another user.
+      Assert.assertNull (this.currentAccount_.getIfNotModified ("tester2", response));
+    }
+
+    this.server_.takeRequest ();
+    RecordedRequest revalidate = this.server_.takeRequest ();
+
+    Assert.assertEquals (ETAG, revalidate.getHeader ("If-None-Match"));
+    Assert.assertEquals (2, this.server_.getRequestCount ());
+  }
+
+  @Test
+  public void testCacheHit () throws Exception
+  {
+    OkHttpClient httpClient = this.newHttpClient (this.newRouteTable (60));
+    this.currentAccount_.setUser ("tester1");
+
+    this.server_.enqueue (this.newAccountResponse ());
+    this.getMe (httpClient).close ();
+    this.currentAccount_.put ("tester1", this.account_);
+
+    // The account is fresh for a minute, so the server is not asked.
+    try (Response response = this.getMe (httpClient))
+    {
+      Assert.assertNull (response.networkResponse ());
+      Assert.assertSame (this.account_, this.currentAccount_.getIfNotModified ("tester1", response));
+    }
+
+    Assert.assertEquals (1, this.server_.getRequestCount ());
+
+    // Another user signed in. The account of the last user is dropped.
+    Assert.assertTrue (this.currentAccount_.setUser ("tester2"));
+    Assert.assertFalse (this.currentAccount_.setUser ("tester2"));
+
+    try (Response response = this.getMe (httpClient))
+    {
+      Assert.assertNull (this.currentAccount_.getIfNotModified ("tester2", response));
+    }
+  }
+
+  @Test
+  public void testUserChangedInFlight ()
+  {
+    this.currentAccount_.setUser ("tester1");
+    this.currentAccount_.setUser ("tester2");
+
+    // The response for the last user arrived after the user changed.
+    this.currentAccount_.put ("tester1", this.account_);
+
+    Response response =
+        new Response.Builder ()
+            .request (new Request.Builder ().url (this.server_.url ("/v1/accounts/me")).build ())
+            .protocol (okhttp3.Protocol.HTTP_1_1)
+            .code (200)
+            .message ("OK")
+            .build ();
+
+    Assert.assertNull (this.currentAccount_.getIfNotModified ("tester1", response));
+    Assert.assertNull (this.currentAccount_.getIfNotModified ("tester2", response));
+  }
+
+  private RouteTable newRouteTable (long timeToLiveSeconds)
+  {
+    return new RouteTable.Builder ()
+        .add ("GET", "accounts/me", new RoutePolicy.Builder ().setTimeToLive (timeToLiveSeconds, TimeUnit.SECONDS).build ())
+        .build ();
+  }
+
+  private OkHttpClient newHttpClient (RouteTable routeTable)
+  {
+    return new OkHttpClient.Builder ()
+        .addInterceptor (chain -> chain.proceed (routeTable.apply (chain.request ())))
+        .cache (this.httpCache_)
+        .build ();
+  }
+
+  /**
+   * The server lets the account be cached for 10 minutes. The route table of the
+   * client decides how much of that time the account is used without asking.
+   */
+  private MockResponse newAccountResponse ()
+  {
+    return new MockResponse ()
+        .setHeader ("ETag", ETAG)
+        .setHeader ("Cache-Control", "private, max-age=600")
+        .setBody ("{\"account\": {\"username\": \"tester1\"}}");
+  }
+
+  private Response getMe (OkHttpClient httpClient) throws Exception
+  {
+    Request request = new Request.Builder ().url (this.server_.url ("/v1/accounts/me")).build ();
+    Response response = httpClient.newCall (request).execute ();
+
+    // Read the body so the response is written to the cache.
+    response.body ().string ();
+
+    return response;
+  }
+}
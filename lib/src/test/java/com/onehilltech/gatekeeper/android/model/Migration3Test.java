@@ -0,0 +1,116 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.raizlabs.android.dbflow.structure.database.AndroidDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Set;
+
+@RunWith (RobolectricTestRunner.class)
+@Config (manifest = Config.NONE, sdk = 23)
+public class Migration3Test
+{
+  private File file_;
+
+  private SQLiteDatabase db_;
+
+  private AndroidDatabase database_;
+
+  @Before
+  public void setup ()
+  {
+    this.file_ = RuntimeEnvironment.application.getDatabasePath ("gatekeeper-v2.db");
+    this.file_.getParentFile ().mkdirs ();
+    this.file_.delete ();
+
+    this.db_ = SQLiteDatabase.openOrCreateDatabase (this.file_, null);
+    this.database_ = AndroidDatabase.from (this.db_);
+
+    // The tables as they were in version 2 of the database.
+    this.db_.execSQL ("CREATE TABLE user_tokens (access_token TEXT, username TEXT, refresh_token TEXT, PRIMARY KEY(username))");
+    this.db_.execSQL ("CREATE TABLE client_tokens (access_token TEXT, client_id TEXT, PRIMARY KEY(client_id))");
+
+    this.db_.execSQL ("INSERT INTO user_tokens VALUES ('access-1', 'tester1', 'refresh-1')");
+    this.db_.execSQL ("INSERT INTO client_tokens VALUES ('access-2', '5a1b2c3d4e5f60718293a4b5')");
+  }
+
+  @After
+  public void teardown ()
+  {
+    this.db_.close ();
+    this.file_.delete ();
+  }
+
+  @Test
+  public void testMigrate ()
+  {
+    new Migration3 ().migrate (this.database_);
+
+    for (String table : new String[] {"user_tokens", "client_tokens"})
+    {
+      Set <String> columns = Migration3.getColumns (this.database_, table);
+
+      Assert.assertTrue (columns.contains ("issued_at"));
+      Assert.assertTrue (columns.contains ("expires_at"));
+      Assert.assertTrue (columns.contains ("scope"));
+      Assert.assertTrue (columns.contains ("generation"));
+    }
+
+    // The existing token is kept.
+    Cursor cursor = this.db_.rawQuery ("SELECT access_token, generation FROM user_tokens WHERE username = ?", new String[] {"tester1"});
+
+    try
+    {
+      Assert.assertTrue (cursor.moveToFirst ());
+      Assert.assertEquals ("access-1", cursor.getString (0));
+      Assert.assertTrue (cursor.isNull (1));
+    }
+    finally
+    {
+      cursor.close ();
+    }
+  }
+
+  @Test
+  public void testMigrateTwice ()
+  {
+    // DBFlow runs the migration on a new database that already has the columns.
+    new Migration3 ().migrate (this.database_);
+    new Migration3 ().migrate (this.database_);
+
+    Assert.assertEquals (7, Migration3.getColumns (this.database_, "user_tokens").size ());
+  }
+
+  @Test
+  public void testLookupUsesIndex ()
+  {
+    new Migration3 ().migrate (this.database_);
+
+    // The primary key already has an index, so the lookup by username does not scan.
+    Cursor cursor = this.db_.rawQuery ("EXPLAIN QUERY PLAN SELECT * FROM user_tokens WHERE username = ?", new String[] {"tester1"});
+    StringBuilder plan = new StringBuilder ();
+
+    try
+    {
+      while (cursor.moveToNext ())
+        plan.append (cursor.getString (cursor.getColumnIndex ("detail")));
+    }
+    finally
+    {
+      cursor.close ();
+    }
+
+    Assert.assertTrue (plan.toString (), plan.toString ().contains ("INDEX"));
+  }
+}
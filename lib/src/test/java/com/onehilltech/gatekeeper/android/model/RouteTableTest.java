@@ -0,0 +1,163 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+public class RouteTableTest
+{
+  private static final String BASE_URL = "https://gatekeeper.example.com/v1/";
+
+  private final RoutePolicy me_ = newPolicy (0);
+
+  private final RoutePolicy account_ = newPolicy (60);
+
+  private final RoutePolicy accounts_ = newPolicy (120);
+
+  private final RoutePolicy password_ = newPolicy (180);
+
+  @Test
+  public void testExactMatch ()
+  {
+    RouteTable table =
+        new RouteTable.Builder ()
+            .add ("GET", "accounts/me", this.me_)
+            .add ("GET", "accounts", this.accounts_)
+            .build ();
+
+    Assert.assertSame (this.me_, table.lookup (get ("accounts/me")));
+    Assert.assertSame (this.accounts_, table.lookup (get ("accounts")));
+
+    // A trailing slash is the same path.
+    Assert.assertSame (this.me_, table.lookup (get ("accounts/me/")));
+
+    // The method is part of the route.
+    Assert.assertNull (table.lookup (post ("accounts/me")));
+  }
+
+  @Test
+  public void testWildcard ()
+  {
+    RouteTable table =
+        new RouteTable.Builder ()
+            .add ("GET", "accounts/:id", this.account_)
+            .add ("GET", "accounts/me", this.me_)
+            .add ("POST", "accounts/:id/password", this.password_)
+            .build ();
+
+    Assert.assertSame (this.account_, table.lookup (get ("accounts/5a1b2c3d4e5f60718293a4b5")));
+    Assert.assertSame (this.password_, table.lookup (post ("accounts/5a1b2c3d4e5f60718293a4b5/password")));
+
+    // A literal segment wins over a parameter.
+    Assert.assertSame (this.me_, table.lookup (get ("accounts/me")));
+
+    // The parameter matches a single segment.
+    Assert.assertNull (table.lookup (post ("accounts/password")));
+  }
+
+  @Test
+  public void testLongestMatch ()
+  {
+    RouteTable table =
+        new RouteTable.Builder ()
+            .add ("GET", "me", this.accounts_)
+            .add ("GET", "accounts/me", this.me_)
+            .add ("GET", "admin/:name/me", this.account_)
+            .build ();
+
+    // The templates are matched against the end of the path, including the version.
+    Assert.assertSame (this.me_, table.lookup (get ("accounts/me")));
+    Assert.assertSame (this.accounts_, table.lookup (get ("users/me")));
+
+    // The literal branch does not match in full, so the lookup backs off to the
+    // shorter template.
+    Assert.assertSame (this.accounts_, table.lookup (get ("admin/me")));
+    Assert.assertSame (this.account_, table.lookup (get ("admin/tester1/me")));
+  }
+
+  @Test
+  public void testFallback ()
+  {
+    RoutePolicy fallback = newPolicy (30);
+
+    RouteTable table =
+        new RouteTable.Builder ()
+            .add ("GET", "", fallback)
+            .add ("GET", "accounts/me", this.me_)
+            .build ();
+
+    // A template without segments matches every request with the method.
+    Assert.assertSame (this.me_, table.lookup (get ("accounts/me")));
+    Assert.assertSame (fallback, table.lookup (get ("accounts")));
+    Assert.assertSame (fallback, table.lookup (get ("clients/5a1b2c3d4e5f60718293a4b5")));
+    Assert.assertNull (table.lookup (post ("accounts")));
+  }
+
+  @Test
+  public void testApply ()
+  {
+    RoutePolicy timeouts =
+        new RoutePolicy.Builder ()
+            .setTimeout (5, TimeUnit.SECONDS)
+            .setReadTimeout (20, TimeUnit.SECONDS)
+            .build ();
+
+    RouteTable table =
+        new RouteTable.Builder ()
+            .add ("GET", "accounts/me", this.me_)
+            .add ("GET", "accounts", timeouts)
+            .build ();
+
+    Request request = table.apply (get ("accounts/me"));
+
+    Assert.assertSame (this.me_, request.tag (RoutePolicy.class));
+    Assert.assertEquals (0, request.cacheControl ().maxAgeSeconds ());
+
+    // A policy without cache control leaves the header alone.
+    request = table.apply (get ("accounts"));
+
+    Assert.assertSame (timeouts, request.tag (RoutePolicy.class));
+    Assert.assertNull (request.header ("Cache-Control"));
+    Assert.assertEquals (5000, timeouts.getConnectTimeout ());
+    Assert.assertEquals (20000, timeouts.getReadTimeout ());
+    Assert.assertEquals (5000, timeouts.getWriteTimeout ());
+
+    // A request that does not match is not changed.
+    Request other = get ("clients");
+    Assert.assertSame (other, table.apply (other));
+  }
+
+  @Test
+  public void testCacheControl ()
+  {
+    RoutePolicy policy =
+        new RoutePolicy.Builder ()
+            .setCacheControl (CacheControl.FORCE_NETWORK)
+            .build ();
+
+    Request request = new RouteTable.Builder ().add ("GET", "accounts/me", policy).build ().apply (get ("accounts/me"));
+
+    Assert.assertTrue (request.cacheControl ().noCache ());
+    Assert.assertEquals (0, policy.getConnectTimeout ());
+  }
+
+  private static RoutePolicy newPolicy (long timeToLiveSeconds)
+  {
+    return new RoutePolicy.Builder ().setTimeToLive (timeToLiveSeconds, TimeUnit.SECONDS).build ();
+  }
+
+  private static Request get (String path)
+  {
+    return new Request.Builder ().url (BASE_URL + path).build ();
+  }
+
+  private static Request post (String path)
+  {
+    return new Request.Builder ().url (BASE_URL + path).method ("POST", RequestBody.create (null, new byte[0])).build ();
+  }
+}
@@ -0,0 +1,43 @@
+package com.onehilltech.gatekeeper.android.model;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+import com.onehilltech.gatekeeper.core.SessionToken;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UserTokenTest
+{
+  @Test
+  public void testExpiresAt ()
+  {
+    JsonBearerToken json =
+        GatekeeperProtocol.newGsonBuilder ()
+                          .create ()
+                          .fromJson ("{\"access_token\": \"access-1\", \"refresh_token\": \"refresh-1\", \"expires_in\": 3600, \"scope\": \"read\"}", JsonBearerToken.class);
+
+    long before = System.currentTimeMillis ();
+    UserToken userToken = UserToken.fromToken (SessionToken.fromJson ("tester1", json));
+    long after = System.currentTimeMillis ();
+
+    // The expiration time and the scope of the token are written with it.
+    Assert.assertTrue (userToken.expiresAt >= before + 3600 * 1000);
+    Assert.assertTrue (userToken.expiresAt <= after + 3600 * 1000);
+    Assert.assertEquals ("read", userToken.scope);
+
+    SessionToken token = userToken.toSessionToken ();
+
+    Assert.assertEquals (userToken.expiresAt, token.getExpiresAt ());
+    Assert.assertEquals ("read", token.getScope ());
+  }
+
+  @Test
+  public void testNoExpiresIn ()
+  {
+    UserToken userToken = UserToken.fromToken (new SessionToken ("tester1", "access-1", "refresh-1"));
+
+    Assert.assertEquals (0, userToken.expiresAt);
+    Assert.assertNull (userToken.scope);
+  }
+}
@@ -0,0 +1,22 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * @interface Fault
+ *
+ * Fault injected into the responses of the fake server. The faults are checked
+ * in order before a request is handled. The first fault that returns a response
+ * replaces the response of the server.
+ */
+public interface Fault
+{
+  /**
+   * Apply the fault to a request.
+   *
+   * @param request       The request
+   * @return              Response to send instead, or null to handle the request
+   */
+  MockResponse apply (RecordedRequest request);
+}
@@ -0,0 +1,98 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * @class Faults
+ *
+ * Factory methods for the common faults. Each fault applies to the requests for a
+ * single path (e.g., GatekeeperDispatcher.TOKEN_PATH), or to all the requests when
+ * the path is null.
+ */
+public final class Faults
+{
+  /// Error code in the body of the injected error responses.
+  public static final String INJECTED_FAULT = "injected_fault";
+
+  /**
+   * Fail every nth request with an error response.
+   *
+   * @param path            Path of the requests, or null for all requests
+   * @param n               Period of the failures
+   * @param statusCode      Status code of the error response
+   * @return                Fault object
+   */
+  public static Fault failEvery (final String path, final int n, final int statusCode)
+  {
+    final AtomicInteger count = new AtomicInteger ();
+
+    return request -> {
+      if (!matches (path, request) || count.incrementAndGet () % n != 0)
+        return null;
+
+      return newError (statusCode);
+    };
+  }
+
+  /**
+   * Fail a fraction of the requests with an error response. The failures are picked
+   * with a seeded random number generator so a run can be repeated.
+   *
+   * @param path            Path of the requests, or null for all requests
+   * @param rate            Fraction of the requests that fail, between 0 and 1
+   * @param statusCode      Status code of the error response
+   * @param seed            Seed for picking the failures
+   * @return                Fault object
+   */
+  public static Fault failWithRate (final String path, final double rate, final int statusCode, long seed)
+  {
+    final Random random = new Random (seed);
+
+    return request -> {
+      if (!matches (path, request) || random.nextDouble () >= rate)
+        return null;
+
+      return newError (statusCode);
+    };
+  }
+
+  /**
+   * Drop the connection after reading every nth request, without sending a
+   * response.
+   *
+   * @param path            Path of the requests, or null for all requests
+   * @param n               Period of the failures
+   * @return                Fault object
+   */
+  public static Fault disconnectEvery (final String path, final int n)
+  {
+    final AtomicInteger count = new AtomicInteger ();
+
+    return request -> {
+      if (!matches (path, request) || count.incrementAndGet () % n != 0)
+        return null;
+
+      return new MockResponse ().setSocketPolicy (SocketPolicy.DISCONNECT_AFTER_REQUEST);
+    };
+  }
+
+  private static boolean matches (String path, RecordedRequest request)
+  {
+    return path == null || path.equals (request.getRequestUrl ().encodedPath ());
+  }
+
+  private static MockResponse newError (int statusCode)
+  {
+    return GatekeeperDispatcher.newError (statusCode, INJECTED_FAULT, "The fault was injected by the server");
+  }
+
+  private Faults ()
+  {
+
+  }
+}
@@ -0,0 +1,1199 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.onehilltech.gatekeeper.android.http.JsonAccount;
+import com.onehilltech.gatekeeper.android.http.JsonChangePassword;
+import com.onehilltech.gatekeeper.android.http.JsonClientCredentials;
+import com.onehilltech.gatekeeper.android.http.JsonGrant;
+import com.onehilltech.gatekeeper.android.http.JsonPassword;
+import com.onehilltech.gatekeeper.android.http.JsonRefreshToken;
+import com.onehilltech.gatekeeper.android.http.JsonTokenExchange;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+import com.onehilltech.gatekeeper.core.Outbox;
+import com.onehilltech.gatekeeper.core.RevocationChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.HttpUrl;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * @class GatekeeperDispatcher
+ *
+ * In-process stand-in for the Gatekeeper service. The dispatcher keeps the clients,
+ * accounts, and tokens in memory, and serves the endpoints used by the clients:
+ *
+ *   POST /v1/oauth2/token                password, client_credentials, refresh_token, and
+ *                                        token exchange grants
+ *   POST /v1/oauth2/token/batch          many grants in one request (only if enabled)
+ *   POST /v1/oauth2/logout               revoke the token of the request
+ *   POST /v1/accounts                    create an account (login=true also issues a token)
+ *   GET  /v1/accounts                    get the accounts (ids=... selects the accounts)
+ *   GET  /v1/accounts/me                 get the account of the user
+ *   PUT  /v1/accounts/me                 update the email address of the user
+ *   POST /v1/accounts/me/password        change the password of the user
+ *   GET  /v1/oauth2/events               WebSocket that pushes the revocation and forced
+ *                                        refresh events for the token of the user
+ *
+ * A request with an Idempotency-Key header is handled once. The response is kept,
+ * and a request sent again with the same key gets the same response, unless the
+ * request was rejected for its token.
+ *
+ * The access tokens expire after a configurable time, and each refresh token can be
+ * used only once (i.e., refresh token rotation). The latency of the responses and
+ * the faults injected into them are also configurable. The dispatcher counts the
+ * grants, and the refreshes that break the rules, so a test can check how a client
+ * behaves under load.
+ */
+public class GatekeeperDispatcher extends Dispatcher
+{
+  public static final String TOKEN_PATH = "/v1/oauth2/token";
+
+  public static final String BATCH_TOKEN_PATH = "/v1/oauth2/token/batch";
+
+  public static final String LOGOUT_PATH = "/v1/oauth2/logout";
+
+  public static final String ACCOUNTS_PATH = "/v1/accounts";
+
+  public static final String ME_PATH = "/v1/accounts/me";
+
+  public static final String PASSWORD_PATH = "/v1/accounts/me/password";
+
+  public static final String EVENTS_PATH = "/v1/oauth2/events";
+
+  public static final String GRANT_PASSWORD = "password";
+
+  public static final String GRANT_CLIENT_CREDENTIALS = "client_credentials";
+
+  public static final String GRANT_REFRESH_TOKEN = "refresh_token";
+
+  public static final String GRANT_TOKEN_EXCHANGE = JsonTokenExchange.GRANT_TYPE;
+
+  private static final long DEFAULT_TOKEN_TIME_TO_LIVE_MINUTES = 60;
+
+  /**
+   * @class Builder
+   *
+   * Builder for creating GatekeeperDispatcher objects.
+   */
+  public static final class Builder
+  {
+    private final HashMap <String, String> clients_ = new HashMap<> ();
+
+    private final ArrayList <JsonAccount> accounts_ = new ArrayList<> ();
+
+    private final ArrayList <Fault> faults_ = new ArrayList<> ();
+
+    private long timeToLive_ = TimeUnit.MINUTES.toNanos (DEFAULT_TOKEN_TIME_TO_LIVE_MINUTES);
+
+    private long latency_;
+
+    private boolean batchTokenEnabled_;
+
+    /**
+     * Register a client. If no clients are registered, the grants from any client
+     * are accepted.
+     *
+     * @param clientId        Id of the client
+     * @param clientSecret    Secret of the client
+     */
+    public Builder addClient (String clientId, String clientSecret)
+    {
+      this.clients_.put (clientId, clientSecret);
+      return this;
+    }
+
+    /**
+     * Add an account that exists when the server starts.
+     *
+     * @param username        Username for the account
+     * @param password        Password for the account
+     * @param email           Email address for the account
+     */
+    public Builder addAccount (String username, String password, String email)
+    {
+      JsonAccount account = new JsonAccount ();
+      account.username = username;
+      account.password = password;
+      account.email = email;
+
+      this.accounts_.add (account);
+      return this;
+    }
+
+    /**
+     * Set how long an access token is valid.
+     *
+     * @param timeToLive      Lifetime of an access token
+     * @param unit            Unit for timeToLive
+     */
+    public Builder setTokenTimeToLive (long timeToLive, TimeUnit unit)
+    {
+      this.timeToLive_ = unit.toNanos (timeToLive);
+      return this;
+    }
+
+    /**
+     * Set the delay before the headers of each response are sent.
+     *
+     * @param latency         Delay for each response
+     * @param unit            Unit for latency
+     */
+    public Builder setLatency (long latency, TimeUnit unit)
+    {
+      this.latency_ = unit.toNanos (latency);
+      return this;
+    }
+
+    /**
+     * Serve the batch token endpoint. The real service does not have it, so it is
+     * disabled by default and the clients fall back to one grant per request.
+     *
+     * @param enabled         Enable the endpoint
+     */
+    public Builder setBatchTokenEnabled (boolean enabled)
+    {
+      this.batchTokenEnabled_ = enabled;
+      return this;
+    }
+
+    /**
+     * Add a fault to inject into the responses.
+     *
+     * @param fault           Fault object
+     */
+    public Builder addFault (Fault fault)
+    {
+      this.faults_.add (fault);
+      return this;
+    }
+
+    public GatekeeperDispatcher build ()
+    {
+      return new GatekeeperDispatcher (this);
+    }
+  }
+
+  /**
+   * An account known to the server.
+   */
+  private static final class Account
+  {
+    private final String id_;
+
+    private final String username_;
+
+    private volatile String email_;
+
+    private volatile String password_;
+
+    private volatile boolean disabled_;
+
+    Account (String id, String username, String password, String email)
+    {
+      this.id_ = id;
+      this.username_ = username;
+      this.password_ = password;
+      this.email_ = email;
+    }
+
+    JsonObject toJson ()
+    {
+      JsonObject obj = new JsonObject ();
+      obj.addProperty ("_id", this.id_);
+      obj.addProperty ("username", this.username_);
+      obj.addProperty ("email", this.email_);
+
+      return obj;
+    }
+  }
+
+  /**
+   * A token issued by the server. The account is null for a client token.
+   */
+  private static final class IssuedToken
+  {
+    private final String accessToken_;
+
+    private final String refreshToken_;
+
+    private final Account account_;
+
+    private volatile long expiresAt_;
+
+    private volatile boolean revoked_;
+
+    /// The token was disabled, and is rejected with a 403 token_disabled error.
+    private volatile boolean disabled_;
+
+    /// Scope of a downscoped token, or null for a token with the full scope.
+    private volatile String scope_;
+
+    /// The refresh token can only be used once.
+    private boolean refreshed_;
+
+    IssuedToken (String accessToken, String refreshToken, Account account, long expiresAt)
+    {
+      this.accessToken_ = accessToken;
+      this.refreshToken_ = refreshToken;
+      this.account_ = account;
+      this.expiresAt_ = expiresAt;
+    }
+
+    boolean isExpired (long now)
+    {
+      return now - this.expiresAt_ >= 0;
+    }
+
+    JsonObject toJson ()
+    {
+      JsonObject obj = new JsonObject ();
+      obj.addProperty ("token_type", "Bearer");
+      obj.addProperty ("access_token", this.accessToken_);
+
+      if (this.refreshToken_ != null)
+        obj.addProperty ("refresh_token", this.refreshToken_);
+
+      if (this.scope_ != null)
+      {
+        obj.addProperty ("scope", this.scope_);
+        obj.addProperty ("expires_in", TimeUnit.NANOSECONDS.toSeconds (this.expiresAt_ - System.nanoTime ()));
+      }
+
+      return obj;
+    }
+  }
+
+  /**
+   * A revocation channel opened by a user. The channel is bound to a token of the
+   * user, and the client can bind it to a refreshed token without reconnecting.
+   */
+  private final class EventChannel extends WebSocketListener
+  {
+    private volatile IssuedToken token_;
+
+    private volatile WebSocket socket_;
+
+    EventChannel (IssuedToken token)
+    {
+      this.token_ = token;
+    }
+
+    void send (JsonObject event)
+    {
+      WebSocket socket = this.socket_;
+
+      if (socket != null)
+        socket.send (event.toString ());
+    }
+
+    @Override
+    public void onOpen (WebSocket webSocket, Response response)
+    {
+      this.socket_ = webSocket;
+      channels_.add (this);
+    }
+
+    @Override
+    public void onMessage (WebSocket webSocket, String text)
+    {
+      JsonObject message;
+
+      try
+      {
+        message = gson_.fromJson (text, JsonObject.class);
+      }
+      catch (JsonParseException e)
+      {
+        return;
+      }
+
+      JsonElement type = message != null ? message.get ("type") : null;
+      JsonElement accessToken = message != null ? message.get ("access_token") : null;
+
+      if (type == null || !RevocationChannel.TYPE_AUTHENTICATE.equals (type.getAsString ()) || accessToken == null)
+        return;
+
+      IssuedToken token = accessTokens_.get (accessToken.getAsString ());
+
+      // The channel can only be moved to a valid token of the same user.
+      if (token == null || token.revoked_ || token.disabled_ || token.account_ != this.token_.account_)
+      {
+        channels_.remove (this);
+        webSocket.close (4001, "The access token is not valid");
+        return;
+      }
+
+      this.token_ = token;
+      channelAuthenticateCount_.incrementAndGet ();
+    }
+
+    @Override
+    public void onClosing (WebSocket webSocket, int code, String reason)
+    {
+      channels_.remove (this);
+      webSocket.close (1000, null);
+    }
+
+    @Override
+    public void onFailure (WebSocket webSocket, Throwable t, Response response)
+    {
+      channels_.remove (this);
+    }
+  }
+
+  /**
+   * A request that ended with an error response.
+   */
+  private static final class HttpException extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode_;
+
+    private final String code_;
+
+    /// The response is not serializable, and the exception never leaves the dispatcher.
+    private final transient MockResponse response_;
+
+    HttpException (int statusCode, String code, String message)
+    {
+      super (message);
+
+      this.statusCode_ = statusCode;
+      this.code_ = code;
+      this.response_ = newError (statusCode, code, message);
+    }
+  }
+
+  private final Gson gson_ = GatekeeperProtocol.newGsonBuilder ().create ();
+
+  private final Map <String, String> clients_;
+
+  private final List <Fault> faults_;
+
+  private final long timeToLive_;
+
+  private final long latency_;
+
+  private final boolean batchTokenEnabled_;
+
+  private final AtomicInteger nextId_ = new AtomicInteger ();
+
+  private final ConcurrentHashMap <String, Account> accounts_ = new ConcurrentHashMap<> ();
+
+  private final ConcurrentHashMap <String, IssuedToken> accessTokens_ = new ConcurrentHashMap<> ();
+
+  private final ConcurrentHashMap <String, IssuedToken> refreshTokens_ = new ConcurrentHashMap<> ();
+
+  private final ConcurrentHashMap <String, AtomicInteger> grantCounts_ = new ConcurrentHashMap<> ();
+
+  private final AtomicInteger reusedRefreshTokenCount_ = new AtomicInteger ();
+
+  private final AtomicInteger earlyRefreshCount_ = new AtomicInteger ();
+
+  private final AtomicInteger unauthorizedCount_ = new AtomicInteger ();
+
+  private final AtomicInteger faultCount_ = new AtomicInteger ();
+
+  private final AtomicInteger batchCount_ = new AtomicInteger ();
+
+  private final AtomicInteger replayCount_ = new AtomicInteger ();
+
+  private final AtomicInteger channelOpenCount_ = new AtomicInteger ();
+
+  private final AtomicInteger channelAuthenticateCount_ = new AtomicInteger ();
+
+  /// The open revocation channels.
+  private final CopyOnWriteArrayList <EventChannel> channels_ = new CopyOnWriteArrayList<> ();
+
+  /// The responses to the requests with an idempotency key, by the key.
+  private final HashMap <String, MockResponse> idempotentResponses_ = new HashMap<> ();
+
+  private GatekeeperDispatcher (Builder builder)
+  {
+    this.clients_ = new HashMap<> (builder.clients_);
+    this.faults_ = new ArrayList<> (builder.faults_);
+    this.timeToLive_ = builder.timeToLive_;
+    this.latency_ = builder.latency_;
+    this.batchTokenEnabled_ = builder.batchTokenEnabled_;
+
+    for (String grantType: Arrays.asList (GRANT_PASSWORD, GRANT_CLIENT_CREDENTIALS, GRANT_REFRESH_TOKEN, GRANT_TOKEN_EXCHANGE))
+      this.grantCounts_.put (grantType, new AtomicInteger ());
+
+    for (JsonAccount account: builder.accounts_)
+      this.newAccount (account.username, account.password, account.email);
+  }
+
+  /**
+   * Expire all the access tokens issued so far, as if their time had run out.
+   */
+  public void expireTokens ()
+  {
+    long now = System.nanoTime ();
+
+    for (IssuedToken token: this.accessTokens_.values ())
+      token.expiresAt_ = now;
+  }
+
+  /**
+   * Disable an account. The requests made with the tokens of a disabled account
+   * are rejected with a 403 account_disabled error.
+   *
+   * @param username        Username of the account
+   */
+  public void disableAccount (String username)
+  {
+    Account account = this.accounts_.get (username);
+
+    if (account != null)
+      account.disabled_ = true;
+  }
+
+  /**
+   * Disable the tokens issued to an account so far, and push the revocation to the
+   * open revocation channels of the account. The requests made with a disabled
+   * token are rejected with a 403 token_disabled error, and its refresh token is
+   * not accepted.
+   *
+   * @param username        Username of the account
+   */
+  public void disableTokens (String username)
+  {
+    for (IssuedToken token: this.accessTokens_.values ())
+    {
+      if (token.account_ != null && token.account_.username_.equals (username))
+        token.disabled_ = true;
+    }
+
+    JsonObject error = new JsonObject ();
+    error.addProperty ("code", "token_disabled");
+    error.addProperty ("message", "The token is disabled");
+
+    JsonObject event = new JsonObject ();
+    event.addProperty ("type", RevocationChannel.TYPE_REVOKED);
+    event.add ("errors", error);
+
+    this.pushEvent (username, event);
+  }
+
+  /**
+   * Ask the open revocation channels of an account to refresh their token.
+   *
+   * @param username        Username of the account
+   */
+  public void pushRefresh (String username)
+  {
+    JsonObject event = new JsonObject ();
+    event.addProperty ("type", RevocationChannel.TYPE_REFRESH);
+
+    this.pushEvent (username, event);
+  }
+
+  private void pushEvent (String username, JsonObject event)
+  {
+    for (EventChannel channel: this.channels_)
+    {
+      if (channel.token_.account_.username_.equals (username))
+        channel.send (event);
+    }
+  }
+
+  /**
+   * Get the number of revocation channels that are open.
+   */
+  public int getChannelCount ()
+  {
+    return this.channels_.size ();
+  }
+
+  /**
+   * Get the number of revocation channels opened so far.
+   */
+  public int getChannelOpenCount ()
+  {
+    return this.channelOpenCount_.get ();
+  }
+
+  /**
+   * Get the number of times an open revocation channel was moved to a refreshed
+   * token.
+   */
+  public int getChannelAuthenticateCount ()
+  {
+    return this.channelAuthenticateCount_.get ();
+  }
+
+  /**
+   * Get the access tokens the open revocation channels of an account are bound to.
+   *
+   * @param username        Username of the account
+   */
+  public List <String> getChannelTokens (String username)
+  {
+    ArrayList <String> tokens = new ArrayList<> ();
+
+    for (EventChannel channel: this.channels_)
+    {
+      if (channel.token_.account_.username_.equals (username))
+        tokens.add (channel.token_.accessToken_);
+    }
+
+    return tokens;
+  }
+
+  /**
+   * Get the email address of an account.
+   *
+   * @param username        Username of the account
+   * @return                The email address, or null if the account does not exist
+   */
+  public String getEmail (String username)
+  {
+    Account account = this.accounts_.get (username);
+    return account != null ? account.email_ : null;
+  }
+
+  /**
+   * Test if an account exists.
+   *
+   * @param username        Username of the account
+   */
+  public boolean hasAccount (String username)
+  {
+    return this.accounts_.containsKey (username);
+  }
+
+  /**
+   * Get the number of tokens requested with a grant type, including the rejected
+   * requests.
+   *
+   * @param grantType       One of the GRANT_ constants
+   */
+  public int getGrantCount (String grantType)
+  {
+    AtomicInteger count = this.grantCounts_.get (grantType);
+    return count != null ? count.get () : 0;
+  }
+
+  /**
+   * Get the number of refreshes with a refresh token that was already used. Each
+   * one is a second refresh for the same expiry.
+   */
+  public int getReusedRefreshTokenCount ()
+  {
+    return this.reusedRefreshTokenCount_.get ();
+  }
+
+  /**
+   * Get the number of refreshes for an access token that had not expired.
+   */
+  public int getEarlyRefreshCount ()
+  {
+    return this.earlyRefreshCount_.get ();
+  }
+
+  /**
+   * Get the number of requests rejected because of a missing, expired, or revoked
+   * token.
+   */
+  public int getUnauthorizedCount ()
+  {
+    return this.unauthorizedCount_.get ();
+  }
+
+  /**
+   * Get the number of responses replaced by a fault.
+   */
+  public int getFaultCount ()
+  {
+    return this.faultCount_.get ();
+  }
+
+  /**
+   * Get the scope of a downscoped access token.
+   *
+   * @param accessToken     The access token
+   * @return                The scope, or null if the token has the full scope
+   */
+  public String getTokenScope (String accessToken)
+  {
+    IssuedToken token = this.accessTokens_.get (accessToken);
+    return token != null ? token.scope_ : null;
+  }
+
+  /**
+   * Get the number of requests served by the batch token endpoint.
+   */
+  public int getBatchCount ()
+  {
+    return this.batchCount_.get ();
+  }
+
+  /**
+   * Get the number of requests answered with the kept response for their
+   * idempotency key, instead of being handled again.
+   */
+  public int getReplayCount ()
+  {
+    return this.replayCount_.get ();
+  }
+
+  @Override
+  public MockResponse dispatch (RecordedRequest request)
+  {
+    MockResponse response = this.applyFaults (request);
+
+    if (response == null)
+    {
+      String idempotencyKey = request.getHeader (Outbox.IDEMPOTENCY_KEY_HEADER);
+
+      if (idempotencyKey != null)
+        response = this.handleOnce (request, idempotencyKey);
+      else
+        response = this.handleRequest (request);
+    }
+
+    if (this.latency_ > 0)
+      response.setHeadersDelay (this.latency_, TimeUnit.NANOSECONDS);
+
+    return response;
+  }
+
+  private MockResponse handleRequest (RecordedRequest request)
+  {
+    try
+    {
+      return this.handle (request);
+    }
+    catch (HttpException e)
+    {
+      return e.response_;
+    }
+  }
+
+  /**
+   * Handle a request with an idempotency key, unless a request with the same key
+   * was already handled.
+   */
+  private MockResponse handleOnce (RecordedRequest request, String idempotencyKey)
+  {
+    synchronized (this.idempotentResponses_)
+    {
+      MockResponse kept = this.idempotentResponses_.get (idempotencyKey);
+
+      if (kept != null)
+      {
+        this.replayCount_.incrementAndGet ();
+        return copy (kept);
+      }
+
+      MockResponse response = this.handleRequest (request);
+
+      // A request that was not authenticated did not run, so it can be sent again
+      // with a new token.
+      if (!response.getStatus ().contains (" 401 "))
+        this.idempotentResponses_.put (idempotencyKey, copy (response));
+
+      return response;
+    }
+  }
+
+  private static MockResponse copy (MockResponse response)
+  {
+    // The body of the response is read when it is sent, so each copy needs its own.
+    MockResponse copy = new MockResponse ().setStatus (response.getStatus ());
+    Buffer body = response.getBody ();
+
+    return body != null ? copy.setBody (body) : copy;
+  }
+
+  private MockResponse applyFaults (RecordedRequest request)
+  {
+    for (Fault fault: this.faults_)
+    {
+      MockResponse response = fault.apply (request);
+
+      if (response != null)
+      {
+        this.faultCount_.incrementAndGet ();
+        return response;
+      }
+    }
+
+    return null;
+  }
+
+  private MockResponse handle (RecordedRequest request)
+      throws HttpException
+  {
+    HttpUrl url = request.getRequestUrl ();
+    String path = url.encodedPath ();
+    String method = request.getMethod ();
+
+    if (path.equals (TOKEN_PATH) && method.equals ("POST"))
+      return this.issueToken (request);
+    else if (path.equals (BATCH_TOKEN_PATH) && method.equals ("POST") && this.batchTokenEnabled_)
+      return this.issueTokens (request);
+    else if (path.equals (LOGOUT_PATH) && method.equals ("POST"))
+      return this.logout (request);
+    else if (path.equals (ACCOUNTS_PATH) && method.equals ("POST"))
+      return this.createAccount (request, url);
+    else if (path.equals (ACCOUNTS_PATH) && method.equals ("GET"))
+      return this.getAccounts (request, url);
+    else if (path.equals (ME_PATH) && method.equals ("GET"))
+      return this.getMe (request);
+    else if (path.equals (ME_PATH) && method.equals ("PUT"))
+      return this.updateMe (request);
+    else if (path.equals (PASSWORD_PATH) && method.equals ("POST"))
+      return this.changePassword (request);
+    else if (path.equals (EVENTS_PATH) && method.equals ("GET"))
+      return this.openChannel (request);
+    else
+      throw new HttpException (404, "not_found", "The resource does not exist");
+  }
+
+  private MockResponse issueToken (RecordedRequest request)
+      throws HttpException
+  {
+    JsonGrant grant;
+
+    try
+    {
+      grant = this.gson_.fromJson (request.getBody ().readUtf8 (), JsonGrant.class);
+    }
+    catch (JsonParseException e)
+    {
+      throw new HttpException (400, "invalid_request", "The request is not valid");
+    }
+
+    if (grant == null)
+      throw new HttpException (400, "invalid_request", "The request is not valid");
+
+    return newTokenResponse (this.grantToken (grant));
+  }
+
+  /**
+   * Serve many grants in one request. Each grant has its own result, in the same
+   * order as the grants, so one failed grant does not fail the others.
+   */
+  private MockResponse issueTokens (RecordedRequest request)
+      throws HttpException
+  {
+    this.batchCount_.incrementAndGet ();
+
+    JsonArray grants;
+
+    try
+    {
+      JsonObject body = this.gson_.fromJson (request.getBody ().readUtf8 (), JsonObject.class);
+      JsonElement element = body != null ? body.get ("grants") : null;
+
+      if (element == null || !element.isJsonArray ())
+        throw new HttpException (400, "invalid_request", "The request is not valid");
+
+      grants = element.getAsJsonArray ();
+    }
+    catch (JsonParseException e)
+    {
+      throw new HttpException (400, "invalid_request", "The request is not valid");
+    }
+
+    JsonArray results = new JsonArray ();
+
+    for (JsonElement element: grants)
+    {
+      JsonObject result = new JsonObject ();
+
+      try
+      {
+        JsonGrant grant = this.gson_.fromJson (element, JsonGrant.class);
+
+        if (grant == null)
+          throw new HttpException (400, "invalid_request", "The request is not valid");
+
+        result.add ("token", this.grantToken (grant).toJson ());
+      }
+      catch (JsonParseException e)
+      {
+        addError (result, new HttpException (400, "invalid_request", "The request is not valid"));
+      }
+      catch (HttpException e)
+      {
+        addError (result, e);
+      }
+
+      results.add (result);
+    }
+
+    JsonObject obj = new JsonObject ();
+    obj.add ("results", results);
+
+    return new MockResponse ().setBody (obj.toString ());
+  }
+
+  private static void addError (JsonObject result, HttpException e)
+  {
+    JsonObject error = new JsonObject ();
+    error.addProperty ("code", e.code_);
+    error.addProperty ("message", e.getMessage ());
+
+    result.addProperty ("status", e.statusCode_);
+    result.add ("errors", error);
+  }
+
+  private IssuedToken grantToken (JsonGrant grant)
+      throws HttpException
+  {
+    if (grant instanceof JsonPassword)
+    {
+      this.grantCounts_.get (GRANT_PASSWORD).incrementAndGet ();
+      this.checkClient (grant);
+
+      JsonPassword password = (JsonPassword)grant;
+      Account account = password.username != null ? this.accounts_.get (password.username) : null;
+
+      if (account == null)
+        throw new HttpException (400, "unknown_account", "The account does not exist");
+
+      if (!account.password_.equals (password.password))
+        throw new HttpException (400, "invalid_password", "The password is not valid");
+
+      if (account.disabled_)
+        throw new HttpException (403, "account_disabled", "The account is disabled");
+
+      return this.newToken (account, true);
+    }
+    else if (grant instanceof JsonClientCredentials)
+    {
+      this.grantCounts_.get (GRANT_CLIENT_CREDENTIALS).incrementAndGet ();
+      this.checkClient (grant);
+
+      return this.newToken (null, false);
+    }
+    else if (grant instanceof JsonRefreshToken)
+    {
+      this.grantCounts_.get (GRANT_REFRESH_TOKEN).incrementAndGet ();
+      this.checkClient (grant);
+
+      String refreshToken = ((JsonRefreshToken)grant).refreshToken;
+      IssuedToken token = refreshToken != null ? this.refreshTokens_.get (refreshToken) : null;
+
+      if (token == null || token.revoked_ || token.disabled_)
+        throw new HttpException (400, "invalid_grant", "The refresh token is not valid");
+
+      if (token.account_ != null && token.account_.disabled_)
+        throw new HttpException (403, "account_disabled", "The account is disabled");
+
+      synchronized (token)
+      {
+        if (token.refreshed_)
+        {
+          this.reusedRefreshTokenCount_.incrementAndGet ();
+          throw new HttpException (400, "invalid_grant", "The refresh token has already been used");
+        }
+
+        token.refreshed_ = true;
+      }
+
+      if (!token.isExpired (System.nanoTime ()))
+        this.earlyRefreshCount_.incrementAndGet ();
+
+      return this.newToken (token.account_, true);
+    }
+    else if (grant instanceof JsonTokenExchange)
+    {
+      this.grantCounts_.get (GRANT_TOKEN_EXCHANGE).incrementAndGet ();
+      this.checkClient (grant);
+
+      JsonTokenExchange exchange = (JsonTokenExchange)grant;
+      IssuedToken subject = exchange.subjectToken != null ? this.accessTokens_.get (exchange.subjectToken) : null;
+
+      // Only the full token of a user can be exchanged.
+      if (subject == null || subject.revoked_ || subject.disabled_ || subject.account_ == null || subject.scope_ != null || subject.isExpired (System.nanoTime ()))
+        throw new HttpException (400, "invalid_grant", "The subject token is not valid");
+
+      if (subject.account_.disabled_)
+        throw new HttpException (403, "account_disabled", "The account is disabled");
+
+      if (exchange.scope == null || exchange.scope.trim ().isEmpty ())
+        throw new HttpException (400, "invalid_scope", "The scope is not valid");
+
+      IssuedToken token = this.newToken (subject.account_, false);
+      token.scope_ = exchange.scope;
+
+      return token;
+    }
+    else
+    {
+      throw new HttpException (400, "unsupported_grant_type", "The grant type is not supported");
+    }
+  }
+
+  private MockResponse logout (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticate (request);
+
+    token.revoked_ = true;
+    this.accessTokens_.remove (token.accessToken_);
+
+    if (token.refreshToken_ != null)
+      this.refreshTokens_.remove (token.refreshToken_);
+
+    return new MockResponse ().setBody ("true");
+  }
+
+  private MockResponse openChannel (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticateUser (request);
+    this.channelOpenCount_.incrementAndGet ();
+
+    return new MockResponse ().withWebSocketUpgrade (new EventChannel (token));
+  }
+
+  private MockResponse createAccount (RecordedRequest request, HttpUrl url)
+      throws HttpException
+  {
+    this.authenticate (request);
+
+    JsonAccount json = this.readResource (request, "account", JsonAccount.class);
+
+    if (json.username == null || json.password == null)
+      throw new HttpException (400, "invalid_account", "The username and password are required");
+
+    Account account = this.newAccount (json.username, json.password, json.email);
+
+    if (account == null)
+      throw new HttpException (400, "already_exists", "The account already exists");
+
+    JsonObject obj = new JsonObject ();
+    obj.add ("account", account.toJson ());
+
+    if ("true".equals (url.queryParameter ("login")))
+      obj.add ("token", this.newToken (account, true).toJson ());
+
+    return new MockResponse ().setBody (obj.toString ());
+  }
+
+  private MockResponse getAccounts (RecordedRequest request, HttpUrl url)
+      throws HttpException
+  {
+    this.authenticateUser (request);
+
+    String ids = url.queryParameter ("ids");
+    JsonArray accounts = new JsonArray ();
+
+    if (ids != null)
+    {
+      List <String> selected = Arrays.asList (ids.split (","));
+
+      for (Account account: this.accounts_.values ())
+        if (selected.contains (account.id_))
+          accounts.add (account.toJson ());
+    }
+    else
+    {
+      for (Account account: this.accounts_.values ())
+        accounts.add (account.toJson ());
+    }
+
+    return newResource ("accounts", accounts);
+  }
+
+  private MockResponse getMe (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticateUser (request);
+    return newResource ("account", token.account_.toJson ());
+  }
+
+  private MockResponse updateMe (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticateUser (request);
+    JsonAccount json = this.readResource (request, "account", JsonAccount.class);
+
+    if (json.email != null)
+      token.account_.email_ = json.email;
+
+    return newResource ("account", token.account_.toJson ());
+  }
+
+  private MockResponse changePassword (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticateUser (request);
+    JsonChangePassword change = this.readResource (request, "change-password", JsonChangePassword.class);
+
+    synchronized (token.account_)
+    {
+      if (!token.account_.password_.equals (change.currentPassword))
+        throw new HttpException (400, "invalid_password", "The current password is not valid");
+
+      if (change.newPassword == null)
+        throw new HttpException (400, "invalid_password", "The new password is required");
+
+      token.account_.password_ = change.newPassword;
+    }
+
+    return new MockResponse ().setBody ("true");
+  }
+
+  /**
+   * Check the client credentials of a grant.
+   */
+  private void checkClient (JsonGrant grant)
+      throws HttpException
+  {
+    if (this.clients_.isEmpty ())
+      return;
+
+    if (grant.clientId == null || !this.clients_.containsKey (grant.clientId))
+      throw new HttpException (400, "unknown_client", "The client does not exist");
+
+    String clientSecret = this.clients_.get (grant.clientId);
+
+    if (clientSecret != null && !clientSecret.equals (grant.clientSecret))
+      throw new HttpException (400, "invalid_client", "The client secret is not valid");
+  }
+
+  /**
+   * Get the token for a request. The token can be for a client or a user.
+   */
+  private IssuedToken authenticate (RecordedRequest request)
+      throws HttpException
+  {
+    String authorization = request.getHeader ("Authorization");
+
+    if (authorization == null || !authorization.startsWith ("Bearer "))
+      throw this.unauthorized ("missing_token", "The request does not have a token");
+
+    IssuedToken token = this.accessTokens_.get (authorization.substring (7));
+
+    if (token == null || token.revoked_)
+      throw this.unauthorized ("unknown_token", "The access token is not valid");
+
+    if (token.disabled_)
+      throw new HttpException (403, "token_disabled", "The token is disabled");
+
+    if (token.isExpired (System.nanoTime ()))
+      throw this.unauthorized ("token_expired", "The access token has expired");
+
+    if (token.account_ != null && token.account_.disabled_)
+      throw new HttpException (403, "account_disabled", "The account is disabled");
+
+    return token;
+  }
+
+  /**
+   * Get the token for a request that must be made by a user.
+   */
+  private IssuedToken authenticateUser (RecordedRequest request)
+      throws HttpException
+  {
+    IssuedToken token = this.authenticate (request);
+
+    if (token.account_ == null)
+      throw new HttpException (403, "invalid_token", "The request must be made by a user");
+
+    return token;
+  }
+
+  private HttpException unauthorized (String code, String message)
+  {
+    this.unauthorizedCount_.incrementAndGet ();
+    return new HttpException (401, code, message);
+  }
+
+  private <T> T readResource (RecordedRequest request, String name, Class <T> type)
+      throws HttpException
+  {
+    try
+    {
+      JsonObject obj = this.gson_.fromJson (request.getBody ().readUtf8 (), JsonObject.class);
+      JsonElement element = obj != null ? obj.get (name) : null;
+
+      if (element == null)
+        throw new HttpException (400, "invalid_request", "The request does not have a " + name);
+
+      return this.gson_.fromJson (element, type);
+    }
+    catch (JsonParseException e)
+    {
+      throw new HttpException (400, "invalid_request", "The request is not valid");
+    }
+  }
+
+  /**
+   * Create an account, unless the username is taken.
+   *
+   * @return        The new account, or null if the account already exists
+   */
+  private Account newAccount (String username, String password, String email)
+  {
+    Account account = new Account (String.format ("%024x", this.nextId_.incrementAndGet ()), username, password, email);
+    return this.accounts_.putIfAbsent (username, account) == null ? account : null;
+  }
+
+  private IssuedToken newToken (Account account, boolean canRefresh)
+  {
+    int id = this.nextId_.incrementAndGet ();
+
+    IssuedToken token =
+        new IssuedToken (
+            "access-" + id,
+            canRefresh ? "refresh-" + id : null,
+            account,
+            System.nanoTime () + this.timeToLive_);
+
+    this.accessTokens_.put (token.accessToken_, token);
+
+    if (token.refreshToken_ != null)
+      this.refreshTokens_.put (token.refreshToken_, token);
+
+    return token;
+  }
+
+  private static MockResponse newTokenResponse (IssuedToken token)
+  {
+    // The token endpoint sends the token without wrapping it in a resource.
+    return new MockResponse ().setBody (token.toJson ().toString ());
+  }
+
+  private static MockResponse newResource (String name, JsonElement value)
+  {
+    JsonObject obj = new JsonObject ();
+    obj.add (name, value);
+
+    return new MockResponse ().setBody (obj.toString ());
+  }
+
+  static MockResponse newError (int statusCode, String code, String message)
+  {
+    JsonObject error = new JsonObject ();
+    error.addProperty ("code", code);
+    error.addProperty ("message", message);
+
+    return newResource ("errors", error).setResponseCode (statusCode);
+  }
+}
@@ -0,0 +1,120 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import com.onehilltech.gatekeeper.core.ClientMetadata;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * @class GatekeeperServer
+ *
+ * Local server that runs a GatekeeperDispatcher. The server listens on the loopback
+ * interface so the tests do not need a network.
+ *
+ *   GatekeeperServer server = new GatekeeperServer (
+ *     new GatekeeperDispatcher.Builder ()
+ *       .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+ *       .setTokenTimeToLive (100, TimeUnit.MILLISECONDS)
+ *       .build ());
+ *
+ *   server.start ();
+ *   GatekeeperProtocol protocol = server.newProtocol ("client-id", "client-secret");
+ */
+public class GatekeeperServer implements Closeable
+{
+  private final GatekeeperDispatcher dispatcher_;
+
+  private final MockWebServer server_ = new MockWebServer ();
+
+  public GatekeeperServer (GatekeeperDispatcher dispatcher)
+  {
+    this.dispatcher_ = dispatcher;
+
+    // MockWebServer logs each request, which floods the output of a load test.
+    Logger.getLogger (MockWebServer.class.getName ()).setLevel (Level.WARNING);
+
+    this.server_.setServerSocketFactory (new NoDelayServerSocketFactory ());
+    this.server_.setDispatcher (dispatcher);
+  }
+
+  public void start ()
+      throws IOException
+  {
+    this.server_.start ();
+  }
+
+  public GatekeeperDispatcher getDispatcher ()
+  {
+    return this.dispatcher_;
+  }
+
+  /**
+   * Get the base URL of the server without the version, which is the base URL a
+   * client is configured with.
+   */
+  public String getBaseUrl ()
+  {
+    return this.server_.url ("/").toString ();
+  }
+
+  /**
+   * Create a protocol for a client of the server.
+   *
+   * @param clientId          Id of a client added to the dispatcher
+   * @param clientSecret      Secret for the client
+   */
+  public GatekeeperProtocol newProtocol (String clientId, String clientSecret)
+  {
+    return this.newProtocolBuilder (clientId, clientSecret).build ();
+  }
+
+  /**
+   * Create the builder for a protocol for a client of the server. The metadata of the
+   * client is set, so the caller only sets what it changes, such as the http client.
+   *
+   * @param clientId          Id of a client added to the dispatcher
+   * @param clientSecret      Secret for the client
+   */
+  public GatekeeperProtocol.Builder newProtocolBuilder (String clientId, String clientSecret)
+  {
+    ClientMetadata metadata =
+        new ClientMetadata.Builder ()
+            .setClientId (clientId)
+            .setClientSecret (clientSecret)
+            .setBaseUrl (this.getBaseUrl ())
+            .build ();
+
+    return new GatekeeperProtocol.Builder ().setMetadata (metadata);
+  }
+
+  /**
+   * Get the URL for a path on the server.
+   *
+   * @param path        Path on the server (e.g., GatekeeperDispatcher.ME_PATH)
+   */
+  public HttpUrl url (String path)
+  {
+    return this.server_.url (path);
+  }
+
+  /**
+   * Get the number of requests the server has received.
+   */
+  public int getRequestCount ()
+  {
+    return this.server_.getRequestCount ();
+  }
+
+  @Override
+  public void close ()
+      throws IOException
+  {
+    this.server_.shutdown ();
+  }
+}
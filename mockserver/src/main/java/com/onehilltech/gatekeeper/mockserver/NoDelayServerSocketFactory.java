@@ -0,0 +1,79 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.net.ServerSocketFactory;
+
+/**
+ * @class NoDelayServerSocketFactory
+ *
+ * ServerSocketFactory that disables Nagle's algorithm on the accepted sockets.
+ * MockWebServer writes the headers and the body of a response separately, so
+ * without this each response waits on the delayed ACK from the client, and a
+ * performance test measures the TCP stack instead of the client.
+ */
+public final class NoDelayServerSocketFactory extends ServerSocketFactory
+{
+  /// Backlog of the server socket when none is given, as in ServerSocket.
+  private static final int DEFAULT_BACKLOG = 50;
+
+  /**
+   * Server socket that disables Nagle's algorithm on the sockets it accepts.
+   */
+  private static final class NoDelayServerSocket extends ServerSocket
+  {
+    NoDelayServerSocket () throws IOException
+    {
+
+    }
+
+    @Override
+    public Socket accept () throws IOException
+    {
+      Socket socket = new Socket ();
+      this.implAccept (socket);
+      socket.setTcpNoDelay (true);
+
+      return socket;
+    }
+  }
+
+  @Override
+  public ServerSocket createServerSocket () throws IOException
+  {
+    return new NoDelayServerSocket ();
+  }
+
+  @Override
+  public ServerSocket createServerSocket (int port) throws IOException
+  {
+    return this.createServerSocket (port, DEFAULT_BACKLOG, null);
+  }
+
+  @Override
+  public ServerSocket createServerSocket (int port, int backlog) throws IOException
+  {
+    return this.createServerSocket (port, backlog, null);
+  }
+
+  @Override
+  public ServerSocket createServerSocket (int port, int backlog, InetAddress address) throws IOException
+  {
+    ServerSocket serverSocket = new NoDelayServerSocket ();
+
+    try
+    {
+      serverSocket.bind (new InetSocketAddress (address, port), backlog);
+      return serverSocket;
+    }
+    catch (IOException e)
+    {
+      serverSocket.close ();
+      throw e;
+    }
+  }
+}
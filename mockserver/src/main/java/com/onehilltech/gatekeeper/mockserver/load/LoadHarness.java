@@ -0,0 +1,168 @@
+package com.onehilltech.gatekeeper.mockserver.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * @class LoadHarness
+ *
+ * Harness that sends the same request many times through a client from a pool of
+ * threads, and reports the throughput and latency of the requests. The threads
+ * start at the same time so the first requests race each other.
+ */
+public class LoadHarness
+{
+  /**
+   * @class Builder
+   *
+   * Builder for creating LoadHarness objects.
+   */
+  public static final class Builder
+  {
+    private OkHttpClient client_;
+
+    private Request request_;
+
+    private int concurrency_ = 16;
+
+    private int requestCount_ = 100;
+
+    public Builder setClient (OkHttpClient client)
+    {
+      this.client_ = client;
+      return this;
+    }
+
+    public Builder setRequest (Request request)
+    {
+      this.request_ = request;
+      return this;
+    }
+
+    /**
+     * Set the number of threads sending requests.
+     *
+     * @param concurrency       Number of threads
+     */
+    public Builder setConcurrency (int concurrency)
+    {
+      this.concurrency_ = concurrency;
+      return this;
+    }
+
+    /**
+     * Set the total number of requests to send.
+     *
+     * @param requestCount      Number of requests
+     */
+    public Builder setRequestCount (int requestCount)
+    {
+      this.requestCount_ = requestCount;
+      return this;
+    }
+
+    public LoadHarness build ()
+    {
+      if (this.client_ == null)
+        throw new IllegalStateException ("You must set the client");
+
+      if (this.request_ == null)
+        throw new IllegalStateException ("You must set the request");
+
+      if (this.concurrency_ < 1 || this.requestCount_ < 1)
+        throw new IllegalStateException ("The concurrency and request count must be positive");
+
+      return new LoadHarness (this);
+    }
+  }
+
+  private final OkHttpClient client_;
+
+  private final Request request_;
+
+  private final int concurrency_;
+
+  private final int requestCount_;
+
+  private LoadHarness (Builder builder)
+  {
+    this.client_ = builder.client_;
+    this.request_ = builder.request_;
+    this.concurrency_ = builder.concurrency_;
+    this.requestCount_ = builder.requestCount_;
+  }
+
+  /**
+   * Send the requests, and wait for all of them to complete.
+   *
+   * @return        Report for the run
+   */
+  public LoadReport run ()
+      throws Exception
+  {
+    final long [] latencies = new long[this.requestCount_];
+    final AtomicInteger nextRequest = new AtomicInteger ();
+    final AtomicInteger failedCount = new AtomicInteger ();
+    final CountDownLatch startGate = new CountDownLatch (1);
+
+    ExecutorService executor = Executors.newFixedThreadPool (this.concurrency_);
+    ArrayList <Future <?>> workers = new ArrayList<> ();
+
+    try
+    {
+      for (int i = 0; i < this.concurrency_; ++ i)
+      {
+        workers.add (executor.submit (() -> {
+          startGate.await ();
+
+          for (int n = nextRequest.getAndIncrement (); n < this.requestCount_; n = nextRequest.getAndIncrement ())
+          {
+            long startTime = System.nanoTime ();
+
+            if (!this.send ())
+              failedCount.incrementAndGet ();
+
+            latencies[n] = System.nanoTime () - startTime;
+          }
+
+          return null;
+        }));
+      }
+
+      long startTime = System.nanoTime ();
+      startGate.countDown ();
+
+      for (Future <?> worker: workers)
+        worker.get ();
+
+      return new LoadReport (latencies, failedCount.get (), System.nanoTime () - startTime);
+    }
+    finally
+    {
+      executor.shutdownNow ();
+    }
+  }
+
+  private boolean send ()
+  {
+    try (Response response = this.client_.newCall (this.request_).execute ())
+    {
+      // Read the body so the connection is returned to the pool.
+      response.body ().string ();
+      return response.isSuccessful ();
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.onehilltech.gatekeeper.mockserver.load;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @class LoadReport
+ *
+ * The results of a LoadHarness run.
+ */
+public class LoadReport
+{
+  private final long [] latencies_;
+
+  private final int failedCount_;
+
+  private final long elapsedNanos_;
+
+  LoadReport (long [] latencies, int failedCount, long elapsedNanos)
+  {
+    this.latencies_ = latencies.clone ();
+    this.failedCount_ = failedCount;
+    this.elapsedNanos_ = elapsedNanos;
+
+    Arrays.sort (this.latencies_);
+  }
+
+  public int getRequestCount ()
+  {
+    return this.latencies_.length;
+  }
+
+  public int getFailedCount ()
+  {
+    return this.failedCount_;
+  }
+
+  public long getElapsedNanos ()
+  {
+    return this.elapsedNanos_;
+  }
+
+  /**
+   * Get the number of requests completed per second.
+   */
+  public double getThroughput ()
+  {
+    return this.latencies_.length / (this.elapsedNanos_ / (double)TimeUnit.SECONDS.toNanos (1));
+  }
+
+  /**
+   * Get the latency at a percentile using the nearest-rank method.
+   *
+   * @param percentile      Percentile between 0 and 100
+   * @return                Latency in nanoseconds
+   */
+  public long getLatencyPercentile (double percentile)
+  {
+    int rank = (int)Math.ceil (percentile / 100.0 * this.latencies_.length);
+    return this.latencies_[Math.max (0, Math.min (rank, this.latencies_.length) - 1)];
+  }
+
+  @Override
+  public String toString ()
+  {
+    return String.format (
+        Locale.US,
+        "requests=%d failed=%d throughput=%.1f/s p50=%.2fms p99=%.2fms",
+        this.getRequestCount (),
+        this.failedCount_,
+        this.getThroughput (),
+        this.getLatencyPercentile (50) / 1e6,
+        this.getLatencyPercentile (99) / 1e6);
+  }
+}
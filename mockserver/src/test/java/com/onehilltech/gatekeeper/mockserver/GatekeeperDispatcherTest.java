@@ -0,0 +1,230 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import com.onehilltech.gatekeeper.android.http.JsonBearerToken;
+import com.onehilltech.gatekeeper.core.GatekeeperException;
+import com.onehilltech.gatekeeper.core.GatekeeperProtocol;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+public class GatekeeperDispatcherTest
+{
+  private static final MediaType JSON = MediaType.parse ("application/json");
+
+  private GatekeeperServer server_;
+
+  private GatekeeperProtocol protocol_;
+
+  private GatekeeperDispatcher start (GatekeeperDispatcher.Builder builder)
+      throws IOException
+  {
+    GatekeeperDispatcher dispatcher =
+        builder.addClient ("client-id", "client-secret")
+               .addAccount ("tester1", "tester1", "tester1@gatekeeper.com")
+               .build ();
+
+    this.server_ = new GatekeeperServer (dispatcher);
+    this.server_.start ();
+
+    this.protocol_ = this.server_.newProtocol ("client-id", "client-secret");
+
+    return dispatcher;
+  }
+
+  @After
+  public void teardown () throws Exception
+  {
+    if (this.server_ != null)
+      this.server_.close ();
+  }
+
+  @Test
+  public void testPasswordGrant () throws Exception
+  {
+    GatekeeperDispatcher dispatcher = this.start (new GatekeeperDispatcher.Builder ());
+
+    JsonBearerToken token = this.protocol_.getUserToken ("tester1", "tester1");
+
+    Assert.assertNotNull (token.accessToken);
+    Assert.assertNotNull (token.refreshToken);
+    Assert.assertEquals (200, this.get (GatekeeperDispatcher.ME_PATH, token.accessToken));
+
+    this.assertError ("invalid_password", () -> this.protocol_.getUserToken ("tester1", "wrong"));
+    this.assertError ("unknown_account", () -> this.protocol_.getUserToken ("tester2", "tester2"));
+    this.assertError ("invalid_client", () -> this.server_.newProtocol ("client-id", "wrong").getUserToken ("tester1", "tester1"));
+
+    Assert.assertEquals (4, dispatcher.getGrantCount (GatekeeperDispatcher.GRANT_PASSWORD));
+  }
+
+  @Test
+  public void testClientCredentialsGrant () throws Exception
+  {
+    this.start (new GatekeeperDispatcher.Builder ());
+
+    JsonBearerToken token = this.protocol_.getClientToken ();
+
+    Assert.assertNotNull (token.accessToken);
+    Assert.assertNull (token.refreshToken);
+
+    // A client token cannot access the account of a user.
+    Assert.assertEquals (403, this.get (GatekeeperDispatcher.ME_PATH, token.accessToken));
+  }
+
+  @Test
+  public void testRefreshTokenRotation () throws Exception
+  {
+    GatekeeperDispatcher dispatcher = this.start (new GatekeeperDispatcher.Builder ());
+
+    JsonBearerToken token = this.protocol_.getUserToken ("tester1", "tester1");
+    dispatcher.expireTokens ();
+
+    Assert.assertEquals (401, this.get (GatekeeperDispatcher.ME_PATH, token.accessToken));
+
+    JsonBearerToken refreshed = this.protocol_.refreshToken (token.refreshToken);
+
+    Assert.assertNotEquals (token.refreshToken, refreshed.refreshToken);
+    Assert.assertEquals (200, this.get (GatekeeperDispatcher.ME_PATH, refreshed.accessToken));
+
+    // The refresh token can only be used once.
+    this.assertError ("invalid_grant", () -> this.protocol_.refreshToken (token.refreshToken));
+
+    Assert.assertEquals (1, dispatcher.getReusedRefreshTokenCount ());
+    Assert.assertEquals (0, dispatcher.getEarlyRefreshCount ());
+    Assert.assertEquals (1, dispatcher.getUnauthorizedCount ());
+  }
+
+  @Test
+  public void testAccountLifecycle () throws Exception
+  {
+    GatekeeperDispatcher dispatcher = this.start (new GatekeeperDispatcher.Builder ());
+
+    JsonBearerToken clientToken = this.protocol_.getClientToken ();
+
+    String account = "{\"account\": {\"username\": \"tester2\", \"password\": \"tester2\", \"email\": \"tester2@gatekeeper.com\"}}";
+    String body = this.post (GatekeeperDispatcher.ACCOUNTS_PATH + "?login=true", clientToken.accessToken, account, 200);
+
+    Assert.assertTrue (dispatcher.hasAccount ("tester2"));
+    Assert.assertTrue (body.contains ("\"username\":\"tester2\""));
+    Assert.assertTrue (body.contains ("\"access_token\""));
+
+    // The username is taken.
+    this.post (GatekeeperDispatcher.ACCOUNTS_PATH, clientToken.accessToken, account, 400);
+
+    JsonBearerToken token = this.protocol_.getUserToken ("tester2", "tester2");
+
+    this.post (GatekeeperDispatcher.PASSWORD_PATH, token.accessToken, "{\"change-password\": {\"current\": \"wrong\", \"new\": \"tester3\"}}", 400);
+    this.post (GatekeeperDispatcher.PASSWORD_PATH, token.accessToken, "{\"change-password\": {\"current\": \"tester2\", \"new\": \"tester3\"}}", 200);
+
+    this.assertError ("invalid_password", () -> this.protocol_.getUserToken ("tester2", "tester2"));
+
+    this.post (GatekeeperDispatcher.LOGOUT_PATH, token.accessToken, "{}", 200);
+
+    Assert.assertEquals (401, this.get (GatekeeperDispatcher.ME_PATH, token.accessToken));
+    this.assertError ("invalid_grant", () -> this.protocol_.refreshToken (token.refreshToken));
+  }
+
+  @Test
+  public void testDisableAccount () throws Exception
+  {
+    GatekeeperDispatcher dispatcher = this.start (new GatekeeperDispatcher.Builder ());
+
+    JsonBearerToken token = this.protocol_.getUserToken ("tester1", "tester1");
+    dispatcher.disableAccount ("tester1");
+
+    Assert.assertEquals (403, this.get (GatekeeperDispatcher.ME_PATH, token.accessToken));
+    this.assertError ("account_disabled", () -> this.protocol_.getUserToken ("tester1", "tester1"));
+  }
+
+  @Test
+  public void testFaults () throws Exception
+  {
+    GatekeeperDispatcher dispatcher =
+        this.start (new GatekeeperDispatcher.Builder ()
+                        .addFault (Faults.failEvery (GatekeeperDispatcher.TOKEN_PATH, 2, 503)));
+
+    this.protocol_.getClientToken ();
+
+    try
+    {
+      this.protocol_.getClientToken ();
+      Assert.fail ();
+    }
+    catch (GatekeeperException e)
+    {
+      Assert.assertEquals (503, e.getStatusCode ());
+      Assert.assertEquals (Faults.INJECTED_FAULT, e.getCode ());
+    }
+
+    this.protocol_.getClientToken ();
+
+    Assert.assertEquals (1, dispatcher.getFaultCount ());
+  }
+
+  @Test
+  public void testLatency () throws Exception
+  {
+    this.start (new GatekeeperDispatcher.Builder ().setLatency (100, TimeUnit.MILLISECONDS));
+
+    long startTime = System.nanoTime ();
+    this.protocol_.getClientToken ();
+
+    Assert.assertTrue (System.nanoTime () - startTime >= TimeUnit.MILLISECONDS.toNanos (100));
+  }
+
+  private interface TokenCall
+  {
+    JsonBearerToken execute () throws IOException;
+  }
+
+  private void assertError (String code, TokenCall call) throws IOException
+  {
+    try
+    {
+      call.execute ();
+      Assert.fail ();
+    }
+    catch (GatekeeperException e)
+    {
+      Assert.assertEquals (code, e.getCode ());
+    }
+  }
+
+  private int get (String path, String accessToken) throws IOException
+  {
+    Request request =
+        new Request.Builder ()
+            .url (this.server_.url (path))
+            .header ("Authorization", "Bearer " + accessToken)
+            .build ();
+
+    try (Response response = this.protocol_.getHttpClient ().newCall (request).execute ())
+    {
+      return response.code ();
+    }
+  }
+
+  private String post (String path, String accessToken, String body, int expectedCode) throws IOException
+  {
+    Request request =
+        new Request.Builder ()
+            .url (this.server_.url (path))
+            .header ("Authorization", "Bearer " + accessToken)
+            .post (RequestBody.create (JSON, body))
+            .build ();
+
+    try (Response response = this.protocol_.getHttpClient ().newCall (request).execute ())
+    {
+      Assert.assertEquals (expectedCode, response.code ());
+      return response.body ().string ();
+    }
+  }
+}
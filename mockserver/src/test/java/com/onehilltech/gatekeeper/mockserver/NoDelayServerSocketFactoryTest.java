@@ -0,0 +1,62 @@
+package com.onehilltech.gatekeeper.mockserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class NoDelayServerSocketFactoryTest
+{
+  private final NoDelayServerSocketFactory factory_ = new NoDelayServerSocketFactory ();
+
+  @Test
+  public void testBound () throws Exception
+  {
+    InetAddress loopback = InetAddress.getLoopbackAddress ();
+
+    try (ServerSocket serverSocket = this.factory_.createServerSocket (0, 0, loopback))
+    {
+      Assert.assertTrue (serverSocket.isBound ());
+      Assert.assertEquals (loopback, serverSocket.getInetAddress ());
+
+      this.assertNoDelay (serverSocket);
+    }
+
+    try (ServerSocket serverSocket = this.factory_.createServerSocket (0))
+    {
+      Assert.assertTrue (serverSocket.isBound ());
+      Assert.assertTrue (serverSocket.getInetAddress ().isAnyLocalAddress ());
+
+      this.assertNoDelay (serverSocket);
+    }
+
+    try (ServerSocket serverSocket = this.factory_.createServerSocket (0, 10))
+    {
+      this.assertNoDelay (serverSocket);
+    }
+  }
+
+  @Test
+  public void testUnbound () throws Exception
+  {
+    try (ServerSocket serverSocket = this.factory_.createServerSocket ())
+    {
+      Assert.assertFalse (serverSocket.isBound ());
+
+      serverSocket.bind (null);
+      this.assertNoDelay (serverSocket);
+    }
+  }
+
+  private void assertNoDelay (ServerSocket serverSocket) throws Exception
+  {
+    try (Socket client = new Socket (InetAddress.getLoopbackAddress (), serverSocket.getLocalPort ());
+         Socket accepted = serverSocket.accept ())
+    {
+      Assert.assertTrue (client.isConnected ());
+      Assert.assertTrue (accepted.getTcpNoDelay ());
+    }
+  }
+}